@@ -1,71 +1,423 @@
 import java.util.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Scanner;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
 
 
+// Отладочный вывод компилятора. Уровень задается для каждой фазы отдельно:
+// -Dtrace=debug (все фазы) или -Dtrace=parser=debug,interpreter=trace.
+// По умолчанию все выключено, и в горячих путях остается только проверка уровня
+final class Trace {
+    enum Phase { LEXER, PARSER, SYMBOLS, OPTIMIZER, INTERPRETER, CACHE }
+
+    enum Level { OFF, INFO, DEBUG, TRACE }
+
+    private static final int FLUSH_SIZE = 1 << 13;
+    private static final Level[] levels = new Level[Phase.values().length];
+    private static final StringBuilder buffer = new StringBuilder();
+    private static PrintStream sink = System.err;
+
+    static {
+        Arrays.fill(levels, Level.OFF);
+        String config = System.getProperty("trace");
+        if (config != null) {
+            configure(config);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(Trace::flush));
+    }
+
+    private Trace() {
+    }
+
+    public static void configure(String config) {
+        for (String part : config.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length == 1) {
+                Arrays.fill(levels, Level.valueOf(pair[0].toUpperCase()));
+            } else {
+                setLevel(Phase.valueOf(pair[0].toUpperCase()), Level.valueOf(pair[1].toUpperCase()));
+            }
+        }
+    }
+
+    public static void setLevel(Phase phase, Level level) {
+        levels[phase.ordinal()] = level;
+    }
+
+    public static synchronized void setSink(PrintStream out) {
+        flush();
+        sink = out;
+    }
+
+    public static boolean on(Phase phase, Level level) {
+        return levels[phase.ordinal()].compareTo(level) >= 0;
+    }
+
+    // Сообщение собирается только если уровень включен; дорогие сообщения проверяют on() сами
+    public static void log(Phase phase, Level level, Object message) {
+        if (on(phase, level)) {
+            write(phase, message);
+        }
+    }
+
+    private static synchronized void write(Phase phase, Object message) {
+        buffer.append('[').append(phase.name().toLowerCase()).append("] ").append(message).append('\n');
+        if (buffer.length() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    public static synchronized void flush() {
+        if (buffer.length() > 0) {
+            sink.print(buffer);
+            sink.flush();
+            buffer.setLength(0);
+        }
+    }
+}
+
+
+// Интернирование имен: каждое различное имя получает плотный номер, одинаковые имена - одну строку.
+// Лексер берет номер прямо из символов исходника, без промежуточной строки; дальше таблица символов
+// и раскладки кадров работают с номерами
+final class Names {
+    private static int[] table = new int[1024];   // номер + 1, 0 - пусто
+    private static String[] names = new String[256];
+    private static char[][] chars = new char[256][]; // Символы имен - для сравнения без charAt
+    private static int[] hashes = new int[256];
+    private static int count = 0;
+
+    private Names() {
+    }
+
+    public static int intern(String name) {
+        int hash = name.hashCode();
+        int position = probe(name, hash);
+        int id = table[position] - 1;
+        return id >= 0 ? id : add(name, hash, position);
+    }
+
+    // Номер уже встречавшегося имени или -1; в отличие от intern, новое имя не добавляется
+    public static int find(String name) {
+        return table[probe(name, name.hashCode())] - 1;
+    }
+
+    // Ячейка с этим именем или первая пустая
+    private static int probe(String name, int hash) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (id < 0 || hashes[id] == hash && names[id].equals(name)) {
+                return i;
+            }
+        }
+    }
+
+    // Номер имени из chars[offset, offset + length); строка создается только для нового имени
+    public static int intern(char[] text, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + text[i];
+        }
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (id < 0) {
+                return add(new String(text, offset, length), hash, i);
+            }
+            if (hashes[id] == hash && Arrays.equals(chars[id], 0, chars[id].length, text, offset, offset + length)) {
+                return id;
+            }
+        }
+    }
+
+    private static int add(String name, int hash, int position) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            chars = Arrays.copyOf(chars, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        names[count] = name;
+        chars[count] = name.toCharArray();
+        hashes[count] = hash;
+        table[position] = count + 1;
+        count++;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return count - 1;
+    }
+
+    private static void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < count; id++) {
+            int i = hashes[id] & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+    }
+
+    public static String name(int id) {
+        return names[id];
+    }
+}
+
+// Отображение int -> значение с открытой адресацией: ключи без упаковки в Integer
+final class IntMap<V> {
+    private int[] keys = new int[8];
+    private Object[] values = new Object[8];
+    private boolean[] used = new boolean[8];
+    private int size = 0;
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    public void put(int key, V value) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (used[i]) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(java.util.function.Consumer<V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                action.accept((V) values[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        return key * 0x9E3779B9 >>> 7;
+    }
+}
+
 class SymbolTable {
     private static class Symbol {
         public String name;
+        public int nameId;
         public String type;
         public int length;
         public String scope;
+        public int scopeId;
         public int index;
         public Node node;
         public int numUse;
 
-        Symbol(String name, String type, int length, String scope, int index, Node node, int numUse) {
-            this.name = name;
+        Symbol(int nameId, String type, int length, int scopeId, int index, Node node, int numUse) {
+            this.name = Names.name(nameId);
+            this.nameId = nameId;
             this.type = type;
             this.length = length;
-            this.scope = scope;
+            this.scope = Names.name(scopeId);
+            this.scopeId = scopeId;
             this.index = index;
             this.node = node;
             this.numUse = numUse;
         }
-        Symbol(String name, String type, int length, String scope, int index, Node node) {
-            this(name, type, length, scope, index, node, 0);
-        }
 
         @Override
         public String toString() {
-            return String.format("Name: %s, Type: %s, Length: %d, Scope: %s, Index %d, numUse  %d", name, type, length, scope, index, numUse);
+            return String.format("Name: %s_%s, Type: %s, Length: %d, Scope: %s, Index %d, numUse  %d", name, scope, type, length, scope, index, numUse);
         }
 
     }
 
-    private final Map<String, Symbol> table;
+    static final int GLOBAL = Names.intern("global");
+
+    // Символы по области и имени: оба ключа - номера в Names, строки "имя_область" не собираются
+    private final IntMap<IntMap<Symbol>> scopes;
+    // Дерево областей: область S вложена в P, если в P объявлено имя S (так объявляются функции и кортежи).
+    // Для каждой области - объявления ее имени, в порядке объявления
+    private final IntMap<ArrayDeque<Symbol>> parents;
+    // Символы области по номеру (ключи кортежа), в порядке объявления
+    private final IntMap<Map<Integer, Set<Symbol>>> indexed;
+    // Число функций с каждым именем
+    private final IntMap<Integer> functions;
 
     public SymbolTable() {
-        this.table = new HashMap<>();
+        this.scopes = new IntMap<>();
+        this.parents = new IntMap<>();
+        this.indexed = new IntMap<>();
+        this.functions = new IntMap<>();
+    }
+
+    public void addSymbol(int name, int scope, String type, int length, int index, Node node, int numUse) {
+        put(new Symbol(name, type, length, scope, index, node, numUse));
+    }
+
+    public void addSymbol(int name, int scope, String type, int length, int index, Node node) {
+        addSymbol(name, scope, type, length, index, node, 0);
+    }
+
+    public void addSymbol(String name, String scope, String type, int length, int index, Node node, int numUse) {
+        addSymbol(Names.intern(name), Names.intern(scope), type, length, index, node, numUse);
     }
 
-    public void addSymbol(String name, String type, int length, String scope, int index, Node node, int numUse) {
-        Symbol symbol = new Symbol(name, type, length, scope, index, node, numUse);
-        table.put(name, symbol);
+    public void addSymbol(String name, String scope, String type, int length, int index, Node node) {
+        addSymbol(name, scope, type, length, index, node, 0);
     }
 
-    public void addSymbol(String name, String type, int length, String scope, int index, Node node) {
-        Symbol symbol = new Symbol(name, type, length, scope, index, node, 0);
-        table.put(name, symbol);
+    private void put(Symbol symbol) {
+        IntMap<Symbol> symbols = scopes.get(symbol.scopeId);
+        if (symbols == null) {
+            symbols = new IntMap<>();
+            scopes.put(symbol.scopeId, symbols);
+        }
+        Symbol old = symbols.get(symbol.nameId);
+        if (old != null) {
+            unindex(old);
+        }
+        symbols.put(symbol.nameId, symbol);
+        ArrayDeque<Symbol> declarations = parents.get(symbol.nameId);
+        if (declarations == null) {
+            declarations = new ArrayDeque<>();
+            parents.put(symbol.nameId, declarations);
+        }
+        declarations.add(symbol);
+        Map<Integer, Set<Symbol>> byIndex = indexed.get(symbol.scopeId);
+        if (byIndex == null) {
+            byIndex = new HashMap<>();
+            indexed.put(symbol.scopeId, byIndex);
+        }
+        byIndex.computeIfAbsent(symbol.index, key -> new LinkedHashSet<>()).add(symbol);
+        if ("function".equals(symbol.type)) {
+            Integer count = functions.get(symbol.nameId);
+            functions.put(symbol.nameId, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void unindex(Symbol symbol) {
+        parents.get(symbol.nameId).removeFirstOccurrence(symbol);
+        indexed.get(symbol.scopeId).get(symbol.index).remove(symbol);
+        if ("function".equals(symbol.type)) {
+            Integer count = functions.get(symbol.nameId);
+            functions.put(symbol.nameId, count > 1 ? count - 1 : null);
+        }
+    }
+
+    private Symbol find(int name, int scope) {
+        IntMap<Symbol> symbols = scopes.get(scope);
+        return symbols == null ? null : symbols.get(name);
+    }
+
+    // Поиск по строкам: имя, которого нет в Names, не объявлено нигде - интернировать его незачем
+    private Symbol find(String name, String scope) {
+        int nameId = Names.find(name);
+        int scopeId = Names.find(scope);
+        return nameId < 0 || scopeId < 0 ? null : find(nameId, scopeId);
+    }
+
+    public void deleteSymbol(String name, String scope) {
+        removeSymbol(name, scope);
+    }
+
+    public void addNumUse(int name, int scope) {
+        Symbol symbol = find(name, scope);
+        symbol.numUse += 1;
+        if (Trace.on(Trace.Phase.SYMBOLS, Trace.Level.TRACE)) {
+            Trace.log(Trace.Phase.SYMBOLS, Trace.Level.TRACE, symbol.name + "_" + symbol.scope + " uses: " + symbol.numUse);
+        }
+    }
+
+    public void addNumUse(String name, String scope) {
+        Symbol symbol = find(name, scope);
+        symbol.numUse += 1;
+        if (Trace.on(Trace.Phase.SYMBOLS, Trace.Level.TRACE)) {
+            Trace.log(Trace.Phase.SYMBOLS, Trace.Level.TRACE, name + "_" + scope + " uses: " + symbol.numUse);
+        }
     }
 
-    public void deleteSymbol(String name) {
-        table.remove(name);
+    public Symbol getSymbol(int name, int scope) {
+        return find(name, scope);
     }
 
-    public void addNumUse(String name) {
-        table.get(name).numUse += 1;
-        System.out.println(table.get(name).numUse);
+    public Symbol getSymbol(String name, String scope) {
+        return find(name, scope);
     }
 
-    public Symbol getSymbol(String name) {
-        return table.get(name);
+    // Номер области символа или -1
+    public int getSymbolScope(int name, int scope) {
+        Symbol symbol = find(name, scope);
+        return symbol != null ? symbol.scopeId : -1;
     }
 
-    public String getSymbolScope(String name) {
-        Symbol symbol = table.get(name);
+    public String getSymbolScope(String name, String scope) {
+        Symbol symbol = find(name, scope);
         if (symbol != null) {
             return symbol.scope;
         } else {
@@ -73,8 +425,8 @@ class SymbolTable {
         }
     }
 
-    public Node getSymbolNode(String name) {
-        Symbol symbol = table.get(name);
+    public Node getSymbolNode(String name, String scope) {
+        Symbol symbol = find(name, scope);
         if (symbol != null) {
             return symbol.node;
         } else {
@@ -82,48 +434,54 @@ class SymbolTable {
         }
     }
 
-    public String isVariableAccessible(String varName, String currentScope) {
-        String scopeToCheck = currentScope;
+    // Номер области, из которой видно имя, или -1
+    public int isVariableAccessible(int name, int currentScope) {
+        int scopeToCheck = currentScope;
 
         // Пытаемся найти переменную в текущей области видимости или в родительских
-        while (scopeToCheck != null) {
-            // Формируем полное имя переменной для поиска в таблице
-            String fullName = varName + "_" + scopeToCheck;
-
-
-            // Проверяем, существует ли переменная с таким именем в таблице
-            if (table.containsKey(fullName)) {
+        while (scopeToCheck >= 0) {
+            // Проверяем, существует ли переменная с таким именем в области
+            if (find(name, scopeToCheck) != null) {
                 return scopeToCheck; // Переменная доступна
             }
 
             // Если переменная не найдена, переходим к родительской области видимости
-            System.out.println("parent");
-            System.out.println(scopeToCheck);
-            System.out.println(getParentScope(scopeToCheck));
-            System.out.println("parent");
-            scopeToCheck = getParentScope(scopeToCheck);
+            int parent = getParentScope(scopeToCheck);
+            if (Trace.on(Trace.Phase.SYMBOLS, Trace.Level.TRACE)) {
+                Trace.log(Trace.Phase.SYMBOLS, Trace.Level.TRACE, Names.name(name) + " not in " + Names.name(scopeToCheck)
+                        + ", parent: " + (parent < 0 ? null : Names.name(parent)));
+            }
+            scopeToCheck = parent;
         }
 
         // Если ни в одной области видимости переменная не найдена, она недоступна
-        return null;
+        return -1;
     }
 
+    public String isVariableAccessible(String varName, String currentScope) {
+        int name = Names.find(varName);
+        int scope = Names.find(currentScope);
+        int declared = name < 0 || scope < 0 ? -1 : isVariableAccessible(name, scope);
+        return declared < 0 ? null : Names.name(declared);
+    }
 
-    private String getParentScope(String currentScope) {
-        // Ищем в таблице символов родительскую область для текущей
-        for (Symbol symbol : table.values()) {
-            if (symbol.name.startsWith(currentScope + "_")) {
-                return symbol.name.replace(currentScope + "_", ""); // Убираем суффикс и возвращаем родителя
-            }
-        }
-        return null; // Если ничего не найдено, родительская область отсутствует
+
+    private int getParentScope(int currentScope) {
+        // Родительская область - та, где объявлено имя текущей
+        ArrayDeque<Symbol> declarations = parents.get(currentScope);
+        return declarations == null || declarations.isEmpty() ? -1 : declarations.peekFirst().scopeId;
     }
 
 
 
 
-    public int getSymbolLength(String name) {
-        Symbol symbol = table.get(name);
+    public int getSymbolLength(int name, int scope) {
+        Symbol symbol = find(name, scope);
+        return symbol != null ? symbol.length : -1;
+    }
+
+    public int getSymbolLength(String name, String scope) {
+        Symbol symbol = find(name, scope);
         if (symbol != null) {
             return symbol.length;
         } else {
@@ -132,8 +490,13 @@ class SymbolTable {
     }
 
 
-    public int getSymbolUseNum(String name) {
-        Symbol symbol = table.get(name);
+    public int getSymbolUseNum(int name, int scope) {
+        Symbol symbol = find(name, scope);
+        return symbol != null ? symbol.numUse : 10;
+    }
+
+    public int getSymbolUseNum(String name, String scope) {
+        Symbol symbol = find(name, scope);
         if (symbol != null) {
             return symbol.numUse;
         } else {
@@ -141,8 +504,13 @@ class SymbolTable {
         }
     }
 
-    public String getSymbolType(String name) {
-        Symbol symbol = table.get(name);
+    public String getSymbolType(int name, int scope) {
+        Symbol symbol = find(name, scope);
+        return symbol != null ? symbol.type : "";
+    }
+
+    public String getSymbolType(String name, String scope) {
+        Symbol symbol = find(name, scope);
         if (symbol != null) {
             return (symbol.type);
         } else {
@@ -150,46 +518,70 @@ class SymbolTable {
         }
     }
 
+    // Номер имени символа области с номером index или -1
+    public int getSymbolByIndex(int scope, int index) {
+        Map<Integer, Set<Symbol>> byIndex = indexed.get(scope);
+        Set<Symbol> symbols = byIndex == null ? null : byIndex.get(index);
+        return symbols == null || symbols.isEmpty() ? -1 : symbols.iterator().next().nameId;
+    }
+
+    // Имя символа области с номером index
     public String getSymbolByIndex(String scope, int index) {
-        for (Symbol symbol : table.values()) {
-            if (symbol.scope.equals(scope) && symbol.index == index) {
-                return symbol.name;
-            }
-        }
-        return null;
+        int scopeId = Names.find(scope);
+        int name = scopeId < 0 ? -1 : getSymbolByIndex(scopeId, index);
+        return name < 0 ? null : Names.name(name);
     }
 
 
-    public void removeSymbol(String name) {
-        table.remove(name);
+    public void removeSymbol(String name, String scope) {
+        Symbol symbol = find(name, scope);
+        if (symbol != null) {
+            scopes.get(symbol.scopeId).put(symbol.nameId, null);
+            unindex(symbol);
+        }
     }
 
     public void printTable() {
-        table.values().forEach(System.out::println);
+        scopes.forEach(symbols -> symbols.forEach(symbol -> {
+            if (symbol != null) {
+                System.out.println(symbol);
+            }
+        }));
     }
 
-    public boolean hasFunctionWithName(String inputName) {
-        String targetBaseName = inputName.split("_")[0]; // Получаем базовую часть имени из входного параметра
-
-        for (Symbol symbol : table.values()) {
-            if ("function".equals(symbol.type)) {
-                String symbolBaseName = symbol.name.split("_")[0]; // Получаем базовую часть имени из таблицы
-                if (targetBaseName.equals(symbolBaseName)) {
-                    return true; // Совпадение найдено
+    // Таблица целиком - только при включенной трассировке
+    public void traceTable() {
+        if (Trace.on(Trace.Phase.SYMBOLS, Trace.Level.DEBUG)) {
+            scopes.forEach(symbols -> symbols.forEach(symbol -> {
+                if (symbol != null) {
+                    Trace.log(Trace.Phase.SYMBOLS, Trace.Level.DEBUG, symbol);
                 }
-            }
+            }));
         }
+    }
 
-        return false; // Совпадений нет
+    public boolean hasFunctionWithName(int name) {
+        return functions.get(name) != null;
+    }
+
+    public boolean hasFunctionWithName(String inputName) {
+        int name = Names.find(inputName);
+        return name >= 0 && hasFunctionWithName(name);
     }
 }
 
 abstract class Node {
+    // У листьев (литералы, идентификаторы) потомков нет: общий пустой список вместо своего ArrayList
+    static final List<Node> NO_CHILDREN = Collections.emptyList();
+
     // Список дочерних узлов
-    public List<Node> children = new ArrayList<>();
+    public List<Node> children = NO_CHILDREN;
 
     // Добавление дочернего узла
     public void addChild(Node child) {
+        if (children == NO_CHILDREN) {
+            children = new ArrayList<>(2);
+        }
         children.add(child);
     }
 
@@ -203,6 +595,11 @@ abstract class Node {
 
     public abstract void execute(Environment environment);
 
+    // Значение узла-выражения: каждый узел вычисляет себя сам, операнды вычисляются ровно один раз
+    public Object evaluate(Environment environment) {
+        throw new RuntimeException("Node is not an expression: " + this);
+    }
+
     public VariableDeclarationNode isVariable(IdentifierNode name) {
         // Применяем поиск в текущем узле
         if (!this.children.isEmpty()) {
@@ -271,9 +668,9 @@ abstract class Node {
         if (current == null) {
             return null;
         }
-        System.out.println("H: ");
-        System.out.println(current);
-        System.out.println(" ");
+        if (Trace.on(Trace.Phase.INTERPRETER, Trace.Level.TRACE)) {
+            Trace.log(Trace.Phase.INTERPRETER, Trace.Level.TRACE, "searchVariable: " + current);
+        }
 
         if (current instanceof VariableDeclarationNode) {
             VariableDeclarationNode variableNode = (VariableDeclarationNode) current;
@@ -334,622 +731,912 @@ class ProgramNode extends Node {
         }
     }
 }
-class Interpreter {
-    private Environment environment;
+// Вывод программы. print пишет в буфер; в поток он уходит, когда буфер заполнен,
+// перед чтением ввода и в конце программы. Размер буфера: -Doutput.buffer=<символов>
+class ProgramOutput {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
 
-    public Interpreter(Environment initEnvironment) {
-        environment = initEnvironment;
-    }
+    private final Writer out;
 
-    // Метод interpret, который принимает корневой узел программы
-    public void interpret(ProgramNode programNode) {
-        // Проходим по всем дочерним узлам программы
-        for (Node child : programNode.getChildren()) {
-            child.execute(environment);
-        }
+    public ProgramOutput(OutputStream stream) {
+        this(stream, Integer.getInteger("output.buffer", DEFAULT_BUFFER_SIZE));
     }
-}
-class ExpressionNode extends Node {
-    private Node leftOperand;
-    private final TokenCode operator;
-    private Node rightOperand;
-
-    public ExpressionNode(Node leftOperand, TokenCode operator, Node rightOperand) {
-        this.leftOperand = leftOperand;
-        this.operator = operator;
-        this.rightOperand = rightOperand;
 
-        addChild(leftOperand);
-        addChild(rightOperand);
+    public ProgramOutput(OutputStream stream, int bufferSize) {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream), Math.max(bufferSize, 1));
     }
 
-    public boolean isConstant() {
-        if (!operator.equals(TokenCode.NOT)) {
-            return leftOperand.isConstant() && rightOperand.isConstant();
+    // null - значение empty у VM и отсутствующее поле кортежа у обоих движков; печатается одинаково
+    public void println(Object value) {
+        try {
+            out.write(value == null ? "empty" : String.valueOf(value));
+            out.write(LINE_SEPARATOR);
+        } catch (IOException e) {
+            throw new RuntimeException("Output error: " + e.getMessage());
         }
-        return false;
     }
 
-    @Override
-    public String toString() {
-        if (operator == null) {
-            return "Identifier";
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Output error: " + e.getMessage());
         }
-        return "Expression: " + operator.toString();
     }
+}
 
-    @Override
-    public void execute(Environment environment) {}
-    public Object executeConcat(Environment environment) {
-        List<Object> rightEvaluatedList = null;
-        LinkedHashMap<Object, Object> rightEvaluatedDict = null;
-        List<Object> leftEvaluatedList = null;
-        LinkedHashMap<Object, Object> leftEvaluatedDict = null;
-        if (rightOperand instanceof IdentifierNode) {
-            String varName = ((IdentifierNode) rightOperand).getName();
-            Object value = environment.getVariable(varName, "global").getValue();
-            if (value == null) {
-                throw new RuntimeException("Variable '" + varName + "' is not defined in the current scope.");
-            }
-            if (value instanceof List<?>) {
-                rightEvaluatedList = (List<Object>) value;
-            }
-            if (value instanceof LinkedHashMap<?, ?>) {
-                rightEvaluatedDict = (LinkedHashMap<Object, Object>) value;
-            }
-        }
+// Ввод программы, общий для интерпретатора и VM: одно значение на строку. Читатель один на весь процесс,
+// чтобы буфер прочитанного вперед не терялся между вызовами
+final class ProgramInput {
+    static final int INT = 0;
+    static final int REAL = 1;
+    static final int STRING = 2;
 
-        if (rightOperand instanceof FunctionCall) {
-            Object value = ((FunctionCall) rightOperand).executeGet(environment);
-            if (value == null) {
-                throw new RuntimeException("Variable '" + "' is not defined in the current scope.");
-            }
-            if (value instanceof List<?>) {
-                rightEvaluatedList = (List<Object>) value;
-            }
-            if (value instanceof LinkedHashMap<?, ?>) {
-                rightEvaluatedDict = (LinkedHashMap<Object, Object>) value;
-            }
-        }
+    private static BufferedReader input;
 
-        if (leftOperand instanceof IdentifierNode) {
-            String varName = ((IdentifierNode) leftOperand).getName();
-            Object value = environment.getVariable(varName, "global").getValue();
-            if (value == null) {
-                throw new RuntimeException("Variable '" + varName + "' is not defined in the current scope.");
-            }
-            if (value instanceof List<?>) {
-                leftEvaluatedList = (List<Object>) value;
-            }
-            if (value instanceof LinkedHashMap<?, ?>) {
-                leftEvaluatedDict = (LinkedHashMap<Object, Object>) value;
-            }
-        }
-        if (leftOperand instanceof FunctionCall) {
-            Object value = ((FunctionCall) leftOperand).executeGet(environment);
-            if (value == null) {
-                throw new RuntimeException("Variable '" + "' is not defined in the current scope.");
+    private ProgramInput() {
+    }
+
+    // Другой источник ввода (например, для тестов); прочитанное из прежнего отбрасывается
+    static void use(InputStream stream) {
+        input = new BufferedReader(new InputStreamReader(stream));
+    }
+
+    static Object read(int kind) {
+        try {
+            if (input == null) {
+                use(System.in);
             }
-            if (value instanceof List<?>) {
-                leftEvaluatedList = (List<Object>) value;
+            String line = input.readLine();
+            if (line == null) {
+                throw new RuntimeException("Unexpected end of input");
             }
-            if (value instanceof LinkedHashMap<?, ?>) {
-                leftEvaluatedDict = (LinkedHashMap<Object, Object>) value;
+            switch (kind) {
+                case INT:
+                    return Integer.parseInt(line.trim());
+                case REAL:
+                    return Double.parseDouble(line.trim());
+                default:
+                    return line;
             }
+        } catch (IOException e) {
+            throw new RuntimeException("Input error: " + e.getMessage());
         }
-
-        if (rightOperand instanceof ListNode) {
-            rightEvaluatedList = ((ListNode) rightOperand).toValueList();
-        }
-        else if (rightOperand instanceof DictionaryNode) {
-            rightEvaluatedDict = ((DictionaryNode) rightOperand).toValueDictionary();
-        }
-        if (leftOperand instanceof ListNode) {
-            leftEvaluatedList = ((ListNode) leftOperand).toValueList();
-        }
-        else if (leftOperand instanceof DictionaryNode) {
-            leftEvaluatedDict = ((DictionaryNode) leftOperand).toValueDictionary();
-        }
-        Object temp = null;
-        if (leftOperand instanceof ExpressionNode) {
-            temp = ((ExpressionNode) leftOperand).executeConcat(environment);
-        } else if (rightOperand instanceof ExpressionNode) {
-            temp = ((ExpressionNode) rightOperand).executeConcat(environment);
-        }
-        if (temp instanceof List<?>) {
-            leftEvaluatedList = (List<Object>)temp;
-        } else if (temp instanceof LinkedHashMap<?, ?>) {
-            leftEvaluatedDict = (LinkedHashMap<Object, Object>) temp;
-        }
-        Object result;
-        if (rightEvaluatedList != null & leftEvaluatedList != null) {
-            result = concatLists(leftEvaluatedList, rightEvaluatedList);
-            return result;
-        }
-        if (rightEvaluatedDict != null & leftEvaluatedDict != null) {
-            result = concatDicts(leftEvaluatedDict, rightEvaluatedDict);
-            return result;
-        }
-//        System.out.println(rightEvaluatedList);
-//        System.out.println(leftEvaluatedList);
-//        System.out.println(rightEvaluatedDict);
-//        System.out.println(leftEvaluatedDict);
-        if ((rightEvaluatedList != null & leftEvaluatedList == null) ||
-                (rightEvaluatedList == null & leftEvaluatedList != null) ||
-                (rightEvaluatedDict != null & leftEvaluatedDict == null) ||
-                (rightEvaluatedDict == null & leftEvaluatedDict != null)) {
-            throw new RuntimeException("Invalid operand types ");
-        }
-
-        return this;
     }
+}
 
-    public List<Object> concatLists(List<Object> left, List<Object> right) {
-        List<Object> result = new ArrayList<Object>();
-        result.addAll(left);
-        result.addAll(right);
+// Значение-список: персистентный 32-арный вектор с хвостом. Узлы дерева после создания не меняются,
+// поэтому a + [x] делит с a все дерево и стоит O(log32 n), а не копирование всего списка.
+// set и add меняют только корень и хвост этого объекта: другие ссылки на тот же список видят запись,
+// как с ArrayList, а списки, которые делят с ним узлы, - нет. Путь до листа копируется, только если узлы
+// общие: узлы и листья, созданные самим вектором после последнего copy(), помечены его меткой edit
+// и меняются на месте, так что arr[i] := v у списка без копий не выделяет памяти.
+// Листья и хвост хранят элементы без упаковки: int[], double[] или boolean[], пока все элементы
+// листа одного такого типа, иначе Object[]. Запись элемента другого типа переводит лист в Object[]
+final class PersistentVector extends AbstractList<Object> implements RandomAccess {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final Object[] EMPTY = new Object[0];
+    // За детьми узла: метка владельца узла, у нижнего узла затем метки владельцев его листьев
+    private static final int EDIT = WIDTH;
+    private static final int LEAF_EDITS = WIDTH + 1;
+
+    private int size;
+    private int shift;
+    private Object[] root;
+    private Object tail;
+    // Узлы и листья с этой меткой есть только у этого вектора
+    private Object edit = new Object();
+    private boolean tailOwned;
+
+    public PersistentVector() {
+        this.shift = BITS;
+        this.root = newNode(BITS);
+        this.tail = EMPTY;
+    }
+
+    private PersistentVector(int size, int shift, Object[] root, Object tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    public static PersistentVector from(List<?> values) {
+        if (values instanceof PersistentVector) {
+            return (PersistentVector) values;
+        }
+        PersistentVector vector = new PersistentVector();
+        for (Object value : values) {
+            vector.add(value);
+        }
+        return vector;
+    }
+
+    // Новый объект с тем же содержимым за O(1). Узлы становятся общими: этот вектор получает новую метку
+    // и дальше копирует их при записи, как и копия
+    public PersistentVector copy() {
+        edit = new Object();
+        tailOwned = false;
+        return new PersistentVector(size, shift, root, tail);
+    }
+
+    // Новый вектор: этот плюс элементы other; этот не меняется
+    public PersistentVector concat(List<?> other) {
+        PersistentVector result = copy();
+        for (int i = 0; i < other.size(); i++) {
+            result.add(other.get(i));
+        }
         return result;
+    }
 
+    @Override
+    public int size() {
+        return size;
     }
 
-    public LinkedHashMap<Object, Object> concatDicts(LinkedHashMap<Object, Object> left, LinkedHashMap<Object, Object> right) {
-        LinkedHashMap<Object, Object> result = new LinkedHashMap<Object, Object>();
-        result.putAll(left);
-        result.putAll(right);
-        return result;
+    private int tailOffset() {
+        return size < WIDTH ? 0 : ((size - 1) >>> BITS) << BITS;
     }
 
-    public Node executeExpressions(Environment environment) {
-        Node leftEvaluated =  null;
-        if (rightOperand instanceof FunctionCall) {
-            Object resultR = ((FunctionCall) rightOperand).executeGet(environment);
-            if (leftOperand instanceof FunctionCall) {
-                Object resultL = ((FunctionCall) leftOperand).executeGet(environment);
-                return FuncExpression(resultL, resultR);
-            }
-            else if (operator != TokenCode.NOT) {
-                leftEvaluated = leftOperand instanceof ExpressionNode
-                        ? ((ExpressionNode) leftOperand).executeExpressions(environment)
-                        : resolveValue(leftOperand, environment, "global");
-                return FuncExpression(leftEvaluated, resultR);
-            }
-            return FuncExpression(null, resultR);
-        }
-        if (leftOperand instanceof FunctionCall) {
-            Object resultL = ((FunctionCall) leftOperand).executeGet(environment);
-            if (rightOperand instanceof FunctionCall) {
-                Object resultR = ((FunctionCall) rightOperand).executeGet(environment);
-                return FuncExpression(resultL, resultR);
-            }
-            else {
-                Node rightEvaluated = rightOperand instanceof ExpressionNode
-                        ? ((ExpressionNode) rightOperand).executeExpressions(environment)
-                        : resolveValue(rightOperand, environment, "global");
-                return FuncExpression(resultL, rightEvaluated);
-            }
-        }
-
-        Node rightEvaluated = rightOperand instanceof ExpressionNode
-                ? ((ExpressionNode) rightOperand).executeExpressions(environment)
-                : resolveValue(rightOperand, environment, "global");
-        if (operator != TokenCode.NOT) {
-            leftEvaluated = leftOperand instanceof ExpressionNode
-                    ? ((ExpressionNode) leftOperand).executeExpressions(environment)
-                    : resolveValue(leftOperand, environment, "global");
-        }
-        if (rightEvaluated instanceof LiteralNode &&
-                (leftEvaluated == null || leftEvaluated instanceof LiteralNode)) {
-            // Выполняем проверку типов и вычисление результата
-            Node result = checkTypesExecute(leftEvaluated, rightEvaluated);
-            // Устанавливаем флаг оптимизации
-            Optimizer.flag = true;
-            return result;
+    // Лист (или хвост), в котором лежит элемент index
+    private Object leafFor(int index) {
+        if (index >= tailOffset()) {
+            return tail;
         }
-        return this;
+        Object node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = ((Object[]) node)[(index >>> level) & MASK];
+        }
+        return node;
     }
 
-    public Node getLeftOp() {
-        return this.leftOperand;
+    @Override
+    public Object get(int index) {
+        Objects.checkIndex(index, size);
+        return leafGet(leafFor(index), index & MASK);
     }
 
-    public Node getRightOp() {
-        return this.rightOperand;
+    @Override
+    public Object set(int index, Object value) {
+        Objects.checkIndex(index, size);
+        Object old;
+        if (index >= tailOffset()) {
+            old = leafGet(tail, index & MASK);
+            if (tailOwned && accepts(tail, value)) {
+                store(tail, index & MASK, value);
+            } else {
+                tail = leafSet(tail, index & MASK, value);
+                tailOwned = true;
+            }
+            return old;
+        }
+        root = editable(root);
+        Object[] node = root;
+        for (int level = shift; level > BITS; level -= BITS) {
+            int child = (index >>> level) & MASK;
+            Object[] next = editable((Object[]) node[child]);
+            node[child] = next;
+            node = next;
+        }
+        int child = (index >>> BITS) & MASK;
+        Object leaf = node[child];
+        old = leafGet(leaf, index & MASK);
+        if (node[LEAF_EDITS + child] == edit && accepts(leaf, value)) {
+            store(leaf, index & MASK, value);
+        } else {
+            node[child] = leafSet(leaf, index & MASK, value);
+            node[LEAF_EDITS + child] = edit;
+        }
+        return old;
     }
 
-    public TokenCode getOperator() {
-        return this.operator;
+    // Узел уровня level, принадлежащий этому вектору
+    private Object[] newNode(int level) {
+        Object[] node = new Object[level == BITS ? LEAF_EDITS + WIDTH : WIDTH + 1];
+        node[EDIT] = edit;
+        return node;
     }
 
-    public void setLeft(Node left) {
-        this.leftOperand = left;
+    // Сам узел, если он наш, иначе его копия с нашей меткой. Метки листьев копия берет у оригинала:
+    // они чужие, и листья скопируются при первой записи
+    private Object[] editable(Object[] node) {
+        if (node[EDIT] == edit) {
+            return node;
+        }
+        Object[] copy = node.clone();
+        copy[EDIT] = edit;
+        return copy;
     }
 
+    @Override
+    public boolean add(Object value) {
+        if (size - tailOffset() < WIDTH) {
+            tail = leafAppend(tail, value);
+        } else {
+            // Хвост заполнен - уходит в дерево листом, при переполнении корня дерево растет на уровень
+            if ((size >>> BITS) > (1 << shift)) {
+                Object[] newRoot = newNode(shift + BITS);
+                newRoot[0] = root;
+                newRoot[1] = newPath(shift, tail);
+                root = newRoot;
+                shift += BITS;
+            } else {
+                root = pushTail(shift, root, tail);
+            }
+            tail = leafAppend(EMPTY, value);
+        }
+        size++;
+        // leafAppend всегда возвращает новый массив
+        tailOwned = true;
+        return true;
+    }
 
-    public void setRight(Node right) {
-        this.rightOperand = right;
+    // Хвост уходит в дерево листом; лист наш, если наш был хвост
+    private Object[] pushTail(int level, Object[] parent, Object leaf) {
+        int child = ((size - 1) >>> level) & MASK;
+        Object[] node = editable(parent);
+        if (level == BITS) {
+            node[child] = leaf;
+            node[LEAF_EDITS + child] = tailOwned ? edit : null;
+        } else {
+            Object[] next = (Object[]) parent[child];
+            node[child] = next != null ? pushTail(level - BITS, next, leaf) : newPath(level - BITS, leaf);
+        }
+        return node;
     }
 
-    public Node evaluate() {
-        if (leftOperand instanceof LiteralNode && rightOperand instanceof LiteralNode) {
-            Node result = checkTypes();
-            Optimizer.flag = true;
-            return result;
+    private Object newPath(int level, Object leaf) {
+        if (level == 0) {
+            return leaf;
         }
-        return this;
+        Object[] node = newNode(level);
+        node[0] = newPath(level - BITS, leaf);
+        if (level == BITS && tailOwned) {
+            node[LEAF_EDITS] = edit;
+        }
+        return node;
+    }
+
+    private static Object leafGet(Object leaf, int i) {
+        if (leaf instanceof int[]) {
+            return ((int[]) leaf)[i];
+        } else if (leaf instanceof double[]) {
+            return ((double[]) leaf)[i];
+        } else if (leaf instanceof boolean[]) {
+            return ((boolean[]) leaf)[i];
+        }
+        return ((Object[]) leaf)[i];
+    }
+
+    private static int leafLength(Object leaf) {
+        if (leaf instanceof int[]) {
+            return ((int[]) leaf).length;
+        } else if (leaf instanceof double[]) {
+            return ((double[]) leaf).length;
+        } else if (leaf instanceof boolean[]) {
+            return ((boolean[]) leaf).length;
+        }
+        return ((Object[]) leaf).length;
+    }
+
+    // Копия листа длиной length; value определяет, остается ли лист без упаковки
+    private static Object leafCopy(Object leaf, int length, Object value) {
+        if (leaf instanceof int[] && value instanceof Integer) {
+            return Arrays.copyOf((int[]) leaf, length);
+        } else if (leaf instanceof double[] && value instanceof Double) {
+            return Arrays.copyOf((double[]) leaf, length);
+        } else if (leaf instanceof boolean[] && value instanceof Boolean) {
+            return Arrays.copyOf((boolean[]) leaf, length);
+        } else if (leaf instanceof Object[]) {
+            return Arrays.copyOf((Object[]) leaf, length);
+        }
+        // Элемент другого типа - лист переходит в Object[]
+        Object[] generic = new Object[length];
+        int count = leafLength(leaf);
+        for (int i = 0; i < count; i++) {
+            generic[i] = leafGet(leaf, i);
+        }
+        return generic;
+    }
+
+    private static Object leafAppend(Object leaf, Object value) {
+        int length = leafLength(leaf);
+        Object result;
+        if (length == 0) {
+            // Тип нового листа задает первый элемент
+            result = value instanceof Integer ? new int[1] : value instanceof Double ? new double[1]
+                    : value instanceof Boolean ? new boolean[1] : new Object[1];
+        } else {
+            result = leafCopy(leaf, length + 1, value);
+        }
+        store(result, length, value);
+        return result;
+    }
+
+    // Элемент можно записать в лист без смены его типа
+    private static boolean accepts(Object leaf, Object value) {
+        if (leaf instanceof int[]) {
+            return value instanceof Integer;
+        } else if (leaf instanceof double[]) {
+            return value instanceof Double;
+        } else if (leaf instanceof boolean[]) {
+            return value instanceof Boolean;
+        }
+        return true;
+    }
+
+    private static Object leafSet(Object leaf, int i, Object value) {
+        Object result = leafCopy(leaf, leafLength(leaf), value);
+        store(result, i, value);
+        return result;
+    }
+
+    private static void store(Object leaf, int i, Object value) {
+        if (leaf instanceof int[]) {
+            ((int[]) leaf)[i] = (Integer) value;
+        } else if (leaf instanceof double[]) {
+            ((double[]) leaf)[i] = (Double) value;
+        } else if (leaf instanceof boolean[]) {
+            ((boolean[]) leaf)[i] = (Boolean) value;
+        } else {
+            ((Object[]) leaf)[i] = value;
+        }
+    }
+}
+
+// Форма кортежа: имена полей по порядку и номер слота каждого. Формы общие для всех кортежей
+// с одинаковым набором полей: добавление поля - переход к следующей форме, переходы запоминаются,
+// поэтому tpl.c := 20 на кортежах одного вида всегда приводит к одной и той же форме
+final class Shape {
+    static final Shape EMPTY = new Shape(new String[0]);
+
+    private final String[] names;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    private Shape(String[] names) {
+        this.names = names;
+        for (int i = 0; i < names.length; i++) {
+            slots.put(names[i], i);
+        }
+    }
+
+    // Форма с полями keys в порядке первого появления (повторный ключ попадает в тот же слот)
+    static Shape of(String[] keys) {
+        Shape shape = EMPTY;
+        for (String key : keys) {
+            shape = shape.with(key);
+        }
+        return shape;
+    }
+
+    public Shape with(String name) {
+        if (slots.containsKey(name)) {
+            return this;
+        }
+        Shape next = transitions.get(name);
+        if (next == null) {
+            String[] extended = Arrays.copyOf(names, names.length + 1);
+            extended[names.length] = name;
+            next = new Shape(extended);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+
+    // Слот поля или -1, если такого поля нет
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    public String name(int slot) {
+        return names[slot];
+    }
+
+    public int size() {
+        return names.length;
+    }
+}
+
+// Значение-кортеж: форма и массив значений по слотам. tpl.a - поиск слота в форме, tpl.1 - прямой индекс
+final class Tuple {
+    private Shape shape;
+    private Object[] values;
+
+    public Tuple(Shape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public int size() {
+        return shape.size();
+    }
+
+    public Object get(String name) {
+        int slot = shape.slot(name);
+        return slot < 0 ? null : values[slot];
+    }
+
+    public Object get(int index) {
+        if (index < 0 || index >= shape.size()) {
+            throw new IndexOutOfBoundsException("Индекс вне границ словаря.");
+        }
+        return values[index];
+    }
+
+    // Запись поля; нового поля - с переходом к следующей форме
+    public void set(String name, Object value) {
+        int slot = shape.slot(name);
+        if (slot < 0) {
+            shape = shape.with(name);
+            slot = shape.size() - 1;
+            if (slot >= values.length) {
+                values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+            }
+        }
+        values[slot] = value;
+    }
+
+    public void set(int index, Object value) {
+        if (index < 0 || index >= shape.size()) {
+            throw new IndexOutOfBoundsException("Индекс вне границ словаря.");
+        }
+        values[index] = value;
+    }
+
+    // Доступ по слоту, уже найденному в форме этого кортежа
+    Object getSlot(int slot) {
+        return values[slot];
+    }
+
+    void setSlot(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    // Новый кортеж: поля этого, затем поля other (одноименные берутся из other)
+    public Tuple concat(Tuple other) {
+        Tuple result = new Tuple(shape, Arrays.copyOf(values, shape.size() + other.size()));
+        for (int i = 0; i < other.size(); i++) {
+            result.set(other.shape.name(i), other.values[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < shape.size(); i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(shape.name(i)).append('=').append(values[i] == this ? "(this Map)" : values[i]);
+        }
+        return text.append('}').toString();
     }
-    public Node FuncExpression(Object leftOperand, Object rightOperand) {
-        String leftType = null;
-        String rightType = null;
-        if (leftOperand != null && leftOperand instanceof Node) {
-            leftType = ((LiteralNode) leftOperand).getType();
-        } else if (leftOperand != null){
-            leftType = determineType(leftOperand);
+}
+
+// Кэш одного места обращения к полю (tpl.a): формы, которые здесь уже встречались, и слот поля в каждой.
+// Пока форма кортежа совпадает с запомненной, поле не ищется в форме. До LIMIT форм на место,
+// дальше место считается мегаморфным и идет медленным путем
+final class FieldCache {
+    static final int LIMIT = 4;
+
+    private final String name;
+    private final Shape[] shapes = new Shape[LIMIT];
+    private final int[] slots = new int[LIMIT];
+    private int count;
+    // Попадания и промахи этого места; Benchmark складывает их по всем кэшам программы
+    private long hits;
+    private long misses;
+
+    public FieldCache(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    // Слот поля в форме shape или -1, если поля в ней нет
+    private int slot(Shape shape) {
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                hits++;
+                return slots[i];
+            }
         }
-        if (rightOperand instanceof Node) {
-            rightType = ((LiteralNode) rightOperand).getType();
+        misses++;
+        int slot = shape.slot(name);
+        if (count < LIMIT) {
+            shapes[count] = shape;
+            slots[count] = slot;
+            count++;
+        }
+        return slot;
+    }
+
+    public Object get(Tuple tuple) {
+        int slot = slot(tuple.getShape());
+        return slot < 0 ? null : tuple.getSlot(slot);
+    }
+
+    public void set(Tuple tuple, Object value) {
+        int slot = slot(tuple.getShape());
+        if (slot < 0) {
+            // Новое поле - кортеж переходит к другой форме
+            tuple.set(name, value);
         } else {
-            rightType = determineType(rightOperand);
+            tuple.setSlot(slot, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + count + " shapes, hits " + hits + ", misses " + misses;
+    }
+}
+
+class Interpreter {
+    private Environment environment;
+
+    public Interpreter(Environment initEnvironment) {
+        environment = initEnvironment;
+    }
+
+    // Метод interpret, который принимает корневой узел программы
+    public void interpret(ProgramNode programNode) {
+        try {
+            // Проходим по всем дочерним узлам программы
+            for (Node child : programNode.getChildren()) {
+                child.execute(environment);
+                // return вне функции завершает программу, как в VM
+                if (environment.isReturning()) {
+                    break;
+                }
+            }
+        } finally {
+            environment.getOutput().flush();
+        }
+    }
+}
+class ExpressionNode extends Node {
+    private Node leftOperand;
+    private final TokenCode operator;
+    private Node rightOperand;
+    // false, если операнды оказались не числовыми и быстрый путь не применим
+    private boolean primitivePath = true;
+
+    public ExpressionNode(Node leftOperand, TokenCode operator, Node rightOperand) {
+        this.leftOperand = leftOperand;
+        this.operator = operator;
+        this.rightOperand = rightOperand;
+
+        addChild(leftOperand);
+        addChild(rightOperand);
+    }
+
+    public boolean isConstant() {
+        if (!operator.equals(TokenCode.NOT)) {
+            return leftOperand.isConstant() && rightOperand.isConstant();
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        if (operator == null) {
+            return "Identifier";
+        }
+        return "Expression: " + operator.toString();
+    }
+
+    @Override
+    public void execute(Environment environment) {}
+    public List<Object> concatLists(List<Object> left, List<Object> right) {
+        return PersistentVector.from(left).concat(right);
+    }
+
+    public Tuple concatDicts(Tuple left, Tuple right) {
+        return left.concat(right);
+    }
+
+    // Значение выражения: сначала быстрый путь для int/real, затем общий -
+    // каждый операнд (в том числе вызов функции) вычисляется ровно один раз
+    @Override
+    public Object evaluate(Environment environment) {
+        if (operator == TokenCode.AND || operator == TokenCode.OR) {
+            return evaluateLogical(environment);
+        }
+        if (primitivePath) {
+            Object value = evaluatePrimitive(environment);
+            if (value != null) {
+                return value;
+            }
+            // Операнды не числовые - дальше этот узел вычисляется только общим путем
+            primitivePath = false;
+        }
+        Object left = operator == TokenCode.NOT ? null : operandValue(leftOperand, environment);
+        Object right = operandValue(rightOperand, environment);
+        return applyOperator(left, right);
+    }
+
+    // and/or с коротким замыканием: правый операнд не вычисляется, если левый уже решил результат.
+    // Для xor оба операнда нужны всегда
+    private Object evaluateLogical(Environment environment) {
+        Object left = operandValue(leftOperand, environment);
+        if (left instanceof Boolean && (Boolean) left == (operator == TokenCode.OR)) {
+            return left;
+        }
+        return applyOperator(left, operandValue(rightOperand, environment));
+    }
+
+    private static Object operandValue(Node node, Environment environment) {
+        Object value = node.evaluate(environment);
+        if (value == null && node instanceof IdentifierNode) {
+            throw new RuntimeException("Variable '" + ((IdentifierNode) node).getName() + "' is not defined in the current scope.");
         }
+        return value;
+    }
 
+    // Операция над уже вычисленными значениями операндов
+    @SuppressWarnings("unchecked")
+    private Object applyOperator(Object left, Object right) {
         switch (operator) {
             case PLUS:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    int result;
-                    if (leftOperand instanceof Node) {
-                        int left = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString());
-                        result = left + (Integer)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        int right = Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                        result = right + (Integer)leftOperand;
-                    } else {
-                        result = (Integer)rightOperand + (Integer)leftOperand;
-                    }
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    double result;
-                    if (leftOperand instanceof Node) {
-                        double left = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString());
-                        result = left + (Double)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        double right = Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                        result = right + (Double)leftOperand;
-                    } else {
-                        result = (Double)rightOperand + (Double)leftOperand;
-                    }
-                    return new LiteralNode((Object) result, "real");
-                } else if (leftType.equals("string") && rightType.equals("string")) {
-                    String result;
-                    if (leftOperand instanceof Node) {
-                        String left = ((LiteralNode) leftOperand).getValue().toString();
-                        result = left + rightOperand.toString();
-                    }else if (rightOperand instanceof Node) {
-                        String right = ((LiteralNode) rightOperand).getValue().toString();
-                        result = leftOperand.toString() + right;
-                    } else {
-                        result = leftOperand.toString() + rightOperand.toString();
-                    }
-                    return new LiteralNode((Object) result, "string");
+                if (left instanceof List<?> && right instanceof List<?>) {
+                    return concatLists((List<Object>) left, (List<Object>) right);
                 }
-//                if (leftType.equals("dictionary") && rightType.equals("dictionary")) return;
-//                if (leftType.equals("list") && rightType.equals("list")) return;
-                break;
-
-            case MINUS:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    int result;
-                    if (leftOperand instanceof Node) {
-                        int left = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString());
-                        result = left - (Integer)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        int right = Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                        result = (Integer)leftOperand - right;
-                    } else {
-                        result = (Integer)leftOperand - (Integer)rightOperand;
-                    }
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    double result;
-                    if (leftOperand instanceof Node) {
-                        double left = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString());
-                        result = left - (Double)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        double right = Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                        result = (Double)leftOperand - right;
-                    } else {
-                        result = (Double)leftOperand - (Double)rightOperand;
-                    }
-                    return new LiteralNode((Object) result, "real");
+                if (left instanceof Tuple && right instanceof Tuple) {
+                    return concatDicts((Tuple) left, (Tuple) right);
                 }
-                break;
-            case MULTIPLY:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    int result;
-                    if (leftOperand instanceof Node) {
-                        int left = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString());
-                        result = left * (Integer)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        int right = Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                        result = right * (Integer)leftOperand;
-                    } else {
-                        result = (Integer)rightOperand * (Integer)leftOperand;
-                    }
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    double result;
-                    if (leftOperand instanceof Node) {
-                        double left = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString());
-                        result = left * (Double)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        double right = Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                        result = right * (Double)leftOperand;
-                    } else {
-                        result = (Double)rightOperand * (Double)leftOperand;
-                    }
-                    return new LiteralNode((Object) result, "real");
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + right;
                 }
-                break;
-            case DIVIDE:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    if (rightOperand instanceof Node) {
-                        if (Integer.parseInt(((LiteralNode) rightOperand).getValue().toString()) == 0) {
-                            throw new ArithmeticException("Division by zero!");
-                        }
-                    } else {
-                        if ((Integer)rightOperand == 0) {
-                            throw new ArithmeticException("Division by zero!");
-                        }
-                    }
-                    int result;
-                    if (leftOperand instanceof Node) {
-                        int left = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString());
-                        result = left / (Integer)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        int right = Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                        result = right / (Integer)leftOperand;
-                    } else {
-                        result = (Integer)leftOperand / (Integer)rightOperand;
-                    }
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    if (rightOperand instanceof Node) {
-                        if (Double.parseDouble(((LiteralNode) rightOperand).getValue().toString()) == 0) {
-                            throw new ArithmeticException("Division by zero!");
-                        }
-                    } else {
-                        if ((Integer)rightOperand == 0) {
-                            throw new ArithmeticException("Division by zero!");
-                        }
-                    }
-                    double result;
-                    if (leftOperand instanceof Node) {
-                        double left = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString());
-                        result = left / (Double)rightOperand;
-                    }else if (rightOperand instanceof Node) {
-                        double right = Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                        result = right / (Double)leftOperand;
-                    } else {
-                        result = (Double)rightOperand / (Double)leftOperand;
-                    }
-                    return new LiteralNode((Object) result, "real");
+                if (isNumber(left) && isNumber(right)) {
+                    return applyNumeric(left, right);
                 }
                 break;
-
+            case MINUS:
+            case MULTIPLY:
+            case DIVIDE:
             case LESS:
             case GREATER:
             case LESS_EQUAL:
             case GREATER_EQUAL:
             case EQUAL:
             case NOT_EQUAL:
-                if (leftType.equals("int") && rightType.equals("real")) {
-                    boolean result;
-                    int leftValue;
-                    double rightValue;
-                    if (leftOperand instanceof Node) {
-                        leftValue = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString());
-                    } else {
-                        leftValue = (int) leftOperand;
-                    }
-                    if (rightOperand instanceof Node) {
-                        rightValue = Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                    } else {
-                        rightValue = (double) rightOperand;
-                    }
-                    switch (operator) {
-                        case LESS:
-                            result = leftValue < rightValue;
-                            break;
-                        case GREATER:
-                            result = leftValue > rightValue;
-                            break;
-                        case LESS_EQUAL:
-                            result = leftValue <= rightValue;
-                            break;
-                        case GREATER_EQUAL:
-                            result = leftValue >= rightValue;
-                            break;
-                        case EQUAL:
-                            result = leftValue == rightValue;
-                            break;
-                        case NOT_EQUAL:
-                            result = leftValue != rightValue;
-                            break;
-                        default:
-                            throw new ParseException("Invalid comparison operation.");
-                    }
-                    return new LiteralNode((Object) result, "boolean");
-                }
-                if (leftType.equals("real") && rightType.equals("int")) {
-                    boolean result;
-                    double leftValue;
-                    int rightValue;
-                    if (leftOperand instanceof Node) {
-                        leftValue = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString());
-                    } else {
-                        leftValue = (double) leftOperand;
-                    }
-                    if (rightOperand instanceof Node) {
-                        rightValue = Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                    } else {
-                        rightValue = (int) rightOperand;
-                    }
-                    switch (operator) {
-                        case LESS:
-                            result = leftValue < rightValue;
-                            break;
-                        case GREATER:
-                            result = leftValue > rightValue;
-                            break;
-                        case LESS_EQUAL:
-                            result = leftValue <= rightValue;
-                            break;
-                        case GREATER_EQUAL:
-                            result = leftValue >= rightValue;
-                            break;
-                        case EQUAL:
-                            result = leftValue == rightValue;
-                            break;
-                        case NOT_EQUAL:
-                            result = leftValue != rightValue;
-                            break;
-                        default:
-                            throw new ParseException("Invalid comparison operation.");
-                    }
-                    return new LiteralNode((Object) result, "boolean");
-                }else if (leftType.equals("int") && rightType.equals("int")) {
-                    boolean result;
-                    int leftValue;
-                    int rightValue;
-                    if (leftOperand instanceof Node) {
-                        leftValue = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString());
-                    } else {
-                        leftValue = (int) leftOperand;
-                    }
-                    if (rightOperand instanceof Node) {
-                        rightValue = Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                    } else {
-                        rightValue = (int) rightOperand;
-                    }
-                    switch (operator) {
-                        case LESS:
-                            result = leftValue < rightValue;
-                            break;
-                        case GREATER:
-                            result = leftValue > rightValue;
-                            break;
-                        case LESS_EQUAL:
-                            result = leftValue <= rightValue;
-                            break;
-                        case GREATER_EQUAL:
-                            result = leftValue >= rightValue;
-                            break;
-                        case EQUAL:
-                            result = leftValue == rightValue;
-                            break;
-                        case NOT_EQUAL:
-                            result = leftValue != rightValue;
-                            break;
-                        default:
-                            throw new ParseException("Invalid comparison operation.");
-                    }
-                    return new LiteralNode((Object) result, "boolean");
-                }else if (leftType.equals("real") && rightType.equals("real")) {
-                    boolean result;
-                    double leftValue;
-                    double rightValue;
-                    if (leftOperand instanceof Node) {
-                        leftValue = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString());
-                    } else {
-                        leftValue = (double) leftOperand;
-                    }
-                    if (rightOperand instanceof Node) {
-                        rightValue = Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                    } else {
-                        rightValue = (double) rightOperand;
-                    }
-                    switch (operator) {
-                        case LESS:
-                            result = leftValue < rightValue;
-                            break;
-                        case GREATER:
-                            result = leftValue > rightValue;
-                            break;
-                        case LESS_EQUAL:
-                            result = leftValue <= rightValue;
-                            break;
-                        case GREATER_EQUAL:
-                            result = leftValue >= rightValue;
-                            break;
-                        case EQUAL:
-                            result = leftValue == rightValue;
-                            break;
-                        case NOT_EQUAL:
-                            result = leftValue != rightValue;
-                            break;
-                        default:
-                            throw new ParseException("Invalid comparison operation.");
-                    }
-                    return new LiteralNode((Object) result, "boolean");
+                if (isNumber(left) && isNumber(right)) {
+                    return applyNumeric(left, right);
                 }
                 break;
             case AND:
             case OR:
             case XOR:
-                if (leftType.equals("boolean") && rightType.equals("boolean")) {
-                    boolean result;
-                    boolean leftValue;
-                    boolean rightValue;
-                    if (leftOperand instanceof Node) {
-                        leftValue = Boolean.parseBoolean(((LiteralNode) leftOperand).getValue().toString());
-                    } else {
-                        leftValue = (boolean) leftOperand;
-                    }
-                    if (rightOperand instanceof Node) {
-                        rightValue = Boolean.parseBoolean(((LiteralNode) rightOperand).getValue().toString());
-                    } else {
-                        rightValue = (boolean) rightOperand;
-                    }
-                    switch (operator) {
-                        case AND:
-                            result = leftValue && rightValue;
-                            break;
-                        case OR:
-                            result = leftValue || rightValue;
-                            break;
-                        case XOR:
-                            result = leftValue ^ rightValue;
-                            break;
-                        default:
-                            throw new ParseException("Unsupported operation: " + operator);
+                if (left instanceof Boolean && right instanceof Boolean) {
+                    boolean leftValue = (Boolean) left;
+                    boolean rightValue = (Boolean) right;
+                    if (operator == TokenCode.AND) {
+                        return leftValue && rightValue;
                     }
-                    return new LiteralNode((Object) result, "boolean");
+                    return operator == TokenCode.OR ? leftValue || rightValue : leftValue ^ rightValue;
                 }
                 break;
-
             case NOT:
-                if (rightType.equals("boolean")) {
-                    boolean rightValue;
-                    if (rightOperand instanceof Node) {
-                        rightValue = Boolean.parseBoolean(((LiteralNode) rightOperand).getValue().toString());
-                    } else {
-                        rightValue = (boolean)rightOperand;
-                    }
-                    boolean result = !rightValue;
-                    return new LiteralNode((Object) result, "boolean");
+                if (right instanceof Boolean) {
+                    return !(Boolean) right;
                 }
                 break;
+            default:
+                throw new RuntimeException("Unsupported operation for types: " + typeName(left) + " and " + typeName(right));
+        }
+        throw new RuntimeException("Invalid operand types for operation: " + typeName(left) + " and " + typeName(right));
+    }
+
+    private static boolean isNumber(Object value) {
+        return value instanceof Integer || value instanceof Double || value instanceof Float;
+    }
 
+    private String typeName(Object value) {
+        return value == null ? "null" : determineType(value);
+    }
+
+    // Сравнение чисел для условий if/while без упаковки результата в Boolean:
+    // 1 - истина, 0 - ложь, -1 - это не сравнение или операнды не числовые
+    public int testNumeric(Environment environment) {
+        switch (operator) {
+            case LESS:
+            case GREATER:
+            case LESS_EQUAL:
+            case GREATER_EQUAL:
+            case EQUAL:
+            case NOT_EQUAL:
+                break;
             default:
-                throw new RuntimeException("Unsupported operation for types: " + leftType + " and " + rightType);
+                return -1;
         }
-        throw new RuntimeException("Invalid operand types for operation: " + leftType + " and " + rightType);
+        Object left = primitiveOperand(leftOperand, environment);
+        if (left == null) {
+            return -1;
+        }
+        Object right = primitiveOperand(rightOperand, environment);
+        if (right == null) {
+            return -1;
+        }
+        int order = left instanceof Integer && right instanceof Integer
+                ? Integer.compare((Integer) left, (Integer) right)
+                : Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        boolean result;
+        switch (operator) {
+            case LESS:
+                result = order < 0;
+                break;
+            case GREATER:
+                result = order > 0;
+                break;
+            case LESS_EQUAL:
+                result = order <= 0;
+                break;
+            case GREATER_EQUAL:
+                result = order >= 0;
+                break;
+            case EQUAL:
+                result = order == 0;
+                break;
+            default:
+                result = order != 0;
+        }
+        return result ? 1 : 0;
+    }
+
+    // Арифметика и сравнения над int/real на примитивах, без строк и LiteralNode.
+    // Типы переменных в SymbolTable не хранятся, поэтому операнды проверяются при вычислении;
+    // null - операнды не числовые, нужен общий путь
+    private Object evaluatePrimitive(Environment environment) {
+        switch (operator) {
+            case PLUS:
+            case MINUS:
+            case MULTIPLY:
+            case DIVIDE:
+            case LESS:
+            case GREATER:
+            case LESS_EQUAL:
+            case GREATER_EQUAL:
+            case EQUAL:
+            case NOT_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        Object left = primitiveOperand(leftOperand, environment);
+        if (left == null) {
+            return null;
+        }
+        Object right = primitiveOperand(rightOperand, environment);
+        if (right == null) {
+            return null;
+        }
+        return applyNumeric(left, right);
+    }
+
+    private Object applyNumeric(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            int leftValue = (Integer) left;
+            int rightValue = (Integer) right;
+            switch (operator) {
+                case PLUS:
+                    return leftValue + rightValue;
+                case MINUS:
+                    return leftValue - rightValue;
+                case MULTIPLY:
+                    return leftValue * rightValue;
+                case DIVIDE:
+                    if (rightValue == 0) {
+                        throw new ArithmeticException("Division by zero!");
+                    }
+                    return leftValue / rightValue;
+                case LESS:
+                    return leftValue < rightValue;
+                case GREATER:
+                    return leftValue > rightValue;
+                case LESS_EQUAL:
+                    return leftValue <= rightValue;
+                case GREATER_EQUAL:
+                    return leftValue >= rightValue;
+                case EQUAL:
+                    return leftValue == rightValue;
+                default:
+                    return leftValue != rightValue;
+            }
+        }
+
+        double leftValue = ((Number) left).doubleValue();
+        double rightValue = ((Number) right).doubleValue();
+        switch (operator) {
+            case PLUS:
+                return leftValue + rightValue;
+            case MINUS:
+                return leftValue - rightValue;
+            case MULTIPLY:
+                return leftValue * rightValue;
+            case DIVIDE:
+                if (rightValue == 0) {
+                    throw new ArithmeticException("Division by zero!");
+                }
+                return leftValue / rightValue;
+            case LESS:
+                return leftValue < rightValue;
+            case GREATER:
+                return leftValue > rightValue;
+            case LESS_EQUAL:
+                return leftValue <= rightValue;
+            case GREATER_EQUAL:
+                return leftValue >= rightValue;
+            case EQUAL:
+                return leftValue == rightValue;
+            default:
+                return leftValue != rightValue;
+        }
+    }
+
+    // Числовое значение операнда (Integer или Double); null, если операнд не число или это вызов функции
+    private static Object primitiveOperand(Node node, Environment environment) {
+        Object value;
+        if (node instanceof LiteralNode) {
+            value = ((LiteralNode) node).getValue();
+        } else if (node instanceof IdentifierNode) {
+            value = environment.getValue((IdentifierNode) node);
+        } else if (node instanceof ExpressionNode && ((ExpressionNode) node).primitivePath) {
+            value = ((ExpressionNode) node).evaluatePrimitive(environment);
+        } else {
+            return null;
+        }
+        return value instanceof Integer || value instanceof Double ? value : null;
+    }
+
+    public Node getLeftOp() {
+        return this.leftOperand;
+    }
+
+    public Node getRightOp() {
+        return this.rightOperand;
+    }
+
+    public TokenCode getOperator() {
+        return this.operator;
+    }
+
+    public void setLeft(Node left) {
+        this.leftOperand = left;
+    }
+
+
+    public void setRight(Node right) {
+        this.rightOperand = right;
+    }
+
+    public Node evaluate() {
+        if (leftOperand instanceof LiteralNode && rightOperand instanceof LiteralNode) {
+            Node result = checkTypes();
+            Optimizer.flag = true;
+            return result;
+        }
+        return this;
     }
     public Node checkTypes() {
         String leftType = ((LiteralNode) leftOperand).getType();
@@ -1088,3968 +1775,5920 @@ class ExpressionNode extends Node {
         throw new RuntimeException("Invalid operand types for operation: " + leftType + " and " + rightType);
     }
 
-    private Node resolveValue(Node node, Environment environment, String scopeType) {
-        if (node instanceof LiteralNode) {
-            return node;
-        } else if (node instanceof IdentifierNode) {
-            // Если узел — переменная, извлекаем значение из окружения
-            String varName = ((IdentifierNode) node).getName();
-            Object value = environment.getVariable(varName, scopeType).getValue();
-            if (value == null) {
-                throw new RuntimeException("Variable '" + varName + "' is not defined in the current scope.");
-            }
-            String type = determineType(environment.getVariable(varName, "global").getValue());
-            return new LiteralNode(value, type);
-        }
-        throw new RuntimeException("Unsupported node type: " + node.getClass());
-    }
-    private String determineType(Object value) {
-        if (value instanceof Integer) {
-            return "int";
-        } else if (value instanceof Double || value instanceof Float) {
-            return "real";
-        } else if (value instanceof Boolean) {
-            return "boolean";
-        } else if (value instanceof String) {
-            return "string";
-        } else if (value instanceof ArrayList<?>) {
-            return "array";
-        } else if (value instanceof LinkedHashMap<?,?>) {
-            return "tuple";
-        }
-        throw new RuntimeException("Unsupported value type: " + value.getClass());
+    private String determineType(Object value) {
+        if (value instanceof Integer) {
+            return "int";
+        } else if (value instanceof Double || value instanceof Float) {
+            return "real";
+        } else if (value instanceof Boolean) {
+            return "boolean";
+        } else if (value instanceof String) {
+            return "string";
+        } else if (value instanceof List<?>) {
+            return "array";
+        } else if (value instanceof Tuple) {
+            return "tuple";
+        }
+        throw new RuntimeException("Unsupported value type: " + value.getClass());
+    }
+}
+
+
+
+abstract class DeclarationNode extends Node {
+    // Тип декларации: переменная, функция, тип
+    public enum DeclarationType {
+        VARIABLE,
+        FUNCTION
+    }
+
+    protected DeclarationType declarationType;
+
+    public DeclarationType getDeclarationType() {
+        return declarationType;
+    }
+
+
+    @Override
+    public abstract String toString();
+
+    @Override
+    public abstract void execute(Environment environment);
+}
+
+abstract class StatementNode extends Node {
+    private final String statementType;
+
+    public StatementNode(String statementType) {
+        this.statementType = statementType;
+    }
+    public String getStatementType() {
+        return statementType;
+    }
+    @Override
+    public String toString() {
+        return "statement";
+    }
+}
+
+
+class VariableDeclarationNode extends DeclarationNode {
+    IdentifierNode variableName;
+    Node initializer;
+    String type;
+    DictionaryEntryCall dictionaryEntryCall;
+
+    public VariableDeclarationNode(IdentifierNode variableName, Node initializer, String type) {
+        this.variableName = variableName;
+        this.initializer = initializer;
+        this.type = type;
+        addChild(initializer);
+    }
+
+    public VariableDeclarationNode(DictionaryEntryCall h, Node initializer, String type) {
+        this((IdentifierNode) null, initializer, type);
+        this.dictionaryEntryCall = h;
+    }
+
+    public IdentifierNode getName() {
+        return variableName;
+    }
+
+    @Override
+    public String toString() {
+        if (dictionaryEntryCall == null) {
+            return "Variable: " + variableName +" | type: " + this.type;
+        }
+        return "Variable: " + dictionaryEntryCall.toString() +" | type: " + this.type;
+    }
+    @Override
+    public void execute(Environment environment) {
+        if (dictionaryEntryCall == null) {
+            if (this.initializer instanceof FunctionDeclarationNode) {
+                this.initializer.execute(environment);
+            } else if (this.initializer != null) {
+                environment.addVariable(this.variableName, this.initializer.evaluate(environment), "global");
+            }
+//            System.out.println(environment.getVariable(this.variableName.getName(), "global"));
+        } else {
+            dictionaryEntryCall.assign(this.initializer, environment);
+//            if (dictionaryEntryCall.getKey() instanceof IdentifierNode) {
+//
+//            }
+//            System.out.println((dictionaryEntryCall.getKey()));
+        }
+
+    }
+
+
+    // Преобразование в изменяемый список
+    @SuppressWarnings("unchecked")
+    private static List<Object> makeMutable(List<?> original) {
+        return original.stream()
+                .map(item -> item instanceof List<?> ? makeMutable((List<?>) item) : item)
+                .collect(java.util.stream.Collectors.toList());
+    }
+
+
+//    public Object recursionEntry(Environment environment) {
+//        String varName = ((IdentifierNode) dictionaryEntryCall.getKey()).getName();
+//        Variable var = environment.getVariable(varName, "global");
+//        Object varValue = var.getValue();
+//        Object newValue = null;
+//        if (this.initializer instanceof LiteralNode) {
+//            newValue =((LiteralNode) this.initializer).getValue();
+//        } else if (this.initializer instanceof ListNode) {
+//            newValue =((ListNode) this.initializer).toValueList();
+//        } else if (this.initializer instanceof ExpressionNode) {
+//            newValue =((LiteralNode) ((ExpressionNode) this.initializer).executeExpressions(environment)).getValue();
+//        } else if (this.initializer instanceof DictionaryNode) {
+//            newValue =((DictionaryNode) this.initializer).toValueDictionary();
+//        } else if (this.initializer instanceof IdentifierNode) {
+//            newValue =environment.getVariable(((IdentifierNode) this.initializer).getName(), "global").getValue();
+//        }
+//
+//        if (varValue instanceof List<?>) {
+//            int index = 0;
+//            if (this.dictionaryEntryCall.getValue() instanceof LiteralNode) {
+//                index = (int) ((LiteralNode) this.dictionaryEntryCall.getValue()).getValue();
+//            } else if (this.dictionaryEntryCall.getValue() instanceof ExpressionNode) {
+//                index = (int) ((LiteralNode) ((ExpressionNode) this.dictionaryEntryCall.getValue()).executeExpressions(environment)).getValue();
+//            } else if (this.dictionaryEntryCall.getValue() instanceof IdentifierNode) {
+//                if (environment.haveVariable(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName(), "global")) {
+//                    index = (int) environment.getVariable(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName(), "global").getValue();
+//                } else {
+//                    System.out.println(environment.haveVariable(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName(), "global"));
+//                    System.out.println(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName());
+//                    index = ((IdentifierNode) this.dictionaryEntryCall.getValue()).getValue();
+//                }
+//
+//            }
+//            List<?> list = (List<?>) varValue;
+//            @SuppressWarnings("unchecked")
+//            List<Object> mutableList = (List<Object>) list;
+//            mutableList.set(index, newValue);
+//            environment.updateVariable(varName, mutableList, "global");
+//        }
+//    }
+}
+
+class IdentifierNode extends Node {
+    private final String name;
+    private final int id; // Номер имени в Names
+    // Заполняет Resolver: глубина (0 - текущая область, 1 - глобальная) и слот в кадре
+    private int depth = -1;
+    private int slot = -1;
+    private FrameLayout layout;
+
+    public IdentifierNode(String name) {
+        this(Names.intern(name));
+    }
+
+    public IdentifierNode(int id) {
+        this.id = id;
+        this.name = Names.name(id);
+    }
+
+    public void resolve(int depth, int slot, FrameLayout layout) {
+        this.depth = depth;
+        this.slot = slot;
+        this.layout = layout;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public FrameLayout getLayout() {
+        return layout;
+    }
+
+    public int getValue() {
+        return Integer.parseInt(this.name);
+    }
+
+    @Override
+    public String toString() {
+        return "Identifier: " + name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+    }
+
+    @Override
+    public Object evaluate(Environment environment) {
+        return environment.getValue(this);
+    }
+}
+
+class BlockNode extends Node {
+    private final List<Node> statements;
+    private String name;
+
+    public BlockNode(List<Node> statements, String name) {
+        this.name = name;
+        this.statements = statements;
+        for (Node statement : statements) {
+            addChild(statement);
+        }
+    }
+
+
+    public IdentifierNode getName() {
+        return (IdentifierNode) this.statements.get(0);
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public Node get(int index) {
+        return statements.get(index);
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+    }
+}
+
+
+class FunctionDeclarationNode extends DeclarationNode {
+    BlockNode header;
+    Node functionBody;
+
+    FunctionDeclarationNode(BlockNode header, Node functionBody) {
+        this.header = header;
+        this.functionBody = functionBody;
+
+        addChild(header);
+
+//        addChild(parameters); // Добавляем параметры в дочерние узлы
+
+        addChild(functionBody); // Добавляем body в дочерние узлы
+    }
+
+    @Override
+    public void execute(Environment environment) {
+        String funcName = ((IdentifierNode) this.header.getChildren().get(0)).getName();
+        String lastScopeType = environment.getScopeType();
+        environment.setScopeType(funcName);
+        for (int i = 0; i < this.header.getChildren().get(1).getChildren().size(); i++) {
+            String paramName = ((VariableDeclarationNode) this.header.getChildren().get(1).getChildren().get(i)).variableName.getName();
+            environment.addVariable(paramName, null, funcName);
+        }
+        List<Node> functionNodeArray = new ArrayList<>();
+        functionNodeArray.add(this.header);
+        functionNodeArray.add(this.functionBody);
+        BlockNode function = new BlockNode(functionNodeArray, "function");
+        environment.setScopeType(lastScopeType);
+//        Environment closureEnv = environment.deepCopy();
+//        System.out.println("closureEnv");
+//        System.out.println(funcName);
+//        System.out.println(closureEnv);
+//        System.out.println("closureEnv");
+        environment.addVariable(funcName, function, "global");
+    }
+
+    public IdentifierNode getName() {
+        return header.getName();
+    }
+    @Override
+    public String toString() {
+        return "Function: ";
+    }
+}
+
+
+// Условие if/while, вычисляется ровно один раз на проверку. Тип результата определяется при первом
+// вычислении: если это сравнение чисел, дальше оно идет через ExpressionNode.testNumeric без Boolean
+class Condition {
+    private static final int UNKNOWN = 0;
+    private static final int NUMERIC = 1;
+    private static final int GENERAL = 2;
+
+    private final Node node;
+    private final String statement;
+    private int kind = UNKNOWN;
+
+    public Condition(Node node, String statement) {
+        this.node = node;
+        this.statement = statement;
+    }
+
+    public boolean test(Environment environment) {
+        if (kind != GENERAL) {
+            int result = node instanceof ExpressionNode ? ((ExpressionNode) node).testNumeric(environment) : -1;
+            if (result >= 0) {
+                kind = NUMERIC;
+                return result == 1;
+            }
+            // Операнды не числовые (или перестали ими быть) - дальше только общий путь
+            kind = GENERAL;
+        }
+        Object value = node.evaluate(environment);
+        if (!(value instanceof Boolean)) {
+            throw new IllegalArgumentException("Invalid expression in " + statement);
+        }
+        return (Boolean) value;
+    }
+}
+
+class IfNode extends StatementNode {
+    private final Node condition;
+    private final Condition guard;
+    private final BlockNode thenBody;
+    private final BlockNode elseBody;
+
+    public IfNode(Node condition, BlockNode thenBody, BlockNode elseBody) {
+        super("if");
+        this.condition = condition;
+        this.guard = new Condition(condition, "if");
+        this.thenBody = thenBody;
+        this.elseBody = elseBody;
+
+        addChild(condition); // Добавляем condition в дочерние узлы
+        addChild(thenBody); // Добавляем thenBody
+        if (elseBody != null) {
+            addChild(elseBody); // Добавляем elseBody, если он есть
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "If";
+    }
+
+    public Node getCondition() {
+        return condition;
+    }
+
+    public BlockNode getThenBody() {
+        return thenBody;
+    }
+
+    public BlockNode getElseBody() {
+        return elseBody;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+        BlockNode body = guard.test(environment) ? thenBody : elseBody;
+        if (body != null) {
+            for (int j = 0; j < body.getChildren().size() && !environment.isReturning(); j++) {
+                body.getChildren().get(j).execute(environment);
+            }
+        }
+    }
+}
+
+
+
+class WhileLoopNode extends StatementNode {
+    private final Node condition;
+    private final Condition guard;
+    private final Node body;
+
+    public WhileLoopNode(Node condition, Node body) {
+        super("while");
+        this.condition = condition;
+        this.guard = new Condition(condition, "while");
+        this.body = body;
+
+        addChild(condition); // Добавляем condition в дочерние узлы
+        addChild(body); // Добавляем body в дочерние узлы
+    }
+
+    @Override
+    public String toString() {
+        return "While";
+    }
+
+    public Node getCondition() {
+        return condition;
+    }
+
+    public Node getBody() {
+        return body;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+        while (guard.test(environment)) {
+            for (int j = 0; j < this.body.getChildren().size(); j++) {
+                this.body.getChildren().get(j).execute(environment);
+                if (environment.isReturning()) {
+                    return;
+                }
+            }
+        }
+    }
+}
+
+class ForLoopNode extends StatementNode {
+    private final String name;
+    private final Node start;
+    private final Node end;
+    private final Node body;
+    // Переменная цикла; слот в кадре назначает Resolver
+    private final IdentifierNode variable;
+    // false - тело не читает переменную цикла, значение в нее пишется только после цикла
+    private final boolean bodyReadsCounter;
+
+    public ForLoopNode(String name, Node start, Node end, Node body) {
+        super("for");
+        this.name = name;
+        this.start = start;
+        this.end = end;
+        this.body = body;
+        this.variable = new IdentifierNode(name);
+        this.bodyReadsCounter = reads(body, name);
+
+//        addChild(name); // Добавляем инициализацию в дочерние узлы
+        addChild(start); // Добавляем start в дочерние узлы
+        addChild(end); // Добавляем end в дочерние узлы
+        addChild(body); // Добавляем body в дочерние узлы
+    }
+
+    @Override
+    public String toString() {
+        return "For";
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Node getStart() {
+        return start;
+    }
+
+    public Node getEnd() {
+        return end;
+    }
+
+    public Node getBody() {
+        return body;
+    }
+
+    public IdentifierNode getVariable() {
+        return variable;
+    }
+
+    // Может ли узел прочитать переменную name. Вызванная функция видит глобальные переменные,
+    // поэтому любой вызов считается чтением
+    private static boolean reads(Node node, String name) {
+        if (node == null) {
+            return false;
+        }
+        if (node instanceof IdentifierNode) {
+            return ((IdentifierNode) node).getName().equals(name);
+        }
+        if (node instanceof FunctionCall) {
+            return true;
+        }
+        for (Node child : node.getChildren()) {
+            if (reads(child, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+        List<Node> statements = this.body.getChildren();
+        if (this.end != null) {
+            // Границы вычисляются один раз, счетчик - примитив
+            Object from = this.start.getChildren().get(0).evaluate(environment);
+            Object to = this.end.getChildren().get(0).evaluate(environment);
+            if (!(from instanceof Integer) || !(to instanceof Integer)) {
+                throw new RuntimeException("Invalid range in for: " + from + ".." + to);
+            }
+            int first = (Integer) from;
+            int last = (Integer) to;
+            environment.addVariable(variable, first, "global");
+            for (int i = first; i < last; i++) {
+                if (bodyReadsCounter) {
+                    environment.addVariable(variable, i, "global");
+                }
+                for (int j = 0; j < statements.size(); j++) {
+                    statements.get(j).execute(environment);
+                    if (environment.isReturning()) {
+                        return;
+                    }
+                }
+            }
+            if (!bodyReadsCounter && last > first) {
+                environment.addVariable(variable, last - 1, "global");
+            }
+        } else {
+            Object collection = this.start.getChildren().get(0).evaluate(environment);
+            if (collection instanceof List<?>) {
+                List<?> array = (List<?>) collection;
+                environment.addVariable(variable, null, "global");
+                for (int i = 0; i < array.size(); i++) {
+                    environment.addVariable(variable, array.get(i), "global");
+                    for (int j = 0; j < statements.size(); j++) {
+                        statements.get(j).execute(environment);
+                        if (environment.isReturning()) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
+
+class ReturnNode extends StatementNode {
+    private final Node expression;
+    // return f(...) внутри самой f - ставит Resolver
+    private FunctionCall tailCall;
+
+    public ReturnNode(Node expression) {
+        super("return");
+        this.expression = expression;
+
+        addChild(expression); // Добавляем expression в дочерние узлы
+    }
+
+    @Override
+    public String toString() {
+        return "Return";
+    }
+
+    public Node getExpression() {
+        return expression;
+    }
+
+    public void markTailCall() {
+        tailCall = (FunctionCall) expression;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+        if (tailCall != null) {
+            // Вызов не выполняется здесь: аргументы уходят вызову, который сейчас выполняется
+            environment.signalTailCall(tailCall.evaluateArguments(environment));
+            return;
+        }
+        environment.signalReturn(this.expression.evaluate(environment));
+//        System.out.println(this.expression.getChildren().get(0) instanceof DictionaryEntryNode);
+    }
+}
+
+class PrintNode extends StatementNode {
+    private final Node expression;
+
+    public PrintNode(Node expression) {
+        super("print");
+        this.expression = expression;
+
+        addChild(expression); // Добавляем expression в дочерние узлы
+    }
+
+    @Override
+    public String toString() {
+        return "Print";
+    }
+
+    public Node getExpression() {
+        return expression;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+        for (int i = 0; i < this.expression.getChildren().size(); i++) {
+            environment.getOutput().println(this.expression.getChildren().get(i).evaluate(environment));
+        }
+//        System.out.println(this.expression.getChildren().get(0) instanceof DictionaryEntryNode);
+    }
+}
+
+
+class ListNode extends VariableDeclarationNode {
+    private final BlockNode elements;
+    private final IdentifierNode name;
+    // Значение списка из одних литералов, собирается при первом вычислении
+    private PersistentVector constant;
+
+    public ListNode(BlockNode elements, IdentifierNode name) {
+        super(name, null, null);
+        this.elements = elements;
+        this.name = name;
+        addChild(name); // Добавляем все элементы в дочерние
+        addChild(elements); // Добавляем все элементы в дочерние
+    }
+
+    public IdentifierNode getName() {
+        return variableName;
+    }
+
+    public Node get(int index) {
+        return elements.get(index);
+    }
+
+    public BlockNode getElements() {
+        return elements;
+    }
+
+
+    public int size() {
+        int size = 0;
+        if (elements != null) {
+            size += elements.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "List: ";
+    }
+
+    public List<Object> toValueList(Environment environment) {
+        if (constant != null) {
+            // Копия делит дерево с образцом: запись по индексу в нее образец не меняет
+            return constant.copy();
+        }
+        PersistentVector valueList = new PersistentVector();
+        boolean literals = true;
+        if (elements != null) {
+            for (int i = 0; i < elements.size(); i++) {
+                valueList.add(elements.get(i).evaluate(environment));
+                literals &= elements.get(i) instanceof LiteralNode;
+            }
+        }
+        if (literals) {
+            // Из одних литералов - значение всегда одно и то же, дальше не пересобираем
+            constant = valueList.copy();
+        }
+        return valueList;
+    }
+
+    @Override
+    public void execute(Environment environment) {
+
+    }
+
+    @Override
+    public Object evaluate(Environment environment) {
+        return toValueList(environment);
+    }
+}
+
+class DictionaryNode extends VariableDeclarationNode {
+    private final BlockNode entriesBlock;
+    private final IdentifierNode name;
+    // Форма кортежа, записи и слот каждой записи - собираются при первом вычислении
+    private Shape shape;
+    private DictionaryEntryNode[] entries;
+    private int[] slots;
+
+    public DictionaryNode(BlockNode entries, IdentifierNode name) {
+        super(name, null, null);
+        this.name = name;
+        this.entriesBlock = entries;
+        addChild(name); // Добавляем BlockNode как дочерний узел
+        addChild(entriesBlock); // Добавляем BlockNode как дочерний узел
+    }
+
+    public IdentifierNode getName() {
+        return variableName;
+    }
+
+    public BlockNode getEntries() {
+        return entriesBlock;
+    }
+
+    public Tuple toValueDictionary(Environment environment) {
+        if (shape == null) {
+            // Форма и слоты полей одни и те же при каждом выполнении - считаются один раз
+            List<DictionaryEntryNode> entries = new ArrayList<>();
+            if (entriesBlock != null) {
+                for (int i = 0; i < entriesBlock.size(); i++) {
+                    if (entriesBlock.get(i) instanceof DictionaryEntryNode) {
+                        entries.add((DictionaryEntryNode) entriesBlock.get(i));
+                    }
+                }
+            }
+            String[] keys = new String[entries.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = ((IdentifierNode) entries.get(i).getKey()).getName();
+            }
+            Shape built = Shape.of(keys);
+            slots = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                slots[i] = built.slot(keys[i]);
+            }
+            this.entries = entries.toArray(new DictionaryEntryNode[0]);
+            shape = built;
+        }
+        Object[] values = new Object[shape.size()];
+        for (int i = 0; i < entries.length; i++) {
+            values[slots[i]] = entries[i].getValue().evaluate(environment);
+        }
+        return new Tuple(shape, values);
+    }
+
+    public Object getValueByIndex(Tuple dictionary, int index) {
+        return dictionary.get(index);
+    }
+
+    @Override
+    public String toString() {
+        return "Dictionary: " + entriesBlock.toString();
+    }
+
+    @Override
+    public Object evaluate(Environment environment) {
+        return toValueDictionary(environment);
+    }
+}
+
+class DictionaryEntryNode extends Node {
+    private final Node key;
+    private final Node value;
+
+    public DictionaryEntryNode(Node key, Node value) {
+        this.key = key;
+        this.value = value;
+
+        addChild(key); // Добавляем ключ в дочерние узлы
+        addChild(value); // Добавляем значение в дочерние узлы
+    }
+
+    public Node getKey() {
+        return this.key;
+    }
+
+    public Node getValue() {
+        return this.value;
+    }
+
+    @Override
+    public String toString() {
+        return "Entry:";
+    }
+
+    @Override
+    public void execute(Environment environment) {
+    }
+}
+
+class DictionaryEntryCall extends Node {
+    // Вид индекса определяется при разборе, во время выполнения строки не разбираются
+    static final int FIELD = 0;      // tpl.a; у списка arr.i - индекс из переменной i
+    static final int POSITION = 1;   // arr[1], tpl.1
+    static final int LENGTH = 2;     // arr.length
+    static final int COMPUTED = 3;   // arr[i + 1], tpl["a"] - выражение вычисляется при каждом обращении
+
+    private final Node key;
+    private Node value;
+    private int kind;
+    // Имя поля (FIELD) или номер элемента (POSITION)
+    private String member;
+    private int position;
+    private FieldCache fieldCache;
+
+    // Ключ после точки или в скобках: имя, число или length
+    public DictionaryEntryCall(Node key, Node value) {
+        this(key, value, false);
+    }
+
+    // computed - в скобках стоит выражение, а не постоянный ключ
+    public DictionaryEntryCall(Node key, Node value, boolean computed) {
+        this.key = key;
+        this.value = value;
+
+        addChild(key); // Добавляем ключ в дочерние узлы
+        addChild(value); // Добавляем значение в дочерние узлы
+        classify(computed);
+    }
+
+    private void classify(boolean computed) {
+        if (value instanceof LiteralNode && ((LiteralNode) value).getValue() instanceof Integer) {
+            kind = POSITION;
+            position = (Integer) ((LiteralNode) value).getValue();
+        } else if (computed || !(value instanceof IdentifierNode)) {
+            kind = COMPUTED;
+        } else {
+            member = ((IdentifierNode) value).getName();
+            if (member.equals("LENGTH")) {
+                kind = LENGTH;
+            } else if (isIntegerKey(member)) {
+                kind = POSITION;
+                position = Integer.parseInt(member);
+            } else {
+                kind = FIELD;
+                fieldCache = new FieldCache(member);
+            }
+        }
+    }
+
+    private static boolean isIntegerKey(String key) {
+        int start = key.startsWith("-") ? 1 : 0;
+        if (key.length() == start || key.length() - start > 9) {
+            return false;
+        }
+        for (int i = start; i < key.length(); i++) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Node getKey() {
+        return this.key;
+    }
+
+
+    public Node getValue() {
+        return this.value;
+    }
+
+    // Оптимизатор свернул выражение в скобках - arr[1 + 1] становится arr[2]
+    public void setValue(Node value) {
+        if (kind == COMPUTED && value != this.value) {
+            this.value = value;
+            classify(true);
+        }
+    }
+
+    // null, если это не обращение к полю по имени
+    public FieldCache getFieldCache() {
+        return fieldCache;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public String getMember() {
+        return member;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return "Entry Call:";
+    }
+
+    public Object calcEntryValue(Environment environment) {
+        Tuple dict = (Tuple) environment.getValue((IdentifierNode) this.key);
+        return null;
+    }
+
+    public Object getValueIndexWithVariable(Object obj, Environment environment) {
+        switch (kind) {
+            case LENGTH:
+                if (obj instanceof List<?>) {
+                    return ((List<?>) obj).size();
+                } else if (obj instanceof Tuple) {
+                    return ((Tuple) obj).size();
+                }
+                break;
+            case POSITION:
+                if (obj instanceof List<?>) {
+                    return ((List<?>) obj).get(position);
+                } else if (obj instanceof Tuple) {
+                    return ((Tuple) obj).get(position);
+                }
+                break;
+            case FIELD:
+                if (obj instanceof Tuple) {
+                    return fieldCache.get((Tuple) obj);
+                } else if (obj instanceof List<?>) {
+                    // arr.i - индекс берется из переменной с этим именем
+                    return indexValue(obj, this.value.evaluate(environment));
+                }
+                break;
+            default:
+                return indexValue(obj, this.value.evaluate(environment));
+        }
+        throw new ParseException("Bad type in index.");
+    }
+
+    private static Object indexValue(Object obj, Object index) {
+        if (index instanceof Integer) {
+            if (obj instanceof List<?>) {
+                return ((List<?>) obj).get((Integer) index);
+            } else if (obj instanceof Tuple) {
+                return ((Tuple) obj).get((int) (Integer) index);
+            }
+        } else if (index instanceof String && obj instanceof Tuple) {
+            return ((Tuple) obj).get((String) index);
+        }
+        throw new ParseException("Bad type in index.");
+    }
+
+    // Присваивание arr[i] := ..., tpl.a := ...: сначала контейнер и индекс, затем новое значение
+    @SuppressWarnings("unchecked")
+    public void assign(Node initializer, Environment environment) {
+        Object container = this.key.evaluate(environment);
+        if (kind == FIELD && container instanceof Tuple) {
+            fieldCache.set((Tuple) container, initializer.evaluate(environment));
+            return;
+        }
+        if (kind == LENGTH) {
+            throw new IllegalArgumentException("Length cannot be assigned");
+        }
+        Object index = kind == POSITION ? (Object) position : this.value.evaluate(environment);
+        Object newValue = initializer.evaluate(environment);
+        if (container instanceof List<?> && index instanceof Integer) {
+            List<Object> list = (List<Object>) container;
+            int i = (Integer) index;
+            while (list.size() <= i) {
+                list.add(null);  // Добавляем null в список
+            }
+            list.set(i, newValue);
+        } else if (container instanceof Tuple && index instanceof Integer) {
+            ((Tuple) container).set((int) (Integer) index, newValue);
+        } else if (container instanceof Tuple && index instanceof String) {
+            ((Tuple) container).set((String) index, newValue);
+        } else {
+            throw new IllegalArgumentException("Invalid structure: cannot update value at path");
+        }
+    }
+
+    public Object getValueIndex(Environment environment) {
+        return getValueIndexWithVariable(this.key.evaluate(environment), environment);
+// <<<<<<< parser2
+//         if (environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue() instanceof List<?>) {
+//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
+//                 return ((List<?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue()).get(Integer.parseInt(((IdentifierNode) this.value).getName()));
+//             } else {
+//                 if (environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue() instanceof Integer) {
+//                     return ((List<?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue()).get((int) environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue());
+//                 }
+//             }
+//         } else if (environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
+//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
+//                 LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue();
+//                 ArrayList<?> array = (ArrayList<?>) dictionary.values();
+// =======
+//         Object obj = null;
+//         if (this.key instanceof DictionaryEntryCall) {
+//             obj = ((DictionaryEntryCall) this.key).getValueIndex(environment);
+//         }
+//         if (obj == null) {
+//             obj = environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue();
+//         }
+//         return getValueIndexWithVariable(obj, environment);
+//     }
+
+//     public Object getValueIndexWithVariable(Object obj, Environment environment) {
+//         if (obj instanceof List<?>) {
+//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
+//                 return ((List<?>) obj).get(Integer.parseInt(((IdentifierNode) this.value).getName()));
+//             } else {
+//                 if (environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue() instanceof Integer) {
+//                     return ((List<?>) obj).get((int) environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue());
+//                 }
+//             }
+//         } else if (obj instanceof LinkedHashMap<?, ?>) {
+//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
+//                 LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) obj;
+//                 ArrayList<?> array = new ArrayList<>(dictionary.values());
+// >>>>>>> inter
+//                 if (Integer.parseInt(((IdentifierNode) this.value).getName()) < 0 || Integer.parseInt(((IdentifierNode) this.value).getName()) >= array.size()) {
+//                     throw new IndexOutOfBoundsException("Индекс вне границ словаря.");
+//                 }
+//                 return array.get(Integer.parseInt(((IdentifierNode) this.value).getName()));
+// //                return environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue().
+//             } else {
+// <<<<<<< parser2
+//                 if (environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue() instanceof Integer) {
+//                     return ((List<?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue()).get((int) environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue());
+//                 }
+// =======
+//                 LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) obj;
+//                 return dictionary.get(((IdentifierNode) this.value).getName());
+// >>>>>>> inter
+//             }
+//         }
+//         throw new ParseException("Bad type in index.");
+    }
+
+    @Override
+    public void execute(Environment environment) {
     }
 
+    @Override
+    public Object evaluate(Environment environment) {
+        return getValueIndex(environment);
+    }
+}
 
-    public Node checkTypesExecute(Node leftOperand, Node rightOperand) {
-        String leftType = null;
-        if (leftOperand != null) {
-            leftType = ((LiteralNode) leftOperand).getType();
-        }
-        String rightType = ((LiteralNode) rightOperand).getType();
+class LiteralNode extends Node {
+    private final Object value;
+    private String type;
 
-        switch (operator) {
-            case PLUS:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    int result = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString()) + Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    double result = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString()) + Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "real");
-                } else if (leftType.equals("string") && rightType.equals("string")) {
-                    String result = ((LiteralNode) leftOperand).getValue().toString() + ((LiteralNode) rightOperand).getValue().toString();
-                    return new LiteralNode((Object) result, "string");
-                }
-//                if (leftType.equals("dictionary") && rightType.equals("dictionary")) return;
-//                if (leftType.equals("list") && rightType.equals("list")) return;
-                break;
+    public LiteralNode(Object value, String type) {
+//        super(null, null, null);
+        this.value = value;
+        this.type = type;
+    }
 
-            case MINUS:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    int result = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString()) - Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    double result = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString()) - Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "real");
-                }
-                break;
-            case MULTIPLY:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    int result = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString()) * Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    double result = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString()) * Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "real");
-                }
-                break;
-            case DIVIDE:
-                if (leftType.equals("int") && rightType.equals("int")) {
-                    if (Integer.parseInt(((LiteralNode) rightOperand).getValue().toString()) == 0) {
-                        throw new ArithmeticException("Division by zero!");
-                    }
-                    int result = Integer.parseInt(((LiteralNode) leftOperand).getValue().toString()) / Integer.parseInt(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "int");
-                } else if ((leftType.equals("int") && rightType.equals("real")) ||
-                        (leftType.equals("real") && rightType.equals("int")) ||
-                        (leftType.equals("real") && rightType.equals("real"))) {
-                    if (Double.parseDouble(((LiteralNode) rightOperand).getValue().toString()) == 0) {
-                        throw new ArithmeticException("Division by zero!");
-                    }
-                    double result = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString()) / Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                    return new LiteralNode((Object) result, "real");
-                }
-                break;
+    public Object getValue() {
+        return this.value;
+    }
 
-            case LESS:
-            case GREATER:
-            case LESS_EQUAL:
-            case GREATER_EQUAL:
-            case EQUAL:
-            case NOT_EQUAL:
-                if ((leftType.equals("int") || leftType.equals("real")) &&
-                        (rightType.equals("int") || rightType.equals("real"))) {
-                    boolean result;
-                    double leftValue = Double.parseDouble(((LiteralNode) leftOperand).getValue().toString());
-                    double rightValue = Double.parseDouble(((LiteralNode) rightOperand).getValue().toString());
-                    switch (operator) {
-                        case LESS:
-                            result = leftValue < rightValue;
-                            break;
-                        case GREATER:
-                            result = leftValue > rightValue;
-                            break;
-                        case LESS_EQUAL:
-                            result = leftValue <= rightValue;
-                            break;
-                        case GREATER_EQUAL:
-                            result = leftValue >= rightValue;
-                            break;
-                        case EQUAL:
-                            result = leftValue == rightValue;
-                            break;
-                        case NOT_EQUAL:
-                            result = leftValue != rightValue;
-                            break;
-                        default:
-                            throw new ParseException("Invalid comparison operation.");
-                    }
-                    return new LiteralNode((Object) result, "boolean");
-                }
-                break;
-            case AND:
-            case OR:
-            case XOR:
-                if (leftType.equals("boolean") && rightType.equals("boolean")) {
-                    boolean leftValue = Boolean.parseBoolean(((LiteralNode) leftOperand).getValue().toString());
-                    boolean rightValue = Boolean.parseBoolean(((LiteralNode) rightOperand).getValue().toString());
-                    boolean result;
+    public String getType() {
+        return this.type;
+    }
 
-                    switch (operator) {
-                        case AND:
-                            result = leftValue && rightValue;
-                            break;
-                        case OR:
-                            result = leftValue || rightValue;
-                            break;
-                        case XOR:
-                            result = leftValue ^ rightValue;
-                            break;
-                        default:
-                            throw new ParseException("Unsupported operation: " + operator);
-                    }
-                    return new LiteralNode((Object) result, "boolean");
-                }
-                break;
+    @Override
+    public String toString() {
+        return "Literal: " + value.toString() + " | type: " + type;
+    }
+    public boolean isConstant() {
+        return true; // Литералы всегда являются константами
+    }
 
-            case NOT:
-                if (rightType.equals("boolean")) {
-                    boolean rightValue = Boolean.parseBoolean(((LiteralNode) rightOperand).getValue().toString());
-                    boolean result = !rightValue;
-                    return new LiteralNode((Object) result, "boolean");
-                }
-                break;
+    @Override
+    public void execute(Environment environment) {
+    }
 
-            default:
-                throw new RuntimeException("Unsupported operation for types: " + leftType + " and " + rightType);
-        }
-        throw new RuntimeException("Invalid operand types for operation: " + leftType + " and " + rightType);
+    @Override
+    public Object evaluate(Environment environment) {
+        return this.value;
     }
 }
 
 
+class FunctionCall extends Node {
+    private final Node funcIdentifier;
+    private final Node param;
 
-abstract class DeclarationNode extends Node {
-    // Тип декларации: переменная, функция, тип
-    public enum DeclarationType {
-        VARIABLE,
-        FUNCTION
+    public FunctionCall(Node funcIdentifier, Node param) {
+        this.funcIdentifier = funcIdentifier;
+        this.param = param;
+
+        addChild(funcIdentifier);
+        addChild(param);
     }
 
-    protected DeclarationType declarationType;
+    @Override
+    public String toString() {
+        return "Function call: ";
+    }
 
-    public DeclarationType getDeclarationType() {
-        return declarationType;
+    public IdentifierNode getFuncIdentifier() {
+        return (IdentifierNode) funcIdentifier;
     }
 
+    public Node getParam() {
+        return param;
+    }
 
-    @Override
-    public abstract String toString();
+//    @Override
+//    public void execute(Environment environment) {
+//        String funcName = ((IdentifierNode) this.funcIdentifier).getName();
+//        BlockNode functionNode = (BlockNode) environment.getVariable(funcName, "global").getValue();
+////        System.out.println(param.getChildren());
+//        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
+//            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
+//            environment.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
+//        }
+//
+//        environment.setScopeType(funcName);
+//        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
+//            functionNode.getChildren().get(1).getChildren().get(j).execute(environment);
+////            System.out.println(functionNode.getChildren().get(1).getChildren());
+//            if (environment.haveVariable("return" + environment.getScopeType(), environment.getScopeType())) {
+//                return;
+//            }
+//        }
+//        environment.setScopeType("global");
+//    }
 
     @Override
-    public abstract void execute(Environment environment);
-}
+    public void execute(Environment environment) {
+        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
+        String funcName = ((IdentifierNode) (((BlockNode) environment.getValue((IdentifierNode) this.funcIdentifier)).getChildren().get(0).getChildren().get(0))).getName();
 
-abstract class StatementNode extends Node {
-    private final String statementType;
+        Environment localEnv = environment.enterCall(funcName);
+
+//        Environment localEnv = environment.deepCopy();
+//        Раскоменти и замени внутри этой хуйни все на localEnv,
+//        тут прикол в том чтоб после вполенения проверить если внутри добавилась новая функия
+//        добавить все от нее внутрь нашего env
+
+//        System.out.println(funcName2.getChildren().get(0));
+
+        BlockNode functionNode = (BlockNode) localEnv.getVariable(funcNameInit, "global").getValue();
+//        System.out.println(param.getChildren());
+        String lastScopeType = localEnv.getScopeType();
+
+        localEnv.setScopeType(funcName);
+
+//        environment.setScopeType(funcName);
 
-    public StatementNode(String statementType) {
-        this.statementType = statementType;
-    }
-    public String getStatementType() {
-        return statementType;
-    }
-    @Override
-    public String toString() {
-        return "statement";
-    }
-}
+        bindArguments(functionNode, evaluateArguments(environment), localEnv, funcName);
+//
+//        environment.setScopeType(funcName);
 
+        if (runBody(functionNode, localEnv, funcName)) {
+            localEnv.takeReturnValue();
+            localEnv.setScopeType(lastScopeType);
+//            environment.setScopeType(lastScopeType);
+            if (Trace.on(Trace.Phase.INTERPRETER, Trace.Level.DEBUG)) {
+                Trace.log(Trace.Phase.INTERPRETER, Trace.Level.DEBUG, "return from " + funcName + " to " + lastScopeType);
+            }
+            environment.syncFunctions(localEnv);
+            return;
+        }
+        if (Trace.on(Trace.Phase.INTERPRETER, Trace.Level.DEBUG)) {
+            Trace.log(Trace.Phase.INTERPRETER, Trace.Level.DEBUG, "end of " + funcName + " (scope " + localEnv.getScopeType() + "), back to " + lastScopeType);
+        }
+        if (!Objects.equals(lastScopeType, localEnv.getScopeType())) {
+            localEnv.setScopeType(lastScopeType);
+            localEnv.traceVariables();
+        } else {
+            localEnv.setScopeType(lastScopeType);
+            environment.syncFunctions(localEnv);
+        }
 
-class VariableDeclarationNode extends DeclarationNode {
-    IdentifierNode variableName;
-    Node initializer;
-    String type;
-    DictionaryEntryCall dictionaryEntryCall;
+//        environment.setScopeType(lastScopeType);
 
-    public VariableDeclarationNode(IdentifierNode variableName, Node initializer, String type) {
-        this.variableName = variableName;
-        this.initializer = initializer;
-        this.type = type;
-        addChild(initializer);
+        return;
     }
+//    public void execute(Environment environment) {
+//        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
+//        String funcName = ((IdentifierNode) (((BlockNode) environment.getValue((IdentifierNode) this.funcIdentifier)).getChildren().get(0).getChildren().get(0))).getName();
+////        System.out.println(funcName2.getChildren().get(0));
+//        BlockNode functionNode = (BlockNode) environment.getVariable(funcNameInit, "global").getValue();
+////        System.out.println(param.getChildren());
+//        String lastScopeType = environment.getScopeType();
+//        environment.setScopeType(funcName);
+//        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
+//            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
+////            System.out.println(param.getChildren().get(i));
+//            if (param.getChildren().get(i) instanceof LiteralNode) {
+//                environment.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
+//            } else if (param.getChildren().get(i) instanceof IdentifierNode) {
+//                environment.setScopeType(lastScopeType);
+////                if (environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global") == null) {
+////                    System.out.println("no global");
+////                }
+//                Object value = environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global").getValue();
+//                environment.setScopeType(funcName);
+//                environment.updateVariable(paramName, value , funcName);
+//            }
+//
+//        }
+////
+////        environment.setScopeType(funcName);
+//
+//        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
+//            functionNode.getChildren().get(1).getChildren().get(j).execute(environment);
+//            if (environment.haveVariable("return" + environment.getScopeType(), environment.getScopeType())) {
+//                Object returning = environment.getVariable("return" + environment.getScopeType(), environment.getScopeType()).getValue();
+//                environment.setScopeType(lastScopeType);
+//                environment.removeVariable("return" + environment.getScopeType(), environment.getScopeType());
+//                return;
+//            }
+//        }
+//        environment.setScopeType(lastScopeType);
+//        return;
+//    }
 
-    public VariableDeclarationNode(DictionaryEntryCall h, Node initializer, String type) {
-        this((IdentifierNode) null, initializer, type);
-        this.dictionaryEntryCall = h;
-    }
 
-    public IdentifierNode getName() {
-        return variableName;
+    // Аргументы вычисляются в окружении вызывающего, каждый ровно один раз
+    public Object[] evaluateArguments(Environment environment) {
+        List<Node> args = param.getChildren();
+        Object[] values = new Object[args.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args.get(i).evaluate(environment);
+        }
+        return values;
     }
 
-    @Override
-    public String toString() {
-        if (dictionaryEntryCall == null) {
-            return "Variable: " + variableName +" | type: " + this.type;
+    private static void bindArguments(BlockNode functionNode, Object[] arguments, Environment localEnv, String funcName) {
+        List<Node> parameters = functionNode.getChildren().get(0).getChildren().get(1).getChildren();
+        for (int i = 0; i < parameters.size(); i++) {
+            String paramName = ((VariableDeclarationNode) parameters.get(i)).variableName.getName();
+            localEnv.updateVariable(paramName, arguments[i], funcName);
         }
-        return "Variable: " + dictionaryEntryCall.toString() +" | type: " + this.type;
     }
-    @Override
-    public void execute(Environment environment) {
-        if (dictionaryEntryCall == null) {
-            if (this.initializer instanceof LiteralNode) {
-                environment.addVariable(this.variableName.getName(), ((LiteralNode) this.initializer).getValue(), "global");
-            } else if (this.initializer instanceof FunctionDeclarationNode) {
-                ((FunctionDeclarationNode) this.initializer).execute(environment);
-            } else if (this.initializer instanceof ListNode) {
-                environment.addVariable(this.variableName.getName(), ((ListNode) this.initializer).toValueList(), "global");
-            } else if (this.initializer instanceof ExpressionNode) {
-                if (((ExpressionNode) this.initializer).getLeftOp() instanceof ListNode &&
-                        ((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                    environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                } else if (((ExpressionNode) this.initializer).getLeftOp() instanceof DictionaryNode &&
-                        ((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                    environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                } else if (((ExpressionNode) this.initializer).getLeftOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getLeftOp()).getName(), "global").getValue() instanceof List<?>) {
-                        if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                                environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                            }
-                        } else if (((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                            environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                        }
-                    } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getLeftOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                                environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                            }
-                        } else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                            environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                        }
-                    } else {
-                        environment.addVariable(this.variableName.getName(), ((LiteralNode) ((ExpressionNode) this.initializer).executeExpressions(environment)).getValue(), "global");
-                    }
-                }  else if (((ExpressionNode) this.initializer).getLeftOp() instanceof ListNode) {
-                    if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                        }
-                    } else if (((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                        environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                    }
-                } else if (((ExpressionNode) this.initializer).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                        } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                        }
-                    } else if (((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                        environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                    }  else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                        environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                    }
-                }  else if (((ExpressionNode) this.initializer).getLeftOp() instanceof DictionaryNode) {
-                    if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                        }
-                    } else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                        environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                    }
-                }  else if (((ExpressionNode) this.initializer).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-//                        System.out.println(((ExpressionNode) this.initializer).getRightOp());
 
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                        }
-                    } else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                        environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-                    }
-                } else {
-                    environment.addVariable(this.variableName.getName(), ((LiteralNode) ((ExpressionNode) this.initializer).executeExpressions(environment)).getValue(), "global");
-                }
-            } else if (this.initializer instanceof DictionaryNode) {
-                environment.addVariable(this.variableName.getName(), ((DictionaryNode) this.initializer).toValueDictionary(), "global");
-            } else if (this.initializer instanceof IdentifierNode) {
-                environment.addVariable(this.variableName.getName(), environment.getVariable(((IdentifierNode) this.initializer).getName(), "global").getValue(), "global");
-            } else if (this.initializer instanceof FunctionCall) {
-                String name = ((IdentifierNode) this.initializer.getChildren().get(0)).getName();
-                if (Objects.equals(name, "Read INT") || Objects.equals(name, "Read STRING") || Objects.equals(name, "Read REAL")) {
-                    environment.addVariable(this.variableName.getName(), ((FunctionCall) this.initializer).executeInput(environment), "global");
-                } else {
-                    environment.addVariable(this.variableName.getName(), ((FunctionCall) this.initializer).executeGet(environment), "global");
+    // Тело функции до return. Хвостовой вызов самой себя не уходит глубже по стеку Java:
+    // новые аргументы записываются в тот же кадр, и тело выполняется с начала
+    private static boolean runBody(BlockNode functionNode, Environment localEnv, String funcName) {
+        List<Node> body = functionNode.getChildren().get(1).getChildren();
+        for (int j = 0; j < body.size(); j++) {
+            body.get(j).execute(localEnv);
+            localEnv.traceVariables();
+            if (localEnv.isReturning()) {
+                if (!localEnv.isTailCall()) {
+                    return true;
                 }
+                Object[] arguments = (Object[]) localEnv.takeReturnValue();
+                localEnv.restartCall();
+                bindArguments(functionNode, arguments, localEnv, funcName);
+                j = -1;
             }
-//            System.out.println(environment.getVariable(this.variableName.getName(), "global"));
-        } else {
-            rec(dictionaryEntryCall.getKey(), dictionaryEntryCall.getValue(), environment);
-//            if (dictionaryEntryCall.getKey() instanceof IdentifierNode) {
-//
-//            }
-//            System.out.println((dictionaryEntryCall.getKey()));
         }
-
+        return false;
     }
 
-    public static boolean canConvertToInt(String str) {
-        try {
-            Integer.parseInt(str);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
+    @Override
+    public Object evaluate(Environment environment) {
+        String name = ((IdentifierNode) funcIdentifier).getName();
+        if (Objects.equals(name, "Read INT") || Objects.equals(name, "Read STRING") || Objects.equals(name, "Read REAL")) {
+            return executeInput(environment);
         }
+        return executeGet(environment);
     }
 
-    public Object rec(Object key, Object firstIndex, Environment environment) {
-        Object ident = key;
-        List<Object> indexArray = new ArrayList<>();
-        while (ident instanceof DictionaryEntryCall) {
-            indexArray.add(((DictionaryEntryCall) ident).getValue());
-            ident = ((DictionaryEntryCall) ident).getKey();
-        }
+    public Object executeGet(Environment environment) {
+        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
+        String funcName = ((IdentifierNode) (((BlockNode) environment.getValue((IdentifierNode) this.funcIdentifier)).getChildren().get(0).getChildren().get(0))).getName();
+
+        Environment localEnv = environment.enterCall(funcName);
+
+//        Environment localEnv = environment.deepCopy();
+//        Раскоменти и замени внутри этой хуйни все на localEnv,
+//        тут прикол в том чтоб после вполенения проверить если внутри добавилась новая функия
+//        добавить все от нее внутрь нашего env
 
-        Collections.reverse(indexArray);
-        indexArray.add(firstIndex);
-        Object list = environment.getVariable(((IdentifierNode) ident).getName(), "global").getValue();
+//        System.out.println(funcName2.getChildren().get(0));
 
-        for (int i = 0; i < indexArray.size() - 1; i++) {
-            Object indexI = ((IdentifierNode) indexArray.get(i)).getName();
+        BlockNode functionNode = (BlockNode) localEnv.getVariable(funcNameInit, "global").getValue();
+//        System.out.println(param.getChildren());
+        String lastScopeType = localEnv.getScopeType();
 
-            if (list instanceof List<?>) {
-                // Если текущий уровень - список
-                List<Object> listNe = (List<Object>) list;
+//        System.out.println("BLBLBLBLBLBLLBLBLBLB");
+//        System.out.println(funcName);
+//        System.out.println(lastScopeType);
+//        System.out.println("BBLBLBLBLLBLBLBLBLBLB");
+        localEnv.setScopeType(funcName);
 
-                int index = Integer.parseInt((String) indexI);
+//        environment.setScopeType(funcName);
 
-                list = listNe.get(index);
-            } else if (list instanceof LinkedHashMap<?, ?>) {
-                // Если текущий уровень - словарь
-                LinkedHashMap<Object, Object> map = (LinkedHashMap<Object, Object>) list;
+        bindArguments(functionNode, evaluateArguments(environment), localEnv, funcName);
+//
+//        environment.setScopeType(funcName);
 
+        if (runBody(functionNode, localEnv, funcName)) {
+            Object returning = localEnv.takeReturnValue();
+            localEnv.setScopeType(lastScopeType);
+//            environment.setScopeType(lastScopeType);
+            environment.syncFunctions(localEnv);
+            return returning;
+        }
+        localEnv.setScopeType(lastScopeType);
+//        environment.setScopeType(lastScopeType);
+//        environment.syncFunctions(localEnv);
+        return null;
+    }
 
-                String mapKey = (String) indexI;
 
-                list = map.get(mapKey);
-            } else {
-                throw new IllegalArgumentException("Invalid structure: neither list nor map at path index " + key);
-            }
 
-//            if (canConvertToInt((String) indexI)) {
-//                Object nested = list.get(Integer.parseInt((String) indexI));
-//                if (nested instanceof List<?>) {
-//                    list = (List<Object>) nested;
-//                } else if () {
+//    public Node executeGetNode(Environment environment) {
+//        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
+//        String funcName = ((IdentifierNode) (((BlockNode) environment.getValue((IdentifierNode) this.funcIdentifier)).getChildren().get(0).getChildren().get(0))).getName();
 //
-//                } else {
-//                    throw new IllegalArgumentException("Invalid structure: expected a nested list at index " + indexI);
+////        TODO: сделай
+//        Environment localEnv = environment.deepCopy();
+////        Раскоменти и замени внутри этой хуйни все на localEnv,
+////        тут прикол в том чтоб после вполенения проверить если внутри добавилась новая функия
+////        добавить все от нее внутрь нашего env
+//
+////        System.out.println(funcName2.getChildren().get(0));
+//        BlockNode functionNode = (BlockNode) localEnv.getVariable(funcNameInit, "global").getValue();
+////        System.out.println(param.getChildren());
+//        String lastScopeType = localEnv.getScopeType();
+//
+//        localEnv.setScopeType(funcName);
+//
+////        environment.setScopeType(funcName);
+//
+//        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
+//            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
+////            System.out.println(param.getChildren().get(i));
+//            if (param.getChildren().get(i) instanceof LiteralNode) {
+//                localEnv.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
+//            } else if (param.getChildren().get(i) instanceof IdentifierNode) {
+//                localEnv.setScopeType(lastScopeType);
+//
+////                if (environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global") == null) {
+////                    System.out.println("no global");
+////                }
+//                Object value = localEnv.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global").getValue();
+//
+//                localEnv.setScopeType(funcName);
+//                localEnv.updateVariable(paramName, value , funcName);
+//            }
+//
+//        }
+////
+////        environment.setScopeType(funcName);
+//
+//        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
+//            functionNode.getChildren().get(1).getChildren().get(j).execute(localEnv);
+//            if (localEnv.haveVariable("return" + localEnv.getScopeType(), localEnv.getScopeType())) {
+//                Object returning = localEnv.getVariable("return" + localEnv.getScopeType(), localEnv.getScopeType()).getValue();
+//                localEnv.removeVariable("return" + localEnv.getScopeType(), localEnv.getScopeType());
+//                localEnv.setScopeType(lastScopeType);
+//                environment.syncFunctions(localEnv);
+//                if (returning instanceof Integer) {
+//                    return new LiteralNode(returning, "int");
+//                } else if (returning instanceof String) {
+//                    return new LiteralNode(returning, "str");
+//                } else if (returning instanceof Double) {
+//                    return new LiteralNode(returning, "real");
+//                } else if (returning instanceof ArrayList<?>) {
+//                    return new ListNode();
 //                }
+//                return returning;
 //            }
+//        }
+//        localEnv.setScopeType(lastScopeType);
+//        environment.syncFunctions(localEnv);
+//        return null;
+//    }
 
+
+    public Object executeInput(Environment environment) {
+        environment.getOutput().flush();
+        if (Objects.equals(((IdentifierNode) funcIdentifier).getName(), "Read INT")) {
+            return ProgramInput.read(ProgramInput.INT);
         }
-        Object newValue = null;
-        if (this.initializer instanceof LiteralNode) {
-            newValue =((LiteralNode) this.initializer).getValue();
-        } else if (this.initializer instanceof ListNode) {
-            newValue =((ListNode) this.initializer).toValueList();
-        } else if (this.initializer instanceof ExpressionNode) {
-            if (((ExpressionNode) this.initializer).getLeftOp() instanceof ListNode &&
-                    ((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-            } else if (((ExpressionNode) this.initializer).getLeftOp() instanceof DictionaryNode &&
-                    ((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                environment.addVariable(this.variableName.getName(), (((ExpressionNode) this.initializer).executeConcat(environment)), "global");
-            } else if (((ExpressionNode) this.initializer).getLeftOp() instanceof IdentifierNode) {
-                if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getLeftOp()).getName(), "global").getValue() instanceof List<?>) {
-                    if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                        }
-                    } else if (((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                        newValue = ((ExpressionNode) this.initializer).executeConcat(environment);
-                    }
-                } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getLeftOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                    if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                        }
-                    } else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                        newValue = ((ExpressionNode) this.initializer).executeConcat(environment);
-                    }
-                } else {
-                    newValue =((LiteralNode) ((ExpressionNode) this.initializer).executeExpressions(environment)).getValue();
-                }
-            }  else if (((ExpressionNode) this.initializer).getLeftOp() instanceof ListNode) {
-                if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                        newValue = ((ExpressionNode) this.initializer).executeConcat(environment);
-                    }
-                } else if (((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                    newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                }
-            } else if (((ExpressionNode) this.initializer).getLeftOp() instanceof ExpressionNode) {
-                if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                        newValue = (((ExpressionNode) this.initializer).executeConcat(environment));
-                    } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                    }
-                } else if (((ExpressionNode) this.initializer).getRightOp() instanceof ListNode) {
-                    newValue = ((ExpressionNode) this.initializer).executeConcat(environment);
-                }  else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                    newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                }
-            }  else if (((ExpressionNode) this.initializer).getLeftOp() instanceof DictionaryNode) {
-                if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        newValue = ((ExpressionNode) this.initializer).executeConcat(environment);
-                    }
-                } else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                    newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                }
-            }  else if (((ExpressionNode) this.initializer).getLeftOp() instanceof ExpressionNode) {
-                if (((ExpressionNode) this.initializer).getRightOp() instanceof IdentifierNode) {
-//                    System.out.println(((ExpressionNode) this.initializer).getRightOp());
+        else if (Objects.equals(((IdentifierNode) funcIdentifier).getName(), "Read REAL")){
+            return ProgramInput.read(ProgramInput.REAL);
+        }
+        else if (Objects.equals(((IdentifierNode) funcIdentifier).getName(), "Read STRING")){
+            return ProgramInput.read(ProgramInput.STRING);
+        }
+        else {
+            throw new RuntimeException("Invalid function call");
+        }
+    }
+}
 
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) this.initializer).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                    }
-                } else if (((ExpressionNode) this.initializer).getRightOp() instanceof DictionaryNode) {
-                    newValue =((ExpressionNode) this.initializer).executeConcat(environment);
-                }
-            } else {
-                newValue =((LiteralNode) ((ExpressionNode) this.initializer).executeExpressions(environment)).getValue();
-            }
-        } else if (this.initializer instanceof DictionaryNode) {
-            environment.addVariable(this.variableName.getName(), ((DictionaryNode) this.initializer).toValueDictionary(), "global");
-        } else if (this.initializer instanceof IdentifierNode) {
-            environment.addVariable(this.variableName.getName(), environment.getVariable(((IdentifierNode) this.initializer).getName(), "global").getValue(), "global");
-        } else if (this.initializer instanceof FunctionCall) {
-            environment.addVariable(this.variableName.getName(), ((FunctionCall) this.initializer).executeInput(environment), "global");
-        } else if (this.initializer instanceof DictionaryNode) {
-            newValue =((DictionaryNode) this.initializer).toValueDictionary();
+class ParseException extends RuntimeException {
+    private final String message;
+    private final Token token;
+
+    public ParseException(String message) {
+        super(message);
+        this.message = message;
+        this.token = null; // Неизвестный токен
+    }
+
+    public ParseException(String message, Token token) {
+        super(message + " at " + token.span);
+        this.message = message;
+        this.token = token;
+    }
+
+    @Override
+    public String getMessage() {
+        if (token != null) {
+            return message + " [Line: " + token.span.lineNum + ", Position: " + token.span.getPosBegin() + "]";
         }
-        //else if (this.initializer instanceof IdentifierNode) {
-        //      newValue =environment.getVariable(((IdentifierNode) this.initializer).getName(), "global").getValue();
-        //  }
+        return message;
+    }
+}
 
-        // Изменяем значение на последнем уровне
-        Object lastIndex = ((IdentifierNode) indexArray.get(indexArray.size() - 1)).getName();
-        if (list instanceof List<?>) {
-            // Изменяем значение в списке
-            List<Object> listNe = (List<Object>) list;
 
-            int index = Integer.parseInt((String) lastIndex);
 
-            while (listNe.size() <= index) {
-                listNe.add(null);  // Добавляем null в список
-            }
-            
-            listNe.set(index, newValue);
-        } else if (list instanceof LinkedHashMap<?, ?>) {
-            // Изменяем значение в словаре
-            Map<Object, Object> map = (LinkedHashMap<Object, Object>) list;
 
-            String mapKey = (String) lastIndex;
 
-            map.put(mapKey, newValue);
-        } else {
-            throw new IllegalArgumentException("Invalid structure: cannot update value at path");
+// Плоское дерево: узлы в прямом порядке обхода в параллельных массивах - вид, первый потомок,
+// следующий брат и полезная нагрузка. Потомки узла лежат сразу за ним, так что полный обход - один
+// проход по массивам подряд. Нагрузка: номер имени у идентификатора, объявления, функции и переменной
+// цикла, оператор у выражения, номер константы у литерала, номер имени метки у блока. Пустой операнд -
+// узел EMPTY. Строит Optimizer после удаления неиспользуемых переменных; проходы, которые размечают
+// дерево (Resolver), читают массивы и пишут результат в исходные узлы через node(i)
+final class FlatAst {
+    static final byte EMPTY = 0;
+    static final byte PROGRAM = 1;
+    static final byte EXPRESSION = 2;
+    static final byte VARIABLE = 3;
+    static final byte IDENTIFIER = 4;
+    static final byte BLOCK = 5;
+    static final byte FUNCTION = 6;
+    static final byte IF = 7;
+    static final byte WHILE = 8;
+    static final byte FOR = 9;
+    static final byte RETURN = 10;
+    static final byte PRINT = 11;
+    static final byte LIST = 12;
+    static final byte DICTIONARY = 13;
+    static final byte ENTRY = 14;
+    static final byte INDEX = 15;
+    static final byte LITERAL = 16;
+    static final byte CALL = 17;
+    static final byte OTHER = 18;
+
+    static final String[] KIND_NAMES = {
+            "Empty", "Program", "Expression", "Variable", "Identifier", "Block", "Function", "If", "While",
+            "For", "Return", "Print", "List", "Dictionary", "Entry", "Index", "Literal", "Call", "Other"
+    };
+    private static final TokenCode[] OPERATORS = TokenCode.values();
+
+    private byte[] kinds = new byte[256];
+    private int[] firstChild = new int[256];
+    private int[] nextSibling = new int[256];
+    private int[] payload = new int[256];
+    private Node[] nodes = new Node[256];
+    private Object[] constants = new Object[16];
+    private int size = 0;
+    private int constantCount = 0;
+
+    private FlatAst() {
+    }
+
+    public static FlatAst of(Node root) {
+        FlatAst ast = new FlatAst();
+        ast.add(root);
+        ast.trim();
+        return ast;
+    }
+
+    private int add(Node node) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            payload = Arrays.copyOf(payload, capacity);
+            nodes = Arrays.copyOf(nodes, capacity);
+        }
+        int index = size++;
+        kinds[index] = kindOf(node);
+        payload[index] = payloadOf(node);
+        nodes[index] = node;
+        firstChild[index] = -1;
+        nextSibling[index] = -1;
+        if (node != null) {
+            int previous = -1;
+            for (Node child : node.getChildren()) {
+                int childIndex = add(child);
+                if (previous < 0) {
+                    firstChild[index] = childIndex;
+                } else {
+                    nextSibling[previous] = childIndex;
+                }
+                previous = childIndex;
+            }
         }
-//        list.set(lastIndex, newValue);
-//        System.out.println("---------------------------");
-//        System.out.println(key);
-//        System.out.println(ident);
-//        System.out.println(indexArray);
-//        System.out.println(list);
-//        System.out.println(environment.getVariable(((IdentifierNode) ident).getName(), "global").getValue());
-//        System.out.println("---------------------------");
-        return null;
+        return index;
     }
 
-    // Преобразование в изменяемый список
-    @SuppressWarnings("unchecked")
-    private static List<Object> makeMutable(List<?> original) {
-        return original.stream()
-                .map(item -> item instanceof List<?> ? makeMutable((List<?>) item) : item)
-                .collect(java.util.stream.Collectors.toList());
+    private void trim() {
+        kinds = Arrays.copyOf(kinds, size);
+        firstChild = Arrays.copyOf(firstChild, size);
+        nextSibling = Arrays.copyOf(nextSibling, size);
+        payload = Arrays.copyOf(payload, size);
+        nodes = Arrays.copyOf(nodes, size);
+        constants = Arrays.copyOf(constants, constantCount);
     }
 
+    private static byte kindOf(Node node) {
+        if (node == null) return EMPTY;
+        if (node instanceof ProgramNode) return PROGRAM;
+        if (node instanceof ExpressionNode) return EXPRESSION;
+        if (node instanceof ListNode) return LIST;
+        if (node instanceof DictionaryNode) return DICTIONARY;
+        if (node instanceof VariableDeclarationNode) return VARIABLE;
+        if (node instanceof IdentifierNode) return IDENTIFIER;
+        if (node instanceof BlockNode) return BLOCK;
+        if (node instanceof FunctionDeclarationNode) return FUNCTION;
+        if (node instanceof IfNode) return IF;
+        if (node instanceof WhileLoopNode) return WHILE;
+        if (node instanceof ForLoopNode) return FOR;
+        if (node instanceof ReturnNode) return RETURN;
+        if (node instanceof PrintNode) return PRINT;
+        if (node instanceof DictionaryEntryNode) return ENTRY;
+        if (node instanceof DictionaryEntryCall) return INDEX;
+        if (node instanceof LiteralNode) return LITERAL;
+        if (node instanceof FunctionCall) return CALL;
+        return OTHER;
+    }
 
-//    public Object recursionEntry(Environment environment) {
-//        String varName = ((IdentifierNode) dictionaryEntryCall.getKey()).getName();
-//        Variable var = environment.getVariable(varName, "global");
-//        Object varValue = var.getValue();
-//        Object newValue = null;
-//        if (this.initializer instanceof LiteralNode) {
-//            newValue =((LiteralNode) this.initializer).getValue();
-//        } else if (this.initializer instanceof ListNode) {
-//            newValue =((ListNode) this.initializer).toValueList();
-//        } else if (this.initializer instanceof ExpressionNode) {
-//            newValue =((LiteralNode) ((ExpressionNode) this.initializer).executeExpressions(environment)).getValue();
-//        } else if (this.initializer instanceof DictionaryNode) {
-//            newValue =((DictionaryNode) this.initializer).toValueDictionary();
-//        } else if (this.initializer instanceof IdentifierNode) {
-//            newValue =environment.getVariable(((IdentifierNode) this.initializer).getName(), "global").getValue();
-//        }
-//
-//        if (varValue instanceof List<?>) {
-//            int index = 0;
-//            if (this.dictionaryEntryCall.getValue() instanceof LiteralNode) {
-//                index = (int) ((LiteralNode) this.dictionaryEntryCall.getValue()).getValue();
-//            } else if (this.dictionaryEntryCall.getValue() instanceof ExpressionNode) {
-//                index = (int) ((LiteralNode) ((ExpressionNode) this.dictionaryEntryCall.getValue()).executeExpressions(environment)).getValue();
-//            } else if (this.dictionaryEntryCall.getValue() instanceof IdentifierNode) {
-//                if (environment.haveVariable(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName(), "global")) {
-//                    index = (int) environment.getVariable(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName(), "global").getValue();
-//                } else {
-//                    System.out.println(environment.haveVariable(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName(), "global"));
-//                    System.out.println(((IdentifierNode) this.dictionaryEntryCall.getValue()).getName());
-//                    index = ((IdentifierNode) this.dictionaryEntryCall.getValue()).getValue();
-//                }
-//
-//            }
-//            List<?> list = (List<?>) varValue;
-//            @SuppressWarnings("unchecked")
-//            List<Object> mutableList = (List<Object>) list;
-//            mutableList.set(index, newValue);
-//            environment.updateVariable(varName, mutableList, "global");
-//        }
-//    }
-}
+    private int payloadOf(Node node) {
+        if (node instanceof IdentifierNode identifier) {
+            return identifier.getId();
+        }
+        if (node instanceof ExpressionNode expression) {
+            return expression.getOperator() == null ? -1 : expression.getOperator().ordinal();
+        }
+        if (node instanceof LiteralNode literal) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = literal.getValue();
+            return constantCount++;
+        }
+        if (node instanceof VariableDeclarationNode declaration) {
+            return declaration.getName() == null ? -1 : declaration.getName().getId();
+        }
+        if (node instanceof FunctionDeclarationNode function) {
+            return ((IdentifierNode) function.header.getChildren().get(0)).getId();
+        }
+        if (node instanceof ForLoopNode loop) {
+            return loop.getVariable().getId();
+        }
+        if (node instanceof BlockNode block) {
+            return Names.intern(block.toString());
+        }
+        return -1;
+    }
 
-class IdentifierNode extends Node {
-    private final String name;
+    public int size() {
+        return size;
+    }
 
-    public IdentifierNode(String name) {
-        this.name = name;
+    public byte kind(int node) {
+        return node < 0 ? EMPTY : kinds[node];
     }
 
-    public int getValue() {
-        return Integer.parseInt(this.name);
+    public int firstChild(int node) {
+        return firstChild[node];
     }
 
-    @Override
-    public String toString() {
-        return "Identifier: " + name;
+    public int nextSibling(int node) {
+        return nextSibling[node];
     }
 
-    public String getName() {
-        return name;
+    public int payload(int node) {
+        return payload[node];
     }
 
-    @Override
-    public void execute(Environment environment) {
+    public int childCount(int node) {
+        int count = 0;
+        for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+            count++;
+        }
+        return count;
     }
-}
 
-class BlockNode extends Node {
-    private final List<Node> statements;
-    private String name;
+    // Потомок с номером position или -1
+    public int child(int node, int position) {
+        int child = firstChild[node];
+        for (int i = 0; i < position && child >= 0; i++) {
+            child = nextSibling[child];
+        }
+        return child;
+    }
 
-    public BlockNode(List<Node> statements, String name) {
-        this.name = name;
-        this.statements = statements;
-        for (Node statement : statements) {
-            addChild(statement);
+    // Исходный узел - для проходов, которые записывают результат в дерево
+    public Node node(int node) {
+        return nodes[node];
+    }
+
+    // Узел-идентификатор, который именует payload: сам идентификатор, имя объявления или переменная цикла
+    public IdentifierNode identifier(int node) {
+        switch (kinds[node]) {
+            case IDENTIFIER:
+                return (IdentifierNode) nodes[node];
+            case FOR:
+                return ((ForLoopNode) nodes[node]).getVariable();
+            case VARIABLE:
+            case LIST:
+            case DICTIONARY:
+                return ((VariableDeclarationNode) nodes[node]).getName();
+            default:
+                return null;
         }
     }
 
+    // Имя идентификатора, объявления, функции или переменной цикла
+    public String name(int node) {
+        return Names.name(payload[node]);
+    }
 
-    public IdentifierNode getName() {
-        return (IdentifierNode) this.statements.get(0);
+    public TokenCode operator(int node) {
+        return payload[node] < 0 ? null : OPERATORS[payload[node]];
     }
 
-    public int size() {
-        return statements.size();
+    public Object literal(int node) {
+        return constants[payload[node]];
     }
 
-    public Node get(int index) {
-        return statements.get(index);
+    public String label(int node) {
+        return Names.name(payload[node]);
     }
 
-    @Override
-    public String toString() {
-        return this.name;
+    public void printTree() {
+        printTree(0, "");
     }
 
-    @Override
-    public void execute(Environment environment) {
+    private void printTree(int node, String indent) {
+        System.out.println(indent + KIND_NAMES[kinds[node]] + describe(node));
+        for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+            printTree(child, indent + "  ");
+        }
+    }
+
+    private String describe(int node) {
+        switch (kinds[node]) {
+            case IDENTIFIER:
+            case FOR:
+            case FUNCTION:
+                return " " + name(node);
+            case VARIABLE:
+            case LIST:
+            case DICTIONARY:
+                return payload[node] < 0 ? "" : " " + name(node);
+            case EXPRESSION:
+                return " " + operator(node);
+            case LITERAL:
+                return " " + literal(node);
+            case BLOCK:
+                return " " + label(node);
+            default:
+                return "";
+        }
     }
 }
 
+// Текущий токен для парсера: код, строка и значение без объекта токена
+interface TokenCursor {
+    boolean hasCurrent();
 
-class FunctionDeclarationNode extends DeclarationNode {
-    BlockNode header;
-    Node functionBody;
+    TokenCode code();
 
-    FunctionDeclarationNode(BlockNode header, Node functionBody) {
-        this.header = header;
-        this.functionBody = functionBody;
+    long line();
 
-        addChild(header);
+    int nameId();          // идентификатор: номер имени в Names
 
-//        addChild(parameters); // Добавляем параметры в дочерние узлы
+    int intValue();
 
-        addChild(functionBody); // Добавляем body в дочерние узлы
+    double realValue();
+
+    String stringValue();
+
+    boolean booleanValue();
+
+    // Токен объектом - для сообщений об ошибках
+    Token current();
+
+    void advance();
+
+    void rewind();
+
+    // Был ли до текущего токена '=>', за которым идет токен на строке line или позже
+    boolean implicationSince(long line);
+}
+
+// Токены в параллельных массивах: код, начало, конец, строка и значение. Значение - номер имени,
+// целое или 0/1; у вещественных и строковых литералов - номер в своей таблице.
+// Около 21 байта на токен вместо объекта токена со Span
+final class TokenBuffer {
+    private static final TokenCode[] CODES = TokenCode.values();
+
+    private byte[] codes = new byte[256];
+    private int[] starts = new int[256];
+    private int[] ends = new int[256];
+    private int[] lines = new int[256];
+    private int[] values = new int[256];
+    private double[] reals = new double[16];
+    private String[] strings = new String[16];
+    private int size = 0;
+    private int realCount = 0;
+    private int stringCount = 0;
+
+    public void add(TokenCode code, int value, int start, int end, int line) {
+        if (size == codes.length) {
+            int capacity = size * 2;
+            codes = Arrays.copyOf(codes, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        codes[size] = (byte) code.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        lines[size] = line;
+        values[size] = value;
+        size++;
     }
 
-    @Override
-    public void execute(Environment environment) {
-        String funcName = ((IdentifierNode) this.header.getChildren().get(0)).getName();
-        String lastScopeType = environment.getScopeType();
-        environment.setScopeType(funcName);
-        for (int i = 0; i < this.header.getChildren().get(1).getChildren().size(); i++) {
-            String paramName = ((VariableDeclarationNode) this.header.getChildren().get(1).getChildren().get(i)).variableName.getName();
-            environment.addVariable(paramName, null, funcName);
+    public void addReal(double value, int start, int end, int line) {
+        if (realCount == reals.length) {
+            reals = Arrays.copyOf(reals, realCount * 2);
         }
-        List<Node> functionNodeArray = new ArrayList<>();
-        functionNodeArray.add(this.header);
-        functionNodeArray.add(this.functionBody);
-        BlockNode function = new BlockNode(functionNodeArray, "function");
-        environment.setScopeType(lastScopeType);
-//        Environment closureEnv = environment.deepCopy();
-//        System.out.println("closureEnv");
-//        System.out.println(funcName);
-//        System.out.println(closureEnv);
-//        System.out.println("closureEnv");
-        environment.addVariable(funcName, function, "global");
+        reals[realCount] = value;
+        add(TokenCode.REAL_LITERAL, realCount++, start, end, line);
     }
 
-    public IdentifierNode getName() {
-        return header.getName();
+    public void addString(String value, int start, int end, int line) {
+        if (stringCount == strings.length) {
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        }
+        strings[stringCount] = value;
+        add(TokenCode.STRING_LITERAL, stringCount++, start, end, line);
     }
-    @Override
-    public String toString() {
-        return "Function: ";
+
+    public int size() {
+        return size;
     }
-}
 
+    public TokenCode code(int index) {
+        return CODES[codes[index]];
+    }
 
-class IfNode extends StatementNode {
-    private final Node condition;
-    private final BlockNode thenBody;
-    private final BlockNode elseBody;
+    public int line(int index) {
+        return lines[index];
+    }
 
-    public IfNode(Node condition, BlockNode thenBody, BlockNode elseBody) {
-        super("if");
-        this.condition = condition;
-        this.thenBody = thenBody;
-        this.elseBody = elseBody;
+    public int value(int index) {
+        return values[index];
+    }
 
-        addChild(condition); // Добавляем condition в дочерние узлы
-        addChild(thenBody); // Добавляем thenBody
-        if (elseBody != null) {
-            addChild(elseBody); // Добавляем elseBody, если он есть
+    public double real(int index) {
+        return reals[values[index]];
+    }
+
+    public String string(int index) {
+        return strings[values[index]];
+    }
+
+    public Token token(int index) {
+        Span span = new Span(lines[index], starts[index], ends[index]);
+        switch (code(index)) {
+            case IDENTIFIER: return new Identifier(values[index], span);
+            case INTEGER_LITERAL: return new IntegerToken(values[index], span);
+            case REAL_LITERAL: return new RealToken(real(index), span);
+            case STRING_LITERAL: return new StringToken(string(index), span);
+            case BOOLEAN_LITERAL: return new BooleanToken(values[index] != 0, span);
+            default: return new Token(code(index), span);
         }
     }
 
-    @Override
-    public String toString() {
-        return "If";
+    public TokenCursor cursor() {
+        return new Cursor();
     }
 
-    @Override
-    public void execute(Environment environment) {
-        boolean flag;
-        if (condition instanceof LiteralNode) {
-            if (((LiteralNode) condition).getValue() instanceof Boolean) {
-                if ((boolean) ((LiteralNode) condition).getValue()) {
-                    for (int j = 0; j < this.thenBody.getChildren().size(); j++) {
-                        this.thenBody.getChildren().get(j).execute(environment);
-                    }
-                } else if (elseBody != null) {
-                    for (int j = 0; j < this.elseBody.getChildren().size(); j++) {
-                        this.elseBody.getChildren().get(j).execute(environment);
-                    }
-                }
-            }else {
-                throw new IllegalArgumentException("Invalid expression in if");
-            }
+    private final class Cursor implements TokenCursor {
+        private int position = 0;
+        // Последний '=>' перед текущим токеном, -1 - не было
+        private int implication = -1;
+
+        @Override
+        public boolean hasCurrent() {
+            return position < size;
         }
-        if (condition instanceof ExpressionNode) {
-            if (((LiteralNode) ((ExpressionNode) this.condition).executeExpressions(environment)).getValue() instanceof Boolean) {
-                flag = (boolean) ((LiteralNode) ((ExpressionNode) this.condition).executeExpressions(environment)).getValue();
-                if (flag) {
-                    for (int j = 0; j < this.thenBody.getChildren().size(); j++) {
-                        this.thenBody.getChildren().get(j).execute(environment);
-                    }
-                } else if (elseBody != null) {
-                    for (int j = 0; j < this.elseBody.getChildren().size(); j++) {
-                        this.elseBody.getChildren().get(j).execute(environment);
-                    }
-                }
-            } else {
-                throw new IllegalArgumentException("Invalid expression in if");
+
+        private int index() {
+            if (position >= size) {
+                throw new ParseException("Unexpected end of input");
             }
+            return position;
         }
-    }
-}
 
+        @Override
+        public TokenCode code() {
+            return TokenBuffer.this.code(index());
+        }
 
+        @Override
+        public long line() {
+            return lines[index()];
+        }
 
-class WhileLoopNode extends StatementNode {
-    private final Node condition;
-    private final Node body;
+        @Override
+        public int nameId() {
+            return values[index()];
+        }
 
-    public WhileLoopNode(Node condition, Node body) {
-        super("while");
-        this.condition = condition;
-        this.body = body;
+        @Override
+        public int intValue() {
+            return values[index()];
+        }
 
-        addChild(condition); // Добавляем condition в дочерние узлы
-        addChild(body); // Добавляем body в дочерние узлы
-    }
+        @Override
+        public double realValue() {
+            return real(index());
+        }
 
-    @Override
-    public String toString() {
-        return "While";
-    }
+        @Override
+        public String stringValue() {
+            return string(index());
+        }
 
-    @Override
-    public void execute(Environment environment) {
-        boolean flag;
-        if (condition instanceof LiteralNode) {
-            if (((LiteralNode) ((ExpressionNode) this.condition).executeExpressions(environment)).getValue() instanceof Boolean) {
-                if ((boolean) ((LiteralNode) condition).getValue()) {
-                    for (int j = 0; j < this.body.getChildren().size(); j++) {
-                        this.body.getChildren().get(j).execute(environment);
-                    }
-                }
-                return;
-            }
-            else {
-                throw new IllegalArgumentException("Invalid expression in while");
+        @Override
+        public boolean booleanValue() {
+            return values[index()] != 0;
+        }
+
+        @Override
+        public Token current() {
+            return token(index());
+        }
+
+        @Override
+        public void advance() {
+            if (position < size && codes[position] == TokenCode.IMPLICATION.ordinal()) {
+                implication = position;
             }
+            position++;
         }
-        if (condition instanceof ExpressionNode) {
-            if (((LiteralNode) ((ExpressionNode) this.condition).executeExpressions(environment)).getValue() instanceof Boolean) {
-                flag = (boolean) ((LiteralNode) ((ExpressionNode) this.condition).executeExpressions(environment)).getValue();
-                while (flag) {
-                    for (int j = 0; j < this.body.getChildren().size(); j++) {
-                        this.body.getChildren().get(j).execute(environment);
-                    }
-                    flag = (boolean) ((LiteralNode) ((ExpressionNode) this.condition).executeExpressions(environment)).getValue();
+
+        @Override
+        public void rewind() {
+            if (position == 0) {
+                throw new ParseException("Cannot rewind past the token window");
+            }
+            position--;
+            if (implication == position) {
+                implication--;
+                while (implication >= 0 && codes[implication] != TokenCode.IMPLICATION.ordinal()) {
+                    implication--;
                 }
-                return;
-            } else {
-                throw new IllegalArgumentException("Invalid expression in while");
             }
         }
+
+        @Override
+        public boolean implicationSince(long line) {
+            index();
+            return implication >= 0 && lines[implication + 1] >= line;
+        }
     }
 }
 
-class ForLoopNode extends StatementNode {
-    private final String name;
-    private final Node start;
-    private final Node end;
-    private final Node body;
-
-    public ForLoopNode(String name, Node start, Node end, Node body) {
-        super("for");
-        this.name = name;
-        this.start = start;
-        this.end = end;
-        this.body = body;
+// Токены по запросу парсера. Хранится только небольшое окно: текущий токен,
+// один токен для rewind() и заглядывание вперед, поэтому память не зависит от размера исходника
+class TokenStream implements TokenCursor {
+    private static final int WINDOW = 8;
 
-//        addChild(name); // Добавляем инициализацию в дочерние узлы
-        addChild(start); // Добавляем start в дочерние узлы
-        addChild(end); // Добавляем end в дочерние узлы
-        addChild(body); // Добавляем body в дочерние узлы
-    }
+    private final Iterator<Token> source;
+    private final Token[] window = new Token[WINDOW];
+    // Для каждого токена окна: строка токена, следующего за последним '=>' до него
+    private final long[] implicationLines = new long[WINDOW];
+    private int position = 0;
+    private int fetched = 0;
+    private long implicationLine = -1;
+    private boolean afterImplication = false;
 
-    @Override
-    public String toString() {
-        return "For";
+    public TokenStream(Iterator<Token> source) {
+        this.source = source;
     }
 
-    @Override
-    public void execute(Environment environment) {
-        if (this.end != null) {
-            if (this.start.getChildren().get(0) instanceof LiteralNode && this.end.getChildren().get(0) instanceof LiteralNode) {
-                if (((LiteralNode) this.start.getChildren().get(0)).getValue() instanceof Integer &&
-                        ((LiteralNode) this.end.getChildren().get(0)).getValue() instanceof Integer) {
-                    environment.addVariable(this.name, (int) ((LiteralNode) this.start.getChildren().get(0)).getValue(), "global");
-                    for (int i = (int) ((LiteralNode) this.start.getChildren().get(0)).getValue(); i < (int) ((LiteralNode) this.end.getChildren().get(0)).getValue(); i++) {
-                        environment.updateVariable(this.name, i, "global");
-                        for (int j = 0; j < this.body.getChildren().size(); j++) {
-                            this.body.getChildren().get(j).execute(environment);
-                        }
-                    }
-                }
+    private void fill(int index) {
+        while (fetched <= index) {
+            if (!source.hasNext()) {
+                throw new ParseException("Unexpected end of input");
             }
-        } else {
-//            System.out.println();
-            if (environment.getVariable(((IdentifierNode) this.start.getChildren().get(0)).getName(), "global").getValue() instanceof List<?>) {
-                List<Object> array = (List<Object>) environment.getVariable(((IdentifierNode) this.start.getChildren().get(0)).getName(), "global").getValue();
-                environment.addVariable(this.name, null, "global");
-//                System.out.println("------------");
-//                System.out.println(this.name);
-//                System.out.println("------------");
-                for (int i = 0; i < array.size(); i++) {
-                    environment.updateVariable(this.name, array.get(i), "global");
-                    for (int j = 0; j < this.body.getChildren().size(); j++) {
-                        this.body.getChildren().get(j).execute(environment);
-                    }
-                }
+            Token token = source.next();
+            if (afterImplication) {
+                implicationLine = token.span.lineNum;
             }
+            afterImplication = token.code == TokenCode.IMPLICATION;
+            window[fetched % WINDOW] = token;
+            implicationLines[fetched % WINDOW] = implicationLine;
+            fetched++;
         }
     }
-}
-
-class ReturnNode extends StatementNode {
-    private final Node expression;
 
-    public ReturnNode(Node expression) {
-        super("return");
-        this.expression = expression;
+    @Override
+    public boolean hasCurrent() {
+        return position < fetched || source.hasNext();
+    }
 
-        addChild(expression); // Добавляем expression в дочерние узлы
+    @Override
+    public Token current() {
+        fill(position);
+        return window[position % WINDOW];
     }
 
     @Override
-    public String toString() {
-        return "Return";
+    public TokenCode code() {
+        return current().code;
     }
 
     @Override
-    public void execute(Environment environment) {
-//        System.out.println(this.expression);
-//        Object element = this.expression.getChildren().get(0);
-        Object element = this.expression;
-        Object re = null;
-        if (element instanceof IdentifierNode) {
-            re = environment.getVariable(((IdentifierNode) element).getName(), "global").getValue();
-        } else if (element instanceof LiteralNode) {
-            re = ((LiteralNode) element).getValue();
-        }else if (element instanceof ListNode) {
-            re = ((ListNode) element).toValueList();
-        } else if (element instanceof DictionaryNode) {
-            re = ((DictionaryNode) element).toValueDictionary();
-        } else if (element instanceof ExpressionNode) {
-            if (((ExpressionNode) element).getLeftOp() instanceof ListNode &&
-                    ((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                re = (((ExpressionNode) element).executeConcat(environment));
-            } else if (((ExpressionNode) element).getLeftOp() instanceof DictionaryNode &&
-                    ((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                re = ((((ExpressionNode) element).executeConcat(environment)));
-            } else if (((ExpressionNode) element).getLeftOp() instanceof IdentifierNode) {
-                if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getLeftOp()).getName(), "global").getValue() instanceof List<?>) {
-                    if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            re = ((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                        re = ((((ExpressionNode) element).executeConcat(environment)));
-                    }
-                } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getLeftOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                    if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            re = ((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                        re = ((((ExpressionNode) element).executeConcat(environment)));
-                    }
-                } else {
-                    re = (((LiteralNode) ((ExpressionNode) element).executeExpressions(environment)).getValue());
-                }
-            }  else if (((ExpressionNode) element).getLeftOp() instanceof ListNode) {
-                if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                        re = ((((ExpressionNode) element).executeConcat(environment)));
-                    }
-                } else if (((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                    re = ((((ExpressionNode) element).executeConcat(environment)));
-                }
-            } else if (((ExpressionNode) element).getLeftOp() instanceof ExpressionNode) {
-                if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                        re = ((((ExpressionNode) element).executeConcat(environment)));
-                    } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        re = ((((ExpressionNode) element).executeConcat(environment)));
-                    }
-                } else if (((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                    re = ((((ExpressionNode) element).executeConcat(environment)));
-                }  else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                    re = ((((ExpressionNode) element).executeConcat(environment)));
-                }
-            }  else if (((ExpressionNode) element).getLeftOp() instanceof DictionaryNode) {
-                if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        re = ((((ExpressionNode) element).executeConcat(environment)));
-                    }
-                } else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                    re = ((((ExpressionNode) element).executeConcat(environment)));
-                }
-            }  else if (((ExpressionNode) element).getLeftOp() instanceof ExpressionNode) {
-                if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-//                        System.out.println(((ExpressionNode) this.initializer).getRightOp());
+    public long line() {
+        return current().span.lineNum;
+    }
 
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        re = ((((ExpressionNode) element).executeConcat(environment)));
-                    }
-                } else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                    re = ((((ExpressionNode) element).executeConcat(environment)));
-                }
-            } else {
-                re = (((LiteralNode) ((ExpressionNode) element).executeExpressions(environment)).getValue());
-            }
-        }
-//        else if (element instanceof ExpressionNode) {
-//            re = ((LiteralNode) ((ExpressionNode) element).executeExpressions(environment)).getValue();
-//        }
-        else if (element instanceof ListNode) {
-            re = ((ListNode) element).toValueList();
-        }  else if (element instanceof DictionaryNode) {
-            re = ((DictionaryNode) element).toValueDictionary();
-        } else if (element instanceof DictionaryEntryCall) {
-            re = ((DictionaryEntryCall) element).getValueIndex(environment);
-        } else if (element instanceof FunctionCall) {
-            re = ((FunctionCall) element).executeGet(environment);
-        }
-        environment.addVariable("return" + environment.getScopeType(), re, environment.getScopeType());
-//        System.out.println(this.expression.getChildren().get(0) instanceof DictionaryEntryNode);
+    @Override
+    public int nameId() {
+        return ((Identifier) current()).id;
     }
-}
 
-class PrintNode extends StatementNode {
-    private final Node expression;
+    @Override
+    public int intValue() {
+        return ((IntegerToken) current()).value;
+    }
 
-    public PrintNode(Node expression) {
-        super("print");
-        this.expression = expression;
+    @Override
+    public double realValue() {
+        return ((RealToken) current()).value;
+    }
 
-        addChild(expression); // Добавляем expression в дочерние узлы
+    @Override
+    public String stringValue() {
+        return ((StringToken) current()).value;
     }
 
     @Override
-    public String toString() {
-        return "Print";
+    public boolean booleanValue() {
+        return ((BooleanToken) current()).value;
     }
 
     @Override
-    public void execute(Environment environment) {
-        for (int i = 0; i < this.expression.getChildren().size(); i++) {
-            Object element = this.expression.getChildren().get(i);
-            if (element instanceof IdentifierNode) {
-//                environment.printAllVariables();
-                System.out.println(environment.getVariable(((IdentifierNode) element).getName(), "global").getValue());
-            } else if (element instanceof LiteralNode) {
-                System.out.println(((LiteralNode) element).getValue());
-            } else if (element instanceof ExpressionNode) {
-                if (((ExpressionNode) element).getLeftOp() instanceof ListNode &&
-                        ((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                    System.out.println(((ExpressionNode) element).executeConcat(environment));
-                } else if (((ExpressionNode) element).getLeftOp() instanceof DictionaryNode &&
-                        ((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                    System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                } else if (((ExpressionNode) element).getLeftOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getLeftOp()).getName(), "global").getValue() instanceof List<?>) {
-                        if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                                System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                            }
-                        } else if (((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        } else if (((ExpressionNode) element).getRightOp() instanceof FunctionCall) {
-                            if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof List<?>) {
-                                System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                            }
-                        }
-                    } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getLeftOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                                System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                            }
-                        } else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }  else if (((ExpressionNode) element).getRightOp() instanceof FunctionCall) {
-                            if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof LinkedHashMap<?, ?>) {
-                                System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                            }
-                        }
-                    } else {
-                        System.out.println(((LiteralNode) ((ExpressionNode) element).executeExpressions(environment)).getValue());
-                    }
-                }  else if (((ExpressionNode) element).getLeftOp() instanceof ListNode) {
-                    if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                        System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                    } else if (((ExpressionNode) element).getRightOp() instanceof FunctionCall) {
-                        if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof List<?>){
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    }
-                } else if (((ExpressionNode) element).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                        System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                    }  else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                        System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                    } else if (((ExpressionNode) element).getRightOp() instanceof FunctionCall) {
-                        if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof List<?>){
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        } else if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof LinkedHashMap<?, ?>){
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    }
-                }  else if (((ExpressionNode) element).getLeftOp() instanceof DictionaryNode) {
-                    if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                        System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                    } else if (((ExpressionNode) element).getRightOp() instanceof FunctionCall) {
-                        if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof LinkedHashMap<?, ?>){
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    }
-                }  else if (((ExpressionNode) element).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-//                        System.out.println(((ExpressionNode) this.initializer).getRightOp());
+    public void advance() {
+        position++;
+    }
 
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                        System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                    } else if (((ExpressionNode) element).getRightOp() instanceof FunctionCall) {
-                        if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof LinkedHashMap<?, ?>){
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        }
-                    }
-                }  else if (((ExpressionNode) element).getLeftOp() instanceof FunctionCall) {
-                    if (((FunctionCall) ((ExpressionNode) element).getLeftOp()).executeGet(environment) instanceof LinkedHashMap<?, ?> ||
-                            ((FunctionCall) ((ExpressionNode) element).getLeftOp()).executeGet(environment) instanceof List<?>) {
-                        if (((ExpressionNode) element).getRightOp() instanceof IdentifierNode) {
-//                          System.out.println(((ExpressionNode) this.initializer).getRightOp());
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                                System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                            } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) element).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                                System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                            }
-                        } else if (((ExpressionNode) element).getRightOp() instanceof ListNode) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        } else if (((ExpressionNode) element).getRightOp() instanceof DictionaryNode) {
-                            System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                        } else if (((ExpressionNode) element).getRightOp() instanceof FunctionCall) {
-                            if (((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof LinkedHashMap<?, ?> ||
-                                    ((FunctionCall) ((ExpressionNode) element).getRightOp()).executeGet(environment) instanceof List<?>) {
-                                System.out.println((((ExpressionNode) element).executeConcat(environment)));
-                            }
-                        }
-                    }
-                } else {
-                    System.out.println(((LiteralNode) ((ExpressionNode) element).executeExpressions(environment)).getValue());
-                }
-            }else if (element instanceof DictionaryEntryCall) {
-                System.out.println(((DictionaryEntryCall) element).getValueIndex(environment));
-            } else if (element instanceof FunctionCall) {
-                System.out.println(((FunctionCall) element).executeGet(environment));
-            }
+    @Override
+    public void rewind() {
+        if (position == 0 || fetched - position >= WINDOW) {
+            throw new ParseException("Cannot rewind past the token window");
         }
-//        System.out.println(this.expression.getChildren().get(0) instanceof DictionaryEntryNode);
+        position--;
+    }
+
+    @Override
+    public boolean implicationSince(long line) {
+        fill(position);
+        return implicationLines[position % WINDOW] >= line;
     }
 }
 
+class Parser {
+    private final TokenCursor tokens;
+    private ProgramNode program;
+    private SymbolTable symbolTable;
+    private int scope; // Номер текущей области в Names
+    private int len;
 
-class ListNode extends VariableDeclarationNode {
-    private final BlockNode elements;
-    private final IdentifierNode name;
 
-    public ListNode(BlockNode elements, IdentifierNode name) {
-        super(name, null, null);
-        this.elements = elements;
-        this.name = name;
-        addChild(name); // Добавляем все элементы в дочерние
-        addChild(elements); // Добавляем все элементы в дочерние
+    public Parser(List<Token> tokens) {
+        this(new TokenStream(tokens.iterator()));
     }
 
-    public IdentifierNode getName() {
-        return variableName;
+    // Лексер работает по мере разбора, список токенов не строится
+    public Parser(Lexer lexer) {
+        this(new TokenStream(lexer));
     }
 
-    public Node get(int index) {
-        return elements.get(index);
+    // Токены из компактного буфера: лексер отработал заранее, объектов токенов нет
+    public Parser(TokenBuffer tokens) {
+        this(tokens.cursor());
     }
 
+    public Parser(TokenCursor tokens) {
+        this.tokens = tokens;
+        this.program = new ProgramNode();
+        this.symbolTable = new SymbolTable();
+        this.scope = SymbolTable.GLOBAL;
+        this.len = 0;
+    }
 
-    public int size() {
-        int size = 0;
-        if (elements != null) {
-            size += elements.size();
-        }
-        return size;
+    private Token getCurrentToken() {
+        return tokens.current();
     }
 
-    @Override
-    public String toString() {
-        return "List: ";
+    private TokenCode currentCode() {
+        return tokens.code();
     }
 
-    public List<Object> toValueList() {
-        List<Object> valueList = new ArrayList<>();
-        if (elements != null) {
-            for (int i = 0; i < elements.size(); i++) {
-                if (elements.get(i) instanceof LiteralNode) {
-                    LiteralNode element = (LiteralNode) elements.get(i);
-                    valueList.add(element.getValue());
-                } else if(elements.get(i) instanceof ListNode) {
-                    valueList.add(((ListNode) elements.get(i)).toValueList());
-                } else if(elements.get(i) instanceof DictionaryNode) {
-                    valueList.add(((DictionaryNode) elements.get(i)).toValueDictionary());
-                }
-            }
-        }
-        return valueList;
+    private long currentLine() {
+        return tokens.line();
     }
 
-    @Override
-    public void execute(Environment environment) {
+    private int currentNameId() {
+        return tokens.nameId();
+    }
 
+    private String currentIdentifier() {
+        return Names.name(tokens.nameId());
     }
-}
 
-class DictionaryNode extends VariableDeclarationNode {
-    private final BlockNode entriesBlock;
-    private final IdentifierNode name;
+    private void advance() {
+        tokens.advance();
+    }
 
-    public DictionaryNode(BlockNode entries, IdentifierNode name) {
-        super(name, null, null);
-        this.name = name;
-        this.entriesBlock = entries;
-        addChild(name); // Добавляем BlockNode как дочерний узел
-        addChild(entriesBlock); // Добавляем BlockNode как дочерний узел
+    private void rewind() {
+        tokens.rewind();
     }
 
-    public IdentifierNode getName() {
-        return variableName;
+    public SymbolTable getSymbolTable() {
+        return this.symbolTable;
+    }
+
+    public ProgramNode parseProgram() {
+        while (tokens.hasCurrent()) {
+            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+            this.scope = SymbolTable.GLOBAL;
+//            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, getCurrentToken().code);
+            if (currentCode() == TokenCode.VAR) {
+                program.addStatement(parseDeclaration());
+            } else if (currentCode() == TokenCode.IDENTIFIER) {
+                int identifierToken = currentNameId();
+                boolean funcFlag = false;
+                advance();
+                if (currentCode() == TokenCode.LPAREN) {
+                    funcFlag = true;
+                }
+                rewind();
+                if (Trace.on(Trace.Phase.PARSER, Trace.Level.DEBUG)) {
+                    Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, Names.name(identifierToken) + " is function: " + this.symbolTable.hasFunctionWithName(identifierToken));
+                }
+//            if (program.isFunction(new IdentifierNode(identifierToken.identifier)) != null) {
+                if (this.symbolTable.hasFunctionWithName(identifierToken) || funcFlag) {
+                    List<Node> parameters = new ArrayList<>();
+                    if (Trace.on(Trace.Phase.PARSER, Trace.Level.DEBUG)) {
+                        Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, "call " + Names.name(identifierToken) + "_" + Names.name(this.scope));
+                    }
+                    this.symbolTable.addNumUse(identifierToken, this.scope);
+                    advance();
+                    if (currentCode() == TokenCode.LPAREN) {
+                        advance();
+                    } else {
+                        IdentifierNode re = new IdentifierNode(identifierToken);
+                        advance();
+                        program.addStatement(re);
+                    }
+                    if (currentCode() != TokenCode.RPAREN) {
+                        Node ne = parseCondition();
+                        Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, ne);
+                        parameters.add(ne);
+
+                        while (currentCode() == TokenCode.COMMA) {
+                            advance(); // Пропускаем запятую
+                            parameters.add(parseCondition());
+                        }
+                    }
+
+
+                    BlockNode param = new BlockNode(parameters, "param");
+                    Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+                    if (currentCode() != TokenCode.RPAREN) {
+                        Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+                        throw new ParseException("Expected ')', found: " + currentCode());
+                    }
+
+                    FunctionCall re = new FunctionCall(new IdentifierNode(identifierToken), param);
+                    advance();
+                    program.addStatement(re);
+//            } else if (program.isVariable(new IdentifierNode(identifierToken.identifier)) != null) {
+                } else {
+                    program.addStatement(parseDeclaration());
+                }
+
+            } else if (currentCode() == TokenCode.PRINT) {
+                program.addStatement(parsePrint());
+            } else if (currentCode() == TokenCode.FOR) {
+                program.addStatement(parseFor());
+            } else if (currentCode() == TokenCode.WHILE) {
+                program.addStatement(parseWhile());
+            } else if (currentCode() == TokenCode.IF) {
+                program.addStatement(parseIf());
+            } else if (currentCode() == TokenCode.FUNC) {
+                program.addStatement(parseFunction());
+            } else if (currentCode() == TokenCode.READ_REAL ||
+                    currentCode() == TokenCode.READ_INT ||
+                    currentCode() == TokenCode.READ_STRING) {
+                program.addStatement(parsePrimary());
+            } else if (currentCode() == TokenCode.RETURN) {
+                throw new ParseException("ERROR in line: " + currentLine() + ". Return must be used inside the function.");
+            }  else if (currentCode() == TokenCode.ELSE) {
+                throw new ParseException("ELSE should be used together IF: " + currentLine());
+            } else if (currentCode() == TokenCode.EOF) {
+                advance();
+            } else if (currentCode() == TokenCode.COMMENT) {
+                advance();
+            }  else if (currentCode() == TokenCode.SEMICOLON) {
+                advance();
+            } else {
+                this.symbolTable.traceTable();
+                throw new ParseException("Incorrect use of " + currentCode() +  " in line: " + currentLine());
+            }
+//            }else if (getCurrentToken().code == TokenCode.END) {
+//                throw new ParseException("Incorrect use of END: " + getCurrentToken().span.lineNum);
+//            }  else if (getCurrentToken().code == TokenCode.LOOP) {
+//                throw new ParseException("Incorrect use of LOOP: " + getCurrentToken().span.lineNum);
+//            }  else if (getCurrentToken().code == TokenCode.THEN) {
+//                throw new ParseException("Incorrect use of LOOP: " + getCurrentToken().span.lineNum);
+//            }
+
+//            else {
+//                current++;
+////                throw new ParseException("Unexpected token: " + getCurrentToken().code);
+//            }
+        }
+        this.symbolTable.traceTable();
+        return program;
     }
 
-    public LinkedHashMap<Object, Object> toValueDictionary() {
-        LinkedHashMap<Object, Object> dictionary = new LinkedHashMap<>();
-        if (entriesBlock != null) {
-            for (int i = 0; i < entriesBlock.size(); i++) {
-                if (entriesBlock.get(i) instanceof DictionaryEntryNode) {
-                    DictionaryEntryNode entry = (DictionaryEntryNode) entriesBlock.get(i);
-                    Object key = ((IdentifierNode) entry.getKey()).getName();
-                    Object value = getValueFromEntry(entry.getValue());
-                    dictionary.put(key, value);
+
+    private VariableDeclarationNode parseDeclaration() {
+        boolean flagVarDeclare = false;
+        if (currentCode() == TokenCode.VAR) {
+            flagVarDeclare = true;
+            advance();// Пропускаем 'var'
+        }
+        if (currentCode() == TokenCode.ASSIGN) {
+            throw new ParseException("The name of the variable was omitted in line: " + currentLine());
+        } else if (currentCode() != TokenCode.IDENTIFIER) {
+            throw new ParseException("Incorrect use of " + currentCode() +  " in line: " + currentLine());
+        }
+        int variableName = currentNameId();
+        Node init = new IdentifierNode(variableName);
+        boolean dictFlag = false;
+        advance(); // Пропускаем идентификатор
+        if (!flagVarDeclare) {
+            if (currentCode() == TokenCode.LBRACKET || currentCode() == TokenCode.DOT) {
+                dictFlag = true;
+                while (currentCode() == TokenCode.LBRACKET || currentCode() == TokenCode.DOT) {
+                    if (currentCode() == TokenCode.LBRACKET){
+                        advance();  // Переходим к следующему токену
+                        init = getIndexEntry(init);  // Получаем узел для вложенного элемента
+                        advance();
+                    } else {
+                        advance();  // Переходим к следующему токену
+                        init = getEntry(init);
+                    }
+
                 }
+//                return new VariableDeclarationNode((DictionaryEntryCall) init, new IdentifierNode("2"));
             }
         }
-        return dictionary;
-    }
-
-    private Object getValueFromEntry(Object entryValue) {
-        if (entryValue instanceof LiteralNode) {
-            return ((LiteralNode) entryValue).getValue();
-        } else if (entryValue instanceof ListNode) {
-            return ((ListNode) entryValue).toValueList();
-        } else if (entryValue instanceof DictionaryNode) {
-            return ((DictionaryNode) entryValue).toValueDictionary();
-        } else {
-            return null;
-        }
-    }
-
-    public Object getValueByIndex(LinkedHashMap<Object, Object> dictionary, int index) {
-        if (index < 0 || index >= dictionary.size()) {
-            throw new IndexOutOfBoundsException("Индекс вне границ словаря.");
-        }
-        return new ArrayList<>(dictionary.values()).get(index);
-    }
-
-    @Override
-    public String toString() {
-        return "Dictionary: " + entriesBlock.toString();
-    }
-}
 
-class DictionaryEntryNode extends Node {
-    private final Node key;
-    private final Node value;
 
-    public DictionaryEntryNode(Node key, Node value) {
-        this.key = key;
-        this.value = value;
+//        System.out.println(this.symbolTable.getSymbol(variableName.identifier + "_" + this.scope) != null);
+//        if (!flagVarDeclare && this.symbolTable.getSymbol(variableName.identifier + "_" + this.scope) != null) {
+//            this.symbolTable.addNumUse(variableName.identifier + "_" + this.scope);
+//        }
+        if (currentCode() == TokenCode.ASSIGN) {
+            advance();// Пропускаем ':='
+            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+            if (flagVarDeclare && this.symbolTable.getSymbol(variableName, this.scope) != null) {
+                throw new ParseException("Line: " + currentLine() + " | The variable named '" + Names.name(variableName) +  "' has already been declared");
+            }
 
-        addChild(key); // Добавляем ключ в дочерние узлы
-        addChild(value); // Добавляем значение в дочерние узлы
-    }
+//            if (getCurrentToken().code == TokenCode.LBRACKET) {
+//                BlockNode elem = parseList();
+//                return new ListNode(elem, new IdentifierNode(variableName.identifier));
+//            }
+//            else if (getCurrentToken().code == TokenCode.LBRACE) {
+//                BlockNode dictElem = parseDictionary();
+//                return new DictionaryNode(dictElem, new IdentifierNode(variableName.identifier));
+//            }
 
-    public Node getKey() {
-        return this.key;
-    }
+//            if (getCurrentToken().code == TokenCode.DOT) {
+//                advance();
+//                Node elem = parseLogicalExpression();
+//                IdentifierNode variableIdentifier = new IdentifierNode(variableName.identifier);
+//                Node initializer = new DictionaryEntryNode(variableIdentifier , elem);
+//                return new VariableDeclarationNode(variableIdentifier, initializer, null);
+//            }
 
-    public Node getValue() {
-        return this.value;
-    }
+            if (currentCode() == TokenCode.FUNC) {
+                advance(); // Пропускаем 'func'
+                this.symbolTable.addSymbol(variableName, this.scope, "function", 0, -1, null, 1);
 
-    @Override
-    public String toString() {
-        return "Entry:";
-    }
+                this.scope = variableName;
 
-    @Override
-    public void execute(Environment environment) {
-    }
-}
+                init = new IdentifierNode(variableName);
+//            String functionName = functionToken.identifier;
 
-class DictionaryEntryCall extends Node {
-    private final Node key;
-    private final Node value;
 
-    public DictionaryEntryCall(Node key, Node value) {
-        this.key = key;
-        this.value = value;
+                if (currentCode() != TokenCode.LPAREN) {
+                    throw new ParseException("Expected '(', found: " + getCurrentToken());
+                }
+                advance(); // Пропускаем '('
 
-        addChild(key); // Добавляем ключ в дочерние узлы
-        addChild(value); // Добавляем значение в дочерние узлы
-    }
 
-    public Node getKey() {
-        return this.key;
-    }
+                List<Node> parameters = new ArrayList<>();
+                if (currentCode() != TokenCode.RPAREN) {
+                    VariableDeclarationNode re = parseParameter();
+                    this.symbolTable.addSymbol(re.variableName.getId(), this.scope, "param", 0, -1, null);
+                    parameters.add(re);
 
+                    while (currentCode() == TokenCode.COMMA) {
+                        advance(); // Пропускаем запятую
+                        re = parseParameter();
+                        this.symbolTable.addSymbol(re.variableName.getId(), this.scope, "param", 0, -1, null);
+                        parameters.add(re);
+                    }
+                }
 
-    public Node getValue() {
-        return this.value;
-    }
+                BlockNode param = new BlockNode(parameters, "param");
+                if (currentCode() != TokenCode.RPAREN) {
+                    throw new ParseException("Expected ')', found: " + getCurrentToken());
+                }
+                advance(); // Пропускаем ')'
 
-    @Override
-    public String toString() {
-        return "Entry Call:";
-    }
 
-    public Object calcEntryValue(Environment environment) {
-        LinkedHashMap<Object, Object> dict = (LinkedHashMap<Object, Object>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue();
-        return null;
-    }
+                if (currentCode() == TokenCode.IMPLICATION) {
+                    advance(); // Пропускаем '=>'
+                    Node functionBody = parseStatement();
 
-    public boolean canConvertToInt(String str) {
-        if (str == null || str.isEmpty()) {
-            return false; // Нельзя преобразовать null или пустую строку
-        }
-        try {
-            Integer.parseInt(str);
-            return true; // Успешно преобразовали
-        } catch (NumberFormatException e) {
-            return false; // Не удалось преобразовать
-        }
-    }
+                    List<Node> headerL = new ArrayList<>();
+                    headerL.add(init);
+                    headerL.add(param);
+                    BlockNode headerBlock = new BlockNode(headerL, "head");
 
-    public Object getValueIndexWithVariable(Object obj, Environment environment) {
-        if (obj instanceof List<?>) {
-            if (canConvertToInt(((IdentifierNode) this.value).getName())) {
-                return ((List<?>) obj).get(Integer.parseInt(((IdentifierNode) this.value).getName()));
-            } else {
-                if (environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue() instanceof Integer) {
-                    return ((List<?>) obj).get((int) environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue());
+                    List<Node> bodyBlock = new ArrayList<>();
+                    bodyBlock.add(functionBody);
+                    BlockNode body = new BlockNode(bodyBlock, "body");
+//                    advance(); // Пропускаем 'end'
+                    FunctionDeclarationNode fincRe = new FunctionDeclarationNode(headerBlock, body);
+                    IdentifierNode variableIdentifier = new IdentifierNode(variableName);
+                    if (flagVarDeclare) {
+                        this.symbolTable.addSymbol(variableName, this.scope, "var", 0, -1, null, 1);
+                    }
+//                    return fincRe;
+                    return new VariableDeclarationNode(variableIdentifier, fincRe, "function");
+                } else {
+                    throw new ParseException("Expected '>=', found: " + currentCode());
                 }
             }
-        } else if (obj instanceof LinkedHashMap<?, ?>) {
-            if (canConvertToInt(((IdentifierNode) this.value).getName())) {
-                LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) obj;
-                ArrayList<?> array = new ArrayList<>(dictionary.values());
-                if (Integer.parseInt(((IdentifierNode) this.value).getName()) < 0 || Integer.parseInt(((IdentifierNode) this.value).getName()) >= array.size()) {
-                    throw new IndexOutOfBoundsException("Индекс вне границ словаря.");
+            boolean flag = false;
+            int last = -1;
+            if (currentCode() == TokenCode.LBRACE) {
+                flag = true;
+                last = this.scope;
+                this.scope = variableName;
+            }
+            Node initializer = (Node) parseLogicalExpression();
+            if (flag) {
+                this.scope = last;
+            }
+            IdentifierNode variableIdentifier = new IdentifierNode(variableName);
+            if (flagVarDeclare) {
+                if (initializer instanceof FunctionCall) {
+                    this.symbolTable.addSymbol(variableName, this.scope, "undefined", this.len, -1, initializer);
+                } else {
+                    this.symbolTable.addSymbol(variableName, this.scope, "var", this.len, -1, initializer);
+
                 }
-                return array.get(Integer.parseInt(((IdentifierNode) this.value).getName()));
-//                return environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue().
+            }
+            String type = "expression";
+            if (initializer instanceof ListNode) {
+                type = "list";
+            } else if (initializer instanceof LiteralNode) {
+                type = ((LiteralNode) initializer).getType();
+            } else if (initializer instanceof DictionaryNode) {
+                type = "dictionary";
+            }
+            if (dictFlag) {
+                return new VariableDeclarationNode((DictionaryEntryCall) init, initializer, type);
             } else {
-                LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) obj;
-                return dictionary.get(((IdentifierNode) this.value).getName());
+                return new VariableDeclarationNode(variableIdentifier, initializer, type);
             }
+
+        } else {
+            IdentifierNode variableIdentifier = new IdentifierNode(variableName);
+            return new VariableDeclarationNode(variableIdentifier, null, "empty");
         }
-        throw new ParseException("Bad type in index.");
     }
 
-    public Object getValueIndex(Environment environment) {
-        Object obj = null;
-        if (this.key instanceof DictionaryEntryCall) {
-            obj = ((DictionaryEntryCall) this.key).getValueIndex(environment);
-        }
-        if (obj == null) {
-            obj = environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue();
-        }
-        return getValueIndexWithVariable(obj, environment);
-// <<<<<<< parser2
-//         if (environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue() instanceof List<?>) {
-//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
-//                 return ((List<?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue()).get(Integer.parseInt(((IdentifierNode) this.value).getName()));
-//             } else {
-//                 if (environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue() instanceof Integer) {
-//                     return ((List<?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue()).get((int) environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue());
-//                 }
-//             }
-//         } else if (environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
-//                 LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue();
-//                 ArrayList<?> array = (ArrayList<?>) dictionary.values();
-// =======
-//         Object obj = null;
-//         if (this.key instanceof DictionaryEntryCall) {
-//             obj = ((DictionaryEntryCall) this.key).getValueIndex(environment);
-//         }
-//         if (obj == null) {
-//             obj = environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue();
-//         }
-//         return getValueIndexWithVariable(obj, environment);
-//     }
+    // Разбор цикла for
+    private ForLoopNode parseFor() {
+        advance(); // Пропускаем 'for'
+        int variableName = currentNameId();
+        this.symbolTable.addSymbol(variableName, this.scope, "var", 0, -1, null);
+        advance(); // Пропускаем идентификатор
 
-//     public Object getValueIndexWithVariable(Object obj, Environment environment) {
-//         if (obj instanceof List<?>) {
-//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
-//                 return ((List<?>) obj).get(Integer.parseInt(((IdentifierNode) this.value).getName()));
-//             } else {
-//                 if (environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue() instanceof Integer) {
-//                     return ((List<?>) obj).get((int) environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue());
-//                 }
-//             }
-//         } else if (obj instanceof LinkedHashMap<?, ?>) {
-//             if (canConvertToInt(((IdentifierNode) this.value).getName())) {
-//                 LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) obj;
-//                 ArrayList<?> array = new ArrayList<>(dictionary.values());
-// >>>>>>> inter
-//                 if (Integer.parseInt(((IdentifierNode) this.value).getName()) < 0 || Integer.parseInt(((IdentifierNode) this.value).getName()) >= array.size()) {
-//                     throw new IndexOutOfBoundsException("Индекс вне границ словаря.");
-//                 }
-//                 return array.get(Integer.parseInt(((IdentifierNode) this.value).getName()));
-// //                return environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue().
-//             } else {
-// <<<<<<< parser2
-//                 if (environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue() instanceof Integer) {
-//                     return ((List<?>) environment.getVariable(((IdentifierNode) this.key).getName(), "global").getValue()).get((int) environment.getVariable(((IdentifierNode) this.value).getName(), "global").getValue());
-//                 }
-// =======
-//                 LinkedHashMap<?, ?> dictionary = (LinkedHashMap<?, ?>) obj;
-//                 return dictionary.get(((IdentifierNode) this.value).getName());
-// >>>>>>> inter
-//             }
-//         }
-//         throw new ParseException("Bad type in index.");
+        if (currentCode() == TokenCode.IN) {
+            advance(); // Пропускаем 'in'
+            List<Node> statements = new ArrayList<>();
+            statements.add(parseExpression());
+            BlockNode rangeStart = new BlockNode(statements, "start");
+            if (currentCode() == TokenCode.TWO_DOT) {
+                advance();
+//                Node rangeEnd = parseExpression();
+                List<Node> statementsEnd = new ArrayList<>();
+                statementsEnd.add(parseExpression());
+                BlockNode rangeEnd = new BlockNode(statementsEnd, "end");
+                if (currentCode() == TokenCode.LOOP) {
+                    advance();
+                    List<Node> bodyArr = new ArrayList<>();
+                    while (currentCode() != TokenCode.END) {
+                        if (currentCode() == TokenCode.SEMICOLON) {
+                            advance();
+                        } else {
+                            bodyArr.add(parseStatement());
+                        }
+                    }
+//                    Node body = parseStatement();
+                    BlockNode body = new BlockNode(bodyArr, "Body");
+                    advance();
+//                    this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
+                    return new ForLoopNode(Names.name(variableName), rangeStart, rangeEnd, body);
+                }
+//                this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
+                throw new ParseException("Expected 'loop', found: " + getCurrentToken());
+            } else if (currentCode() == TokenCode.LOOP) {
+                List<Node> bodyArr = new ArrayList<>();
+                advance();
+                while (currentCode() != TokenCode.END) {
+                    if (currentCode() == TokenCode.SEMICOLON) {
+                        advance();
+                    } else {
+                        bodyArr.add(parseStatement());
+                    }
+                }
+
+                BlockNode body = new BlockNode(bodyArr, "Body");
+
+//                Node body = parseStatement();
+                advance();
+//                this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
+                return new ForLoopNode(Names.name(variableName), rangeStart, null, body);
+            }
+//            this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
+            throw new ParseException("Expected 'to', found: " + getCurrentToken());
+        }
+//        this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
+        throw new ParseException("Expected 'in', found: " + getCurrentToken());
     }
 
-    @Override
-    public void execute(Environment environment) {
-    }
-}
+    private Node parseFunction() {
+        Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, "function declaration");
+        if (currentCode() == TokenCode.FUNC) {
+            advance(); // Пропускаем 'func'
 
-class LiteralNode extends Node {
-    private final Object value;
-    private String type;
+            if (currentCode() != TokenCode.IDENTIFIER) {
+                throw new ParseException("Expected function name, found: " + getCurrentToken());
+            }
+            int functionToken = currentNameId();
+            if (this.symbolTable.getSymbol(functionToken, this.scope) != null) {
+                throw new ParseException("Line: " + currentLine() + " | The function named '" + Names.name(functionToken) +  "' has already been declared");
+            }
+            this.symbolTable.addSymbol(functionToken, this.scope, "function", 0, -1, null);
+            int lastScope = this.scope;
+            this.scope = functionToken;
 
-    public LiteralNode(Object value, String type) {
-//        super(null, null, null);
-        this.value = value;
-        this.type = type;
-    }
 
-    public Object getValue() {
-        return this.value;
-    }
+            IdentifierNode init = new IdentifierNode(functionToken);
+//            String functionName = functionToken.identifier;
+            advance(); // Пропускаем название функции
 
-    public String getType() {
-        return this.type;
-    }
+            if (currentCode() != TokenCode.LPAREN) {
+                throw new ParseException("Expected '(', found: " + getCurrentToken());
+            }
+            advance(); // Пропускаем '('
 
-    @Override
-    public String toString() {
-        return "Literal: " + value.toString() + " | type: " + type;
-    }
-    public boolean isConstant() {
-        return true; // Литералы всегда являются константами
-    }
 
-    @Override
-    public void execute(Environment environment) {
-    }
-}
+            List<Node> parameters = new ArrayList<>();
+            if (currentCode() != TokenCode.RPAREN) {
+                VariableDeclarationNode re = parseParameter();
+                this.symbolTable.addSymbol(re.variableName.getId(), this.scope, "param", 0, -1, null, 10);
+                parameters.add(re);
 
+                while (currentCode() == TokenCode.COMMA) {
+                    advance(); // Пропускаем запятую
+                    re = parseParameter();
+                    this.symbolTable.addSymbol(re.variableName.getId(), this.scope, "param", 0, -1, null, 10);
+                    parameters.add(re);
+                }
+            }
 
-class FunctionCall extends Node {
-    private final Node funcIdentifier;
-    private final Node param;
+            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, parameters);
+            BlockNode param = new BlockNode(parameters, "param");
+            if (currentCode() != TokenCode.RPAREN) {
+                throw new ParseException("Expected ')', found: " + getCurrentToken());
+            }
+            advance(); // Пропускаем ')'
 
-    public FunctionCall(Node funcIdentifier, Node param) {
-        this.funcIdentifier = funcIdentifier;
-        this.param = param;
 
-        addChild(funcIdentifier);
-        addChild(param);
-    }
+            if (currentCode() == TokenCode.IS) {
+                advance(); // Пропускаем 'is'
 
-    @Override
-    public String toString() {
-        return "Function call: ";
-    }
+                Node functionBody = parseBlock();
+                Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, "function body parsed");
 
-//    @Override
-//    public void execute(Environment environment) {
-//        String funcName = ((IdentifierNode) this.funcIdentifier).getName();
-//        BlockNode functionNode = (BlockNode) environment.getVariable(funcName, "global").getValue();
-////        System.out.println(param.getChildren());
-//        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
-//            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
-//            environment.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
-//        }
-//
-//        environment.setScopeType(funcName);
-//        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
-//            functionNode.getChildren().get(1).getChildren().get(j).execute(environment);
-////            System.out.println(functionNode.getChildren().get(1).getChildren());
-//            if (environment.haveVariable("return" + environment.getScopeType(), environment.getScopeType())) {
-//                return;
-//            }
-//        }
-//        environment.setScopeType("global");
-//    }
 
-    @Override
-    public void execute(Environment environment) {
-        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
-        String funcName = ((IdentifierNode) (((BlockNode) environment.getVariable(funcNameInit, "global").getValue()).getChildren().get(0).getChildren().get(0))).getName();
+                if (currentCode() != TokenCode.END) {
+                    throw new ParseException("Expected 'end', found: " + getCurrentToken());
+                }
+                advance(); // Пропускаем 'end'
 
-//        TODO: сделай
-//        Environment localEnv = environment.deepCopy();
-        Environment localEnv = environment.deepCopy();
 
-//        Environment localEnv = environment.deepCopy();
-//        Раскоменти и замени внутри этой хуйни все на localEnv,
-//        тут прикол в том чтоб после вполенения проверить если внутри добавилась новая функия
-//        добавить все от нее внутрь нашего env
+                List<Node> headerL = new ArrayList<>();
+                headerL.add(init);
+                headerL.add(param);
+                BlockNode headerBlock = new BlockNode(headerL, "head");
+                if (currentCode() == TokenCode.SEMICOLON) {
+                    advance();
+                }
+                this.scope = lastScope;
+                return new FunctionDeclarationNode(headerBlock, functionBody);
+            } else if (currentCode() == TokenCode.IMPLICATION) {
+                advance(); // Пропускаем '=>'
+                Node functionBody = parseStatement();
+                if (currentCode() != TokenCode.SEMICOLON) {
+                    throw new ParseException("Expected ';', found: " + getCurrentToken());
+                }
+                List<Node> headerL = new ArrayList<>();
+                headerL.add(init);
+                headerL.add(param);
+                BlockNode headerBlock = new BlockNode(headerL, "head");
 
-//        System.out.println(funcName2.getChildren().get(0));
+                List<Node> bodyBlock = new ArrayList<>();
+                bodyBlock.add(functionBody);
+                BlockNode body = new BlockNode(bodyBlock, "body");
+                advance(); // Пропускаем 'end'
+                this.scope = lastScope;
+                return new FunctionDeclarationNode(headerBlock, body);
+            } else {
+                throw new ParseException("Expected 'is' or '>=', found: " + currentCode());
+            }
+        }
 
-        BlockNode functionNode = (BlockNode) localEnv.getVariable(funcNameInit, "global").getValue();
-//        System.out.println(param.getChildren());
-        String lastScopeType = localEnv.getScopeType();
+        throw new ParseException("Expected 'func', found: " + getCurrentToken());
+    }
 
-        localEnv.setScopeType(funcName);
 
-//        environment.setScopeType(funcName);
+    private VariableDeclarationNode parseParameter() {
+        if (currentCode() != TokenCode.IDENTIFIER) {
+            throw new ParseException("Expected parameter name, found: " + getCurrentToken());
+        }
 
-        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
-            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
-//            System.out.println(param.getChildren().get(i));
-            if (param.getChildren().get(i) instanceof LiteralNode) {
-                localEnv.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
-            } else if (param.getChildren().get(i) instanceof IdentifierNode) {
-                localEnv.setScopeType(lastScopeType);
+        // Считываем идентификатор параметра
+        int paramName = currentNameId();
+        advance(); // Пропускаем идентификатор
 
-//                if (environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global") == null) {
-//                    System.out.println("no global");
-//                }
+        ExpressionNode defaultValue = null;
 
-                Object value = localEnv.getVariableRecursive(((IdentifierNode) param.getChildren().get(i)).getName(), lastScopeType).getValue();
-
-                localEnv.setScopeType(funcName);
-                localEnv.updateVariable(paramName, value , funcName);
-            }  else if (param.getChildren().get(i) instanceof ExpressionNode) {
-                localEnv.setScopeType(lastScopeType);
-                Object value = null;
-//                Object value = ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment);
-                if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ListNode &&
-                        ((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                    value = (((ExpressionNode) param.getChildren().get(i)).executeConcat(environment));
-                } else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof DictionaryNode &&
-                        ((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                    value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                } else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getLeftOp()).getName(), "global").getValue() instanceof List<?>) {
-                        if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                                value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                            }
-                        } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getLeftOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                                value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                            }
-                        } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else {
-                        value = (((LiteralNode) ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment)).getValue());
-                    }
-                }  else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ListNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
-                } else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }  else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
-                }  else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof DictionaryNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
-                }  else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-//                        System.out.println(((ExpressionNode) this.initializer).getRightOp());
+        // Проверяем, есть ли присвоение значения (':=')
+        if (currentCode() == TokenCode.ASSIGN) {
+            advance(); // Пропускаем ':='
 
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
-                } else {
-                    value = (((LiteralNode) ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment)).getValue());
-                }
-                localEnv.setScopeType(funcName);
-                localEnv.updateVariable(paramName, value , funcName);
-                localEnv.printAllVariables();
-            }
+            // Разбираем выражение, которое является значением по умолчанию
+            Node expressionNode = parseExpression();
 
+            // Приводим результат к ExpressionNode
+            if (!(expressionNode instanceof ExpressionNode)) {
+                throw new ParseException("Expected an expression as default value, found: " + expressionNode);
+            }
 
+            defaultValue = (ExpressionNode) expressionNode;
+        }
+        IdentifierNode identifierNode = new IdentifierNode(paramName);
+        return new VariableDeclarationNode(identifierNode, defaultValue, null);
+    }
 
-//            else if (param.getChildren().get(i) instanceof ExpressionNode) {
-//                localEnv.setScopeType(lastScopeType);
-//                Object value = ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment);
-//                localEnv.setScopeType(funcName);
-//                localEnv.updateVariable(paramName, value , funcName);
-//            }
 
-        }
-//
-//        environment.setScopeType(funcName);
 
-        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
 
-            functionNode.getChildren().get(1).getChildren().get(j).execute(localEnv);
-            localEnv.printAllVariables();
-            if (localEnv.haveVariable("return" + localEnv.getScopeType(), localEnv.getScopeType())) {
-                Object returning = localEnv.getVariable("return" + localEnv.getScopeType(), localEnv.getScopeType()).getValue();
-                localEnv.removeVariable("return" + localEnv.getScopeType(), localEnv.getScopeType());
-                localEnv.setScopeType(lastScopeType);
-//                environment.setScopeType(lastScopeType);
-                System.out.println("1233212312");
-                System.out.println(lastScopeType);
-                System.out.println("1233212312");
-                environment.syncFunctions(localEnv);
-                return;
-            }
-        }
-        System.out.println("1233212312");
-        System.out.println(lastScopeType);
-        System.out.println(localEnv.getScopeType());
-        if (!Objects.equals(lastScopeType, localEnv.getScopeType())) {
-            localEnv.setScopeType(lastScopeType);
-            environment = localEnv.deepCopy();
-            localEnv.printAllVariables();
-            System.out.println("1233212312");
-        } else {
-            localEnv.setScopeType(lastScopeType);
-            environment.syncFunctions(localEnv);
+    private Node parseBlock() {
+        List<Node> statements = new ArrayList<>();
+        while (currentCode() != TokenCode.END) {
+            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+            statements.add(parseStatement());
         }
-        System.out.println("1233212312");
-
-//        environment.setScopeType(lastScopeType);
 
-        return;
+        return new BlockNode(statements, "Body");
     }
-//    public void execute(Environment environment) {
-//        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
-//        String funcName = ((IdentifierNode) (((BlockNode) environment.getVariable(funcNameInit, "global").getValue()).getChildren().get(0).getChildren().get(0))).getName();
-////        System.out.println(funcName2.getChildren().get(0));
-//        BlockNode functionNode = (BlockNode) environment.getVariable(funcNameInit, "global").getValue();
-////        System.out.println(param.getChildren());
-//        String lastScopeType = environment.getScopeType();
-//        environment.setScopeType(funcName);
-//        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
-//            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
-////            System.out.println(param.getChildren().get(i));
-//            if (param.getChildren().get(i) instanceof LiteralNode) {
-//                environment.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
-//            } else if (param.getChildren().get(i) instanceof IdentifierNode) {
-//                environment.setScopeType(lastScopeType);
-////                if (environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global") == null) {
-////                    System.out.println("no global");
-////                }
-//                Object value = environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global").getValue();
-//                environment.setScopeType(funcName);
-//                environment.updateVariable(paramName, value , funcName);
-//            }
-//
-//        }
-////
-////        environment.setScopeType(funcName);
+
+
+    // Разбор цикла while
+//    private WhileLoopNode parseWhile() {
+//        advance(); // Пропускаем 'while'
+//        Node condition = parseExpression(); // Разбор условия
 //
-//        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
-//            functionNode.getChildren().get(1).getChildren().get(j).execute(environment);
-//            if (environment.haveVariable("return" + environment.getScopeType(), environment.getScopeType())) {
-//                Object returning = environment.getVariable("return" + environment.getScopeType(), environment.getScopeType()).getValue();
-//                environment.setScopeType(lastScopeType);
-//                environment.removeVariable("return" + environment.getScopeType(), environment.getScopeType());
-//                return;
-//            }
+//        if (getCurrentToken().code == TokenCode.LOOP) {
+//            advance(); // Пропускаем 'loop'
+//            Node body = parseStatement(); // Разбор тела цикла
+//            advance(); // Пропускаем 'end'
+//            return new WhileLoopNode(condition, body);
 //        }
-//        environment.setScopeType(lastScopeType);
-//        return;
+//        throw new ParseException("Expected 'loop', found: " + getCurrentToken());
 //    }
 
+    private WhileLoopNode parseWhile() {
+        advance(); // Пропускаем 'if'
 
-    public Object executeGet(Environment environment) {
-        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
-        String funcName = ((IdentifierNode) (((BlockNode) environment.getVariable(funcNameInit, "global").getValue()).getChildren().get(0).getChildren().get(0))).getName();
-
-//        TODO: сделай
-        Environment localEnv = environment.deepCopy();
+        Node condition = parseCondition();
 
-//        Environment localEnv = environment.deepCopy();
-//        Раскоменти и замени внутри этой хуйни все на localEnv,
-//        тут прикол в том чтоб после вполенения проверить если внутри добавилась новая функия
-//        добавить все от нее внутрь нашего env
+        if (currentCode() == TokenCode.LOOP) {
+            advance(); // Пропускаем 'then'
 
-//        System.out.println(funcName2.getChildren().get(0));
+            List<Node> thenBodyStatements = new ArrayList<>();
+            while (currentCode() != TokenCode.END && currentCode() != TokenCode.ELSE) {
+                if (currentCode() == TokenCode.SEMICOLON) {
+                    advance();
+                } else {
+                    thenBodyStatements.add(parseStatement()); // Разбор тела
+                }
+            }
 
-        BlockNode functionNode = (BlockNode) localEnv.getVariable(funcNameInit, "global").getValue();
-//        System.out.println(param.getChildren());
-        String lastScopeType = localEnv.getScopeType();
+            BlockNode thenBody = new BlockNode(thenBodyStatements, "Body");
 
-//        System.out.println("BLBLBLBLBLBLLBLBLBLB");
-//        System.out.println(funcName);
-//        System.out.println(lastScopeType);
-//        System.out.println("BBLBLBLBLLBLBLBLBLBLB");
-        localEnv.setScopeType(funcName);
+            if (currentCode() == TokenCode.END) {
+                advance(); // Пропускаем 'end'
+            }
 
-//        environment.setScopeType(funcName);
+            return new WhileLoopNode(condition, thenBody);
+        }
 
-        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
-            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
-//            System.out.println(param.getChildren().get(i));
-            if (param.getChildren().get(i) instanceof LiteralNode) {
-                localEnv.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
-            } else if (param.getChildren().get(i) instanceof IdentifierNode) {
-                localEnv.setScopeType(lastScopeType);
+        throw new ParseException("Expected 'then', found: " + currentCode());
+    }
 
-//                if (environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global") == null) {
-//                    System.out.println("no global");
-//                }
+    private IfNode parseIf() {
+        advance(); // Пропускаем if
 
+        Node condition = parseCondition();
 
-                Object value = localEnv.getVariableRecursive(((IdentifierNode) param.getChildren().get(i)).getName(), lastScopeType).getValue();
-
-                localEnv.setScopeType(funcName);
-                localEnv.updateVariable(paramName, value , funcName);
-            }  else if (param.getChildren().get(i) instanceof ExpressionNode) {
-                localEnv.setScopeType(lastScopeType);
-                Object value = null;
-//                Object value = ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment);
-                if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ListNode &&
-                        ((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                    value = (((ExpressionNode) param.getChildren().get(i)).executeConcat(environment));
-                } else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof DictionaryNode &&
-                        ((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                    value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                } else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof IdentifierNode) {
-                    if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getLeftOp()).getName(), "global").getValue() instanceof List<?>) {
-                        if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                                value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                            }
-                        } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getLeftOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                        if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                            if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                                value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                            }
-                        } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else {
-                        value = (((LiteralNode) ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment)).getValue());
-                    }
-                }  else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ListNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
-                } else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof List<?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        } else if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof ListNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }  else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
-                }  else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof DictionaryNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
-                }  else if (((ExpressionNode) param.getChildren().get(i)).getLeftOp() instanceof ExpressionNode) {
-                    if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof IdentifierNode) {
-//                        System.out.println(((ExpressionNode) this.initializer).getRightOp());
+        if (currentCode() == TokenCode.THEN) {
+            advance(); // Пропускаем then
 
-                        if (environment.getVariable(((IdentifierNode) ((ExpressionNode) param.getChildren().get(i)).getRightOp()).getName(), "global").getValue() instanceof LinkedHashMap<?, ?>) {
-                            value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                        }
-                    } else if (((ExpressionNode) param.getChildren().get(i)).getRightOp() instanceof DictionaryNode) {
-                        value = ((((ExpressionNode) param.getChildren().get(i)).executeConcat(environment)));
-                    }
+            List<Node> thenBodyStatements = new ArrayList<>();
+            while (currentCode() != TokenCode.END && currentCode() != TokenCode.ELSE) {
+                if (currentCode() == TokenCode.SEMICOLON) {
+                    advance();
                 } else {
-                    value = (((LiteralNode) ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment)).getValue());
+                    thenBodyStatements.add(parseStatement());
                 }
-                localEnv.setScopeType(funcName);
-                localEnv.updateVariable(paramName, value , funcName);
             }
 
+            BlockNode thenBody = new BlockNode(thenBodyStatements, "Body");
 
+            if (currentCode() == TokenCode.END) {
+                advance(); // Пропускаем end
+            }
 
-//            else if (param.getChildren().get(i) instanceof ExpressionNode) {
-//                localEnv.setScopeType(lastScopeType);
-//                Object value = ((ExpressionNode) param.getChildren().get(i)).executeExpressions(environment);
-//                localEnv.setScopeType(funcName);
-//                localEnv.updateVariable(paramName, value , funcName);
-//            }
-
-        }
-//
-//        environment.setScopeType(funcName);
-
-        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
+            List<Node> elseBodyStatements = new ArrayList<>();
+            BlockNode elseBody = null;
+            if (currentCode() == TokenCode.ELSE) {
+                advance(); // Пропускаем else
+                while (currentCode() != TokenCode.END) {
+                    if (currentCode() == TokenCode.SEMICOLON) {
+                        advance();
+                    } else {
+                        elseBodyStatements.add(parseStatement());
+                    }
+                }
+                elseBody = new BlockNode(elseBodyStatements, "Else");
 
-            functionNode.getChildren().get(1).getChildren().get(j).execute(localEnv);
-            if (localEnv.haveVariable("return" + localEnv.getScopeType(), localEnv.getScopeType())) {
-                Object returning = localEnv.getVariable("return" + localEnv.getScopeType(), localEnv.getScopeType()).getValue();
-                localEnv.removeVariable("return" + localEnv.getScopeType(), localEnv.getScopeType());
-                localEnv.setScopeType(lastScopeType);
-//                environment.setScopeType(lastScopeType);
-                if (!Objects.equals(lastScopeType, localEnv.getScopeType())) {
-                    localEnv.setScopeType(lastScopeType);
-                    environment = localEnv.deepCopy();
-                    localEnv.printAllVariables();
-                    System.out.println("higihih");
+                if (currentCode() == TokenCode.END) {
+                    advance(); // Пропускаем end
                 } else {
-                    localEnv.setScopeType(lastScopeType);
-                    environment.syncFunctions(localEnv);
+                    throw new ParseException("Expected 'end', found: " + getCurrentToken());
                 }
-//                environment.syncFunctions(localEnv);
-                return returning;
             }
+
+            return new IfNode(condition, thenBody, elseBody);
         }
-        localEnv.setScopeType(lastScopeType);
-//        environment.setScopeType(lastScopeType);
-//        environment.syncFunctions(localEnv);
-        return null;
-    }
 
+        throw new ParseException("Expected 'then', found: " + currentCode());
+    }
 
+    // Разбор команды print
+    private PrintNode parsePrint() {
+        advance(); // Пропускаем 'print'
+        List<Node> expressions = new ArrayList<>(); // Список для хранения выражений
 
-//    public Node executeGetNode(Environment environment) {
-//        String funcNameInit = ((IdentifierNode) this.funcIdentifier).getName();
-//        String funcName = ((IdentifierNode) (((BlockNode) environment.getVariable(funcNameInit, "global").getValue()).getChildren().get(0).getChildren().get(0))).getName();
-//
-////        TODO: сделай
-//        Environment localEnv = environment.deepCopy();
-////        Раскоменти и замени внутри этой хуйни все на localEnv,
-////        тут прикол в том чтоб после вполенения проверить если внутри добавилась новая функия
-////        добавить все от нее внутрь нашего env
-//
-////        System.out.println(funcName2.getChildren().get(0));
-//        BlockNode functionNode = (BlockNode) localEnv.getVariable(funcNameInit, "global").getValue();
-////        System.out.println(param.getChildren());
-//        String lastScopeType = localEnv.getScopeType();
-//
-//        localEnv.setScopeType(funcName);
-//
-////        environment.setScopeType(funcName);
-//
-//        for (int i = 0; i < functionNode.getChildren().get(0).getChildren().get(1).getChildren().size(); i++) {
-//            String paramName = ((VariableDeclarationNode) functionNode.getChildren().get(0).getChildren().get(1).getChildren().get(i)).variableName.getName();
-////            System.out.println(param.getChildren().get(i));
-//            if (param.getChildren().get(i) instanceof LiteralNode) {
-//                localEnv.updateVariable(paramName, ((LiteralNode) param.getChildren().get(i)).getValue() , funcName);
-//            } else if (param.getChildren().get(i) instanceof IdentifierNode) {
-//                localEnv.setScopeType(lastScopeType);
-//
-////                if (environment.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global") == null) {
-////                    System.out.println("no global");
-////                }
-//                Object value = localEnv.getVariable(((IdentifierNode) param.getChildren().get(i)).getName(), "global").getValue();
-//
-//                localEnv.setScopeType(funcName);
-//                localEnv.updateVariable(paramName, value , funcName);
-//            }
-//
-//        }
-////
-////        environment.setScopeType(funcName);
-//
-//        for (int j = 0; j < functionNode.getChildren().get(1).getChildren().size(); j++) {
-//            functionNode.getChildren().get(1).getChildren().get(j).execute(localEnv);
-//            if (localEnv.haveVariable("return" + localEnv.getScopeType(), localEnv.getScopeType())) {
-//                Object returning = localEnv.getVariable("return" + localEnv.getScopeType(), localEnv.getScopeType()).getValue();
-//                localEnv.removeVariable("return" + localEnv.getScopeType(), localEnv.getScopeType());
-//                localEnv.setScopeType(lastScopeType);
-//                environment.syncFunctions(localEnv);
-//                if (returning instanceof Integer) {
-//                    return new LiteralNode(returning, "int");
-//                } else if (returning instanceof String) {
-//                    return new LiteralNode(returning, "str");
-//                } else if (returning instanceof Double) {
-//                    return new LiteralNode(returning, "real");
-//                } else if (returning instanceof ArrayList<?>) {
-//                    return new ListNode();
-//                }
-//                return returning;
-//            }
-//        }
-//        localEnv.setScopeType(lastScopeType);
-//        environment.syncFunctions(localEnv);
-//        return null;
-//    }
+        // Парсим первое выражение
+        expressions.add(parseLogicalExpression());
 
+        // Продолжаем разбирать, пока есть запятые
+        while (currentCode() == TokenCode.COMMA) {
+            advance(); // Пропускаем запятую
+            expressions.add(parseLogicalExpression()); // Парсим следующее выражение
+        }
 
-    public Object executeInput(Environment environment) {
-        Scanner scanner = new Scanner(System.in);
-        if (Objects.equals(((IdentifierNode) funcIdentifier).getName(), "Read INT")) {
-            return scanner.nextInt();
+        // Ожидаем ';' в конце
+        if (currentCode() != TokenCode.SEMICOLON) {
+            throw new ParseException("Expected ';' at the end of print statement, found: " + currentCode());
         }
-        else if (Objects.equals(((IdentifierNode) funcIdentifier).getName(), "Read REAL")){
-            return scanner.nextFloat();
+        advance(); // Пропускаем ';'
+
+        BlockNode exp = new BlockNode(expressions, "expressions");
+        return new PrintNode(exp); // Возвращаем узел Print с выражениями
+    }
+
+    // Разбор команды print
+    private ReturnNode parseReturn() {
+        advance(); // Пропускаем 'return'
+        Node expression = parseExpression();
+        if (currentCode() == TokenCode.SEMICOLON){
+            advance();
         }
-        else if (Objects.equals(((IdentifierNode) funcIdentifier).getName(), "Read STRING")){
-            return scanner.nextLine();
+
+        // Лямбда-функция, если '=>' стоит на этой или предыдущей строке
+        long initLineNum = currentLine();
+        boolean itLambdaFunction = tokens.implicationSince(initLineNum - 1);
+        if (Trace.on(Trace.Phase.PARSER, Trace.Level.DEBUG)) {
+            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, "return in lambda: " + itLambdaFunction);
         }
-        else {
-            throw new RuntimeException("Invalid function call");
+        if (!itLambdaFunction) {
+            while (currentCode() != TokenCode.SEMICOLON && currentCode() != TokenCode.END && currentCode() != TokenCode.ELSE) {
+                advance();
+            }
         }
-    }
-}
-
-class ParseException extends RuntimeException {
-    private final String message;
-    private final Token token;
 
-    public ParseException(String message) {
-        super(message);
-        this.message = message;
-        this.token = null; // Неизвестный токен
+        return new ReturnNode(expression);
     }
 
-    public ParseException(String message, Token token) {
-        super(message + " at " + token.span);
-        this.message = message;
-        this.token = token;
-    }
+    private Node parseIdentifier() {
+        if (currentCode() == TokenCode.IDENTIFIER) {
+            int nameId = currentNameId();
+//            if ()
+            advance();
 
-    @Override
-    public String getMessage() {
-        if (token != null) {
-            return message + " [Line: " + token.span.lineNum + ", Position: " + token.span.getPosBegin() + "]";
+            return new IdentifierNode(nameId);
         }
-        return message;
-    }
-}
 
+        throw new ParseException("Expected identifier, found: " + currentCode());
+    }
 
 
+    private ExpressionNode parseTypeCheck() {
+        Node identifier = parseIdentifier();
 
+        if (currentCode() == TokenCode.IS) {
+            advance(); // Пропускаем 'is'
+            Node typeNode = parseType();
+            return new ExpressionNode(identifier, TokenCode.IS, typeNode);
+        } else if (currentCode() == TokenCode.IN) {
+            advance();
+            Node typeNode = parseType();
+            return new ExpressionNode(identifier, TokenCode.IN, typeNode);
+        }
 
-class Parser {
-    private List<Token> tokens;
-    private int current;
-    private ProgramNode program;
-    private SymbolTable symbolTable;
-    private String scope;
-    private int len;
+        throw new ParseException("Expected 'is', found: " + getCurrentToken());
+    }
 
 
-    public Parser(List<Token> tokens) {
-        this.tokens = tokens;
-        this.current = 0;
-        this.program = new ProgramNode();
-        this.symbolTable = new SymbolTable();
-        this.scope = "global";
-        this.len = 0;
+    private Node parseType() {
+        switch (currentCode()) {
+            case INT:
+                advance(); // Пропускаем 'int'
+                return new LiteralNode("int", "int");
+            case REAL:
+                advance(); // Пропускаем 'real'
+                return new LiteralNode("real", "real");
+            case STRING:
+                advance(); // Пропускаем 'string'
+                return new LiteralNode("string", "string");
+            case TUPLE_LITERAL:
+                advance(); // Пропускаем 'tuple'
+                return new LiteralNode("tuple", "tuple");
+            case ARRAY_LITERAL:
+                advance(); // Пропускаем 'array'
+                return new LiteralNode("array", "array");
+            case IDENTIFIER:
+                advance(); // Пропускаем 'identifier'
+                return new LiteralNode("identifier", "identifier");
+            case EMPTY:
+                advance(); // Пропускаем 'empty'
+                return new LiteralNode("empty", "empty");
+            default:
+                throw new ParseException("Expected a type, found: " + currentCode());
+        }
     }
 
-    private Token getCurrentToken() {
-        return tokens.get(current);
-    }
 
-    private void advance() {
-        current++;
-    }
+    private Node parseCondition() {
+        Node comparison = null;
+        boolean flag = true;
+        if (currentCode() == TokenCode.IDENTIFIER) {
+            advance(); // Пропускаем идентификатор
+            if (currentCode() == TokenCode.IS) {
+                rewind(); // Возвращаемся назад
+                comparison = parseTypeCheck();
+                flag = false;
+            } else if (currentCode() == TokenCode.IN) {
+                rewind(); // Возвращаемся назад
+                comparison = parseTypeCheck();
+                flag = false;
+            }else {
+                rewind();
+            }
+        }
+
+        if (flag) {
+            comparison = parseComparison();
+        }
 
-    private void rewind() {
-        current--;
-    }
+        while (currentCode() == TokenCode.AND || currentCode() == TokenCode.OR || currentCode() == TokenCode.XOR || currentCode() == TokenCode.PLUS || currentCode() == TokenCode.MULTIPLY || currentCode() == TokenCode.MINUS || currentCode() == TokenCode.DIVIDE || currentCode() == TokenCode.GREATER || currentCode() == TokenCode.LESS) {
+            TokenCode logicalOperator = currentCode();
+            advance(); // Пропускаем логический оператор
+            Node rightOperand = parseComparison();
+            comparison = new ExpressionNode(comparison, logicalOperator, rightOperand);
+        }
 
-    public SymbolTable getSymbolTable() {
-        return this.symbolTable;
+        return comparison;
     }
 
-    public ProgramNode parseProgram() {
-        while (current < tokens.size()) {
-            System.out.println(getCurrentToken().code);
-            this.scope = "global";
-//            System.out.println(getCurrentToken().code);
-            if (getCurrentToken().code == TokenCode.VAR) {
-                program.addStatement(parseDeclaration());
-            } else if (getCurrentToken().code == TokenCode.IDENTIFIER) {
-                Identifier identifierToken = (Identifier) getCurrentToken();
-                boolean funcFlag = false;
-                advance();
-                if (getCurrentToken().code == TokenCode.LPAREN) {
-                    funcFlag = true;
-                }
-                rewind();
-                System.out.println(this.symbolTable.hasFunctionWithName(identifierToken.identifier));
-//            if (program.isFunction(new IdentifierNode(identifierToken.identifier)) != null) {
-                if (this.symbolTable.hasFunctionWithName(identifierToken.identifier) || funcFlag) {
-                    System.out.println("Find");
-                    List<Node> parameters = new ArrayList<>();
-                    System.out.println(identifierToken.identifier + "_" + this.scope);
-                    this.symbolTable.addNumUse(identifierToken.identifier + "_" + this.scope);
-                    advance();
-                    if (getCurrentToken().code == TokenCode.LPAREN) {
-                        advance();
-                    } else {
-                        IdentifierNode re = new IdentifierNode(identifierToken.identifier);
-                        advance();
-                        program.addStatement(re);
-                    }
-                    if (getCurrentToken().code != TokenCode.RPAREN) {
-                        Node ne = parseCondition();
-                        System.out.println(ne);
-                        parameters.add(ne);
-
-                        while (getCurrentToken().code == TokenCode.COMMA) {
-                            advance(); // Пропускаем запятую
-                            parameters.add(parseCondition());
-                        }
-                    }
 
+    private Node parseComparison() {
+        // Проверяем наличие 'not'
+        if (currentCode() == TokenCode.NOT) {
+            advance(); // Пропускаем 'not'
 
-                    BlockNode param = new BlockNode(parameters, "param");
-                    System.out.println("getCurrentToken().code " + getCurrentToken().code);
-                    if (getCurrentToken().code != TokenCode.RPAREN) {
-                        System.out.println(getCurrentToken().code);
-                        throw new ParseException("Expected ')', found: " + getCurrentToken().code);
-                    }
+            if (currentCode() == TokenCode.LPAREN) {
+                advance(); // Пропускаем '('
+                Node innerComparison = parseComparison();
 
-                    FunctionCall re = new FunctionCall(new IdentifierNode(identifierToken.identifier), param);
-                    advance();
-                    program.addStatement(re);
-//            } else if (program.isVariable(new IdentifierNode(identifierToken.identifier)) != null) {
-                } else {
-                    program.addStatement(parseDeclaration());
+                if (currentCode() != TokenCode.RPAREN) {
+                    throw new ParseException("Expected ')', found: " + getCurrentToken());
                 }
-
-            } else if (getCurrentToken().code == TokenCode.PRINT) {
-                program.addStatement(parsePrint());
-            } else if (getCurrentToken().code == TokenCode.FOR) {
-                program.addStatement(parseFor());
-            } else if (getCurrentToken().code == TokenCode.WHILE) {
-                program.addStatement(parseWhile());
-            } else if (getCurrentToken().code == TokenCode.IF) {
-                program.addStatement(parseIf());
-            } else if (getCurrentToken().code == TokenCode.FUNC) {
-                program.addStatement(parseFunction());
-            } else if (getCurrentToken().code == TokenCode.READ_REAL ||
-                    getCurrentToken().code == TokenCode.READ_INT ||
-                    getCurrentToken().code == TokenCode.READ_STRING) {
-                program.addStatement(parsePrimary());
-            } else if (getCurrentToken().code == TokenCode.RETURN) {
-                throw new ParseException("ERROR in line: " + getCurrentToken().span.lineNum + ". Return must be used inside the function.");
-            }  else if (getCurrentToken().code == TokenCode.ELSE) {
-                throw new ParseException("ELSE should be used together IF: " + getCurrentToken().span.lineNum);
-            } else if (getCurrentToken().code == TokenCode.EOF) {
-                current++;
-            } else if (getCurrentToken().code == TokenCode.COMMENT) {
-                current++;
-            }  else if (getCurrentToken().code == TokenCode.SEMICOLON) {
-                current++;
+                advance(); // Пропускаем ')'
+                return new ExpressionNode(null, TokenCode.NOT, innerComparison);
             } else {
-                this.symbolTable.printTable();
-                throw new ParseException("Incorrect use of " + getCurrentToken().code +  " in line: " + getCurrentToken().span.lineNum);
+                Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+                Node innerComparison = parseComparisonWithoutLogicalOperators();
+                return new ExpressionNode(null, TokenCode.NOT, innerComparison);
             }
-//            }else if (getCurrentToken().code == TokenCode.END) {
-//                throw new ParseException("Incorrect use of END: " + getCurrentToken().span.lineNum);
-//            }  else if (getCurrentToken().code == TokenCode.LOOP) {
-//                throw new ParseException("Incorrect use of LOOP: " + getCurrentToken().span.lineNum);
-//            }  else if (getCurrentToken().code == TokenCode.THEN) {
-//                throw new ParseException("Incorrect use of LOOP: " + getCurrentToken().span.lineNum);
-//            }
-
-//            else {
-//                current++;
-////                throw new ParseException("Unexpected token: " + getCurrentToken().code);
-//            }
         }
-        this.symbolTable.printTable();
-        return program;
-    }
+        if (currentCode() == TokenCode.LPAREN) {
+            advance(); // Пропускаем '('
+            Node innerComparison = parseLogicalExpression();
+            if (currentCode() != TokenCode.RPAREN) {
+                throw new ParseException("Expected ')', found: " + getCurrentToken());
+            }
+            advance(); // Пропускаем ')'
+            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, innerComparison);
+            return innerComparison;
+        }
+        Node leftOperand = parseExpression();
 
 
-    private VariableDeclarationNode parseDeclaration() {
-        boolean flagVarDeclare = false;
-        if (getCurrentToken().code == TokenCode.VAR) {
-            flagVarDeclare = true;
-            advance();// Пропускаем 'var'
-        }
-        if (getCurrentToken().code == TokenCode.ASSIGN) {
-            throw new ParseException("The name of the variable was omitted in line: " + getCurrentToken().span.lineNum);
-        } else if (getCurrentToken().code != TokenCode.IDENTIFIER) {
-            throw new ParseException("Incorrect use of " + getCurrentToken().code +  " in line: " + getCurrentToken().span.lineNum);
-        }
-        Identifier variableName = (Identifier) getCurrentToken();
-        Node init = new IdentifierNode(variableName.identifier);
-        boolean dictFlag = false;
-        advance(); // Пропускаем идентификатор
-        if (!flagVarDeclare) {
-            if (getCurrentToken().code == TokenCode.LBRACKET || getCurrentToken().code == TokenCode.DOT) {
-                dictFlag = true;
-                while (getCurrentToken().code == TokenCode.LBRACKET || getCurrentToken().code == TokenCode.DOT) {
-                    if (getCurrentToken().code == TokenCode.LBRACKET){
-                        advance();  // Переходим к следующему токену
-                        init = getEntry(init);  // Получаем узел для вложенного элемента
-                        advance();
-                    } else {
-                        advance();  // Переходим к следующему токену
-                        init = getEntry(init);
-                    }
+        TokenCode operator = currentCode();
+//        if (operator == TokenCode.DOT) {
+//            advance();
+//            TokenCode key = getCurrentToken().code;
+//            IdentifierNode keyIdentifier = new IdentifierNode(key.name());
+//            leftOperand = new DictionaryEntryNode(leftOperand, keyIdentifier);
+//        }
+        if (isComparisonOperator(operator)) {
+            advance();
+            Node rightOperand = parseExpression();
+            Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, rightOperand);
 
-                }
-//                return new VariableDeclarationNode((DictionaryEntryCall) init, new IdentifierNode("2"));
-            }
+//            System.out.println(((LiteralNode) leftOperand).getValue());
+            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
         }
 
 
-//        System.out.println(this.symbolTable.getSymbol(variableName.identifier + "_" + this.scope) != null);
-//        if (!flagVarDeclare && this.symbolTable.getSymbol(variableName.identifier + "_" + this.scope) != null) {
-//            this.symbolTable.addNumUse(variableName.identifier + "_" + this.scope);
-//        }
-        if (getCurrentToken().code == TokenCode.ASSIGN) {
-            advance();// Пропускаем ':='
-            System.out.println(getCurrentToken().code);
-            if (flagVarDeclare && this.symbolTable.getSymbol(variableName.identifier + "_" + this.scope) != null) {
-                throw new ParseException("Line: " + getCurrentToken().span.lineNum + " | The variable named '" + variableName.identifier +  "' has already been declared");
-            }
+        while (currentCode() == TokenCode.AND || currentCode() == TokenCode.OR || currentCode() == TokenCode.XOR || currentCode() == TokenCode.PLUS || currentCode() == TokenCode.MULTIPLY || currentCode() == TokenCode.MINUS || currentCode() == TokenCode.DIVIDE || currentCode() == TokenCode.GREATER || currentCode() == TokenCode.LESS) {
+            TokenCode logicalOperator = currentCode();
+            advance(); // Пропускаем логический оператор
+            Node rightOperand = parseComparison();
+            leftOperand = new ExpressionNode(leftOperand, logicalOperator, rightOperand);
+        }
 
-//            if (getCurrentToken().code == TokenCode.LBRACKET) {
-//                BlockNode elem = parseList();
-//                return new ListNode(elem, new IdentifierNode(variableName.identifier));
-//            }
-//            else if (getCurrentToken().code == TokenCode.LBRACE) {
-//                BlockNode dictElem = parseDictionary();
-//                return new DictionaryNode(dictElem, new IdentifierNode(variableName.identifier));
-//            }
+        return leftOperand;
+    }
 
-//            if (getCurrentToken().code == TokenCode.DOT) {
-//                advance();
-//                Node elem = parseLogicalExpression();
-//                IdentifierNode variableIdentifier = new IdentifierNode(variableName.identifier);
-//                Node initializer = new DictionaryEntryNode(variableIdentifier , elem);
-//                return new VariableDeclarationNode(variableIdentifier, initializer, null);
-//            }
 
-            if (getCurrentToken().code == TokenCode.FUNC) {
-                advance(); // Пропускаем 'func'
-                this.symbolTable.addSymbol(variableName.identifier + "_" + this.scope, "function", 0, this.scope, -1, null, 1);
 
-                this.scope = variableName.identifier;
+    private Node parseComparisonWithoutLogicalOperators() {
+        Node leftOperand = parseExpression();
+        //TODO: Попробуй сделать isComparisonOperator для всех операторов, мб отработает
+        TokenCode operator = currentCode();
+        if (isComparisonOperator(operator)) {
+            advance(); // Пропускаем оператор
+            Node rightOperand = parseExpression();
+            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
+        }
 
-                init = new IdentifierNode(variableName.identifier);
-//            String functionName = functionToken.identifier;
+        return leftOperand;
+    }
 
 
-                if (getCurrentToken().code != TokenCode.LPAREN) {
-                    throw new ParseException("Expected '(', found: " + getCurrentToken());
-                }
-                advance(); // Пропускаем '('
 
+    private Node parseFullExpression() {
+        Node leftOperand = parseExpression();
+        //TODO: Попробуй сделать isComparisonOperator для всех операторов, мб отработает
+        TokenCode operator = currentCode();
+        if (isComparisonOperatorFull(operator)) {
+            advance(); // Пропускаем оператор
+            Node rightOperand = parseExpression();
+            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
+        }
 
-                List<Node> parameters = new ArrayList<>();
-                if (getCurrentToken().code != TokenCode.RPAREN) {
-                    VariableDeclarationNode re = parseParameter();
-                    this.symbolTable.addSymbol(re.variableName.getName() + "_" + this.scope, "param", 0, variableName.identifier, -1, null);
-                    parameters.add(re);
+        return leftOperand;
+    }
 
-                    while (getCurrentToken().code == TokenCode.COMMA) {
-                        advance(); // Пропускаем запятую
-                        re = parseParameter();
-                        this.symbolTable.addSymbol(re.variableName.getName() + "_" + this.scope, "param", 0, variableName.identifier, -1, null);
-                        parameters.add(re);
-                    }
-                }
+    private Node parseLogicalExpression() {
+        Node leftOperand = parseComparison();
 
-                BlockNode param = new BlockNode(parameters, "param");
-                if (getCurrentToken().code != TokenCode.RPAREN) {
-                    throw new ParseException("Expected ')', found: " + getCurrentToken());
-                }
-                advance(); // Пропускаем ')'
+        while (currentCode() == TokenCode.AND || currentCode() == TokenCode.OR || currentCode() == TokenCode.XOR || currentCode() == TokenCode.PLUS || currentCode() == TokenCode.MULTIPLY || currentCode() == TokenCode.MINUS || currentCode() == TokenCode.DIVIDE || currentCode() == TokenCode.GREATER || currentCode() == TokenCode.LESS) {
+            TokenCode operator = currentCode();
+            advance(); // Пропускаем логический оператор
+            Node rightOperand = parseComparison();
+            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
+        }
 
+        return leftOperand;
+    }
 
-                if (getCurrentToken().code == TokenCode.IMPLICATION) {
-                    advance(); // Пропускаем '=>'
-                    Node functionBody = parseStatement();
+    // Парсер для словаря
+    private BlockNode parseDictionary() {
+        advance(); // Пропускаем '{'
 
-                    List<Node> headerL = new ArrayList<>();
-                    headerL.add(init);
-                    headerL.add(param);
-                    BlockNode headerBlock = new BlockNode(headerL, "head");
+        List<Node> entries = new ArrayList<>();
 
-                    List<Node> bodyBlock = new ArrayList<>();
-                    bodyBlock.add(functionBody);
-                    BlockNode body = new BlockNode(bodyBlock, "body");
-//                    advance(); // Пропускаем 'end'
-                    FunctionDeclarationNode fincRe = new FunctionDeclarationNode(headerBlock, body);
-                    IdentifierNode variableIdentifier = new IdentifierNode(variableName.identifier);
-                    if (flagVarDeclare) {
-                        this.symbolTable.addSymbol(variableName.identifier + "_" + this.scope, "var", 0, this.scope, -1, null, 1);
-                    }
-//                    return fincRe;
-                    return new VariableDeclarationNode(variableIdentifier, fincRe, "function");
-                } else {
-                    throw new ParseException("Expected '>=', found: " + getCurrentToken().code);
-                }
+        // Если словарь пустой, сразу закрываем его
+        if (currentCode() != TokenCode.RBRACE) {
+            Node key = parseIdentifier(); // Разбираем ключ
+            if (currentCode() != TokenCode.ASSIGN) {
+                throw new ParseException("Expected ':', found: " + currentCode());
             }
+
+            advance(); // Пропускаем ':'
             boolean flag = false;
-            String last = "";
-            if (getCurrentToken().code == TokenCode.LBRACE) {
-                flag = true;
+            int last = -1;
+            if (currentCode() == TokenCode.LBRACE) {
                 last = this.scope;
-                this.scope = variableName.identifier;
+                flag = true;
+                this.scope = ((IdentifierNode) key).getId();
             }
-            Node initializer = (Node) parseLogicalExpression();
+            Node value = parseExpression(); // Разбираем значение
+            this.symbolTable.addSymbol(((IdentifierNode) key).getId(), this.scope, "dict_key", 0, 0, null);
+            entries.add(new DictionaryEntryNode(key, value)); // Добавляем пару в список
             if (flag) {
                 this.scope = last;
             }
-            IdentifierNode variableIdentifier = new IdentifierNode(variableName.identifier);
-            if (flagVarDeclare) {
-                if (initializer instanceof FunctionCall) {
-                    this.symbolTable.addSymbol(variableName.identifier + "_" + this.scope, "undefined", this.len, this.scope, -1, initializer);
+            // Пока есть запятые, продолжаем разбор пар
+            int indexNum = 0;
+            while (currentCode() == TokenCode.COMMA) {
+                indexNum++;
+                advance(); // Пропускаем запятую
+                key = parseIdentifier(); // Разбираем следующий ключ
+
+                if (currentCode() == TokenCode.ASSIGN) {
+                    advance(); // Пропускаем ':'
+                    flag = false;
+                    last = -1;
+                    if (currentCode() == TokenCode.LBRACE) {
+                        last = this.scope;
+                        flag = true;
+                        this.scope = ((IdentifierNode) key).getId();
+                    }
+                    value = parseExpression(); // Разбираем значение
+                    if (flag) {
+                        this.scope = last;
+                    }
+                    entries.add(new DictionaryEntryNode(key, value)); // Добавляем следующую пару
+                    this.symbolTable.addSymbol(((IdentifierNode) key).getId(), this.scope, "dict_key", 0, indexNum, null);
+                } else if (currentCode() == TokenCode.COMMA || currentCode() == TokenCode.RBRACE) {
+                    entries.add(new DictionaryEntryNode(key, null)); // Добавляем следующую пару
+                    this.symbolTable.addSymbol(((IdentifierNode) key).getId(), this.scope, "dict_key", 0, indexNum, null);
                 } else {
-                    this.symbolTable.addSymbol(variableName.identifier + "_" + this.scope, "var", this.len, this.scope, -1, initializer);
+                    throw new ParseException("Expected ':=', found: " + currentCode());
+                }
+            }
+
+        }
+
+        if (currentCode() != TokenCode.RBRACE) {
+            throw new ParseException("Expected '}', found: " + currentCode());
+        }
+
+        advance(); // Пропускаем '}'
+        this.len = entries.size();
+        return new BlockNode(entries, "entries");
+    }
+
+
+
+
+    private boolean isComparisonOperator(TokenCode code) {
+        return code == TokenCode.GREATER ||
+                code == TokenCode.LESS ||
+                code == TokenCode.GREATER_EQUAL ||
+                code == TokenCode.LESS_EQUAL ||
+                code == TokenCode.EQUAL;
+    }
 
-                }
-            }
-            String type = "expression";
-            if (initializer instanceof ListNode) {
-                type = "list";
-            } else if (initializer instanceof LiteralNode) {
-                type = ((LiteralNode) initializer).getType();
-            } else if (initializer instanceof DictionaryNode) {
-                type = "dictionary";
-            }
-            if (dictFlag) {
-                return new VariableDeclarationNode((DictionaryEntryCall) init, initializer, type);
-            } else {
-                return new VariableDeclarationNode(variableIdentifier, initializer, type);
-            }
 
-        } else {
-            IdentifierNode variableIdentifier = new IdentifierNode(variableName.identifier);
-            return new VariableDeclarationNode(variableIdentifier, null, "empty");
-        }
+    private boolean isComparisonOperatorFull(TokenCode code) {
+        return code == TokenCode.GREATER ||
+                code == TokenCode.LESS ||
+                code == TokenCode.GREATER_EQUAL ||
+                code == TokenCode.LESS_EQUAL ||
+                code == TokenCode.EQUAL ||
+                code == TokenCode.XOR ||
+                code == TokenCode.OR ||
+                code == TokenCode.AND;
     }
 
-    // Разбор цикла for
-    private ForLoopNode parseFor() {
-        advance(); // Пропускаем 'for'
-        Identifier variableName = (Identifier) getCurrentToken();
-        this.symbolTable.addSymbol(variableName.identifier + "_" + this.scope, "var", 0, this.scope, -1, null);
-        advance(); // Пропускаем идентификатор
 
-        if (getCurrentToken().code == TokenCode.IN) {
-            advance(); // Пропускаем 'in'
-            List<Node> statements = new ArrayList<>();
-            statements.add(parseExpression());
-            BlockNode rangeStart = new BlockNode(statements, "start");
-            if (getCurrentToken().code == TokenCode.TWO_DOT) {
-                advance();
-//                Node rangeEnd = parseExpression();
-                List<Node> statementsEnd = new ArrayList<>();
-                statementsEnd.add(parseExpression());
-                BlockNode rangeEnd = new BlockNode(statementsEnd, "end");
-                if (getCurrentToken().code == TokenCode.LOOP) {
-                    advance();
-                    List<Node> bodyArr = new ArrayList<>();
-                    while (getCurrentToken().code != TokenCode.END) {
-                        if (getCurrentToken().code == TokenCode.SEMICOLON) {
-                            advance();
-                        } else {
-                            bodyArr.add(parseStatement());
-                        }
-                    }
-//                    Node body = parseStatement();
-                    BlockNode body = new BlockNode(bodyArr, "Body");
-                    advance();
-//                    this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
-                    return new ForLoopNode(variableName.identifier, rangeStart, rangeEnd, body);
-                }
-//                this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
-                throw new ParseException("Expected 'loop', found: " + getCurrentToken());
-            } else if (getCurrentToken().code == TokenCode.LOOP) {
-                List<Node> bodyArr = new ArrayList<>();
-                advance();
-                while (getCurrentToken().code != TokenCode.END) {
-                    if (getCurrentToken().code == TokenCode.SEMICOLON) {
-                        advance();
-                    } else {
-                        bodyArr.add(parseStatement());
-                    }
-                }
+    private Node parseExpression() {
+        return parseExpressionWithPrecedence(0);
+    }
 
-                BlockNode body = new BlockNode(bodyArr, "Body");
+    private Node parseExpressionWithPrecedence(int precedence) {
+        Node left = parsePrimary();
 
-//                Node body = parseStatement();
-                advance();
-//                this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
-                return new ForLoopNode(variableName.identifier, rangeStart, null, body);
+
+        while (isOperator(currentCode()) && precedence < getPrecedence(currentCode())) {
+            TokenCode operator = currentCode();
+            advance(); // Пропускаем оператор
+
+            int operatorPrecedence = getPrecedence(operator);
+            Node right = parseExpressionWithPrecedence(operatorPrecedence);
+
+            left = new ExpressionNode(left, operator, right);
+        }
+
+        if (currentCode() == TokenCode.ASSIGN) {
+            advance(); // Пропускаем ':=' или '='
+
+            Node right = parseExpression();
+
+            if (left instanceof IdentifierNode) {
+                return new VariableDeclarationNode(((IdentifierNode) left), (ExpressionNode) right, null);
+            } else {
+                throw new ParseException("Left-hand side of assignment must be an identifier");
             }
-//            this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
-            throw new ParseException("Expected 'to', found: " + getCurrentToken());
         }
-//        this.symbolTable.deleteSymbol(variableName.identifier + "_" + this.scope);
-        throw new ParseException("Expected 'in', found: " + getCurrentToken());
+
+        return left;
     }
 
-    private Node parseFunction() {
-        System.out.println("FUNC INIT");
-        if (getCurrentToken().code == TokenCode.FUNC) {
-            advance(); // Пропускаем 'func'
 
-            if (getCurrentToken().code != TokenCode.IDENTIFIER) {
-                throw new ParseException("Expected function name, found: " + getCurrentToken());
+    private int getPrecedence(TokenCode code) {
+        switch (code) {
+            case PLUS:
+            case MINUS:
+                return 1;
+            case MULTIPLY:
+            case DIVIDE:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    private Node parsePrimary() {
+        if (currentCode() == TokenCode.REAL_LITERAL) {
+            double value = tokens.realValue();
+            advance();
+            return new LiteralNode(value, "real");
+        } else if (currentCode() == TokenCode.INTEGER_LITERAL) {
+            int value = tokens.intValue();
+            advance();
+            return new LiteralNode(value, "int");
+        } else if (currentCode() == TokenCode.STRING_LITERAL) {
+            String value = tokens.stringValue();
+            advance();
+            return new LiteralNode(value, "string");
+        } else if (currentCode() == TokenCode.EMPTY) {
+//            StringToken stringToken = (StringToken) getCurrentToken();
+            advance();
+            return new LiteralNode("empty", "empty");
+        } else if (currentCode() == TokenCode.BOOLEAN_LITERAL) {
+            boolean value = tokens.booleanValue();
+            advance();
+            return new LiteralNode(value, "boolean");
+        } else if (currentCode() == TokenCode.LBRACKET) {
+            BlockNode elem = parseList();
+            return new ListNode(elem, null);
+        }
+        else if (currentCode() == TokenCode.LBRACE) {
+            BlockNode dictElem = parseDictionary();
+            return new DictionaryNode(dictElem, null);
+        } else if (currentCode() == TokenCode.READ_INT) {
+            advance();
+            if (currentCode() == TokenCode.LPAREN) {
+                advance();
             }
-            Identifier functionToken = (Identifier) getCurrentToken();
-            if (this.symbolTable.getSymbol(functionToken.identifier + "_" + this.scope) != null) {
-                throw new ParseException("Line: " + getCurrentToken().span.lineNum + " | The function named '" + functionToken.identifier +  "' has already been declared");
+            if (currentCode() != TokenCode.RPAREN) {
+                Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+                throw new ParseException("Expected ')', found: " + currentCode());
             }
-            this.symbolTable.addSymbol(functionToken.identifier + "_" + this.scope, "function", 0, this.scope, -1, null);
-            String lastScope = this.scope;
-            this.scope = functionToken.identifier;
-
-
-            IdentifierNode init = new IdentifierNode(functionToken.identifier);
-//            String functionName = functionToken.identifier;
-            advance(); // Пропускаем название функции
 
-            if (getCurrentToken().code != TokenCode.LPAREN) {
-                throw new ParseException("Expected '(', found: " + getCurrentToken());
+            FunctionCall re = new FunctionCall(new IdentifierNode("Read INT"), null);
+            advance();
+            return re;
+        } else if (currentCode() == TokenCode.READ_STRING) {
+            advance();
+            if (currentCode() == TokenCode.LPAREN) {
+                advance();
             }
-            advance(); // Пропускаем '('
 
+            if (currentCode() != TokenCode.RPAREN) {
+                Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+                throw new ParseException("Expected ')', found: " + currentCode());
+            }
 
-            List<Node> parameters = new ArrayList<>();
-            if (getCurrentToken().code != TokenCode.RPAREN) {
-                VariableDeclarationNode re = parseParameter();
-                this.symbolTable.addSymbol(re.variableName.getName() + "_" + this.scope, "param", 0, functionToken.identifier, -1, null, 10);
-                parameters.add(re);
+            FunctionCall re = new FunctionCall(new IdentifierNode("Read STRING"), null);
+            advance();
+            return re;
+        }else if (currentCode() == TokenCode.READ_REAL) {
+            advance();
+            if (currentCode() == TokenCode.LPAREN) {
+                advance();
+            }
 
-                while (getCurrentToken().code == TokenCode.COMMA) {
-                    advance(); // Пропускаем запятую
-                    re = parseParameter();
-                    this.symbolTable.addSymbol(re.variableName.getName() + "_" + this.scope, "param", 0, functionToken.identifier, -1, null, 10);
-                    parameters.add(re);
-                }
+            if (currentCode() != TokenCode.RPAREN) {
+                Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+                throw new ParseException("Expected ')', found: " + currentCode());
             }
 
-            System.out.println("--------------");
-            System.out.println(parameters);
-            System.out.println("---------------");
-            BlockNode param = new BlockNode(parameters, "param");
-            if (getCurrentToken().code != TokenCode.RPAREN) {
-                throw new ParseException("Expected ')', found: " + getCurrentToken());
+            FunctionCall re = new FunctionCall(new IdentifierNode("Read REAL"), null);
+            advance();
+            return re;
+        } else if (currentCode() == TokenCode.LPAREN) {
+            advance(); // Пропускаем '('
+            Node expression = parseExpression(); // Разбор выражения в скобках
+            if (currentCode() != TokenCode.RPAREN) {
+                throw new ParseException("Expected ')', found: " + currentCode());
             }
             advance(); // Пропускаем ')'
+            return expression;
+        } else if (currentCode() == TokenCode.IDENTIFIER) {
+            int identifierToken = currentNameId();
+//            System.out.println(identifierToken.identifier);
+//            System.out.println(identifierToken.identifier);
+//            this.symbolTable.printTable();
+//            System.out.println(identifierToken.identifier);
+//            System.out.println(identifierToken.identifier);
+            boolean funcFlag = false;
+            advance();
+            if (currentCode() == TokenCode.LPAREN) {
+                funcFlag = true;
+            }
+            rewind();
+//            if (program.isFunction(new IdentifierNode(identifierToken.identifier)) != null) {
+            if (this.symbolTable.hasFunctionWithName(identifierToken) || funcFlag) {
+                List<Node> parameters = new ArrayList<>();
+                if (Trace.on(Trace.Phase.PARSER, Trace.Level.DEBUG)) {
+                    Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, "call " + Names.name(identifierToken) + "_" + Names.name(this.scope));
+                }
+                if (identifierToken != this.scope) {
+                    this.symbolTable.addNumUse(identifierToken, this.scope);
+                }
+                advance();
+                if (currentCode() == TokenCode.LPAREN) {
+                    advance();
+                } else {
+                    IdentifierNode re = new IdentifierNode(identifierToken);
+//                    advance();
+                    return re;
+                }
+                if (currentCode() != TokenCode.RPAREN) {
+                    Node ne = parseCondition();
+                    Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, ne);
+                    parameters.add(ne);
 
+                    while (currentCode() == TokenCode.COMMA) {
+                        advance(); // Пропускаем запятую
+                        parameters.add(parseCondition());
+                    }
+                }
 
-            if (getCurrentToken().code == TokenCode.IS) {
-                advance(); // Пропускаем 'is'
 
-                Node functionBody = parseBlock();
-                System.out.println("Hello");
+                BlockNode param = new BlockNode(parameters, "param");
+                Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, currentCode());
+                if (currentCode() != TokenCode.RPAREN) {
+                    throw new ParseException("Expected ')', found: " + currentCode());
+                }
 
+                FunctionCall re = new FunctionCall(new IdentifierNode(identifierToken), param);
 
-                if (getCurrentToken().code != TokenCode.END) {
-                    throw new ParseException("Expected 'end', found: " + getCurrentToken());
-                }
-                advance(); // Пропускаем 'end'
+                advance();
+                return re;
+//            } else if (program.isVariable(new IdentifierNode(identifierToken.identifier)) != null) {
+            } else if (this.symbolTable.isVariableAccessible(identifierToken, this.scope) >= 0) {
+                advance();
 
+                int declaredScope = this.symbolTable.isVariableAccessible(identifierToken, this.scope);
+                this.symbolTable.addNumUse(identifierToken, declaredScope);
+                if (currentCode() == TokenCode.DOT) {
+                    IdentifierNode variableIdentifier = new IdentifierNode(identifierToken);
+                    advance();  // Переходим к следующему токену
+                    Node initializer = getEntry(variableIdentifier);  // Получаем начальный узел
 
-                List<Node> headerL = new ArrayList<>();
-                headerL.add(init);
-                headerL.add(param);
-                BlockNode headerBlock = new BlockNode(headerL, "head");
-                if (getCurrentToken().code == TokenCode.SEMICOLON) {
-                    advance();
-                }
-                this.scope = lastScope;
-                return new FunctionDeclarationNode(headerBlock, functionBody);
-            } else if (getCurrentToken().code == TokenCode.IMPLICATION) {
-                advance(); // Пропускаем '=>'
-                Node functionBody = parseStatement();
-                if (getCurrentToken().code != TokenCode.SEMICOLON) {
-                    throw new ParseException("Expected ';', found: " + getCurrentToken());
-                }
-                List<Node> headerL = new ArrayList<>();
-                headerL.add(init);
-                headerL.add(param);
-                BlockNode headerBlock = new BlockNode(headerL, "head");
+                    IdentifierNode indexNode = (IdentifierNode) ((DictionaryEntryCall) initializer).getValue();
+                    String index = indexNode.getName();
+                    int indexName = -1;
 
-                List<Node> bodyBlock = new ArrayList<>();
-                bodyBlock.add(functionBody);
-                BlockNode body = new BlockNode(bodyBlock, "body");
-                advance(); // Пропускаем 'end'
-                this.scope = lastScope;
-                return new FunctionDeclarationNode(headerBlock, body);
-            } else {
-                throw new ParseException("Expected 'is' or '>=', found: " + getCurrentToken().code);
-            }
-        }
+                    // Проверка, является ли `index` числовым значением
+                    if (isInteger(index)) {
+                        int listLength = symbolTable.getSymbolLength(identifierToken, declaredScope);
+//                        if (Integer.parseInt(index) < 0 || Integer.parseInt(index) >= listLength) {
+//                            throw new ParseException("Index " + index + " out of bounds for list " + identifierToken.identifier);
+//                        }
+                        indexName = this.symbolTable.getSymbolByIndex(identifierToken, Integer.parseInt(index));
+                    } else {
+                        // Проверка, существует ли индекс как ключ в текущей области видимости
+//                        if (symbolTable.getSymbolScope(index + "_" + identifierToken.identifier) == null) {
+//                            throw new ParseException("Dictionary " + this.scope + " does not contain the key " + identifierToken.identifier);
+//                        }
 
-        throw new ParseException("Expected 'func', found: " + getCurrentToken());
-    }
+                    }
 
+                    // Обновляем scope на основе значения indexName или index
+                    int lastScope = this.scope;
+                    this.scope = (indexName >= 0) ? indexName : indexNode.getId();
 
-    private VariableDeclarationNode parseParameter() {
-        if (getCurrentToken().code != TokenCode.IDENTIFIER) {
-            throw new ParseException("Expected parameter name, found: " + getCurrentToken());
-        }
+                    // Обрабатываем вложенные обращения через .
+                    while (currentCode() == TokenCode.DOT) {
+                        advance();  // Переходим к следующему токену
+                        initializer = getEntry(initializer);  // Получаем узел для вложенного элемента
 
-        // Считываем идентификатор параметра
-        Identifier param = (Identifier) getCurrentToken();
-        String paramName = param.identifier;
-        advance(); // Пропускаем идентификатор
+                        // Получаем название вложенного ключа
+                        indexNode = (IdentifierNode) ((DictionaryEntryCall) initializer).getValue();
+                        index = indexNode.getName();
+                        indexName = -1;
 
-        ExpressionNode defaultValue = null;
+                        if (isInteger(index)) {
+                            if (this.symbolTable.getSymbolByIndex(this.scope, Integer.parseInt(index)) < 0) {
+                                throw new ParseException("Index " + index + " out of bounds for list " + Names.name(this.scope));
+                            }
+                            indexName = this.symbolTable.getSymbolByIndex(this.scope, Integer.parseInt(index));
+//                            int listLength = symbolTable.getSymbolLength(this.scope);
+//
+////                            System.out.println(symbolTable.getSymbolNode(this.scope));
+//                            if (Integer.parseInt(index) < 0 || Integer.parseInt(index) >= listLength) {
+//                                throw new ParseException("Index " + index + " out of bounds for list " + indexName + "_" + this.scope);
+//                            }
+                        } else {
+                            // Проверка на существование ключа во вложенном словаре
+                            if (symbolTable.getSymbolScope(indexNode.getId(), this.scope) < 0) {
+                                throw new ParseException("Dictionary " + Names.name(this.scope) + " does not contain the key " + index);
+                            }
+                        }
 
-        // Проверяем, есть ли присвоение значения (':=')
-        if (getCurrentToken().code == TokenCode.ASSIGN) {
-            advance(); // Пропускаем ':='
+                        // Обновляем область видимости
+                        lastScope = this.scope;
+                        this.scope = (indexName >= 0) ? indexName : indexNode.getId();
+                    }
 
-            // Разбираем выражение, которое является значением по умолчанию
-            Node expressionNode = parseExpression();
+                    // Восстанавливаем исходную область видимости
+                    this.scope = lastScope;
+                    return initializer;
+                } else if (currentCode() == TokenCode.LBRACKET) {
+//                    Node elem = parseLogicalExpression();
+                    IdentifierNode variableIdentifier = new IdentifierNode(identifierToken);
+                    advance();
+                    Node initializer = getIndexEntry(variableIdentifier);
+                    advance();
+// Переход на следующий уровень вложенности, если он есть
+                    while (currentCode() == TokenCode.LBRACKET) {
+                        advance();
+                        initializer = getIndexEntry(initializer);
+                        advance();
+                    }
+// Возвращаем финальный элемент, если проверка завершена успешно
+                    return initializer;
 
-            // Приводим результат к ExpressionNode
-            if (!(expressionNode instanceof ExpressionNode)) {
-                throw new ParseException("Expected an expression as default value, found: " + expressionNode);
+                }
+                return new IdentifierNode(identifierToken);
+            } else {
+                this.symbolTable.traceTable();
+                if (Trace.on(Trace.Phase.PARSER, Trace.Level.DEBUG)) {
+                    Trace.log(Trace.Phase.PARSER, Trace.Level.DEBUG, "undeclared " + Names.name(identifierToken) + "_" + Names.name(this.scope));
+                }
+                throw new ParseException("The identifier " + currentIdentifier() + " is not declared in: " + Names.name(this.scope) + " in line " + currentLine());
             }
-
-            defaultValue = (ExpressionNode) expressionNode;
         }
-        IdentifierNode identifierNode = new IdentifierNode(paramName);
-        return new VariableDeclarationNode(identifierNode, defaultValue, null);
-    }
 
+        throw new ParseException("Incorrect use of " + currentCode() +  " in line: " + currentLine());
 
 
+//        throw new ParseException("Unexpected token: " + getCurrentToken().code);
+    }
 
-    private Node parseBlock() {
-        List<Node> statements = new ArrayList<>();
-        while (getCurrentToken().code != TokenCode.END) {
-            System.out.println("123:");
-            System.out.println(getCurrentToken().code);
-            statements.add(parseStatement());
+    public boolean canConvertToInt(String str) {
+        if (str == null || str.isEmpty()) {
+            return false; // Нельзя преобразовать null или пустую строку
+        }
+        try {
+            Integer.parseInt(str);
+            return true; // Успешно преобразовали
+        } catch (NumberFormatException e) {
+            return false; // Не удалось преобразовать
         }
-
-        return new BlockNode(statements, "Body");
     }
 
 
-    // Разбор цикла while
-//    private WhileLoopNode parseWhile() {
-//        advance(); // Пропускаем 'while'
-//        Node condition = parseExpression(); // Разбор условия
-//
-//        if (getCurrentToken().code == TokenCode.LOOP) {
-//            advance(); // Пропускаем 'loop'
-//            Node body = parseStatement(); // Разбор тела цикла
-//            advance(); // Пропускаем 'end'
-//            return new WhileLoopNode(condition, body);
-//        }
-//        throw new ParseException("Expected 'loop', found: " + getCurrentToken());
-//    }
-
-    private WhileLoopNode parseWhile() {
-        advance(); // Пропускаем 'if'
+    public boolean isInteger(String str) {
+        if (str == null) {
+            return false;
+        }
+        try {
+            Integer.parseInt(str);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 
-        Node condition = parseCondition();
 
-        if (getCurrentToken().code == TokenCode.LOOP) {
-            advance(); // Пропускаем 'then'
+    // Индекс в скобках. Целое число, строка или length прямо перед ']' - постоянный ключ, как после точки,
+    // все остальное - выражение, которое вычисляется при каждом обращении (arr[i], arr[i + 1]).
+    // Текущим остается токен ']'
+    private Node getIndexEntry(Node container) {
+        int lookahead = 0;
+        if (currentCode() == TokenCode.MINUS) {
+            advance();
+            lookahead++;
+        }
+        TokenCode code = currentCode();
+        boolean constant = false;
+        if (code == TokenCode.INTEGER_LITERAL || (lookahead == 0 && (code == TokenCode.STRING_LITERAL || code == TokenCode.LENGTH))) {
+            advance();
+            lookahead++;
+            constant = currentCode() == TokenCode.RBRACKET;
+        }
+        for (; lookahead > 0; lookahead--) {
+            rewind();
+        }
+        if (constant) {
+            return getEntry(container);
+        }
+        Node index = parseLogicalExpression();
+        if (currentCode() != TokenCode.RBRACKET) {
+            throw new ParseException("Expected ']', found: " + currentCode() + " in line: " + currentLine());
+        }
+        return new DictionaryEntryCall(container, index, true);
+    }
 
-            List<Node> thenBodyStatements = new ArrayList<>();
-            while (getCurrentToken().code != TokenCode.END && getCurrentToken().code != TokenCode.ELSE) {
-                if (getCurrentToken().code == TokenCode.SEMICOLON) {
-                    advance();
-                } else {
-                    thenBodyStatements.add(parseStatement()); // Разбор тела
-                }
+    private Node getEntry(Node variableIdentifier) {
+        IdentifierNode key = null;
+        if (currentCode() == TokenCode.IDENTIFIER) {
+            key = new IdentifierNode(currentNameId());
+            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
+            advance();
+            return initializer;
+        } else if (currentCode() == TokenCode.MINUS) {
+            advance();
+            if (currentCode() == TokenCode.INTEGER_LITERAL) {
+                key = new IdentifierNode("-" + Integer.toString(tokens.intValue()));
+                Node initializer = new DictionaryEntryCall(variableIdentifier , key);
+                advance();
+                return initializer;
+            } else {
+                throw new ParseException("Expected integer index: " + currentCode());
+            }
+        } else if (currentCode() == TokenCode.INTEGER_LITERAL) {
+            key = new IdentifierNode(Integer.toString(tokens.intValue()));
+            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
+            advance();
+            return initializer;
+        } else if (currentCode() == TokenCode.MINUS) {
+            advance();
+            if (currentCode() == TokenCode.INTEGER_LITERAL) {
+                key = new IdentifierNode("-" + Integer.toString(tokens.intValue()));
+                Node initializer = new DictionaryEntryCall(variableIdentifier , key);
+                advance();
+                return initializer;
+            } else {
+                throw new ParseException("Expected integer index: " + currentCode());
             }
+        } else if (currentCode() == TokenCode.STRING_LITERAL) {
+            key = new IdentifierNode(tokens.stringValue());
+            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
+            advance();
+            return initializer;
+        } else if (currentCode() == TokenCode.LENGTH) {
+            key = new IdentifierNode("LENGTH");
+            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
+            advance();
+            return initializer;
+        }
+        throw new ParseException("Unexpected token: " + currentCode());
+    }
 
-            BlockNode thenBody = new BlockNode(thenBodyStatements, "Body");
+    private boolean isOperator(TokenCode code) {
+        return code == TokenCode.PLUS || code == TokenCode.MINUS || code == TokenCode.MULTIPLY || code == TokenCode.DIVIDE;
+    }
 
-            if (getCurrentToken().code == TokenCode.END) {
-                advance(); // Пропускаем 'end'
+    private BlockNode parseList() {
+        List<Node> elements = new ArrayList<>();
+        if (currentCode() == TokenCode.LBRACKET) {
+            advance(); // Пропускаем '['
+            // Разбор элементов списка до закрывающей скобки
+            while (currentCode() != TokenCode.RBRACKET) {
+                elements.add(parseExpression()); // Добавляем элемент списка
+                if (currentCode() == TokenCode.COMMA) {
+                    advance(); // Пропускаем запятую
+                } else if (currentCode() != TokenCode.RBRACKET) {
+                    throw new ParseException("Expected ',' or ']', found: " + getCurrentToken());
+                }
             }
+            advance(); // Пропускаем ']'
+            this.len = elements.size();
+            BlockNode elem = new BlockNode(elements, "elements");
+            return elem;
 
-            return new WhileLoopNode(condition, thenBody);
+        } else {
+            throw new ParseException("Expected '[', found: " + getCurrentToken());
         }
-
-        throw new ParseException("Expected 'then', found: " + getCurrentToken().code);
     }
 
-    private IfNode parseIf() {
-        advance(); // Пропускаем if
 
-        Node condition = parseCondition();
+    private Node parseStatement() {
+        if (currentCode() == TokenCode.SEMICOLON) {
+            advance();
+        }
+        if (currentCode() == TokenCode.IF) {
+            return parseIf();
+        } else if (currentCode() == TokenCode.WHILE) {
+            return parseWhile();
+        } else if (currentCode() == TokenCode.FOR) {
+            return parseFor();
+        } else if (currentCode() == TokenCode.PRINT) {
+            return parsePrint();
+        } else if (currentCode() == TokenCode.VAR) {
+            return parseDeclaration();
+        } else if (currentCode() == TokenCode.IDENTIFIER) {
+            return parseDeclaration();
+        }  else if (currentCode() == TokenCode.RETURN) {
+//            if (this.scope != "global") {
 
-        if (getCurrentToken().code == TokenCode.THEN) {
-            advance(); // Пропускаем then
+            return parseReturn();
 
-            List<Node> thenBodyStatements = new ArrayList<>();
-            while (getCurrentToken().code != TokenCode.END && getCurrentToken().code != TokenCode.ELSE) {
-                if (getCurrentToken().code == TokenCode.SEMICOLON) {
-                    advance();
-                } else {
-                    thenBodyStatements.add(parseStatement());
-                }
-            }
+//            }
+//            throw new ParseException("ERROR in line: " + getCurrentToken().span.lineNum + ". Return must be used inside the function.");
+        } else if (currentCode() == TokenCode.FUNC) {
+            return parseFunction();
+        } else if (currentCode() == TokenCode.READ_REAL ||
+                currentCode() == TokenCode.READ_INT ||
+                currentCode() == TokenCode.READ_STRING) {
+            return parsePrimary();
+        } else if (currentCode() == TokenCode.INTEGER_LITERAL ||
+                currentCode() == TokenCode.REAL_LITERAL ||
+                currentCode() == TokenCode.BOOLEAN_LITERAL ||
+                currentCode() == TokenCode.STRING_LITERAL) {
+            return parseExpression();
+        }
+        this.symbolTable.traceTable();
+        throw new ParseException("Unexpected statement type: " + currentCode() + " in line " + currentLine());
+    }
+}
 
-            BlockNode thenBody = new BlockNode(thenBodyStatements, "Body");
 
-            if (getCurrentToken().code == TokenCode.END) {
-                advance(); // Пропускаем end
-            }
+class Variable {
+    private String name;
+    private Object value;
+    private String scope;
+    private Environment closureEnv;
 
-            List<Node> elseBodyStatements = new ArrayList<>();
-            BlockNode elseBody = null;
-            if (getCurrentToken().code == TokenCode.ELSE) {
-                advance(); // Пропускаем else
-                while (getCurrentToken().code != TokenCode.END) {
-                    if (getCurrentToken().code == TokenCode.SEMICOLON) {
-                        advance();
-                    } else {
-                        elseBodyStatements.add(parseStatement());
-                    }
-                }
-                elseBody = new BlockNode(elseBodyStatements, "Else");
+    public Variable(String name, Object value, String scope) {
+        this.name = name;
+        this.value = value;
+        this.scope = scope;
+        this.closureEnv = null;
+    }
 
-                if (getCurrentToken().code == TokenCode.END) {
-                    advance(); // Пропускаем end
-                } else {
-                    throw new ParseException("Expected 'end', found: " + getCurrentToken());
-                }
-            }
+    public Variable(String name, Object value, String scope, Environment closureEnv) {
+        this.name = name;
+        this.value = value;
+        this.scope = scope;
+        this.closureEnv = closureEnv;  // Инициализация окружения замыкания
+    }
 
-            return new IfNode(condition, thenBody, elseBody);
-        }
+    public Variable deepCopy() {
+        // Предполагаем, что value поддерживает клонирование или является неизменяемым (например, Integer, String)
+        Object copiedValue = this.value; // Если `value` нужно копировать глубже, добавьте дополнительную логику
+        return new Variable(this.name, copiedValue, this.scope);
+    }
 
-        throw new ParseException("Expected 'then', found: " + getCurrentToken().code);
+    public String getName() {
+        return name;
     }
 
-    // Разбор команды print
-    private PrintNode parsePrint() {
-        advance(); // Пропускаем 'print'
-        List<Node> expressions = new ArrayList<>(); // Список для хранения выражений
+    public Environment getClosureEnv() {
+        return this.closureEnv;
+    }
 
-        // Парсим первое выражение
-        expressions.add(parseLogicalExpression());
+    public Object getValue() {
+        return value;
+    }
 
-        // Продолжаем разбирать, пока есть запятые
-        while (getCurrentToken().code == TokenCode.COMMA) {
-            advance(); // Пропускаем запятую
-            expressions.add(parseLogicalExpression()); // Парсим следующее выражение
-        }
+    public void setValue(Object value) {
+        this.value = value;
+    }
 
-        // Ожидаем ';' в конце
-        if (getCurrentToken().code != TokenCode.SEMICOLON) {
-            throw new ParseException("Expected ';' at the end of print statement, found: " + getCurrentToken().code);
-        }
-        advance(); // Пропускаем ';'
+    public String getScope() {
+        return scope;
+    }
 
-        BlockNode exp = new BlockNode(expressions, "expressions");
-        return new PrintNode(exp); // Возвращаем узел Print с выражениями
+    @Override
+    public String toString() {
+        return "Variable{name='" + name + "', value=" + value + ", scope='" + scope + "', cloEnvscope='" + closureEnv + "'}";
     }
+}
 
-    // Разбор команды print
-    private ReturnNode parseReturn() {
-        advance(); // Пропускаем 'return'
-        Node expression = parseExpression();
-        if (getCurrentToken().code == TokenCode.SEMICOLON){
-            advance();
-        }
+class Environment {
+    private String name;
+    private String scopeType;
+    // Раскладка слотов для каждой области видимости (общая для всех копий окружения)
+    private final Map<String, FrameLayout> layouts;
+    // Кадры областей, для которых нет активного вызова (есть только у корневого окружения)
+    private final Map<String, Frame> frames;
+    // Запись активации: окружение вызова функции callScope со своим кадром и ссылкой на вызвавшее
+    private final Environment parent;
+    private final String callScope;
+    private final Frame callFrame;
+    private Frame globalFrame;
+    private Frame currentFrame;
+    // Вывод программы, общий для всех вызовов
+    private final ProgramOutput output;
+    // Сигнал return: ставит ReturnNode, циклы по операторам на нем останавливаются, снимает FunctionCall.
+    // Для хвостового вызова самой функции вместо значения - новые аргументы
+    private boolean returning;
+    private boolean tailCall;
+    private Object returnValue;
 
-        boolean itLambdaFunction = false;
-        int rewindNum = 0;
-        long initLineNum = getCurrentToken().span.lineNum;
-        while (getCurrentToken().span.lineNum == initLineNum || getCurrentToken().span.lineNum == initLineNum - 1) {
-            rewind();
-            rewindNum += 1;
-            if (getCurrentToken().code == TokenCode.IMPLICATION) {
-                itLambdaFunction = true;
-                break;
-            }
-        }
+    public Environment(String name, String scopeType) {
+        this(name, scopeType, new HashMap<>());
+    }
 
-        for (int i = 0; i < rewindNum; i++) {
-            advance();
-        }
-        System.out.println(itLambdaFunction);
-        if (!itLambdaFunction) {
-            while (getCurrentToken().code != TokenCode.SEMICOLON && getCurrentToken().code != TokenCode.END && getCurrentToken().code != TokenCode.ELSE) {
-                advance();
-            }
-        }
+    public Environment(String name, String scopeType, Map<String, FrameLayout> layouts) {
+        this.name = name;
+        this.layouts = layouts;
+        this.frames = new LinkedHashMap<>();
+        this.parent = null;
+        this.callScope = null;
+        this.callFrame = null;
+        this.output = new ProgramOutput(System.out);
+        this.globalFrame = frameFor("global");
+        this.scopeType = scopeType;
+        this.currentFrame = frameFor(scopeType);
+    }
 
-        return new ReturnNode(expression);
+    private Environment(Environment parent, String callScope) {
+        this.name = parent.name;
+        this.layouts = parent.layouts;
+        this.frames = null;
+        this.parent = parent;
+        this.callScope = callScope;
+        // Новый кадр начинается с переменных области вызывающего (параметры уже объявлены)
+        this.callFrame = parent.frameFor(callScope).copy();
+        this.globalFrame = parent.globalFrame;
+        this.output = parent.output;
+        this.scopeType = parent.scopeType;
+        this.currentFrame = frameFor(scopeType);
     }
 
-    private Node parseIdentifier() {
-        if (getCurrentToken().code == TokenCode.IDENTIFIER) {
-            Identifier identifierToken = (Identifier) getCurrentToken();
-            String identifierName = identifierToken.identifier;
-//            if ()
-            advance();
+    // Окружение для вызова функции: стоимость пропорциональна числу ее локальных переменных
+    public Environment enterCall(String funcName) {
+        return new Environment(this, funcName);
+    }
 
-            return new IdentifierNode(identifierName);
-        }
+    // Хвостовой вызов продолжает в том же окружении, но локальные переменные - как у нового вызова
+    public void restartCall() {
+        callFrame.reset(parent.frameFor(callScope));
+    }
 
-        throw new ParseException("Expected identifier, found: " + getCurrentToken().code);
+    public String getName() {
+        return name;
     }
 
+    public String getScopeType() {
+        return scopeType;
+    }
 
-    private ExpressionNode parseTypeCheck() {
-        Node identifier = parseIdentifier();
+    public ProgramOutput getOutput() {
+        return output;
+    }
 
-        if (getCurrentToken().code == TokenCode.IS) {
-            advance(); // Пропускаем 'is'
-            Node typeNode = parseType();
-            return new ExpressionNode(identifier, TokenCode.IS, typeNode);
-        } else if (getCurrentToken().code == TokenCode.IN) {
-            advance();
-            Node typeNode = parseType();
-            return new ExpressionNode(identifier, TokenCode.IN, typeNode);
-        }
+    public void signalReturn(Object value) {
+        returning = true;
+        returnValue = value;
+    }
 
-        throw new ParseException("Expected 'is', found: " + getCurrentToken());
+    public void signalTailCall(Object[] arguments) {
+        returning = true;
+        tailCall = true;
+        returnValue = arguments;
     }
 
+    public boolean isReturning() {
+        return returning;
+    }
 
-    private Node parseType() {
-        switch (getCurrentToken().code) {
-            case INT:
-                advance(); // Пропускаем 'int'
-                return new LiteralNode("int", "int");
-            case REAL:
-                advance(); // Пропускаем 'real'
-                return new LiteralNode("real", "real");
-            case STRING:
-                advance(); // Пропускаем 'string'
-                return new LiteralNode("string", "string");
-            case TUPLE_LITERAL:
-                advance(); // Пропускаем 'tuple'
-                return new LiteralNode("tuple", "tuple");
-            case ARRAY_LITERAL:
-                advance(); // Пропускаем 'array'
-                return new LiteralNode("array", "array");
-            case IDENTIFIER:
-                advance(); // Пропускаем 'identifier'
-                return new LiteralNode("identifier", "identifier");
-            case EMPTY:
-                advance(); // Пропускаем 'empty'
-                return new LiteralNode("empty", "empty");
-            default:
-                throw new ParseException("Expected a type, found: " + getCurrentToken().code);
-        }
+    public boolean isTailCall() {
+        return tailCall;
     }
 
+    public Object takeReturnValue() {
+        Object value = returnValue;
+        returning = false;
+        tailCall = false;
+        returnValue = null;
+        return value;
+    }
 
-    private Node parseCondition() {
-        Node comparison = null;
-        boolean flag = true;
-        if (getCurrentToken().code == TokenCode.IDENTIFIER) {
-            advance(); // Пропускаем идентификатор
-            if (getCurrentToken().code == TokenCode.IS) {
-                rewind(); // Возвращаемся назад
-                comparison = parseTypeCheck();
-                flag = false;
-            } else if (getCurrentToken().code == TokenCode.IN) {
-                rewind(); // Возвращаемся назад
-                comparison = parseTypeCheck();
-                flag = false;
-            }else {
-                rewind();
+    public void setScopeType(String type) {
+        scopeType = type;
+        currentFrame = frameFor(type);
+    }
+
+    private Frame frameFor(String scope) {
+        if (globalFrame != null && scope.equals("global")) {
+            return globalFrame;
+        }
+        Environment environment = this;
+        while (environment.parent != null) {
+            if (environment.callScope.equals(scope)) {
+                return environment.callFrame;
             }
+            environment = environment.parent;
         }
-
-        if (flag) {
-            comparison = parseComparison();
+        Frame frame = environment.frames.get(scope);
+        if (frame == null) {
+            frame = new Frame(layouts.computeIfAbsent(scope, FrameLayout::new));
+            environment.frames.put(scope, frame);
         }
+        return frame;
+    }
 
-        while (getCurrentToken().code == TokenCode.AND || getCurrentToken().code == TokenCode.OR || getCurrentToken().code == TokenCode.XOR || getCurrentToken().code == TokenCode.PLUS || getCurrentToken().code == TokenCode.MULTIPLY || getCurrentToken().code == TokenCode.MINUS || getCurrentToken().code == TokenCode.DIVIDE || getCurrentToken().code == TokenCode.GREATER || getCurrentToken().code == TokenCode.LESS) {
-            TokenCode logicalOperator = getCurrentToken().code;
-            advance(); // Пропускаем логический оператор
-            Node rightOperand = parseComparison();
-            comparison = new ExpressionNode(comparison, logicalOperator, rightOperand);
+    // Кадр области без создания нового
+    private Frame findFrame(String scope) {
+        if (scope.equals("global")) {
+            return globalFrame;
         }
+        Environment environment = this;
+        while (environment.parent != null) {
+            if (environment.callScope.equals(scope)) {
+                return environment.callFrame;
+            }
+            environment = environment.parent;
+        }
+        return environment.frames.get(scope);
+    }
 
-        return comparison;
+    // Все видимые области: корневые и области активных вызовов
+    private Set<String> visibleScopes() {
+        Set<String> scopes = new LinkedHashSet<>();
+        Environment environment = this;
+        while (environment.parent != null) {
+            scopes.add(environment.callScope);
+            environment = environment.parent;
+        }
+        scopes.addAll(environment.frames.keySet());
+        return scopes;
     }
 
+    // Кадр, в который пишут addVariable/updateVariable: внутри функции всегда ее собственный
+    private Frame targetFrame(String scopeType) {
+        if (this.scopeType != "global") {
+            return currentFrame;
+        }
+        return frameFor(scopeType);
+    }
 
-    private Node parseComparison() {
-        // Проверяем наличие 'not'
-        if (getCurrentToken().code == TokenCode.NOT) {
-            advance(); // Пропускаем 'not'
+    public void addVariable(String name, Object value, String scopeType) {
+        Frame frame = targetFrame(scopeType);
+        frame.set(frame.layout.declare(name), value);
+    }
 
-            if (getCurrentToken().code == TokenCode.LPAREN) {
-                advance(); // Пропускаем '('
-                Node innerComparison = parseComparison();
+    public void addVariable(String name, Object value, String scopeType, Environment closureEnv) {
+        addVariable(name, value, scopeType);
+    }
 
-                if (getCurrentToken().code != TokenCode.RPAREN) {
-                    throw new ParseException("Expected ')', found: " + getCurrentToken());
-                }
-                advance(); // Пропускаем ')'
-                return new ExpressionNode(null, TokenCode.NOT, innerComparison);
-            } else {
-                System.out.println(getCurrentToken().code);
-                Node innerComparison = parseComparisonWithoutLogicalOperators();
-                return new ExpressionNode(null, TokenCode.NOT, innerComparison);
-            }
+    // Запись по слоту, который назначил Resolver
+    public void addVariable(IdentifierNode identifier, Object value, String scopeType) {
+        Frame frame = targetFrame(scopeType);
+        if (identifier.getDepth() == 0 && frame.layout == identifier.getLayout()) {
+            frame.set(identifier.getSlot(), value);
+            return;
         }
-        if (getCurrentToken().code == TokenCode.LPAREN) {
-            advance(); // Пропускаем '('
-            Node innerComparison = parseLogicalExpression();
-            if (getCurrentToken().code != TokenCode.RPAREN) {
-                throw new ParseException("Expected ')', found: " + getCurrentToken());
-            }
-            advance(); // Пропускаем ')'
-            System.out.println(innerComparison);
-            return innerComparison;
+        frame.set(frame.layout.declare(identifier.getId()), value);
+    }
+
+    public void removeVariable(String name, String scopeType) {
+        // Если текущая область не "глобальная", используем текущую область
+        if (!this.scopeType.equals("global")) {
+            scopeType = this.scopeType;
         }
-        Node leftOperand = parseExpression();
 
+        Frame frame = findFrame(scopeType);
+        int slot = frame == null ? -1 : frame.layout.slotOf(name);
+        if (slot < 0 || !frame.isDefined(slot)) {
+            throw new RuntimeException("Переменная " + name + " не найдена в области " + scopeType + ".");
+        }
+        frame.set(slot, Frame.UNDEFINED);
+    }
 
-        TokenCode operator = getCurrentToken().code;
-//        if (operator == TokenCode.DOT) {
-//            advance();
-//            TokenCode key = getCurrentToken().code;
-//            IdentifierNode keyIdentifier = new IdentifierNode(key.name());
-//            leftOperand = new DictionaryEntryNode(leftOperand, keyIdentifier);
-//        }
-        if (isComparisonOperator(operator)) {
-            advance();
-            Node rightOperand = parseExpression();
-            System.out.println("-1");
-            System.out.println(rightOperand);
-            System.out.println("-2");
 
-//            System.out.println(((LiteralNode) leftOperand).getValue());
-            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
+    public void updateVariable(String name, Object value, String scopeType) {
+        if (this.scopeType != "global") {
+            scopeType = this.scopeType;
         }
+        Frame frame = findFrame(scopeType);
+        int slot = frame == null ? -1 : frame.layout.slotOf(name);
+        if (slot < 0 || !frame.isDefined(slot)) {
+            traceVariables();
+            throw new RuntimeException("Переменная " + name + " не найдена в области " + scopeType + ".");
+        }
+        frame.set(slot, value);
+    }
 
-
-        while (getCurrentToken().code == TokenCode.AND || getCurrentToken().code == TokenCode.OR || getCurrentToken().code == TokenCode.XOR || getCurrentToken().code == TokenCode.PLUS || getCurrentToken().code == TokenCode.MULTIPLY || getCurrentToken().code == TokenCode.MINUS || getCurrentToken().code == TokenCode.DIVIDE || getCurrentToken().code == TokenCode.GREATER || getCurrentToken().code == TokenCode.LESS) {
-            TokenCode logicalOperator = getCurrentToken().code;
-            advance(); // Пропускаем логический оператор
-            Node rightOperand = parseComparison();
-            leftOperand = new ExpressionNode(leftOperand, logicalOperator, rightOperand);
+    public boolean haveVariable(String name, String scopeType) {
+        if (this.scopeType != "global") {
+            scopeType = this.scopeType;
         }
+        return haveVariableReal(name, scopeType);
+    }
 
-        return leftOperand;
+    public boolean haveVariableReal(String name, String scopeType) {
+        Frame frame = findFrame(scopeType);
+        if (frame == null) {
+            return false;
+        }
+        int slot = frame.layout.slotOf(name);
+        return slot >= 0 && frame.isDefined(slot);
     }
 
+    public Variable getVariable(String name, String scopeType) {
+        if (this.scopeType != "global") {
+            scopeType = this.scopeType;
+        }
 
+        if (Objects.equals(name, scopeType)) {
+            scopeType = "global";
+        }
 
-    private Node parseComparisonWithoutLogicalOperators() {
-        Node leftOperand = parseExpression();
-        //TODO: Попробуй сделать isComparisonOperator для всех операторов, мб отработает
-        TokenCode operator = getCurrentToken().code;
-        if (isComparisonOperator(operator)) {
-            advance(); // Пропускаем оператор
-            Node rightOperand = parseExpression();
-            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
+        Frame frame = findFrame(scopeType);
+        int slot = frame == null ? -1 : frame.layout.slotOf(name);
+        if (slot < 0 || !frame.isDefined(slot)) {
+            traceVariables();
+            throw new RuntimeException("Переменная " + name + " не найдена в области " + scopeType + ".");
         }
+        return new Variable(name, frame.get(slot), scopeType);
+    }
 
-        return leftOperand;
+    // Чтение по слоту, который назначил Resolver; без разрешения - обычный поиск по имени
+    public Object getValue(IdentifierNode identifier) {
+        int slot = identifier.getSlot();
+        if (slot >= 0) {
+            Frame frame = identifier.getDepth() == 0 ? currentFrame : globalFrame;
+            if (frame.layout == identifier.getLayout()) {
+                Object value = frame.get(slot);
+                if (value != Frame.UNDEFINED) {
+                    return value;
+                }
+            }
+        }
+        return getVariable(identifier.getName(), "global").getValue();
     }
 
 
+    public Variable getVariableRecursive(String name, String currentScope) {
+        // Проверяем переменную в текущей области
+        Frame frame = findFrame(currentScope);
+        if (frame == null) {
+            throw new RuntimeException("Область " + currentScope + " не найдена.");
+        }
+        int slot = frame.layout.slotOf(name);
+        if (slot >= 0 && frame.isDefined(slot)) {
+            return new Variable(name, frame.get(slot), currentScope);
+        }
 
-    private Node parseFullExpression() {
-        Node leftOperand = parseExpression();
-        //TODO: Попробуй сделать isComparisonOperator для всех операторов, мб отработает
-        TokenCode operator = getCurrentToken().code;
-        if (isComparisonOperatorFull(operator)) {
-            advance(); // Пропускаем оператор
-            Node rightOperand = parseExpression();
-            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
+        // Родительская область - та, в которой объявлена функция currentScope
+        String parentScopeVars = null;
+        for (String scope : visibleScopes()) {
+            Frame scopeFrame = findFrame(scope);
+            int functionSlot = scopeFrame.layout.slotOf(currentScope);
+            if (functionSlot >= 0 && scopeFrame.isDefined(functionSlot)) {
+                parentScopeVars = scope;
+            }
+        }
+        if (parentScopeVars != null) {
+            // Рекурсивно ищем переменную в родительской области
+            return getVariableRecursive(name, parentScopeVars);
         }
 
-        return leftOperand;
+        // Если переменная не найдена в родительских областях
+        traceVariables();
+        throw new RuntimeException("Переменная " + name + " не найдена в области " + currentScope + ".");
     }
 
-    private Node parseLogicalExpression() {
-        Node leftOperand = parseComparison();
 
-        while (getCurrentToken().code == TokenCode.AND || getCurrentToken().code == TokenCode.OR || getCurrentToken().code == TokenCode.XOR || getCurrentToken().code == TokenCode.PLUS || getCurrentToken().code == TokenCode.MULTIPLY || getCurrentToken().code == TokenCode.MINUS || getCurrentToken().code == TokenCode.DIVIDE || getCurrentToken().code == TokenCode.GREATER || getCurrentToken().code == TokenCode.LESS) {
-            TokenCode operator = getCurrentToken().code;
-            advance(); // Пропускаем логический оператор
-            Node rightOperand = parseComparison();
-            leftOperand = new ExpressionNode(leftOperand, operator, rightOperand);
+    private String determineType(Object value) {
+        if (value instanceof Integer) {
+            return "int";
+        } else if (value instanceof Double || value instanceof Float) {
+            return "real";
+        } else if (value instanceof Boolean) {
+            return "boolean";
+        } else if (value instanceof String) {
+            return "string";
         }
-
-        return leftOperand;
+        throw new RuntimeException("Unsupported value type: " + value.getClass());
     }
 
-    // Парсер для словаря
-    private BlockNode parseDictionary() {
-        advance(); // Пропускаем '{'
-
-        List<Node> entries = new ArrayList<>();
-
-        // Если словарь пустой, сразу закрываем его
-        if (getCurrentToken().code != TokenCode.RBRACE) {
-            Node key = parseIdentifier(); // Разбираем ключ
-            if (getCurrentToken().code != TokenCode.ASSIGN) {
-                throw new ParseException("Expected ':', found: " + getCurrentToken().code);
-            }
-
-            advance(); // Пропускаем ':'
-            boolean flag = false;
-            String last = "";
-            if (getCurrentToken().code == TokenCode.LBRACE) {
-                last = this.scope;
-                flag = true;
-                this.scope = ((IdentifierNode) key).getName();
-            }
-            Node value = parseExpression(); // Разбираем значение
-            this.symbolTable.addSymbol(((IdentifierNode) key).getName() + "_" + this.scope, "dict_key", 0, this.scope, 0, null);
-            entries.add(new DictionaryEntryNode(key, value)); // Добавляем пару в список
-            if (flag) {
-                this.scope = last;
-            }
-            // Пока есть запятые, продолжаем разбор пар
-            int indexNum = 0;
-            while (getCurrentToken().code == TokenCode.COMMA) {
-                indexNum++;
-                advance(); // Пропускаем запятую
-                key = parseIdentifier(); // Разбираем следующий ключ
-
-                if (getCurrentToken().code == TokenCode.ASSIGN) {
-                    advance(); // Пропускаем ':'
-                    flag = false;
-                    last = "";
-                    if (getCurrentToken().code == TokenCode.LBRACE) {
-                        last = this.scope;
-                        flag = true;
-                        this.scope = ((IdentifierNode) key).getName();
-                    }
-                    value = parseExpression(); // Разбираем значение
-                    if (flag) {
-                        this.scope = last;
-                    }
-                    entries.add(new DictionaryEntryNode(key, value)); // Добавляем следующую пару
-                    this.symbolTable.addSymbol(((IdentifierNode) key).getName() + "_" + this.scope, "dict_key", 0, this.scope, indexNum, null);
-                } else if (getCurrentToken().code == TokenCode.COMMA || getCurrentToken().code == TokenCode.RBRACE) {
-                    entries.add(new DictionaryEntryNode(key, null)); // Добавляем следующую пару
-                    this.symbolTable.addSymbol(((IdentifierNode) key).getName() + "_" + this.scope, "dict_key", 0, this.scope, indexNum, null);
-                } else {
-                    throw new ParseException("Expected ':=', found: " + getCurrentToken().code);
+    public Map<String, Variable> getVariablesInScope(String scopeType) {
+        Map<String, Variable> variables = new LinkedHashMap<>();
+        Frame frame = findFrame(scopeType);
+        if (frame != null) {
+            for (int i = 0; i < frame.layout.size(); i++) {
+                if (frame.isDefined(i)) {
+                    String variableName = frame.layout.nameAt(i);
+                    variables.put(variableName, new Variable(variableName, frame.get(i), scopeType));
                 }
             }
+        }
+        return variables;
+    }
+
+    public void printAllVariables() {
+        System.out.print(describeVariables());
+    }
 
+    // Дамп переменных в трассировку; без включенной трассировки ничего не собирается
+    public void traceVariables() {
+        if (Trace.on(Trace.Phase.INTERPRETER, Trace.Level.TRACE)) {
+            Trace.log(Trace.Phase.INTERPRETER, Trace.Level.TRACE, describeVariables());
         }
+    }
+
+    public String describeVariables() {
+        StringBuilder out = new StringBuilder();
+        out.append("Environment: ").append(name).append('\n');
+        out.append("Scope Type: ").append(scopeType).append('\n');
+        out.append("Scoped Variables:").append('\n');
+
+        for (String scope : visibleScopes()) {
+            Map<String, Variable> variables = getVariablesInScope(scope);
+            if (variables.isEmpty()) {
+                continue;
+            }
+            out.append("  Scope: ").append(scope).append('\n');
 
-        if (getCurrentToken().code != TokenCode.RBRACE) {
-            throw new ParseException("Expected '}', found: " + getCurrentToken().code);
+            for (Variable variable : variables.values()) {
+                out.append("    ").append(variable).append('\n');
+            }
         }
+        return out.toString();
+    }
 
-        advance(); // Пропускаем '}'
-        this.len = entries.size();
-        return new BlockNode(entries, "entries");
+    // После вызова переносим функции, объявленные внутри вызванной функции, в ее область
+    public void syncFunctions(Environment callEnv) {
+        String scopeType = callEnv.callScope;
+        for (Variable variable : callEnv.getVariablesInScope(scopeType).values()) {
+            String functionName = null;
+            if (variable.getValue() instanceof BlockNode) {
+                functionName = ((IdentifierNode) (((BlockNode) variable.getValue()).getChildren().get(0).getChildren().get(0))).getName();
+            }
+
+            if (functionName != null && !functionName.equals(scopeType) && !this.haveVariableReal(functionName, scopeType)) {
+                // Параметры и переменные вложенной функции лежат в общем кадре ее области
+                this.addVariable(functionName, variable.getValue(), scopeType);
+            }
+        }
     }
+}
 
 
+// Имена переменных одной области видимости и их номера слотов
+class FrameLayout {
+    private final String scope;
+    // Слоты по номеру имени в Names
+    private final IntMap<Integer> slots = new IntMap<>();
+    private final List<String> names = new ArrayList<>();
 
+    public FrameLayout(String scope) {
+        this.scope = scope;
+    }
 
-    private boolean isComparisonOperator(TokenCode code) {
-        return code == TokenCode.GREATER ||
-                code == TokenCode.LESS ||
-                code == TokenCode.GREATER_EQUAL ||
-                code == TokenCode.LESS_EQUAL ||
-                code == TokenCode.EQUAL;
+    public String getScope() {
+        return scope;
     }
 
+    public int declare(String name) {
+        return declare(Names.intern(name));
+    }
 
-    private boolean isComparisonOperatorFull(TokenCode code) {
-        return code == TokenCode.GREATER ||
-                code == TokenCode.LESS ||
-                code == TokenCode.GREATER_EQUAL ||
-                code == TokenCode.LESS_EQUAL ||
-                code == TokenCode.EQUAL ||
-                code == TokenCode.XOR ||
-                code == TokenCode.OR ||
-                code == TokenCode.AND;
+    public int declare(int id) {
+        Integer slot = slots.get(id);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(id, slot);
+            names.add(Names.name(id));
+        }
+        return slot;
     }
 
+    public int slotOf(String name) {
+        return slotOf(Names.intern(name));
+    }
 
-    private Node parseExpression() {
-        return parseExpressionWithPrecedence(0);
+    public int slotOf(int id) {
+        Integer slot = slots.get(id);
+        return slot == null ? -1 : slot;
     }
 
-    private Node parseExpressionWithPrecedence(int precedence) {
-        Node left = parsePrimary();
+    public String nameAt(int slot) {
+        return names.get(slot);
+    }
+
+    public int size() {
+        return names.size();
+    }
+}
 
+// Значения переменных области видимости; UNDEFINED - переменная еще не объявлена
+class Frame {
+    static final Object UNDEFINED = new Object();
 
-        while (isOperator(getCurrentToken().code) && precedence < getPrecedence(getCurrentToken().code)) {
-            Token operator = getCurrentToken();
-            advance(); // Пропускаем оператор
+    final FrameLayout layout;
+    private Object[] values;
 
-            int operatorPrecedence = getPrecedence(operator.code);
-            Node right = parseExpressionWithPrecedence(operatorPrecedence);
+    public Frame(FrameLayout layout) {
+        this.layout = layout;
+        this.values = new Object[Math.max(layout.size(), 4)];
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    private Frame(FrameLayout layout, Object[] values) {
+        this.layout = layout;
+        this.values = values;
+    }
+
+    public Object get(int slot) {
+        return slot < values.length ? values[slot] : UNDEFINED;
+    }
+
+    public boolean isDefined(int slot) {
+        return get(slot) != UNDEFINED;
+    }
 
-            left = new ExpressionNode(left, operator.code, right);
+    public void set(int slot, Object value) {
+        if (slot >= values.length) {
+            // Раскладка могла вырасти после создания кадра
+            int oldLength = values.length;
+            values = Arrays.copyOf(values, Math.max(layout.size(), slot + 1));
+            Arrays.fill(values, oldLength, values.length, UNDEFINED);
         }
+        values[slot] = value;
+    }
 
-        if (getCurrentToken().code == TokenCode.ASSIGN) {
-            advance(); // Пропускаем ':=' или '='
+    public Frame copy() {
+        return new Frame(layout, values.clone());
+    }
 
-            Node right = parseExpression();
+    // Значения как у нового кадра, скопированного из template
+    public void reset(Frame template) {
+        values = template.values.clone();
+    }
+}
 
-            if (left instanceof IdentifierNode) {
-                return new VariableDeclarationNode(((IdentifierNode) left), (ExpressionNode) right, null);
-            } else {
-                throw new ParseException("Left-hand side of assignment must be an identifier");
-            }
+// Назначает объявлениям слоты в кадре своей области, а идентификаторам - глубину и слот.
+// Области те же, что у Environment: глобальная и по одной на каждую функцию.
+// Обходит плоское дерево от Optimizer; глубину, слот и хвостовые вызовы записывает в исходные узлы
+class Resolver {
+    private final Map<String, FrameLayout> layouts = new HashMap<>();
+    private FlatAst ast;
+    private int scope = SymbolTable.GLOBAL;
+    // Число параметров функции scope
+    private int arity;
+
+    public Map<String, FrameLayout> resolve(FlatAst ast) {
+        this.ast = ast;
+        FrameLayout global = layout(SymbolTable.GLOBAL);
+        for (int child = ast.firstChild(0); child >= 0; child = ast.nextSibling(child)) {
+            declare(child, global);
+        }
+        for (int child = ast.firstChild(0); child >= 0; child = ast.nextSibling(child)) {
+            visit(child);
         }
+        return layouts;
+    }
 
-        return left;
+    private FrameLayout layout(int name) {
+        return layouts.computeIfAbsent(Names.name(name), FrameLayout::new);
     }
 
+    // Сначала собираем все объявления области, чтобы чтения получили слот независимо от порядка
+    private void declare(int node, FrameLayout layout) {
+        switch (ast.kind(node)) {
+            case FlatAst.EMPTY:
+                return;
+            case FlatAst.FUNCTION:
+                layout.declare(ast.payload(node));
+                return;
+            case FlatAst.VARIABLE:
+                // Без имени - присваивание элементу, с функцией - объявление функции
+                if (ast.payload(node) >= 0 && ast.kind(ast.firstChild(node)) != FlatAst.FUNCTION) {
+                    layout.declare(ast.payload(node));
+                }
+                break;
+            case FlatAst.FOR:
+                layout.declare(ast.payload(node));
+                break;
+            default:
+                break;
+        }
+        for (int child = ast.firstChild(node); child >= 0; child = ast.nextSibling(child)) {
+            declare(child, layout);
+        }
+    }
 
-    private int getPrecedence(TokenCode code) {
-        switch (code) {
-            case PLUS:
-            case MINUS:
-                return 1;
-            case MULTIPLY:
-            case DIVIDE:
-                return 2;
+    private void visit(int node) {
+        switch (ast.kind(node)) {
+            case FlatAst.EMPTY:
+                return;
+            case FlatAst.FUNCTION: {
+                int lastScope = scope;
+                int lastArity = arity;
+                scope = ast.payload(node);
+                FrameLayout layout = layout(scope);
+                // Заголовок: имя и блок параметров
+                int params = ast.child(ast.firstChild(node), 1);
+                for (int param = ast.firstChild(params); param >= 0; param = ast.nextSibling(param)) {
+                    layout.declare(ast.payload(param));
+                }
+                arity = ast.childCount(params);
+                int body = ast.child(node, 1);
+                declare(body, layout);
+                visit(body);
+                scope = lastScope;
+                arity = lastArity;
+                return;
+            }
+            case FlatAst.RETURN:
+                if (isSelfCall(ast.firstChild(node))) {
+                    ((ReturnNode) ast.node(node)).markTailCall();
+                }
+                break;
+            case FlatAst.IDENTIFIER:
+                resolveIdentifier(node);
+                return;
+            case FlatAst.VARIABLE:
+            case FlatAst.LIST:
+            case FlatAst.DICTIONARY:
+                if (ast.payload(node) >= 0) {
+                    resolveIdentifier(node);
+                }
+                break;
+            case FlatAst.FOR:
+                resolveIdentifier(node);
+                break;
             default:
-                return 0;
+                break;
+        }
+        for (int child = ast.firstChild(node); child >= 0; child = ast.nextSibling(child)) {
+            visit(child);
         }
     }
 
-    private Node parsePrimary() {
-        if (getCurrentToken().code == TokenCode.REAL_LITERAL) {
-            RealToken realToken = (RealToken) getCurrentToken();
-            advance();
-            return new LiteralNode(realToken.value, "real");
-        } else if (getCurrentToken().code == TokenCode.INTEGER_LITERAL) {
-            IntegerToken integerToken = (IntegerToken) getCurrentToken();
-            advance();
-            return new LiteralNode(integerToken.value, "int");
-        } else if (getCurrentToken().code == TokenCode.STRING_LITERAL) {
-            StringToken stringToken = (StringToken) getCurrentToken();
-            advance();
-            return new LiteralNode(stringToken.value, "string");
-        } else if (getCurrentToken().code == TokenCode.EMPTY) {
-//            StringToken stringToken = (StringToken) getCurrentToken();
-            advance();
-            return new LiteralNode("empty", "empty");
-        } else if (getCurrentToken().code == TokenCode.BOOLEAN_LITERAL) {
-            BooleanToken booleanToken = (BooleanToken) getCurrentToken();
-            advance();
-            return new LiteralNode(booleanToken.value, "boolean");
-        } else if (getCurrentToken().code == TokenCode.LBRACKET) {
-            BlockNode elem = parseList();
-            return new ListNode(elem, null);
+    // return f(...) внутри f: имя не перекрыто локальной переменной и число аргументов совпадает
+    private boolean isSelfCall(int expression) {
+        if (scope == SymbolTable.GLOBAL || ast.kind(expression) != FlatAst.CALL) {
+            return false;
         }
-        else if (getCurrentToken().code == TokenCode.LBRACE) {
-            BlockNode dictElem = parseDictionary();
-            return new DictionaryNode(dictElem, null);
-        } else if (getCurrentToken().code == TokenCode.READ_INT) {
-            advance();
-            if (getCurrentToken().code == TokenCode.LPAREN) {
-                advance();
-            }
-            if (getCurrentToken().code != TokenCode.RPAREN) {
-                System.out.println(getCurrentToken().code);
-                throw new ParseException("Expected ')', found: " + getCurrentToken().code);
-            }
+        int callee = ast.firstChild(expression);
+        return ast.kind(callee) == FlatAst.IDENTIFIER && ast.payload(callee) == scope
+                && layout(scope).slotOf(scope) < 0 && ast.childCount(ast.child(expression, 1)) == arity;
+    }
 
-            FunctionCall re = new FunctionCall(new IdentifierNode("Read INT"), null);
-            advance();
-            return re;
-        } else if (getCurrentToken().code == TokenCode.READ_STRING) {
-            advance();
-            if (getCurrentToken().code == TokenCode.LPAREN) {
-                advance();
+    private void resolveIdentifier(int node) {
+        IdentifierNode identifier = ast.identifier(node);
+        int name = ast.payload(node);
+        // Как в Environment.getVariable: имя самой функции ищется в глобальной области
+        if (scope != SymbolTable.GLOBAL && name == scope) {
+            FrameLayout global = layout(SymbolTable.GLOBAL);
+            int slot = global.slotOf(name);
+            if (slot >= 0) {
+                identifier.resolve(1, slot, global);
             }
+            return;
+        }
+        FrameLayout layout = layout(scope);
+        int slot = layout.slotOf(name);
+        if (slot >= 0) {
+            identifier.resolve(0, slot, layout);
+        }
+    }
+}
 
-            if (getCurrentToken().code != TokenCode.RPAREN) {
-                System.out.println(getCurrentToken().code);
-                throw new ParseException("Expected ')', found: " + getCurrentToken().code);
-            }
+class LexerException extends RuntimeException {
+    public LexerException(String message) {
+        super(message);
+    }
+}
 
-            FunctionCall re = new FunctionCall(new IdentifierNode("Read STRING"), null);
-            advance();
-            return re;
-        }else if (getCurrentToken().code == TokenCode.READ_REAL) {
-            advance();
-            if (getCurrentToken().code == TokenCode.LPAREN) {
-                advance();
-            }
+class Span {
+    public long lineNum;
+    public int posBegin, posEnd;
 
-            if (getCurrentToken().code != TokenCode.RPAREN) {
-                System.out.println(getCurrentToken().code);
-                throw new ParseException("Expected ')', found: " + getCurrentToken().code);
-            }
+    public Span(long lineNum, int posBegin, int posEnd) {
+        this.lineNum = lineNum;
+        this.posBegin = posBegin;
+        this.posEnd = posEnd;
+    }
 
-            FunctionCall re = new FunctionCall(new IdentifierNode("Read REAL"), null);
-            advance();
-            return re;
-        } else if (getCurrentToken().code == TokenCode.LPAREN) {
-            advance(); // Пропускаем '('
-            Node expression = parseExpression(); // Разбор выражения в скобках
-            if (getCurrentToken().code != TokenCode.RPAREN) {
-                throw new ParseException("Expected ')', found: " + getCurrentToken().code);
-            }
-            advance(); // Пропускаем ')'
-            return expression;
-        } else if (getCurrentToken().code == TokenCode.IDENTIFIER) {
-            Identifier identifierToken = (Identifier) getCurrentToken();
-//            System.out.println(identifierToken.identifier);
-//            System.out.println(identifierToken.identifier);
-//            this.symbolTable.printTable();
-//            System.out.println(identifierToken.identifier);
-//            System.out.println(identifierToken.identifier);
-            boolean funcFlag = false;
-            advance();
-            if (getCurrentToken().code == TokenCode.LPAREN) {
-                funcFlag = true;
-            }
-            rewind();
-//            if (program.isFunction(new IdentifierNode(identifierToken.identifier)) != null) {
-            if (this.symbolTable.hasFunctionWithName(identifierToken.identifier) || funcFlag) {
-                System.out.println("Find");
-                List<Node> parameters = new ArrayList<>();
-                System.out.println(identifierToken.identifier + "_" + this.scope);
-                if (!Objects.equals(identifierToken.identifier, this.scope)) {
-                    this.symbolTable.addNumUse(identifierToken.identifier + "_" + this.scope);
-                }
-                advance();
-                if (getCurrentToken().code == TokenCode.LPAREN) {
-                    advance();
-                } else {
-                    IdentifierNode re = new IdentifierNode(identifierToken.identifier);
-//                    advance();
-                    return re;
-                }
-                if (getCurrentToken().code != TokenCode.RPAREN) {
-                    Node ne = parseCondition();
-                    System.out.println(ne);
-                    parameters.add(ne);
+    public int getPosBegin() {
+        return posBegin + 1;
+    }
 
-                    while (getCurrentToken().code == TokenCode.COMMA) {
-                        advance(); // Пропускаем запятую
-                        parameters.add(parseCondition());
-                    }
-                }
+    public int getPosEnd() {
+        return posEnd + 1;
+    }
+}
+
+class Token {
+    protected Span span;        // диапазон токена
+    protected TokenCode code;   // код токена (из TokenCode)
 
 
-                BlockNode param = new BlockNode(parameters, "param");
-                System.out.println("getCurrentToken().code " + getCurrentToken().code);
-                if (getCurrentToken().code != TokenCode.RPAREN) {
-                    throw new ParseException("Expected ')', found: " + getCurrentToken().code);
-                }
+    public Token(TokenCode code, Span span) {
+        this.code = code;
+        this.span = span;
+    }
 
-                FunctionCall re = new FunctionCall(new IdentifierNode(identifierToken.identifier), param);
 
-                advance();
-                return re;
-//            } else if (program.isVariable(new IdentifierNode(identifierToken.identifier)) != null) {
-            } else if (this.symbolTable.isVariableAccessible(identifierToken.identifier, this.scope) != null) {
-                advance();
+    public void print() {
+        System.out.print(describe() + " ");
+    }
 
-                this.symbolTable.addNumUse(identifierToken.identifier + "_" + this.symbolTable.isVariableAccessible(identifierToken.identifier, this.scope));
-                if (getCurrentToken().code == TokenCode.DOT) {
-                    IdentifierNode variableIdentifier = new IdentifierNode(identifierToken.identifier);
-                    advance();  // Переходим к следующему токену
-                    Node initializer = getEntry(variableIdentifier);  // Получаем начальный узел
+    public String describe() {
+        return String.valueOf(code);
+    }
 
-                    String index = ((IdentifierNode) ((DictionaryEntryCall) initializer).getValue()).getName();
-                    String indexName = null;
+    public void fullPrint() {
+        System.out.println(code + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    }
 
-                    // Проверка, является ли `index` числовым значением
-                    if (isInteger(index)) {
-                        int listLength = symbolTable.getSymbolLength(identifierToken.identifier + "_" + this.symbolTable.isVariableAccessible(identifierToken.identifier, this.scope));
-//                        if (Integer.parseInt(index) < 0 || Integer.parseInt(index) >= listLength) {
-//                            throw new ParseException("Index " + index + " out of bounds for list " + identifierToken.identifier);
-//                        }
-                        indexName = this.symbolTable.getSymbolByIndex(identifierToken.identifier, Integer.parseInt(index));
-                        indexName = indexName.substring(0, indexName.indexOf('_'));
-                    } else {
-                        // Проверка, существует ли индекс как ключ в текущей области видимости
-//                        if (symbolTable.getSymbolScope(index + "_" + identifierToken.identifier) == null) {
-//                            throw new ParseException("Dictionary " + this.scope + " does not contain the key " + identifierToken.identifier);
-//                        }
+}
 
-                    }
 
-                    // Обновляем scope на основе значения indexName или index
-                    String lastScope = this.scope;
-                    this.scope = (indexName != null) ? indexName : index;
+class Identifier extends Token {
+    public final int id; // Номер имени в Names
+    public final String identifier;
+
+    public Identifier(int id, Span span) {
+        super(TokenCode.IDENTIFIER, span);
+        this.id = id;
+        this.identifier = Names.name(id);
+    }
+
+    @Override
+    public String describe() {
+        return code + "[" + this.identifier + "]";
+    }
+
+    public void fullPrint() {
+        System.out.println(code + " [Val: " + this.identifier + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    }
+}
+
+
+class RealToken extends Token {
+    public double value;
+
+    public RealToken(double value, Span span) {
+        super(TokenCode.REAL_LITERAL, span);
+        this.value = value;
+    }
+
+    @Override
+    public String describe() {
+        return code + "[" + this.value + "]";
+    }
+
+    public void fullPrint() {
+        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    }
+}
+
+class BooleanToken extends Token {
+    public boolean value;
 
-                    // Обрабатываем вложенные обращения через .
-                    while (getCurrentToken().code == TokenCode.DOT) {
-                        advance();  // Переходим к следующему токену
-                        initializer = getEntry(initializer);  // Получаем узел для вложенного элемента
+    public BooleanToken(boolean value, Span span) {
+        super(TokenCode.BOOLEAN_LITERAL, span);
+        this.value = value;
+    }
 
-                        // Получаем название вложенного ключа
-                        index = ((IdentifierNode) ((DictionaryEntryCall) initializer).getValue()).getName();
-                        indexName = null;
 
-                        if (isInteger(index)) {
-                            if (this.symbolTable.getSymbolByIndex(this.scope, Integer.parseInt(index)) == null) {
-                                throw new ParseException("Index " + index + " out of bounds for list " + this.scope);
-                            }
-                            indexName = this.symbolTable.getSymbolByIndex(this.scope, Integer.parseInt(index));
-                            indexName = indexName.substring(0, indexName.indexOf('_'));
-//                            int listLength = symbolTable.getSymbolLength(this.scope);
-//
-////                            System.out.println(symbolTable.getSymbolNode(this.scope));
-//                            if (Integer.parseInt(index) < 0 || Integer.parseInt(index) >= listLength) {
-//                                throw new ParseException("Index " + index + " out of bounds for list " + indexName + "_" + this.scope);
-//                            }
-                        } else {
-                            // Проверка на существование ключа во вложенном словаре
-                            if (symbolTable.getSymbolScope(index + "_" + this.scope) == null) {
-                                throw new ParseException("Dictionary " + this.scope + " does not contain the key " + index);
-                            }
-                        }
+    @Override
+    public String describe() {
+        return code + "[" + this.value + "]";
+    }
 
-                        // Обновляем область видимости
-                        lastScope = this.scope;
-                        this.scope = (indexName != null) ? indexName : index;
-                    }
+    public void fullPrint() {
+        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    }
+}
 
-                    // Восстанавливаем исходную область видимости
-                    this.scope = lastScope;
-                    return initializer;
-                } else if (getCurrentToken().code == TokenCode.LBRACKET) {
-//                    Node elem = parseLogicalExpression();
-                    IdentifierNode variableIdentifier = new IdentifierNode(identifierToken.identifier);
-                    advance();
-                    Node initializer = getEntry(variableIdentifier);
+class IntegerToken extends Token {
+    public int value;
 
-// Получаем ListNode из таблицы символов
-                    ListNode listNode = (ListNode) this.symbolTable.getSymbolNode(identifierToken.identifier + "_" + this.scope);
+    public IntegerToken(int value, Span span) {
+        super(TokenCode.INTEGER_LITERAL, span);
+        this.value = value;
+    }
 
-// Проверяем, что начальный индекс в допустимых пределах
+    @Override
+    public String describe() {
+        return code + "[" + this.value + "]";
+    }
 
-                    if (canConvertToInt(String.valueOf((IdentifierNode) ((DictionaryEntryCall) initializer).getValue()))) {
-                        int index = ((IdentifierNode) ((DictionaryEntryCall) initializer).getValue()).getValue();
-                        System.out.println("----------------");
-                        System.out.println(index);
-                        System.out.println("----------------");
-                        int listLength = listNode.size();
-                        if (index < 0 || index >= listLength) {
-                            throw new ParseException("Index " + index + " out of bounds for list " + identifierToken.identifier);
-                        }
+    public void fullPrint() {
+        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    }
+}
 
-                        Node selectedNode = listNode.get(index); // Получаем элемент на данном индексе
 
-// Проверка, является ли элемент вложенным списком
-                        if (selectedNode instanceof ListNode) {
-                            listNode = (ListNode) selectedNode; // Обновляем listNode на текущий уровень вложенности
-                        }
-                        advance();
-// Переход на следующий уровень вложенности, если он есть
-                        while (getCurrentToken().code == TokenCode.LBRACKET) {
-                            advance();
-                            initializer = getEntry(initializer);
-                            int nestedIndex = ((IdentifierNode) ((DictionaryEntryCall) initializer).getValue()).getValue();
+class StringToken extends Token {
+    public String value;
 
-                            if (!(listNode instanceof ListNode)) {
-                                throw new ParseException("Это не лист");
-                            }
+    public StringToken(String value, Span span) {
+        super(TokenCode.STRING_LITERAL, span);
+        this.value = value;
+    }
 
-                            // Проверяем, что текущий элемент является списком
-//                        if (!(listNode.get(nestedIndex) instanceof ListNode)) {
-//                            throw new ParseException("Expected a nested list at index " + nestedIndex + " in " + identifierToken.identifier);
-//                        }
 
-//                        listNode = (ListNode) listNode).get(nestedIndex); // Обновляем текущий listNode
-                            int nestedListLength = listNode.size();
-                            if (nestedIndex < 0 || nestedIndex >= nestedListLength) {
-                                throw new ParseException("Index " + nestedIndex + " out of bounds for nested list at " + identifierToken.identifier);
-                            }
-                            if (listNode.get(nestedIndex) instanceof ListNode) {
-                                listNode = (ListNode) listNode.get(nestedIndex); // Обновляем listNode на текущий уровень вложенности
-                            }
-                            advance();
-                        }
+    @Override
+    public String describe() {
+        return code + "[" + this.value + "]";
+    }
 
-                    } else {
-                        advance();
-                    }
-// Возвращаем финальный элемент, если проверка завершена успешно
-                    return initializer;
+    public void fullPrint() {
+        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    }
+}
 
-                }
-                return new IdentifierNode(identifierToken.identifier);
-            } else {
-                this.symbolTable.printTable();
-                System.out.println(identifierToken.identifier + "_" + this.scope);
-                throw new ParseException("The identifier " + ((Identifier) getCurrentToken()).identifier + " is not declared in: " + this.scope + " in line " + ((Identifier) getCurrentToken()).span.lineNum);
-            }
-        }
 
-        throw new ParseException("Incorrect use of " + getCurrentToken().code +  " in line: " + getCurrentToken().span.lineNum);
 
+class Optimizer {
+    public static boolean flag;
+    private SymbolTable symbolTable;
 
-//        throw new ParseException("Unexpected token: " + getCurrentToken().code);
+    public Optimizer(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+        this.flag = false;
     }
 
-    public boolean canConvertToInt(String str) {
-        if (str == null || str.isEmpty()) {
-            return false; // Нельзя преобразовать null или пустую строку
-        }
-        try {
-            Integer.parseInt(str);
-            return true; // Успешно преобразовали
-        } catch (NumberFormatException e) {
-            return false; // Не удалось преобразовать
-        }
-    }
+    public Node optimize(Node ast) {
+        do {
+            flag = false;
+            simplifyConstantExpressions(ast);
 
+            removeUnusedVariables(ast);
 
-    public boolean isInteger(String str) {
-        if (str == null) {
-            return false;
-        }
-        try {
-            Integer.parseInt(str);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
-        }
+        } while (flag);
+//        ast = removeUnusedVariables(ast);
+        return ast;
     }
 
-
-    private Node getEntry(Node variableIdentifier) {
-        IdentifierNode key = null;
-        if (getCurrentToken().code == TokenCode.IDENTIFIER) {
-            key = new IdentifierNode(((Identifier) getCurrentToken()).identifier);
-            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
-            advance();
-            return initializer;
-        } else if (getCurrentToken().code == TokenCode.MINUS) {
-            advance();
-            if (getCurrentToken().code == TokenCode.INTEGER_LITERAL) {
-                key = new IdentifierNode("-" + ((Integer) (((IntegerToken) getCurrentToken()).value)).toString());
-                Node initializer = new DictionaryEntryCall(variableIdentifier , key);
-                advance();
-                return initializer;
-            } else {
-                throw new ParseException("Expected integer index: " + getCurrentToken().code);
-            }
-        } else if (getCurrentToken().code == TokenCode.INTEGER_LITERAL) {
-            key = new IdentifierNode(((Integer) (((IntegerToken) getCurrentToken()).value)).toString());
-            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
-            advance();
-            return initializer;
-        } else if (getCurrentToken().code == TokenCode.MINUS) {
-            advance();
-            if (getCurrentToken().code == TokenCode.INTEGER_LITERAL) {
-                key = new IdentifierNode("-" + ((Integer) (((IntegerToken) getCurrentToken()).value)).toString());
-                Node initializer = new DictionaryEntryCall(variableIdentifier , key);
-                advance();
-                return initializer;
-            } else {
-                throw new ParseException("Expected integer index: " + getCurrentToken().code);
+    // Дерево после свертки констант и удаления неиспользуемых переменных в плоском виде - вход для Resolver
+    public FlatAst optimizeToFlat(Node ast) {
+        return FlatAst.of(optimize(ast));
+    }
+    public void updateOperands(Node node) {
+        if (node instanceof ExpressionNode) {
+            ExpressionNode exprNode = (ExpressionNode) node;
+            List<Node> children = exprNode.getChildren();
+            if (children.size() >= 2) {
+                exprNode.setLeft(children.get(0));
+                exprNode.setRight(children.get(1));
             }
-        } else if (getCurrentToken().code == TokenCode.STRING_LITERAL) {
-            key = new IdentifierNode(((StringToken) getCurrentToken()).value);
-            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
-            advance();
-            return initializer;
-        } else if (getCurrentToken().code == TokenCode.LENGTH) {
-            key = new IdentifierNode("LENGTH");
-            Node initializer = new DictionaryEntryCall(variableIdentifier , key);
-            advance();
-            return initializer;
+        } else if (node instanceof DictionaryEntryCall call && call.getChildren().size() == 2) {
+            call.setValue(call.getChildren().get(1));
         }
-        throw new ParseException("Unexpected token: " + getCurrentToken().code);
-    }
-
-    private boolean isOperator(TokenCode code) {
-        return code == TokenCode.PLUS || code == TokenCode.MINUS || code == TokenCode.MULTIPLY || code == TokenCode.DIVIDE;
     }
+    private Node simplifyConstantExpressions(Node node) {
+        for (int i = 0; i < node.getChildren().size(); i++) {
+            Node child = node.getChildren().get(i);
+            if (child != null) {
+                Node optimizedChild = simplifyConstantExpressions(child);
+                if (optimizedChild instanceof ExpressionNode exprNode && exprNode.isConstant()) {
+                    node.getChildren().set(i, exprNode.evaluate());
+                } else {
 
-    private BlockNode parseList() {
-        List<Node> elements = new ArrayList<>();
-        if (getCurrentToken().code == TokenCode.LBRACKET) {
-            advance(); // Пропускаем '['
-            // Разбор элементов списка до закрывающей скобки
-            while (getCurrentToken().code != TokenCode.RBRACKET) {
-                elements.add(parseExpression()); // Добавляем элемент списка
-                if (getCurrentToken().code == TokenCode.COMMA) {
-                    advance(); // Пропускаем запятую
-                } else if (getCurrentToken().code != TokenCode.RBRACKET) {
-                    throw new ParseException("Expected ',' or ']', found: " + getCurrentToken());
+                    node.getChildren().set(i, optimizedChild);
                 }
+                updateOperands(node);
             }
-            advance(); // Пропускаем ']'
-            this.len = elements.size();
-            BlockNode elem = new BlockNode(elements, "elements");
-            return elem;
-
-        } else {
-            throw new ParseException("Expected '[', found: " + getCurrentToken());
         }
+        return node;
     }
 
+    private Node removeUnusedVariables(Node node) {
 
-    private Node parseStatement() {
-        if (getCurrentToken().code == TokenCode.SEMICOLON) {
-            advance();
-        }
-        if (getCurrentToken().code == TokenCode.IF) {
-            return parseIf();
-        } else if (getCurrentToken().code == TokenCode.WHILE) {
-            return parseWhile();
-        } else if (getCurrentToken().code == TokenCode.FOR) {
-            return parseFor();
-        } else if (getCurrentToken().code == TokenCode.PRINT) {
-            return parsePrint();
-        } else if (getCurrentToken().code == TokenCode.VAR) {
-            return parseDeclaration();
-        } else if (getCurrentToken().code == TokenCode.IDENTIFIER) {
-            return parseDeclaration();
-        }  else if (getCurrentToken().code == TokenCode.RETURN) {
-//            if (this.scope != "global") {
+        Set<String> usedVariables = new HashSet<>();
+        markUsedVariables(node, usedVariables);
 
-            return parseReturn();
 
-//            }
-//            throw new ParseException("ERROR in line: " + getCurrentToken().span.lineNum + ". Return must be used inside the function.");
-        } else if (getCurrentToken().code == TokenCode.FUNC) {
-            return parseFunction();
-        } else if (getCurrentToken().code == TokenCode.READ_REAL ||
-                getCurrentToken().code == TokenCode.READ_INT ||
-                getCurrentToken().code == TokenCode.READ_STRING) {
-            return parsePrimary();
-        } else if (getCurrentToken().code == TokenCode.INTEGER_LITERAL ||
-                getCurrentToken().code == TokenCode.REAL_LITERAL ||
-                getCurrentToken().code == TokenCode.BOOLEAN_LITERAL ||
-                getCurrentToken().code == TokenCode.STRING_LITERAL) {
-            return parseExpression();
-        }
-        this.symbolTable.printTable();
-        throw new ParseException("Unexpected statement type: " + getCurrentToken().code + " in line " + getCurrentToken().span.lineNum);
+        return pruneUnusedVariables(node, usedVariables);
     }
-}
 
+    private void markUsedVariables(Node node, Set<String> usedVariables) {
+        if (node == null) return;
 
-class Variable {
-    private String name;
-    private Object value;
-    private String scope;
-    private Environment closureEnv;
 
-    public Variable(String name, Object value, String scope) {
-        this.name = name;
-        this.value = value;
-        this.scope = scope;
-        this.closureEnv = null;
-    }
+        if (node instanceof IdentifierNode identifierNode) {
+            usedVariables.add(identifierNode.getName());
+        }
 
-    public Variable(String name, Object value, String scope, Environment closureEnv) {
-        this.name = name;
-        this.value = value;
-        this.scope = scope;
-        this.closureEnv = closureEnv;  // Инициализация окружения замыкания
     }
 
-    public Variable deepCopy() {
-        // Предполагаем, что value поддерживает клонирование или является неизменяемым (например, Integer, String)
-        Object copiedValue = this.value; // Если `value` нужно копировать глубже, добавьте дополнительную логику
-        return new Variable(this.name, copiedValue, this.scope);
-    }
+    private Node pruneUnusedVariables(Node node, Set<String> usedVariables) {
+        if (node == null) return null;
 
-    public String getName() {
-        return name;
-    }
 
-    public Environment getClosureEnv() {
-        return this.closureEnv;
-    }
+        try {
+            if (node instanceof VariableDeclarationNode declarationNode) {
+                int variableName = declarationNode.getName().getId();
+                if (!Objects.equals(this.symbolTable.getSymbolType(variableName, SymbolTable.GLOBAL), "param")) {
+                    if (this.symbolTable.getSymbolUseNum(variableName, SymbolTable.GLOBAL) <= 0) {
+                        return null;
+                    }
+                }
+            }
+        } catch (NullPointerException e) {
+            if (Trace.on(Trace.Phase.OPTIMIZER, Trace.Level.DEBUG)) {
+                Trace.log(Trace.Phase.OPTIMIZER, Trace.Level.DEBUG, "no symbol for " + node.getClass().getSimpleName());
+            }
+        }
 
-    public Object getValue() {
-        return value;
+
+
+        List<Node> children = new ArrayList<>(node.getChildren().size());
+        for (Node child : node.getChildren()) {
+            Node prunedChild = pruneUnusedVariables(child, usedVariables);
+            if (prunedChild != null) {
+                children.add(prunedChild);
+            }
+        }
+
+        node.children = children.isEmpty() ? Node.NO_CHILDREN : children;
+        return node;
     }
+}
 
-    public void setValue(Object value) {
-        this.value = value;
-    }
+class CompileException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
 
-    public String getScope() {
-        return scope;
+    public CompileException(String message) {
+        super(message);
     }
+}
 
-    @Override
-    public String toString() {
-        return "Variable{name='" + name + "', value=" + value + ", scope='" + scope + "', cloEnvscope='" + closureEnv + "'}";
+// Коды инструкций байткода. Операнды лежат в том же int[] сразу за кодом.
+// Ключ ProgramCache включает NAMES и class-файлы этого класса и компилятора, поэтому новые инструкции
+// и изменения в BytecodeCompiler сами делают старый кэш недействительным; если байткод меняется из-за
+// кода вне ProgramCache.COMPILER_CLASSES - увеличить ProgramCache.VERSION
+final class Opcode {
+    static final int CONST = 0;          // [индекс константы]
+    static final int NIL = 1;
+    static final int POP = 2;
+    static final int LOAD_LOCAL = 3;     // [слот]
+    static final int STORE_LOCAL = 4;    // [слот]
+    static final int LOAD_GLOBAL = 5;    // [слот]
+    static final int STORE_GLOBAL = 6;   // [слот]
+    static final int ADD = 7;
+    static final int SUB = 8;
+    static final int MUL = 9;
+    static final int DIV = 10;
+    static final int LESS = 11;
+    static final int GREATER = 12;
+    static final int LESS_EQUAL = 13;
+    static final int GREATER_EQUAL = 14;
+    static final int EQUAL = 15;
+    static final int NOT_EQUAL = 16;
+    static final int AND = 17;
+    static final int OR = 18;
+    static final int XOR = 19;
+    static final int NOT = 20;
+    static final int TYPE_IS = 21;       // [индекс константы с именем типа]
+    static final int JUMP = 22;          // [адрес]
+    static final int JUMP_IF_FALSE = 23; // [адрес]
+    static final int CALL = 24;          // [число аргументов]
+    static final int RETURN = 25;
+    static final int PRINT = 26;
+    static final int READ = 27;          // [0 - int, 1 - real, 2 - string]
+    static final int BUILD_LIST = 28;    // [число элементов]
+    static final int BUILD_TUPLE = 29;   // [индекс константы с ключами, число элементов]
+    static final int GET_INDEX = 30;
+    static final int GET_FIELD = 31;     // [индекс константы с именем поля, номер кэша поля, переменная для arr.i]
+    static final int SET_INDEX = 32;
+    static final int SET_FIELD = 33;     // [индекс константы с именем поля, номер кэша поля, переменная для arr.i]
+    static final int LENGTH = 34;
+    static final int HALT = 35;
+    static final int TAIL_CALL = 36;     // [число аргументов] - return f(...) внутри самой f
+
+    static final String[] NAMES = {
+            "CONST", "NIL", "POP", "LOAD_LOCAL", "STORE_LOCAL", "LOAD_GLOBAL", "STORE_GLOBAL",
+            "ADD", "SUB", "MUL", "DIV", "LESS", "GREATER", "LESS_EQUAL", "GREATER_EQUAL", "EQUAL", "NOT_EQUAL",
+            "AND", "OR", "XOR", "NOT", "TYPE_IS", "JUMP", "JUMP_IF_FALSE", "CALL", "RETURN", "PRINT", "READ",
+            "BUILD_LIST", "BUILD_TUPLE", "GET_INDEX", "GET_FIELD", "SET_INDEX", "SET_FIELD", "LENGTH", "HALT",
+            "TAIL_CALL"
+    };
+
+    // Сколько операндов идет за каждой инструкцией
+    static final int[] OPERANDS = {
+            1, 0, 0, 1, 1, 1, 1,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 1, 1, 1, 1, 0, 0, 1,
+            1, 2, 0, 3, 0, 3, 0, 0,
+            1
+    };
+
+    private Opcode() {
     }
 }
 
-class Environment {
-    private String name;
-    private String scopeType;
-    private Map<String, Map<String, Variable>> scopedVariables;
-
-    public Environment(String name, String scopeType) {
-        this.name = name;
-        this.scopeType = scopeType;
-        this.scopedVariables = new HashMap<>();
-    }
+class Chunk {
+    private int[] code = new int[64];
+    private int size = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private Object[] constantArray;
+    // Кэши полей, по одному на каждую инструкцию GET_FIELD/SET_FIELD
+    private final List<FieldCache> fieldCaches = new ArrayList<>();
+    private FieldCache[] fieldCacheArray;
 
-    public String getName() {
-        return name;
+    public int emit(int value) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, size * 2);
+        }
+        code[size++] = value;
+        return size - 1;
     }
 
-    public String getScopeType() {
-        return scopeType;
+    public void patch(int position, int value) {
+        code[position] = value;
     }
 
-    public void setScopeType(String type) {
-        scopeType = type;
+    public int size() {
+        return size;
     }
 
-    public void addVariable(String name, Object value, String scopeType) {
-        if (this.scopeType != "global") {
-            scopeType = this.scopeType;
+    public int addConstant(Object value) {
+        // Одинаковые литералы храним в пуле один раз
+        Integer index = constantIndex.get(value);
+        if (index != null) {
+            return index;
         }
-        scopedVariables.putIfAbsent(scopeType, new HashMap<>());
-        Map<String, Variable> scopeVars = scopedVariables.get(scopeType);
-        if (scopeVars.containsKey(name)) {
-            updateVariable(name, value, scopeType);
+        constants.add(value);
+        constantIndex.put(value, constants.size() - 1);
+        constantArray = null;
+        return constants.size() - 1;
+    }
 
-        }
-        scopeVars.put(name, new Variable(name, value, scopeType));
+    // Константа строго в конец пула, без поиска дубликата: так ProgramCache восстанавливает номера
+    public int appendConstant(Object value) {
+        constants.add(value);
+        constantArray = null;
+        return constants.size() - 1;
     }
 
-    public void addVariable(String name, Object value, String scopeType, Environment closureEnv) {
-        if (this.scopeType != "global") {
-            scopeType = this.scopeType;
-        }
-        scopedVariables.putIfAbsent(scopeType, new HashMap<>());
-        Map<String, Variable> scopeVars = scopedVariables.get(scopeType);
-//        if (scopeVars.containsKey(name)) {
-//            updateVariable(name, value, scopeType, closureEnv);
-//        }
-        scopeVars.put(name, new Variable(name, value, scopeType, closureEnv));
+    public int addFieldCache(String name) {
+        fieldCaches.add(new FieldCache(name));
+        fieldCacheArray = null;
+        return fieldCaches.size() - 1;
     }
 
-    public void removeVariable(String name, String scopeType) {
-        // Если текущая область не "глобальная", используем текущую область
-        if (!this.scopeType.equals("global")) {
-            scopeType = this.scopeType;
+    public FieldCache[] getFieldCaches() {
+        if (fieldCacheArray == null) {
+            fieldCacheArray = fieldCaches.toArray(new FieldCache[0]);
         }
+        return fieldCacheArray;
+    }
 
-        // Получаем переменные для указанной области видимости
-        Map<String, Variable> scopeVars = scopedVariables.get(scopeType);
+    public int[] getCode() {
+        return code;
+    }
 
-        // Проверяем существование переменной
-        if (scopeVars == null || !scopeVars.containsKey(name)) {
-            throw new RuntimeException("Переменная " + name + " не найдена в области " + scopeType + ".");
+    public Object[] getConstants() {
+        if (constantArray == null) {
+            constantArray = constants.toArray();
         }
+        return constantArray;
+    }
 
-        // Удаляем переменную
-        scopeVars.remove(name);
-
-        // Если область видимости больше не содержит переменных, удаляем область
-        if (scopeVars.isEmpty()) {
-            scopedVariables.remove(scopeType);
+    public void disassemble(String name) {
+        System.out.println("== " + name + " ==");
+        int ip = 0;
+        while (ip < size) {
+            int op = code[ip];
+            StringBuilder line = new StringBuilder(String.format("%04d %-14s", ip, Opcode.NAMES[op]));
+            for (int i = 1; i <= Opcode.OPERANDS[op]; i++) {
+                line.append(' ').append(code[ip + i]);
+            }
+            if (op == Opcode.CONST || op == Opcode.TYPE_IS) {
+                line.append("  (").append(constants.get(code[ip + 1])).append(')');
+            } else if (op == Opcode.GET_FIELD || op == Opcode.SET_FIELD) {
+                line.append("  (").append(fieldCaches.get(code[ip + 2])).append(')');
+            }
+            System.out.println(line);
+            ip += 1 + Opcode.OPERANDS[op];
+        }
+        for (Object constant : constants) {
+            if (constant instanceof FunctionProto) {
+                ((FunctionProto) constant).chunk.disassemble(((FunctionProto) constant).name);
+            }
         }
     }
+}
 
+class FunctionProto {
+    public final String name;
+    public final int arity;
+    public int numLocals;
+    // Имена локальных переменных по слотам - для сообщений об ошибках
+    public String[] localNames = new String[0];
+    public final Chunk chunk;
 
-    public void updateVariable(String name, Object value, String scopeType) {
-        if (this.scopeType != "global") {
-            scopeType = this.scopeType;
-        }
-        Map<String, Variable> scopeVars = scopedVariables.get(scopeType);
-        if (scopeVars == null || !scopeVars.containsKey(name)) {
-            printAllVariables();
-            throw new RuntimeException("Переменная " + name + " не найдена в области " + scopeType + ".");
-        }
-        scopeVars.get(name).setValue(value);
+    FunctionProto(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+        this.numLocals = arity;
+        this.chunk = new Chunk();
     }
 
-    public boolean haveVariable(String name, String scopeType) {
-        if (this.scopeType != "global") {
-            scopeType = this.scopeType;
-        }
-        Map<String, Variable> scopeVars = scopedVariables.get(scopeType);
-        if (scopeVars == null || !scopeVars.containsKey(name)) {
-            return false;
-        }
-        return true;
+    @Override
+    public String toString() {
+        return "function " + name;
     }
+}
 
-    public boolean haveVariableReal(String name, String scopeType) {
-        Map<String, Variable> scopeVars = scopedVariables.get(scopeType);
-        if (scopeVars == null || !scopeVars.containsKey(name)) {
-            return false;
+// Скомпилированная программа на диске: байткод всех функций, пулы констант, имена полей кэшей
+// и глобальные переменные. Файл называется SHA-256 от версии, таблицы опкодов, class-файлов фронтенда
+// и компилятора и текста исходника: измененный исходник или пересобранный компилятор просто не находит
+// старый файл. Кэш включается явно: -Dcache.dir=<путь>; без него ничего не читается и не пишется
+final class ProgramCache {
+    // Изменения в COMPILER_CLASSES меняют ключ сами. Увеличивать VERSION - только если байткод для того же
+    // исходника меняется из-за кода вне этих классов (например, узлов дерева, которые читает компилятор)
+    static final int VERSION = 2;
+    // От этих классов (и их вложенных) зависит байткод для данного исходника и формат файла
+    private static final Class<?>[] COMPILER_CLASSES = {
+            Lexer.class, Parser.class, Optimizer.class, BytecodeCompiler.class, Opcode.class, Chunk.class, ProgramCache.class
+    };
+    private static byte[] compilerDigest;
+    private static final int MAGIC = 0x44424331; // "DBC1"
+
+    private static final byte INT = 0;
+    private static final byte REAL = 1;
+    private static final byte STRING = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte KEYS = 4;
+    private static final byte FUNCTION = 5;
+
+    private final Path file;
+    private FunctionProto script;
+    private int globalCount;
+    private String[] globalNames;
+
+    // Исходник хешируется прямо из отображенного в память файла, в кучу он не копируется
+    public ProgramCache(Path source) throws IOException {
+        String directory = System.getProperty("cache.dir", "");
+        this.file = directory.isEmpty() ? null : Paths.get(directory, key(map(source)) + ".dbc");
+    }
+
+    private static ByteBuffer map(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Source file is too large: " + source);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static String key(ByteBuffer source) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(compilerDigest());
+        digest.update(source);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Хеш версии, таблицы опкодов и class-файлов компилятора - один раз на запуск
+    private static synchronized byte[] compilerDigest() throws IOException {
+        if (compilerDigest == null) {
+            MessageDigest digest = sha256();
+            digest.update(("v" + VERSION + ":" + String.join(",", Opcode.NAMES) + "\n").getBytes(StandardCharsets.UTF_8));
+            for (Class<?> type : COMPILER_CLASSES) {
+                digestClass(digest, type);
+                for (Class<?> nested : type.getDeclaredClasses()) {
+                    digestClass(digest, nested);
+                }
+            }
+            compilerDigest = digest.digest();
         }
-        return true;
+        return compilerDigest;
     }
 
-    public Variable getVariable(String name, String scopeType) {
-        if (this.scopeType != "global") {
-            scopeType = this.scopeType;
+    private static void digestClass(MessageDigest digest, Class<?> type) throws IOException {
+        digest.update(type.getName().getBytes(StandardCharsets.UTF_8));
+        try (InputStream in = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+            if (in == null) {
+                // Класс не из файла (нестандартный загрузчик): остаются только имя и VERSION
+                Trace.log(Trace.Phase.CACHE, Trace.Level.INFO, "no class file for " + type.getName());
+                return;
+            }
+            digest.update(in.readAllBytes());
         }
+    }
 
-        if (Objects.equals(name, scopeType)) {
-            scopeType = "global";
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        Map<String, Variable> scopeVars = scopedVariables.get(scopeType);
-        if (scopeVars == null || !scopeVars.containsKey(name)) {
-            printAllVariables();
-            throw new RuntimeException("Переменная " + name + " не найдена в области " + scopeType + ".");
-        }
-        return scopeVars.get(name);
+    public Path getFile() {
+        return file;
     }
 
+    public FunctionProto getScript() {
+        return script;
+    }
 
+    public int getGlobalCount() {
+        return globalCount;
+    }
 
-    public Variable getVariableRecursive(String name, String currentScope) {
-        // Логируем текущий шаг
-//        System.out.println("Ищем переменную: " + name + " в области: " + currentScope);
+    public String[] getGlobalNames() {
+        return globalNames;
+    }
 
-        // Проверяем переменную в текущей области
-        Map<String, Variable> scopeVars = scopedVariables.get(currentScope);
-        if (scopeVars != null && scopeVars.containsKey(name)) {
-//            System.out.println("Переменная " + name + " найдена в области: " + currentScope);
-            return scopeVars.get(name);
+    // true - программа прочитана из кэша и прошла проверку. Отсутствующий, испорченный или не прошедший
+    // проверку файл - просто промах
+    public boolean load() {
+        if (file == null || !Files.exists(file)) {
+            return false;
         }
-
-        // Если переменная не найдена в текущей области
-        if (!scopedVariables.containsKey(currentScope)) {
-//            System.out.println("Область " + currentScope + " не найдена.");
-            throw new RuntimeException("Область " + currentScope + " не найдена.");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            long limit = Files.size(file);
+            globalCount = readLength(in, limit);
+            globalNames = new String[readLength(in, limit)];
+            for (int i = 0; i < globalNames.length; i++) {
+                globalNames[i] = in.readUTF();
+            }
+            if (globalNames.length != globalCount) {
+                return false;
+            }
+            script = readFunction(in, limit);
+            verify(script, globalCount);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Trace.log(Trace.Phase.CACHE, Trace.Level.INFO, "cache " + file + " is unreadable: " + e);
+            script = null;
+            return false;
         }
+    }
 
-        // Пробуем перейти в родительскую область
-//        System.out.println("Переменная " + name + " не найдена, ищем родительскую область...");
-//        System.out.println(currentScope);
-
-        String parentScopeVars = null;
-        for (Map.Entry<String, Map<String, Variable>> scopeEntry : scopedVariables.entrySet()) {
-            String scopeName = scopeEntry.getKey();  // Ключ внешнего Map, например "global", "checkValue2", etc.
-            Map<String, Variable> variables = scopeEntry.getValue();  // Внутренний Map, содержащий переменные для текущей области
-//            System.out.println("Scope2: " + scopeName);  // Выводим название области
-            for (Map.Entry<String, Variable> varEntry : variables.entrySet()) {
-                String variableName = varEntry.getKey();  // Название переменной
-                Variable variable = varEntry.getValue();  // Переменная
-//                System.out.println("Scope3: " + variableName + " " + currentScope);
-                if (Objects.equals(variableName, currentScope)) {
-                    parentScopeVars = scopeName;
+    // Записываем во временный файл и переименовываем: параллельный запуск не прочтет половину файла.
+    // Константы, которых формат не знает, и ошибки записи - программа просто не кэшируется
+    public void store(FunctionProto script, int globalCount, String[] globalNames) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), "program", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(globalCount);
+                out.writeInt(globalNames.length);
+                for (String name : globalNames) {
+                    out.writeUTF(name);
                 }
-//                System.out.println("  Variable Name: " + variableName + ", Value: " + variable.getValue());
-            }
+                writeFunction(out, script);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Trace.log(Trace.Phase.CACHE, Trace.Level.INFO, "program is not cached: " + e);
+        }
+    }
+
+    // Проверка байткода из файла до запуска: VirtualMachine операнды не проверяет, и испорченный, но читаемый
+    // файл упал бы посреди программы. Проверяем коды инструкций, операнды (константы нужного типа, слоты,
+    // глобальные переменные, кэши полей, адреса переходов) и глубину стека: в каждую инструкцию она
+    // приходит одна и та же по всем путям, не опускается ниже нуля, а код не заканчивается без RETURN/HALT
+    private static void verify(FunctionProto proto, int globalCount) throws IOException {
+        Chunk chunk = proto.chunk;
+        int[] code = chunk.getCode();
+        int size = chunk.size();
+        Object[] constants = chunk.getConstants();
+        int caches = chunk.getFieldCaches().length;
+        if (size == 0) {
+            throw corrupt(proto, "empty code");
+        }
+        if (proto.arity < 0 || proto.arity > proto.numLocals) {
+            throw corrupt(proto, "arity " + proto.arity + " with " + proto.numLocals + " locals");
+        }
+        for (Object constant : constants) {
+            if (constant instanceof FunctionProto) {
+                verify((FunctionProto) constant, globalCount);
+            }
+        }
+        // Начала инструкций и проверка операндов
+        boolean[] starts = new boolean[size];
+        for (int pc = 0; pc < size; pc += 1 + Opcode.OPERANDS[code[pc]]) {
+            int op = code[pc];
+            if (op < 0 || op >= Opcode.OPERANDS.length) {
+                throw corrupt(proto, "unknown opcode " + op + " at " + pc);
+            }
+            if (pc + Opcode.OPERANDS[op] >= size) {
+                throw corrupt(proto, Opcode.NAMES[op] + " at " + pc + " is truncated");
+            }
+            starts[pc] = true;
+            int operand = Opcode.OPERANDS[op] > 0 ? code[pc + 1] : 0;
+            switch (op) {
+                case Opcode.CONST:
+                    checkRange(proto, pc, operand, constants.length);
+                    break;
+                case Opcode.TYPE_IS:
+                    checkConstant(proto, pc, constants, operand, String.class);
+                    break;
+                case Opcode.LOAD_LOCAL:
+                case Opcode.STORE_LOCAL:
+                    checkRange(proto, pc, operand, proto.numLocals);
+                    break;
+                case Opcode.LOAD_GLOBAL:
+                case Opcode.STORE_GLOBAL:
+                    checkRange(proto, pc, operand, globalCount);
+                    break;
+                case Opcode.CALL:
+                case Opcode.BUILD_LIST:
+                    checkRange(proto, pc, operand, Integer.MAX_VALUE);
+                    break;
+                case Opcode.TAIL_CALL:
+                    // Только вызов самой функции с тем же числом аргументов
+                    if (operand != proto.arity) {
+                        throw corrupt(proto, "TAIL_CALL at " + pc + " passes " + operand + " arguments");
+                    }
+                    break;
+                case Opcode.READ:
+                    checkRange(proto, pc, operand, ProgramInput.STRING + 1);
+                    break;
+                case Opcode.BUILD_TUPLE:
+                    checkConstant(proto, pc, constants, operand, String[].class);
+                    if (code[pc + 2] != ((String[]) constants[operand]).length) {
+                        throw corrupt(proto, "BUILD_TUPLE at " + pc + " has " + code[pc + 2] + " values");
+                    }
+                    break;
+                case Opcode.GET_FIELD:
+                case Opcode.SET_FIELD: {
+                    checkConstant(proto, pc, constants, operand, String.class);
+                    checkRange(proto, pc, code[pc + 2], caches);
+                    int variable = code[pc + 3];
+                    if (variable > proto.numLocals || variable < -globalCount) {
+                        throw corrupt(proto, Opcode.NAMES[op] + " at " + pc + " reads variable " + variable);
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        // Глубина стека по всем путям; адреса переходов - только начала инструкций
+        int[] depths = new int[size];
+        Arrays.fill(depths, -1);
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        depths[0] = 0;
+        pending.add(0);
+        while (!pending.isEmpty()) {
+            int pc = pending.poll();
+            int op = code[pc];
+            int depth = depths[pc];
+            int operand = Opcode.OPERANDS[op] > 0 ? code[pc + 1] : 0;
+            int next = pc + 1 + Opcode.OPERANDS[op];
+            int needed;
+            int after;
+            switch (op) {
+                case Opcode.CONST: case Opcode.NIL: case Opcode.LOAD_LOCAL: case Opcode.LOAD_GLOBAL: case Opcode.READ:
+                    needed = 0;
+                    after = depth + 1;
+                    break;
+                case Opcode.POP: case Opcode.STORE_LOCAL: case Opcode.STORE_GLOBAL: case Opcode.PRINT:
+                case Opcode.JUMP_IF_FALSE:
+                    needed = 1;
+                    after = depth - 1;
+                    break;
+                case Opcode.NOT: case Opcode.TYPE_IS: case Opcode.GET_FIELD: case Opcode.LENGTH:
+                    needed = 1;
+                    after = depth;
+                    break;
+                case Opcode.GET_INDEX:
+                    needed = 2;
+                    after = depth - 1;
+                    break;
+                case Opcode.SET_FIELD:
+                    needed = 2;
+                    after = depth - 2;
+                    break;
+                case Opcode.SET_INDEX:
+                    needed = 3;
+                    after = depth - 3;
+                    break;
+                case Opcode.CALL:
+                    needed = operand + 1;
+                    after = depth - operand;
+                    break;
+                case Opcode.BUILD_LIST:
+                    needed = operand;
+                    after = depth - operand + 1;
+                    break;
+                case Opcode.BUILD_TUPLE:
+                    needed = code[pc + 2];
+                    after = depth - needed + 1;
+                    break;
+                case Opcode.TAIL_CALL:
+                    needed = operand;
+                    after = -1;
+                    break;
+                case Opcode.RETURN:
+                    needed = 1;
+                    after = -1;
+                    break;
+                case Opcode.HALT:
+                    needed = 0;
+                    after = -1;
+                    break;
+                case Opcode.JUMP:
+                    needed = 0;
+                    after = depth;
+                    next = operand;
+                    break;
+                default:
+                    // Арифметика, сравнения и логика: два операнда, один результат
+                    needed = 2;
+                    after = depth - 1;
+                    break;
+            }
+            if (depth < needed) {
+                throw corrupt(proto, Opcode.NAMES[op] + " at " + pc + " needs " + needed + " values, stack has " + depth);
+            }
+            if (after < 0) {
+                continue;
+            }
+            flow(proto, starts, depths, pending, next, after);
+            if (op == Opcode.JUMP_IF_FALSE) {
+                flow(proto, starts, depths, pending, operand, after);
+            }
+        }
+    }
+
+    private static void flow(FunctionProto proto, boolean[] starts, int[] depths, ArrayDeque<Integer> pending,
+                             int target, int depth) throws IOException {
+        if (target < 0 || target >= starts.length || !starts[target]) {
+            throw corrupt(proto, "control reaches " + target + ", which is not an instruction");
+        }
+        if (depths[target] < 0) {
+            depths[target] = depth;
+            pending.add(target);
+        } else if (depths[target] != depth) {
+            throw corrupt(proto, "stack depth at " + target + " is " + depths[target] + " or " + depth);
+        }
+    }
+
+    private static void checkRange(FunctionProto proto, int pc, int operand, int limit) throws IOException {
+        if (operand < 0 || operand >= limit) {
+            throw corrupt(proto, Opcode.NAMES[proto.chunk.getCode()[pc]] + " at " + pc + " has operand " + operand);
+        }
+    }
+
+    private static void checkConstant(FunctionProto proto, int pc, Object[] constants, int index, Class<?> type) throws IOException {
+        checkRange(proto, pc, index, constants.length);
+        if (!type.isInstance(constants[index])) {
+            throw corrupt(proto, Opcode.NAMES[proto.chunk.getCode()[pc]] + " at " + pc + " expects a " + type.getSimpleName() + " constant");
+        }
+    }
+
+    private static IOException corrupt(FunctionProto proto, String message) {
+        return new IOException("bad bytecode in " + proto.name + ": " + message);
+    }
+
+    private static void writeFunction(DataOutputStream out, FunctionProto proto) throws IOException {
+        out.writeUTF(proto.name);
+        out.writeInt(proto.arity);
+        out.writeInt(proto.numLocals);
+        for (String local : proto.localNames) {
+            out.writeUTF(local);
+        }
+        Chunk chunk = proto.chunk;
+        out.writeInt(chunk.size());
+        int[] code = chunk.getCode();
+        for (int i = 0; i < chunk.size(); i++) {
+            out.writeInt(code[i]);
+        }
+        Object[] constants = chunk.getConstants();
+        out.writeInt(constants.length);
+        for (Object constant : constants) {
+            writeConstant(out, constant);
+        }
+        FieldCache[] caches = chunk.getFieldCaches();
+        out.writeInt(caches.length);
+        for (FieldCache cache : caches) {
+            out.writeUTF(cache.getName());
         }
-//        System.out.println(parentScopeVars);
-        if (parentScopeVars != null) {
-            // Логируем переход в родительскую область
-//            System.out.println("Переходим в родительскую область: " + parentScopeVars);
+    }
 
-            // Рекурсивно ищем переменную в родительской области
-            return getVariableRecursive(name, parentScopeVars);
+    // Длина или счетчик из файла. Каждый элемент занимает в файле хотя бы байт, поэтому число больше
+    // размера файла - признак порчи; без этой проверки испорченная длина выделила бы огромный массив
+    private static int readLength(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new IOException("bad length " + length);
         }
-
-        // Если переменная не найдена в родительских областях
-        printAllVariables();
-//        System.out.println("Переменная " + name + " не найдена в родительской области.");
-        throw new RuntimeException("Переменная " + name + " не найдена в области " + currentScope + ".");
+        return length;
     }
 
-
-    public Variable getVariableRecursiveFromGlobal(String name, String currentScope) {
-        // Логируем текущий шаг
-        System.out.println("Ищем переменную: " + name + " в области: " + currentScope);
-
-        // Проверяем переменную в текущей области
-        Map<String, Variable> scopeVars = scopedVariables.get(currentScope);
-        if (scopeVars != null && scopeVars.containsKey(name)) {
-            System.out.println("Переменная " + name + " найдена в области: " + currentScope);
-            return scopeVars.get(name);
+    private static FunctionProto readFunction(DataInputStream in, long limit) throws IOException {
+        FunctionProto proto = new FunctionProto(in.readUTF(), readLength(in, limit));
+        proto.numLocals = readLength(in, limit);
+        proto.localNames = new String[proto.numLocals];
+        for (int i = 0; i < proto.numLocals; i++) {
+            proto.localNames[i] = in.readUTF();
         }
-
-        // Если переменная не найдена в текущей области
-        if (!scopedVariables.containsKey(currentScope)) {
-            System.out.println("Область " + currentScope + " не найдена.");
-            throw new RuntimeException("Область " + currentScope + " не найдена.");
+        Chunk chunk = proto.chunk;
+        int size = readLength(in, limit);
+        for (int i = 0; i < size; i++) {
+            chunk.emit(in.readInt());
         }
-
-        // Пробуем перейти в родительскую область
-        System.out.println("Переменная " + name + " не найдена, ищем родительскую область...");
-        System.out.println(currentScope);
-
-        String parentScopeVars = null;
-        for (Map.Entry<String, Map<String, Variable>> scopeEntry : scopedVariables.entrySet()) {
-            String scopeName = scopeEntry.getKey();  // Ключ внешнего Map, например "global", "checkValue2", etc.
-            Map<String, Variable> variables = scopeEntry.getValue();  // Внутренний Map, содержащий переменные для текущей области
-            System.out.println("Scope2: " + scopeName);  // Выводим название области
-            if (Objects.equals(scopeName, name)) {
-                parentScopeVars = scopeName;
-            }
-            for (Map.Entry<String, Variable> varEntry : variables.entrySet()) {
-                String variableName = varEntry.getKey();  // Название переменной
-                Variable variable = varEntry.getValue();  // Переменная
-                System.out.println("Scope3: " + variableName + " " + currentScope);
-                if (Objects.equals(variableName, name)) {
-                    parentScopeVars = scopeName;
-                }
-//                System.out.println("  Variable Name: " + variableName + ", Value: " + variable.getValue());
-            }
+        int constants = readLength(in, limit);
+        for (int i = 0; i < constants; i++) {
+            chunk.appendConstant(readConstant(in, limit));
         }
-        System.out.println(parentScopeVars);
-        if (parentScopeVars != null) {
-            // Логируем переход в родительскую область
-            System.out.println("Переходим в родительскую область: " + parentScopeVars);
-
-            // Рекурсивно ищем переменную в родительской области
-            return getVariableRecursive(name, parentScopeVars);
+        int caches = readLength(in, limit);
+        for (int i = 0; i < caches; i++) {
+            chunk.addFieldCache(in.readUTF());
         }
-
-        // Если переменная не найдена в родительских областях
-        printAllVariables();
-        System.out.println("Переменная " + name + " не найдена в родительской области.");
-        throw new RuntimeException("Переменная " + name + " не найдена в области " + currentScope + ".");
+        return proto;
     }
 
-
-
-
-
-    private String determineType(Object value) {
+    private static void writeConstant(DataOutputStream out, Object value) throws IOException {
         if (value instanceof Integer) {
-            return "int";
-        } else if (value instanceof Double || value instanceof Float) {
-            return "real";
-        } else if (value instanceof Boolean) {
-            return "boolean";
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(REAL);
+            out.writeDouble((Double) value);
         } else if (value instanceof String) {
-            return "string";
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof String[]) {
+            String[] keys = (String[]) value;
+            out.writeByte(KEYS);
+            out.writeInt(keys.length);
+            for (String key : keys) {
+                out.writeUTF(key);
+            }
+        } else if (value instanceof FunctionProto) {
+            out.writeByte(FUNCTION);
+            writeFunction(out, (FunctionProto) value);
+        } else {
+            throw new IllegalArgumentException("constant " + value + " cannot be cached");
         }
-        throw new RuntimeException("Unsupported value type: " + value.getClass());
-    }
-
-    public Map<String, Variable> getVariablesInScope(String scopeType) {
-        return scopedVariables.getOrDefault(scopeType, new HashMap<>());
     }
 
-    public void printAllVariables() {
-        System.out.println("Environment: " + name);
-        System.out.println("Scope Type: " + scopeType);
-        System.out.println("Scoped Variables:");
-
-        for (Map.Entry<String, Map<String, Variable>> scopeEntry : scopedVariables.entrySet()) {
-            String scope = scopeEntry.getKey();
-            Map<String, Variable> variables = scopeEntry.getValue();
-            System.out.println("  Scope: " + scope);
-
-            for (Variable variable : variables.values()) {
-                System.out.println("    " + variable);
+    private static Object readConstant(DataInputStream in, long limit) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case INT: return in.readInt();
+            case REAL: return in.readDouble();
+            case STRING: return in.readUTF();
+            case BOOLEAN: return in.readBoolean();
+            case KEYS: {
+                String[] keys = new String[readLength(in, limit)];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = in.readUTF();
+                }
+                return keys;
             }
+            case FUNCTION: return readFunction(in, limit);
+            default: throw new IOException("unknown constant tag " + tag);
         }
     }
+}
 
-    public Environment deepCopy() {
-        Environment copy = new Environment(this.name, this.scopeType);
+// Переводит оптимизированное AST в байткод для VirtualMachine
+class BytecodeCompiler {
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final FunctionProto proto;
+        final Map<String, Integer> locals = new HashMap<>();
 
-        // Копируем все области видимости и переменные
-        for (Map.Entry<String, Map<String, Variable>> scopeEntry : this.scopedVariables.entrySet()) {
-            String scope = scopeEntry.getKey();
-            Map<String, Variable> originalVariables = scopeEntry.getValue();
+        FunctionState(FunctionState enclosing, FunctionProto proto) {
+            this.enclosing = enclosing;
+            this.proto = proto;
+        }
 
-            // Создаем копию переменных для каждой области
-            Map<String, Variable> copiedVariables = new HashMap<>();
-            for (Map.Entry<String, Variable> varEntry : originalVariables.entrySet()) {
-                Variable originalVariable = varEntry.getValue();
-                copiedVariables.put(varEntry.getKey(), originalVariable.deepCopy());
+        int declare(String name) {
+            Integer slot = locals.get(name);
+            if (slot == null) {
+                slot = locals.size();
+                locals.put(name, slot);
             }
-
-            // Добавляем скопированные переменные в новую область видимости
-            copy.scopedVariables.put(scope, copiedVariables);
+            return slot;
         }
-
-        return copy;
     }
 
+    private final Map<String, Integer> globals = new LinkedHashMap<>();
+    private FunctionState current;
+    private int hiddenCounter = 0;
 
-    public void syncFunctions(Environment sourceEnv) {
-        // Перебираем все переменные в sourceEnv
-        for (Map.Entry<String, Map<String, Variable>> scopeEntry : sourceEnv.scopedVariables.entrySet()) {
-            String scopeType = scopeEntry.getKey();
-            Map<String, Variable> variables = scopeEntry.getValue();
-
-            for (Variable variable : variables.values()) {
-                // Проверяем, является ли переменная функцией
-//                sourceEnv.printAllVariables();
-                String functionName = null;
-                if (variable.getValue() != null) {
-                    if (variable.getValue() instanceof BlockNode) {
-                        functionName = ((IdentifierNode) (((BlockNode) variable.getValue()).getChildren().get(0).getChildren().get(0))).getName();
-                    }
-                }
-
-                if (Objects.equals(functionName, scopeType)) {
-                    functionName = null;
-                }
-
-//                System.out.println(variable.getValue());
-                if (functionName != null) {
-//                    String functionName = variable.getName();
-                    // Проверяем, есть ли эта функция в текущем окружении
-                    if (!this.haveVariableReal(functionName, scopeType)) {
-                        // Копируем функцию в ту же область видимости
-                        this.addVariable(functionName, variable.getValue(), scopeType);
-
-                        // Копируем связанные переменные (с областью видимости как имя функции)
-                        Map<String, Variable> functionScopeVars = sourceEnv.getVariablesInScope(functionName);
-                        for (Variable funcVar : functionScopeVars.values()) {
-                            this.addVariable(funcVar.getName(), funcVar.getValue(), functionName);
-                        }
-                    }
-                }
-            }
+    public FunctionProto compile(ProgramNode program) {
+        FunctionProto script = new FunctionProto("script", 0);
+        current = new FunctionState(null, script);
+        for (Node child : program.getChildren()) {
+            compileStatement(child);
         }
+        emit(Opcode.HALT);
+        return script;
     }
 
-
-
-
-}
-
-
-class LexerException extends RuntimeException {
-    public LexerException(String message) {
-        super(message);
+    public int getGlobalCount() {
+        return globals.size();
     }
-}
-
-class Span {
-    public long lineNum;
-    public int posBegin, posEnd;
 
-    public Span(long lineNum, int posBegin, int posEnd) {
-        this.lineNum = lineNum;
-        this.posBegin = posBegin;
-        this.posEnd = posEnd;
+    public String[] getGlobalNames() {
+        return globals.keySet().toArray(new String[0]);
     }
 
-    public int getPosBegin() {
-        return posBegin + 1;
+    private Chunk chunk() {
+        return current.proto.chunk;
     }
 
-    public int getPosEnd() {
-        return posEnd + 1;
+    private int emit(int value) {
+        return chunk().emit(value);
     }
-}
-
-class Token {
-    protected Span span;        // диапазон токена
-    protected TokenCode code;   // код токена (из TokenCode)
 
-
-    public Token(TokenCode code, Span span) {
-        this.code = code;
-        this.span = span;
+    private void emit(int op, int operand) {
+        emit(op);
+        emit(operand);
     }
 
-
-    public void print() {
-        System.out.print(code + " ");
+    private void emit(int op, int first, int second) {
+        emit(op);
+        emit(first);
+        emit(second);
     }
 
-    public void fullPrint() {
-        System.out.println(code + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    private void emit(int op, int first, int second, int third) {
+        emit(op, first, second);
+        emit(third);
     }
 
-}
-
-
-class Identifier extends Token {
-    public String identifier;
+    private void emitConstant(Object value) {
+        if (value == null) {
+            emit(Opcode.NIL);
+        } else {
+            emit(Opcode.CONST, chunk().addConstant(value));
+        }
+    }
 
-    public Identifier(String identifier, Span span) {
-        super(TokenCode.IDENTIFIER, span);
-        this.identifier = identifier;
+    private int emitJump(int op) {
+        emit(op);
+        return emit(-1);
     }
 
-    public void print() {
-        System.out.print(code + "[" + this.identifier + "] ");
+    private void patchJump(int position) {
+        chunk().patch(position, chunk().size());
     }
 
-    public void fullPrint() {
-        System.out.println(code + " [Val: " + this.identifier + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    private boolean isScript() {
+        return current.enclosing == null;
     }
-}
 
+    private int globalSlot(String name) {
+        Integer slot = globals.get(name);
+        if (slot == null) {
+            slot = globals.size();
+            globals.put(name, slot);
+        }
+        return slot;
+    }
 
-class RealToken extends Token {
-    public double value;
+    private Integer resolveLocal(String name) {
+        if (isScript()) {
+            return null;
+        }
+        Integer slot = current.locals.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        // Замыканий в VM нет: локальные переменные внешней функции недоступны
+        for (FunctionState state = current.enclosing; state != null && state.enclosing != null; state = state.enclosing) {
+            if (state.locals.containsKey(name)) {
+                throw new CompileException("Closures are not supported: " + name);
+            }
+        }
+        if (name.equals(current.proto.name)) {
+            return null;
+        }
+        // Как в Environment: функции видна глобальная область только под ее собственным именем.
+        // Другое имя - локальная без значения, и чтение падает с той же ошибкой, что в интерпретаторе
+        return current.declare(name);
+    }
 
-    public RealToken(double value, Span span) {
-        super(TokenCode.REAL_LITERAL, span);
-        this.value = value;
+    // Переменная для arr.i одним операндом: слот + 1 у локальной, -(слот + 1) у глобальной, 0 - такой
+    // переменной нет. Имя поля не объявляет глобальную и не считается обращением к внешней функции;
+    // в функции это ее локальная, как в resolveLocal
+    private int variableOperand(String name) {
+        if (!isScript() && !name.equals(current.proto.name)) {
+            return current.declare(name) + 1;
+        }
+        Integer global = globals.get(name);
+        return global == null ? 0 : -(global + 1);
     }
 
-    public void print() {
-        System.out.print(code + "[" + this.value + "] ");
+    private void emitLoad(String name) {
+        Integer local = resolveLocal(name);
+        if (local != null) {
+            emit(Opcode.LOAD_LOCAL, local);
+        } else {
+            emit(Opcode.LOAD_GLOBAL, globalSlot(name));
+        }
     }
 
-    public void fullPrint() {
-        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    private void emitStore(String name) {
+        Integer local = resolveLocal(name);
+        if (local != null) {
+            emit(Opcode.STORE_LOCAL, local);
+        } else {
+            emit(Opcode.STORE_GLOBAL, globalSlot(name));
+        }
     }
-}
 
-class BooleanToken extends Token {
-    public boolean value;
+    // Скрытая переменная для счетчиков циклов
+    private String declareHidden() {
+        String name = "$" + hiddenCounter++;
+        if (!isScript()) {
+            current.declare(name);
+        }
+        return name;
+    }
 
-    public BooleanToken(boolean value, Span span) {
-        super(TokenCode.BOOLEAN_LITERAL, span);
-        this.value = value;
+    private void compileStatement(Node node) {
+        if (node == null || node instanceof ListNode || node instanceof DictionaryNode) {
+            return;
+        }
+        if (node instanceof VariableDeclarationNode) {
+            compileDeclaration((VariableDeclarationNode) node);
+        } else if (node instanceof FunctionDeclarationNode) {
+            FunctionDeclarationNode function = (FunctionDeclarationNode) node;
+            compileFunction(function);
+            emitStore(function.getName().getName());
+        } else if (node instanceof IfNode) {
+            compileIf((IfNode) node);
+        } else if (node instanceof WhileLoopNode) {
+            compileWhile((WhileLoopNode) node);
+        } else if (node instanceof ForLoopNode) {
+            compileFor((ForLoopNode) node);
+        } else if (node instanceof ReturnNode) {
+            Node expression = ((ReturnNode) node).getExpression();
+            if (isSelfCall(expression)) {
+                // Хвостовой вызов самой себя: новый кадр не нужен, аргументы встают на место параметров
+                List<Node> args = ((FunctionCall) expression).getParam().getChildren();
+                for (Node arg : args) {
+                    compileExpression(arg);
+                }
+                emit(Opcode.TAIL_CALL, args.size());
+            } else {
+                compileExpression(expression);
+                emit(Opcode.RETURN);
+            }
+        } else if (node instanceof PrintNode) {
+            for (Node element : ((PrintNode) node).getExpression().getChildren()) {
+                compileExpression(element);
+                emit(Opcode.PRINT);
+            }
+        } else if (node instanceof FunctionCall) {
+            compileExpression(node);
+            emit(Opcode.POP);
+        } else if (node instanceof BlockNode) {
+            for (Node child : node.getChildren()) {
+                compileStatement(child);
+            }
+        } else if (!(node instanceof IdentifierNode || node instanceof LiteralNode || node instanceof ExpressionNode)) {
+            // Выражения-операторы интерпретатор тоже пропускает
+            throw new CompileException("Unsupported statement: " + node);
+        }
     }
 
-
-    public void print() {
-        System.out.print(code + "[" + this.value + "] ");
+    private void compileDeclaration(VariableDeclarationNode node) {
+        if (node.dictionaryEntryCall != null) {
+            compileIndexAssignment(node.dictionaryEntryCall, node.initializer);
+            return;
+        }
+        if (node.initializer instanceof FunctionDeclarationNode) {
+            compileFunction((FunctionDeclarationNode) node.initializer);
+        } else {
+            compileExpression(node.initializer);
+        }
+        emitStore(node.variableName.getName());
     }
 
-    public void fullPrint() {
-        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    private void patchJumps(List<Integer> positions) {
+        for (int position : positions) {
+            patchJump(position);
+        }
     }
-}
-
-class IntegerToken extends Token {
-    public int value;
 
-    public IntegerToken(int value, Span span) {
-        super(TokenCode.INTEGER_LITERAL, span);
-        this.value = value;
+    // Условие перехода: для and каждый операнд проверяется своим JUMP_IF_FALSE,
+    // и первый ложный сразу уходит на ветку false, не вычисляя остальные
+    private void compileCondition(Node node, List<Integer> falseJumps) {
+        if (node instanceof ExpressionNode && ((ExpressionNode) node).getOperator() == TokenCode.AND) {
+            compileCondition(((ExpressionNode) node).getLeftOp(), falseJumps);
+            compileCondition(((ExpressionNode) node).getRightOp(), falseJumps);
+            return;
+        }
+        compileExpression(node);
+        falseJumps.add(emitJump(Opcode.JUMP_IF_FALSE));
     }
 
-    public void print() {
-        System.out.print(code + "[" + this.value + "] ");
+    private void compileIf(IfNode node) {
+        List<Integer> elseJumps = new ArrayList<>();
+        compileCondition(node.getCondition(), elseJumps);
+        compileStatement(node.getThenBody());
+        if (node.getElseBody() != null) {
+            int endJump = emitJump(Opcode.JUMP);
+            patchJumps(elseJumps);
+            compileStatement(node.getElseBody());
+            patchJump(endJump);
+        } else {
+            patchJumps(elseJumps);
+        }
+    }
+
+    private void compileWhile(WhileLoopNode node) {
+        int loopStart = chunk().size();
+        List<Integer> exitJumps = new ArrayList<>();
+        compileCondition(node.getCondition(), exitJumps);
+        compileStatement(node.getBody());
+        emit(Opcode.JUMP, loopStart);
+        patchJumps(exitJumps);
+    }
+
+    private void compileFor(ForLoopNode node) {
+        String counter = declareHidden();
+        if (node.getEnd() != null) {
+            // for i in start..end: конец не включается, как в интерпретаторе
+            String limit = declareHidden();
+            compileExpression(node.getStart().getChildren().get(0));
+            emitStore(counter);
+            compileExpression(node.getEnd().getChildren().get(0));
+            emitStore(limit);
+            // Переменная цикла получает начало диапазона и при пустом диапазоне, как в ForLoopNode
+            emitLoad(counter);
+            emitStore(node.getName());
+            int loopStart = chunk().size();
+            emitLoad(counter);
+            emitLoad(limit);
+            emit(Opcode.LESS);
+            int exitJump = emitJump(Opcode.JUMP_IF_FALSE);
+            emitLoad(counter);
+            emitStore(node.getName());
+            compileStatement(node.getBody());
+            emitLoad(counter);
+            emitConstant(1);
+            emit(Opcode.ADD);
+            emitStore(counter);
+            emit(Opcode.JUMP, loopStart);
+            patchJump(exitJump);
+        } else {
+            // for x in array
+            String array = declareHidden();
+            compileExpression(node.getStart().getChildren().get(0));
+            emitStore(array);
+            emitConstant(0);
+            emitStore(counter);
+            int loopStart = chunk().size();
+            emitLoad(counter);
+            emitLoad(array);
+            emit(Opcode.LENGTH);
+            emit(Opcode.LESS);
+            int exitJump = emitJump(Opcode.JUMP_IF_FALSE);
+            emitLoad(array);
+            emitLoad(counter);
+            emit(Opcode.GET_INDEX);
+            emitStore(node.getName());
+            compileStatement(node.getBody());
+            emitLoad(counter);
+            emitConstant(1);
+            emit(Opcode.ADD);
+            emitStore(counter);
+            emit(Opcode.JUMP, loopStart);
+            patchJump(exitJump);
+        }
+    }
+
+    private void compileFunction(FunctionDeclarationNode node) {
+        String name = node.getName().getName();
+        List<Node> params = node.header.getChildren().get(1).getChildren();
+        FunctionProto proto = new FunctionProto(name, params.size());
+        FunctionState state = new FunctionState(current, proto);
+        for (Node param : params) {
+            state.declare(((VariableDeclarationNode) param).variableName.getName());
+        }
+        collectLocals(node.functionBody, state);
+
+        current = state;
+        compileStatement(node.functionBody);
+        emit(Opcode.NIL);
+        emit(Opcode.RETURN);
+        proto.numLocals = state.locals.size();
+        proto.localNames = new String[proto.numLocals];
+        for (Map.Entry<String, Integer> local : state.locals.entrySet()) {
+            proto.localNames[local.getValue()] = local.getKey();
+        }
+        current = state.enclosing;
+
+        emitConstant(proto);
+    }
+
+    // Все, что объявлено или присвоено внутри функции, - ее локальные переменные
+    private void collectLocals(Node node, FunctionState state) {
+        if (node == null || node instanceof ListNode || node instanceof DictionaryNode) {
+            return;
+        }
+        if (node instanceof VariableDeclarationNode) {
+            VariableDeclarationNode declaration = (VariableDeclarationNode) node;
+            if (declaration.dictionaryEntryCall == null && declaration.variableName != null) {
+                state.declare(declaration.variableName.getName());
+            }
+            if (declaration.initializer instanceof FunctionDeclarationNode) {
+                return;
+            }
+        } else if (node instanceof FunctionDeclarationNode) {
+            state.declare(((FunctionDeclarationNode) node).getName().getName());
+            return;
+        } else if (node instanceof ForLoopNode) {
+            state.declare(((ForLoopNode) node).getName());
+        }
+        for (Node child : node.getChildren()) {
+            collectLocals(child, state);
+        }
     }
 
-    public void fullPrint() {
-        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    private void compileExpression(Node node) {
+        if (node == null) {
+            emit(Opcode.NIL);
+        } else if (node instanceof LiteralNode) {
+            LiteralNode literal = (LiteralNode) node;
+            emitConstant(Objects.equals(literal.getType(), "empty") ? null : literal.getValue());
+        } else if (node instanceof IdentifierNode) {
+            emitLoad(((IdentifierNode) node).getName());
+        } else if (node instanceof ExpressionNode) {
+            compileOperation((ExpressionNode) node);
+        } else if (node instanceof ListNode) {
+            List<Node> elements = ((ListNode) node).getElements().getChildren();
+            for (Node element : elements) {
+                compileExpression(element);
+            }
+            emit(Opcode.BUILD_LIST, elements.size());
+        } else if (node instanceof DictionaryNode) {
+            List<Node> entries = ((DictionaryNode) node).getEntries().getChildren();
+            String[] keys = new String[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                DictionaryEntryNode entry = (DictionaryEntryNode) entries.get(i);
+                keys[i] = ((IdentifierNode) entry.getKey()).getName();
+                compileExpression(entry.getValue());
+            }
+            emit(Opcode.BUILD_TUPLE, chunk().addConstant(keys), keys.length);
+        } else if (node instanceof DictionaryEntryCall) {
+            compileIndexRead((DictionaryEntryCall) node);
+        } else if (node instanceof FunctionCall) {
+            compileCall((FunctionCall) node);
+        } else {
+            throw new CompileException("Unsupported expression: " + node);
+        }
     }
-}
 
+    private void compileOperation(ExpressionNode node) {
+        TokenCode operator = node.getOperator();
+        if (operator == TokenCode.NOT) {
+            compileExpression(node.getRightOp());
+            emit(Opcode.NOT);
+            return;
+        }
+        if (operator == TokenCode.AND || operator == TokenCode.OR) {
+            compileLogical(node);
+            return;
+        }
+        if (operator == TokenCode.IS) {
+            compileExpression(node.getLeftOp());
+            emit(Opcode.TYPE_IS, chunk().addConstant(((LiteralNode) node.getRightOp()).getValue()));
+            return;
+        }
+        compileExpression(node.getLeftOp());
+        compileExpression(node.getRightOp());
+        switch (operator) {
+            case PLUS: emit(Opcode.ADD); break;
+            case MINUS: emit(Opcode.SUB); break;
+            case MULTIPLY: emit(Opcode.MUL); break;
+            case DIVIDE: emit(Opcode.DIV); break;
+            case LESS: emit(Opcode.LESS); break;
+            case GREATER: emit(Opcode.GREATER); break;
+            case LESS_EQUAL: emit(Opcode.LESS_EQUAL); break;
+            case GREATER_EQUAL: emit(Opcode.GREATER_EQUAL); break;
+            case EQUAL: emit(Opcode.EQUAL); break;
+            case NOT_EQUAL: emit(Opcode.NOT_EQUAL); break;
+            case AND: emit(Opcode.AND); break;
+            case OR: emit(Opcode.OR); break;
+            case XOR: emit(Opcode.XOR); break;
+            default:
+                throw new CompileException("Unsupported operator: " + operator);
+        }
+    }
 
-class StringToken extends Token {
-    public String value;
+    // Значение and/or через переходы: правый операнд вычисляется, только если левый не решил результат
+    private void compileLogical(ExpressionNode node) {
+        List<Integer> falseJumps = new ArrayList<>();
+        int trueJump = -1;
+        if (node.getOperator() == TokenCode.AND) {
+            compileCondition(node, falseJumps);
+        } else {
+            compileExpression(node.getLeftOp());
+            int rightJump = emitJump(Opcode.JUMP_IF_FALSE);
+            emitConstant(true);
+            trueJump = emitJump(Opcode.JUMP);
+            patchJump(rightJump);
+            compileCondition(node.getRightOp(), falseJumps);
+        }
+        emitConstant(true);
+        int endJump = emitJump(Opcode.JUMP);
+        patchJumps(falseJumps);
+        emitConstant(false);
+        patchJump(endJump);
+        if (trueJump >= 0) {
+            patchJump(trueJump);
+        }
+    }
+
+    // Индекс на стек: номер элемента или вычисленное выражение
+    private void compileIndex(DictionaryEntryCall call) {
+        if (call.getKind() == DictionaryEntryCall.POSITION) {
+            emitConstant(call.getPosition());
+        } else {
+            compileExpression(call.getValue());
+        }
+    }
 
-    public StringToken(String value, Span span) {
-        super(TokenCode.STRING_LITERAL, span);
-        this.value = value;
+    private void compileIndexRead(DictionaryEntryCall call) {
+        compileExpression(call.getKey());
+        switch (call.getKind()) {
+            case DictionaryEntryCall.LENGTH:
+                emit(Opcode.LENGTH);
+                break;
+            case DictionaryEntryCall.FIELD:
+                // tpl.a - поле по имени; для списка arr.i индекс берется из переменной i, но читается она
+                // только когда контейнер оказался списком
+                emit(Opcode.GET_FIELD, chunk().addConstant(call.getMember()), chunk().addFieldCache(call.getMember()),
+                        variableOperand(call.getMember()));
+                break;
+            default:
+                compileIndex(call);
+                emit(Opcode.GET_INDEX);
+        }
     }
 
+    private void compileIndexAssignment(DictionaryEntryCall target, Node initializer) {
+        compileExpression(target.getKey());
+        switch (target.getKind()) {
+            case DictionaryEntryCall.LENGTH:
+                throw new CompileException("Length cannot be assigned");
+            case DictionaryEntryCall.FIELD:
+                compileExpression(initializer);
+                emit(Opcode.SET_FIELD, chunk().addConstant(target.getMember()), chunk().addFieldCache(target.getMember()),
+                        variableOperand(target.getMember()));
+                break;
+            default:
+                compileIndex(target);
+                compileExpression(initializer);
+                emit(Opcode.SET_INDEX);
+        }
+    }
 
-    public void print() {
-        System.out.print(code + "[" + this.value + "] ");
+    // return f(...) внутри f, где f - сама функция, а не локальная переменная с тем же именем
+    private boolean isSelfCall(Node expression) {
+        if (isScript() || !(expression instanceof FunctionCall)) {
+            return false;
+        }
+        FunctionCall call = (FunctionCall) expression;
+        String name = call.getFuncIdentifier().getName();
+        return name.equals(current.proto.name) && !current.locals.containsKey(name)
+                && call.getParam().getChildren().size() == current.proto.arity;
     }
 
-    public void fullPrint() {
-        System.out.println(code + " [Val: " + this.value + "]" + " [Line:" + span.lineNum + " pos: " + span.getPosBegin() + ":" + span.getPosEnd() + "]");
+    private void compileCall(FunctionCall call) {
+        String name = call.getFuncIdentifier().getName();
+        if (name.equals("Read INT")) {
+            emit(Opcode.READ, ProgramInput.INT);
+        } else if (name.equals("Read REAL")) {
+            emit(Opcode.READ, ProgramInput.REAL);
+        } else if (name.equals("Read STRING")) {
+            emit(Opcode.READ, ProgramInput.STRING);
+        } else {
+            emitLoad(name);
+            List<Node> args = call.getParam().getChildren();
+            for (Node arg : args) {
+                compileExpression(arg);
+            }
+            emit(Opcode.CALL, args.size());
+        }
     }
 }
 
+// Стековая машина: локальные переменные функции лежат на стеке значений начиная с base
+class VirtualMachine {
+    private static final int STACK_MAX = 1 << 16;
+    private static final int FRAMES_MAX = 4096;
+    // Переменная без значения, как в Frame: чтение ее - ошибка, а не empty
+    private static final Object UNDEFINED = Frame.UNDEFINED;
 
+    private final FunctionProto script;
+    private final String[] globalNames;
+    private final Object[] globals;
+    private final Object[] stack = new Object[STACK_MAX];
+    private final FunctionProto[] frameProtos = new FunctionProto[FRAMES_MAX];
+    private final int[] frameIps = new int[FRAMES_MAX];
+    private final int[] frameBases = new int[FRAMES_MAX];
+    private final ProgramOutput output = new ProgramOutput(System.out);
 
-class Optimizer {
-    public static boolean flag;
-    private SymbolTable symbolTable;
+    public VirtualMachine(FunctionProto script, String[] globalNames) {
+        this.script = script;
+        this.globalNames = globalNames;
+        this.globals = new Object[globalNames.length];
+        Arrays.fill(globals, UNDEFINED);
+    }
 
-    public Optimizer(SymbolTable symbolTable) {
-        this.symbolTable = symbolTable;
-        this.flag = false;
+    public Object[] getGlobals() {
+        return globals;
     }
 
-    public Node optimize(Node ast) {
-        do {
-            flag = false;
-            simplifyConstantExpressions(ast);
+    public void run() {
+        try {
+            execute();
+        } finally {
+            output.flush();
+        }
+    }
 
-            removeUnusedVariables(ast);
+    // Значение переменной из операнда GET_FIELD/SET_FIELD (см. BytecodeCompiler.variableOperand)
+    private Object variableValue(int variable, int base, String name, FunctionProto proto) {
+        Object value = variable == 0 ? UNDEFINED : variable > 0 ? stack[base + variable - 1] : globals[-variable - 1];
+        if (value == UNDEFINED) {
+            throw notFound(name, proto);
+        }
+        return value;
+    }
 
-        } while (flag);
-//        ast = removeUnusedVariables(ast);
-        return ast;
+    // То же сообщение, что у Environment.getVariable
+    private RuntimeException notFound(String name, FunctionProto proto) {
+        String scope = proto == script ? "global" : proto.name;
+        return new RuntimeException("Переменная " + name + " не найдена в области " + scope + ".");
     }
-    public void updateOperands(Node node) {
-        if (node instanceof ExpressionNode) {
-            ExpressionNode exprNode = (ExpressionNode) node;
-            List<Node> children = exprNode.getChildren();
-            if (children.size() >= 2) {
-                exprNode.setLeft(children.get(0));
-                exprNode.setRight(children.get(1));
+
+    private void execute() {
+        FunctionProto proto = script;
+        int[] code = proto.chunk.getCode();
+        Object[] constants = proto.chunk.getConstants();
+        FieldCache[] fieldCaches = proto.chunk.getFieldCaches();
+        Object[] stack = this.stack;
+        int ip = 0;
+        int base = 0;
+        int sp = 0;
+        int frameCount = 1;
+        frameProtos[0] = proto;
+
+        while (true) {
+            switch (code[ip++]) {
+                case Opcode.CONST:
+                    stack[sp++] = constants[code[ip++]];
+                    break;
+                case Opcode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case Opcode.POP:
+                    stack[--sp] = null;
+                    break;
+                case Opcode.LOAD_LOCAL: {
+                    int slot = code[ip++];
+                    Object value = stack[base + slot];
+                    if (value == UNDEFINED) {
+                        throw notFound(proto.localNames[slot], proto);
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case Opcode.STORE_LOCAL:
+                    stack[base + code[ip++]] = stack[--sp];
+                    break;
+                case Opcode.LOAD_GLOBAL: {
+                    int slot = code[ip++];
+                    Object value = globals[slot];
+                    if (value == UNDEFINED) {
+                        throw notFound(globalNames[slot], proto);
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case Opcode.STORE_GLOBAL:
+                    globals[code[ip++]] = stack[--sp];
+                    break;
+                case Opcode.ADD:
+                    sp--;
+                    stack[sp - 1] = add(stack[sp - 1], stack[sp]);
+                    break;
+                case Opcode.SUB:
+                    sp--;
+                    stack[sp - 1] = subtract(stack[sp - 1], stack[sp]);
+                    break;
+                case Opcode.MUL:
+                    sp--;
+                    stack[sp - 1] = multiply(stack[sp - 1], stack[sp]);
+                    break;
+                case Opcode.DIV:
+                    sp--;
+                    stack[sp - 1] = divide(stack[sp - 1], stack[sp]);
+                    break;
+                case Opcode.LESS:
+                    sp--;
+                    stack[sp - 1] = compare(stack[sp - 1], stack[sp]) < 0;
+                    break;
+                case Opcode.GREATER:
+                    sp--;
+                    stack[sp - 1] = compare(stack[sp - 1], stack[sp]) > 0;
+                    break;
+                case Opcode.LESS_EQUAL:
+                    sp--;
+                    stack[sp - 1] = compare(stack[sp - 1], stack[sp]) <= 0;
+                    break;
+                case Opcode.GREATER_EQUAL:
+                    sp--;
+                    stack[sp - 1] = compare(stack[sp - 1], stack[sp]) >= 0;
+                    break;
+                case Opcode.EQUAL:
+                    sp--;
+                    stack[sp - 1] = valuesEqual(stack[sp - 1], stack[sp]);
+                    break;
+                case Opcode.NOT_EQUAL:
+                    sp--;
+                    stack[sp - 1] = !valuesEqual(stack[sp - 1], stack[sp]);
+                    break;
+                case Opcode.AND:
+                    sp--;
+                    stack[sp - 1] = asBoolean(stack[sp - 1], "and") & asBoolean(stack[sp], "and");
+                    break;
+                case Opcode.OR:
+                    sp--;
+                    stack[sp - 1] = asBoolean(stack[sp - 1], "or") | asBoolean(stack[sp], "or");
+                    break;
+                case Opcode.XOR:
+                    sp--;
+                    stack[sp - 1] = asBoolean(stack[sp - 1], "xor") ^ asBoolean(stack[sp], "xor");
+                    break;
+                case Opcode.NOT:
+                    stack[sp - 1] = !asBoolean(stack[sp - 1], "not");
+                    break;
+                case Opcode.TYPE_IS:
+                    stack[sp - 1] = typeName(stack[sp - 1]).equals(constants[code[ip++]]);
+                    break;
+                case Opcode.JUMP:
+                    ip = code[ip];
+                    break;
+                case Opcode.JUMP_IF_FALSE: {
+                    int target = code[ip++];
+                    if (!asBoolean(stack[--sp], "condition")) {
+                        ip = target;
+                    }
+                    break;
+                }
+                case Opcode.CALL: {
+                    int argc = code[ip++];
+                    Object callee = stack[sp - argc - 1];
+                    if (!(callee instanceof FunctionProto)) {
+                        throw new RuntimeException("Value is not a function: " + callee);
+                    }
+                    FunctionProto function = (FunctionProto) callee;
+                    if (argc != function.arity) {
+                        throw new RuntimeException("Function " + function.name + " expects " + function.arity + " arguments, got " + argc);
+                    }
+                    if (frameCount == FRAMES_MAX || sp + function.numLocals + 256 >= STACK_MAX) {
+                        throw new RuntimeException("Stack overflow in " + function.name);
+                    }
+                    frameIps[frameCount - 1] = ip;
+                    frameProtos[frameCount] = function;
+                    frameBases[frameCount] = sp - argc;
+                    frameCount++;
+                    base = sp - argc;
+                    sp = base + function.numLocals;
+                    for (int i = base + argc; i < sp; i++) {
+                        stack[i] = UNDEFINED;
+                    }
+                    proto = function;
+                    code = function.chunk.getCode();
+                    constants = function.chunk.getConstants();
+                    fieldCaches = function.chunk.getFieldCaches();
+                    ip = 0;
+                    break;
+                }
+                case Opcode.TAIL_CALL: {
+                    int argc = code[ip++];
+                    int top = sp;
+                    System.arraycopy(stack, sp - argc, stack, base, argc);
+                    sp = base + proto.numLocals;
+                    Arrays.fill(stack, base + argc, sp, UNDEFINED);
+                    if (top > sp) {
+                        Arrays.fill(stack, sp, top, null);
+                    }
+                    ip = 0;
+                    break;
+                }
+                case Opcode.RETURN: {
+                    Object result = stack[--sp];
+                    frameCount--;
+                    if (frameCount == 0) {
+                        return;
+                    }
+                    sp = base - 1;
+                    stack[sp++] = result;
+                    proto = frameProtos[frameCount - 1];
+                    base = frameBases[frameCount - 1];
+                    ip = frameIps[frameCount - 1];
+                    code = proto.chunk.getCode();
+                    constants = proto.chunk.getConstants();
+                    fieldCaches = proto.chunk.getFieldCaches();
+                    break;
+                }
+                case Opcode.PRINT:
+                    output.println(stack[--sp]);
+                    stack[sp] = null;
+                    break;
+                case Opcode.READ:
+                    // Подсказка перед вводом должна быть видна
+                    output.flush();
+                    stack[sp++] = ProgramInput.read(code[ip++]);
+                    break;
+                case Opcode.BUILD_LIST: {
+                    int count = code[ip++];
+                    PersistentVector list = new PersistentVector();
+                    for (int i = sp - count; i < sp; i++) {
+                        list.add(stack[i]);
+                    }
+                    sp -= count;
+                    stack[sp++] = list;
+                    break;
+                }
+                case Opcode.BUILD_TUPLE: {
+                    String[] keys = (String[]) constants[code[ip++]];
+                    int count = code[ip++];
+                    Shape shape = Shape.of(keys);
+                    Object[] values = new Object[shape.size()];
+                    for (int i = 0; i < count; i++) {
+                        values[shape.slot(keys[i])] = stack[sp - count + i];
+                    }
+                    Tuple tuple = new Tuple(shape, values);
+                    sp -= count;
+                    stack[sp++] = tuple;
+                    break;
+                }
+                case Opcode.GET_INDEX:
+                    sp--;
+                    stack[sp - 1] = getIndex(stack[sp - 1], stack[sp]);
+                    break;
+                case Opcode.GET_FIELD: {
+                    String name = (String) constants[code[ip++]];
+                    FieldCache cache = fieldCaches[code[ip++]];
+                    int variable = code[ip++];
+                    Object container = stack[sp - 1];
+                    if (container instanceof Tuple) {
+                        stack[sp - 1] = cache.get((Tuple) container);
+                    } else if (container instanceof List<?>) {
+                        stack[sp - 1] = getIndex(container, variableValue(variable, base, name, proto));
+                    } else {
+                        stack[sp - 1] = getField(container, name);
+                    }
+                    break;
+                }
+                case Opcode.SET_INDEX:
+                    sp -= 3;
+                    setIndex(stack[sp], stack[sp + 1], stack[sp + 2]);
+                    break;
+                case Opcode.SET_FIELD: {
+                    String name = (String) constants[code[ip++]];
+                    FieldCache cache = fieldCaches[code[ip++]];
+                    int variable = code[ip++];
+                    sp -= 2;
+                    if (stack[sp] instanceof Tuple) {
+                        cache.set((Tuple) stack[sp], stack[sp + 1]);
+                    } else if (stack[sp] instanceof List<?>) {
+                        setIndex(stack[sp], variableValue(variable, base, name, proto), stack[sp + 1]);
+                    } else {
+                        setField(stack[sp], name, stack[sp + 1]);
+                    }
+                    break;
+                }
+                case Opcode.LENGTH:
+                    stack[sp - 1] = length(stack[sp - 1]);
+                    break;
+                case Opcode.HALT:
+                    return;
+                default:
+                    throw new RuntimeException("Unknown opcode " + code[ip - 1]);
             }
         }
     }
-    private Node simplifyConstantExpressions(Node node) {
-        for (int i = 0; i < node.getChildren().size(); i++) {
-            Node child = node.getChildren().get(i);
-            if (child != null) {
-                Node optimizedChild = simplifyConstantExpressions(child);
-                if (optimizedChild instanceof ExpressionNode exprNode && exprNode.isConstant()) {
-                    node.getChildren().set(i, exprNode.evaluate());
-                } else {
 
-                    node.getChildren().set(i, optimizedChild);
-                }
-                updateOperands(node);
+    public void printGlobals() {
+        System.out.println("Globals:");
+        for (int i = 0; i < globalNames.length; i++) {
+            if (!globalNames[i].startsWith("$") && globals[i] != UNDEFINED) {
+                System.out.println("    " + globalNames[i] + " = " + display(globals[i]));
             }
         }
-        return node;
     }
 
-    private Node removeUnusedVariables(Node node) {
+    static String typeName(Object value) {
+        if (value == null) {
+            return "empty";
+        } else if (value instanceof Integer) {
+            return "int";
+        } else if (value instanceof Double || value instanceof Float) {
+            return "real";
+        } else if (value instanceof Boolean) {
+            return "boolean";
+        } else if (value instanceof String) {
+            return "string";
+        } else if (value instanceof List<?>) {
+            return "array";
+        } else if (value instanceof Tuple) {
+            return "tuple";
+        } else if (value instanceof FunctionProto) {
+            return "function";
+        }
+        throw new RuntimeException("Unsupported value type: " + value.getClass());
+    }
 
-        Set<String> usedVariables = new HashSet<>();
-        markUsedVariables(node, usedVariables);
+    static String display(Object value) {
+        return value == null ? "empty" : value.toString();
+    }
 
+    private static RuntimeException invalidOperands(Object left, Object right) {
+        return new RuntimeException("Invalid operand types for operation: " + typeName(left) + " and " + typeName(right));
+    }
 
-        return pruneUnusedVariables(node, usedVariables);
+    static Object add(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer) left + (Integer) right;
+        } else if (left instanceof Number && right instanceof Number) {
+            return ((Number) left).doubleValue() + ((Number) right).doubleValue();
+        } else if (left instanceof String && right instanceof String) {
+            return (String) left + right;
+        } else if (left instanceof List<?> && right instanceof List<?>) {
+            return PersistentVector.from((List<?>) left).concat((List<?>) right);
+        } else if (left instanceof Tuple && right instanceof Tuple) {
+            return ((Tuple) left).concat((Tuple) right);
+        }
+        throw invalidOperands(left, right);
     }
 
-    private void markUsedVariables(Node node, Set<String> usedVariables) {
-        if (node == null) return;
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer) left - (Integer) right;
+        } else if (left instanceof Number && right instanceof Number) {
+            return ((Number) left).doubleValue() - ((Number) right).doubleValue();
+        }
+        throw invalidOperands(left, right);
+    }
 
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer) left * (Integer) right;
+        } else if (left instanceof Number && right instanceof Number) {
+            return ((Number) left).doubleValue() * ((Number) right).doubleValue();
+        }
+        throw invalidOperands(left, right);
+    }
 
-        if (node instanceof IdentifierNode identifierNode) {
-            usedVariables.add(identifierNode.getName());
+    static Object divide(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            if ((Integer) right == 0) {
+                throw new ArithmeticException("Division by zero!");
+            }
+            return (Integer) left / (Integer) right;
+        } else if (left instanceof Number && right instanceof Number) {
+            if (((Number) right).doubleValue() == 0) {
+                throw new ArithmeticException("Division by zero!");
+            }
+            return ((Number) left).doubleValue() / ((Number) right).doubleValue();
         }
+        throw invalidOperands(left, right);
+    }
 
+    static int compare(Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return Integer.compare((Integer) left, (Integer) right);
+        } else if (left instanceof Number && right instanceof Number) {
+            return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+        }
+        throw invalidOperands(left, right);
     }
 
-    private Node pruneUnusedVariables(Node node, Set<String> usedVariables) {
-        if (node == null) return null;
+    // = и /= определены только для чисел, как в ExpressionNode.applyOperator
+    static boolean valuesEqual(Object left, Object right) {
+        if (left instanceof Number && right instanceof Number) {
+            return compare(left, right) == 0;
+        }
+        throw invalidOperands(left, right);
+    }
 
+    static boolean asBoolean(Object value, String context) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        throw new IllegalArgumentException("Invalid expression in " + context + ": expected boolean, found " + typeName(value));
+    }
 
-        try {
-            if (node instanceof VariableDeclarationNode declarationNode) {
-                String variableName = declarationNode.getName().getName();
-                if (!Objects.equals(this.symbolTable.getSymbolType(variableName + "_global"), "param")) {
-                    if (this.symbolTable.getSymbolUseNum(variableName + "_global") <= 0) {
-                        return null;
-                    }
-                }
-            }
-        } catch (NullPointerException e) {
-            System.out.println();
+    static int asIndex(Object value) {
+        if (value instanceof Integer) {
+            return (Integer) value;
         }
+        throw new RuntimeException("Bad type in index: " + typeName(value));
+    }
 
+    static Object getIndex(Object container, Object index) {
+        if (index instanceof String && container instanceof Tuple) {
+            // tpl[k], где k - строка с именем поля
+            return ((Tuple) container).get((String) index);
+        }
+        int i = asIndex(index);
+        if (container instanceof List<?>) {
+            return ((List<?>) container).get(i);
+        } else if (container instanceof Tuple) {
+            return ((Tuple) container).get(i);
+        }
+        throw new RuntimeException("Bad type in index: " + typeName(container));
+    }
 
+    static Object getField(Object container, String name) {
+        if (container instanceof Tuple) {
+            return ((Tuple) container).get(name);
+        }
+        throw new RuntimeException("Bad type in index: " + typeName(container));
+    }
 
-        List<Node> children = new ArrayList<>();
-        for (Node child : node.getChildren()) {
-            Node prunedChild = pruneUnusedVariables(child, usedVariables);
-            if (prunedChild != null) {
-                children.add(prunedChild);
-            }
+    @SuppressWarnings("unchecked")
+    static void setIndex(Object container, Object index, Object value) {
+        if (index instanceof String && container instanceof Tuple) {
+            ((Tuple) container).set((String) index, value);
+            return;
+        }
+        int i = asIndex(index);
+        if (container instanceof List<?>) {
+            List<Object> list = (List<Object>) container;
+            while (list.size() <= i) {
+                list.add(null);
+            }
+            list.set(i, value);
+        } else if (container instanceof Tuple) {
+            ((Tuple) container).set(i, value);
+        } else {
+            throw new IllegalArgumentException("Invalid structure: cannot update value at path");
         }
+    }
 
-        node.children = children;
-        return node;
+    static void setField(Object container, String name, Object value) {
+        if (container instanceof Tuple) {
+            ((Tuple) container).set(name, value);
+        } else {
+            throw new IllegalArgumentException("Invalid structure: cannot update value at path");
+        }
+    }
+
+    static Object length(Object container) {
+        if (container instanceof List<?>) {
+            return ((List<?>) container).size();
+        } else if (container instanceof Tuple) {
+            return ((Tuple) container).size();
+        } else if (container instanceof String) {
+            return ((String) container).length();
+        }
+        throw new RuntimeException("Bad type for length: " + typeName(container));
     }
 }
 
@@ -5080,384 +7719,535 @@ enum TokenCode {
 
     COMMENT,
 
-    // Идентификатор
-    IDENTIFIER,
+    // Идентификатор
+    IDENTIFIER,
+
+    // Конец файла
+    EOF
+}
+
+
+// Исходник из отображенного в память файла. UTF-8 декодируется кусками по мере чтения лексером,
+// в памяти держится только окно символов начиная с текущего токена
+class MappedSource {
+    private static final int DECODE_CHUNK = 1 << 16;
+
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+    private char[] chars = new char[DECODE_CHUNK];
+    private int offset = 0; // Номер символа chars[0] в исходнике
+    private int count = 0;
+    private boolean finished = false;
+
+    private MappedSource(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public static MappedSource open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Source file is too large: " + path);
+            }
+            return new MappedSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Декодирует символы до limit; символы до keepFrom больше не понадобятся.
+    // Возвращает, до какого номера символы доступны
+    public int fill(int limit, int keepFrom) {
+        while (offset + count < limit && !finished) {
+            if (count == chars.length) {
+                compact(keepFrom);
+            }
+            CharBuffer out = CharBuffer.wrap(chars, count, Math.min(chars.length - count, DECODE_CHUNK));
+            CoderResult result = decoder.decode(bytes, out, true);
+            if (result.isUnderflow()) {
+                decoder.flush(out);
+                finished = true;
+            }
+            count = out.position();
+        }
+        return offset + count;
+    }
+
+    private void compact(int keepFrom) {
+        int drop = keepFrom - offset;
+        if (drop < chars.length / 2) {
+            // Токен не помещается в окно (длинная строка или комментарий)
+            chars = Arrays.copyOf(chars, chars.length * 2);
+            return;
+        }
+        System.arraycopy(chars, drop, chars, 0, count - drop);
+        offset += drop;
+        count -= drop;
+    }
+
+    // Лексер читает окно напрямую; после fill массив может смениться
+    public char[] window() {
+        return chars;
+    }
+
+    public int windowOffset() {
+        return offset;
+    }
+}
+
+class Lexer implements Iterator<Token> {
+    private final String code; // Код который мы чекаем (null для отображенного файла)
+    private char[] window; // Окно отображенного файла
+    private int windowOffset = 0; // Номер символа window[0] в исходнике
+    private final MappedSource mapped; // null, если исходник целиком в памяти
+    private int length; // Сколько символов уже доступно
+    private int tokenStart = 0; // Начало текущего токена: раньше него окно исходника можно освобождать
+    private int lineNum = 1; // На какой сейчас строчке стоит поинт (для span)
+    private int currentCharNum = 0; // На каком индексе сейчас находимся
+    private boolean finished = false; // EOF уже отдан
+    private char[] scratch = new char[32]; // Буфер для имени из строкового исходника
+    // Последний разобранный токен: границы и значение (номер имени, число, 0/1 для логического, текст строки)
+    private int scannedBegin;
+    private int scannedEnd;
+    private int scannedInt;
+    private double scannedReal;
+    private String scannedText;
+
+    // Классы символов: один просмотр таблицы вместо поиска по списку спецсимволов
+    private static final byte WORD = 0;
+    private static final byte SPACE = 1;
+    private static final byte NEWLINE = 2;
+    private static final byte SYMBOL = 3;
+    private static final byte DIGIT = 4;
+    private static final byte QUOTE = 5;
+    private static final byte[] CHAR_CLASS = new byte[256];
+
+    // Ключевые слова в таблице с совершенным хешем: слот вычисляется по длине, первой, средней и последней букве
+    private static final String[] KEYWORDS = {
+            "or", "if", "in", "is", "and", "for", "xor", "not", "int", "var", "end",
+            "bool", "real", "true", "else", "func", "loop", "then",
+            "false", "empty", "print", "while", "string", "return", "length",
+            "readint", "readreal", "readstring"
+    };
+    private static final TokenCode[] KEYWORD_CODES = {
+            TokenCode.OR, TokenCode.IF, TokenCode.IN, TokenCode.IS, TokenCode.AND, TokenCode.FOR, TokenCode.XOR,
+            TokenCode.NOT, TokenCode.INT, TokenCode.VAR, TokenCode.END,
+            TokenCode.BOOL, TokenCode.REAL, TokenCode.TRUE, TokenCode.ELSE, TokenCode.FUNC, TokenCode.LOOP, TokenCode.THEN,
+            TokenCode.FALSE, TokenCode.EMPTY, TokenCode.PRINT, TokenCode.WHILE, TokenCode.STRING, TokenCode.RETURN, TokenCode.LENGTH,
+            TokenCode.READ_INT, TokenCode.READ_REAL, TokenCode.READ_STRING
+    };
+    private static final int KEYWORD_TABLE_SIZE = 64;
+    private static final String[] keywordTable = new String[KEYWORD_TABLE_SIZE];
+    private static final TokenCode[] keywordCodeTable = new TokenCode[KEYWORD_TABLE_SIZE];
+    private static final int keywordSeed;
+
+    static {
+        for (int c = 0; c < 256; c++) {
+            CHAR_CLASS[c] = Character.isWhitespace(c) ? SPACE : WORD;
+        }
+        CHAR_CLASS['\n'] = NEWLINE;
+        for (char c : "(),+/-=:;><[]{}.*".toCharArray()) {
+            CHAR_CLASS[c] = SYMBOL;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_CLASS[c] = DIGIT;
+        }
+        CHAR_CLASS['"'] = QUOTE;
+
+        keywordSeed = findKeywordSeed();
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            int slot = keywordHash(KEYWORDS[i], keywordSeed);
+            keywordTable[slot] = KEYWORDS[i];
+            keywordCodeTable[slot] = KEYWORD_CODES[i];
+        }
+    }
+
+    public Lexer (String code) {
+        this.code = code;
+        this.mapped = null;
+        this.length = code.length();
+    }
+
+    public Lexer(MappedSource source) {
+        this.code = null;
+        this.mapped = source;
+        this.length = 0;
+    }
+
+    private char charAt(int index) {
+        return code != null ? code.charAt(index) : window[index - windowOffset];
+    }
+
+    private String text(int begin, int end) {
+        return code != null ? code.substring(begin, end) : new String(window, begin - windowOffset, end - begin);
+    }
+
+    // Номер имени прямо из символов исходника: строка создается только для еще не встреченного имени
+    private int intern(int begin, int end) {
+        if (code == null) {
+            return Names.intern(window, begin - windowOffset, end - begin);
+        }
+        if (scratch.length < end - begin) {
+            scratch = new char[Math.max(scratch.length * 2, end - begin)];
+        }
+        code.getChars(begin, end, scratch, 0);
+        return Names.intern(scratch, 0, end - begin);
+    }
+
+    private boolean hasChar(int index) {
+        return index < this.length || more(index);
+    }
+
+    // Дочитываем отображенный файл
+    private boolean more(int index) {
+        if (mapped == null) {
+            return false;
+        }
+        this.length = mapped.fill(index + 1, tokenStart);
+        this.window = mapped.window();
+        this.windowOffset = mapped.windowOffset();
+        return index < this.length;
+    }
+
+    // Подбираем множитель, при котором у ключевых слов нет коллизий
+    private static int findKeywordSeed() {
+        for (int seed = 1; seed < 100000; seed++) {
+            boolean[] used = new boolean[KEYWORD_TABLE_SIZE];
+            boolean perfect = true;
+            for (String keyword : KEYWORDS) {
+                int slot = keywordHash(keyword, seed);
+                if (used[slot]) {
+                    perfect = false;
+                    break;
+                }
+                used[slot] = true;
+            }
+            if (perfect) {
+                return seed;
+            }
+        }
+        throw new IllegalStateException("No perfect hash for keywords");
+    }
+
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
 
-    // Конец файла
-    EOF
-}
+    private static int keywordHash(String keyword, int seed) {
+        int wordLength = keyword.length();
+        return keywordHash(keyword.charAt(0), keyword.charAt(wordLength - 1), keyword.charAt(wordLength / 2), wordLength, seed);
+    }
 
+    private static int keywordHash(char first, char last, char middle, int wordLength, int seed) {
+        int hash = lower(first) * seed + lower(last) * 31 + lower(middle) * 7 + wordLength;
+        hash ^= hash >>> 7;
+        return hash & (KEYWORD_TABLE_SIZE - 1);
+    }
 
-class Lexer {
-    private final String code; // Код который мы чекаем
-    private int lineNum = 1; // На какой сейчас строчке стоит поинт (для span)
-    private int currentCharNum = 0; // На каком индексе сейчас находимся
-    private List<Token> tokenList;
-    List<Character> symbolList = Arrays.asList('(', ')', ',', '+', '/', '-', '=', ':', ';', '>', '<', '[', ']', '{', '}', '.');
+    // Ключевые слова не зависят от регистра; строка не создается
+    private TokenCode keywordCode(int begin, int end) {
+        int wordLength = end - begin;
+        if (wordLength < 2 || wordLength > 10) {
+            return TokenCode.IDENTIFIER;
+        }
+        int slot = keywordHash(charAt(begin), charAt(end - 1), charAt(begin + wordLength / 2), wordLength, keywordSeed);
+        String keyword = keywordTable[slot];
+        if (keyword == null || keyword.length() != wordLength) {
+            return TokenCode.IDENTIFIER;
+        }
+        for (int i = 0; i < wordLength; i++) {
+            if (lower(charAt(begin + i)) != keyword.charAt(i)) {
+                return TokenCode.IDENTIFIER;
+            }
+        }
+        return keywordCodeTable[slot];
+    }
 
-    public Lexer (String code) {
-        this.code = code;
-        this.tokenList = new ArrayList<>();
+    private byte charClass(int num) {
+        char c = charAt(num);
+        if (c < 256) {
+            return CHAR_CLASS[c];
+        }
+        return Character.isWhitespace(c) ? SPACE : WORD;
     }
 
     private void spacesDelete() {
-        while (this.currentCharNum < this.code.length() && Character.isWhitespace(this.code.charAt(this.currentCharNum))) {
-            if (this.code.charAt(this.currentCharNum) == '\n') {
+        while (true) {
+            if (this.currentCharNum >= this.length) {
+                tokenStart = this.currentCharNum;
+                if (!more(this.currentCharNum)) {
+                    return;
+                }
+            }
+            byte charClass = charClass(this.currentCharNum);
+            if (charClass == NEWLINE) {
                 lineNum++;
-                System.out.println();
+            } else if (charClass != SPACE) {
+                return;
             }
-
             currentCharNum++;
         }
     }
 
+    // Слово - все до пробела или спецсимвола (как и раньше, идентификатор может содержать любые другие символы)
     private void findWordEnd() {
-        while(this.currentCharNum < this.code.length() && !Character.isWhitespace(this.code.charAt(this.currentCharNum)) && (!specSymbolCheck(this.currentCharNum))) {
+        while (hasChar(this.currentCharNum)) {
+            byte charClass = charClass(this.currentCharNum);
+            if (charClass == SPACE || charClass == NEWLINE || charClass == SYMBOL) {
+                return;
+            }
             currentCharNum++;
         }
     }
 
     private void findLineEnd() {
-        while(this.currentCharNum < this.code.length() && this.code.charAt(this.currentCharNum) != '\n') {
+        while (hasChar(this.currentCharNum) && charAt(this.currentCharNum) != '\n') {
             currentCharNum++;
         }
     }
 
-    public int findWordStart() {
-        int charNum = currentCharNum-1;
-        while(charNum > 0 && !Character.isWhitespace(this.code.charAt(charNum)) && (!specSymbolCheck(charNum))) {
-            charNum--;
-        }
-        return charNum+1;
-    }
-
-
-    private boolean digitCheck(Span span) {
-        for (int i = span.posBegin; i < span.posEnd; i++) {
-            if (!(Character.isDigit(this.code.charAt(i)) || this.code.charAt(i) == '.' || this.code.charAt(i) == ',')) {
-                System.out.println("Error " + this.code.charAt(i));
+    private boolean isDigits(int begin, int end) {
+        for (int i = begin; i < end; i++) {
+            if (charClass(i) != DIGIT) {
                 return false;
             }
         }
         return true;
     }
 
-    private int numberDelimCounter(Span span) {
-        int delNum = 0;
-        for (int i = span.posBegin; i < span.posEnd; i++) {
-            if (this.code.charAt(i) == '.' || this.code.charAt(i) == ',') delNum++;
+    // Дробная часть в том виде, который принимал Double.parseDouble: цифры, показатель e/E с цифрами
+    // и суффикс d/f. Знак показателя не входит в слово: + и - - отдельные символы
+    private boolean isFraction(int begin, int end) {
+        int i = begin;
+        while (i < end && charClass(i) == DIGIT) {
+            i++;
         }
-        return delNum;
-    }
-
-    private Token scanNumber(Span span) {
-
-        if (numberDelimCounter(span) > 1) {
-            throw new LexerException("Invalid real number format at line " + this.lineNum);
-        } else if (numberDelimCounter(span) == 1) {
-            double value = Double.valueOf(this.code.substring(span.posBegin, span.posEnd).replace(',', '.'));
-            return new RealToken(value, span);
-        } else {
-            int value = Integer.valueOf(this.code.substring(span.posBegin, span.posEnd).replace(',', '.'));
-            return new IntegerToken(value, span);
+        if (i < end && (charAt(i) == 'e' || charAt(i) == 'E')) {
+            int exponent = ++i;
+            while (i < end && charClass(i) == DIGIT) {
+                i++;
+            }
+            if (i == exponent) {
+                return false;
+            }
         }
+        if (i < end && "dDfF".indexOf(charAt(i)) >= 0) {
+            i++;
+        }
+        return i == end;
     }
 
-    private boolean specSymbolCheck(int num) {
-        return symbolList.contains(this.code.charAt(num));
+    private TokenCode scanInteger(int begin, int end) {
+        int value = 0;
+        for (int i = begin; i < end; i++) {
+            int digit = charAt(i) - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new LexerException("Integer literal is too large at line " + this.lineNum);
+            }
+            value = value * 10 + digit;
+        }
+        scannedInt = value;
+        return scanned(TokenCode.INTEGER_LITERAL, begin, end);
     }
 
-    private boolean commentCheck(int num) {
-        if (num+1 < this.code.length()) {
-            return this.code.substring(num, num + 2).equals("//");
-        }
-        return false;
+    private TokenCode scanned(TokenCode code, int begin, int end) {
+        scannedBegin = begin;
+        scannedEnd = end;
+        return code;
     }
 
-    private Token stringTokenFind() {
+    private TokenCode stringTokenFind() {
         this.currentCharNum++;
         int startNum = this.currentCharNum;
-        while (code.charAt(this.currentCharNum) != '"') {
-            if (code.charAt(this.currentCharNum) == '\n') {
+        while (hasChar(this.currentCharNum) && charAt(this.currentCharNum) != '"') {
+            if (charAt(this.currentCharNum) == '\n') {
                 lineNum++;
-                System.out.println();
             }
             currentCharNum++;
         }
-        String value = code.substring(startNum, currentCharNum);
-        Span span = new Span(lineNum, startNum, currentCharNum);
+        if (!hasChar(this.currentCharNum)) {
+            throw new LexerException("Unterminated string at line " + this.lineNum);
+        }
+        scannedText = text(startNum, currentCharNum);
+        scanned(TokenCode.STRING_LITERAL, startNum, currentCharNum);
         currentCharNum++;
-        return new StringToken(value, span);
-    }
-
-
-
-
-    public Token tokenFind() {
+        return TokenCode.STRING_LITERAL;
+    }
+
+    private static TokenCode symbolCode(char c) {
+        switch (c) {
+            case '<': return TokenCode.LESS;
+            case '>': return TokenCode.GREATER;
+            case ':': return TokenCode.COLON;
+            case '=': return TokenCode.EQUAL;
+            case '*': return TokenCode.MULTIPLY;
+            case '/': return TokenCode.DIVIDE;
+            case '-': return TokenCode.MINUS;
+            case '+': return TokenCode.PLUS;
+            case '(': return TokenCode.LPAREN;
+            case ')': return TokenCode.RPAREN;
+            case '[': return TokenCode.LBRACKET;
+            case ']': return TokenCode.RBRACKET;
+            case '{': return TokenCode.LBRACE;
+            case '}': return TokenCode.RBRACE;
+            case '.': return TokenCode.DOT;
+            case ',': return TokenCode.COMMA;
+            default: return TokenCode.SEMICOLON;
+        }
+    }
+
+    // Двухсимвольные операторы; null - такой пары нет
+    private static TokenCode symbolPairCode(char first, char second) {
+        switch (first) {
+            case '<': return second == '=' ? TokenCode.LESS_EQUAL : null;
+            case '>': return second == '=' ? TokenCode.GREATER_EQUAL : null;
+            case '.': return second == '.' ? TokenCode.TWO_DOT : null;
+            case '=': return second == '>' ? TokenCode.IMPLICATION : null;
+            case ':': return second == '=' ? TokenCode.ASSIGN : null;
+            case '/': return second == '=' ? TokenCode.NOT_EQUAL : null;
+            default: return null;
+        }
+    }
+
+    // Разбирает следующий токен: код возвращается, границы и значение остаются в полях scanned*
+    private TokenCode scan() {
         spacesDelete();
 
-        if (this.currentCharNum >= code.length() ) {
-            return new Token(TokenCode.EOF, new Span(lineNum, currentCharNum, currentCharNum));
+        if (!hasChar(this.currentCharNum)) {
+            return scanned(TokenCode.EOF, currentCharNum, currentCharNum);
         }
 
-        if (commentCheck(this.currentCharNum)) {
+        int firstCharNum = currentCharNum;
+        tokenStart = firstCharNum;
+        char first = charAt(firstCharNum);
+        byte charClass = charClass(firstCharNum);
+
+        if (first == '/' && hasChar(firstCharNum + 1) && charAt(firstCharNum + 1) == '/') {
             findLineEnd();
-            return new Token(TokenCode.COMMENT, new Span(lineNum, currentCharNum, currentCharNum));
+            return scanned(TokenCode.COMMENT, currentCharNum, currentCharNum);
         }
 
-        int firstCharNum = currentCharNum;
-
-        if (code.charAt(this.currentCharNum) == '"') {
+        if (charClass == QUOTE) {
             return stringTokenFind();
         }
 
-        if (specSymbolCheck(this.currentCharNum)) {
-            int offset = 1;
-            if (this.code.charAt(this.currentCharNum) == '.' && digitCheck(new Span(lineNum, this.currentCharNum+1, this.currentCharNum+2))) {
-                System.out.println(this.code.substring(findWordStart(), this.currentCharNum));
-                System.out.println(digitCheck(new Span(lineNum, findWordStart(), this.currentCharNum)));
-                System.out.println((this.code.charAt(this.currentCharNum+1) != '.'));
-                if (digitCheck(new Span(lineNum, findWordStart(), this.currentCharNum-1)) && (this.code.charAt(this.currentCharNum+1) != '.')){
-                    System.out.println(findWordStart());
-                    tokenList.remove(tokenList.size()-1);
-                    int charNumNew = findWordStart();
-                    this.currentCharNum++;
-                    findWordEnd();
-                    System.out.println(this.code.substring(charNumNew, this.currentCharNum));
-                    return scanNumber(new Span(lineNum, charNumNew, this.currentCharNum));
+        if (charClass == SYMBOL) {
+            if (hasChar(firstCharNum + 1)) {
+                TokenCode pair = symbolPairCode(first, charAt(firstCharNum + 1));
+                if (pair != null) {
+                    currentCharNum += 2;
+                    return scanned(pair, firstCharNum, currentCharNum);
                 }
             }
-            if (this.currentCharNum+1 < code.length() && specSymbolCheck(this.currentCharNum+1)) offset++;
-            TokenCode token = getKeywordTokenCode(this.code.substring(this.currentCharNum, this.currentCharNum+offset));
-            if (token == TokenCode.IDENTIFIER) {
-                offset = 1;
-                token = getKeywordTokenCode(this.code.substring(this.currentCharNum, this.currentCharNum+offset));
-            }
-            currentCharNum += offset;
-            return new Token(token, new Span(lineNum, this.currentCharNum, this.currentCharNum+offset));
+            currentCharNum++;
+            return scanned(symbolCode(first), firstCharNum, currentCharNum);
         }
 
         findWordEnd();
-
-        Span span = new Span(lineNum, firstCharNum, currentCharNum);
-
-        if (digitCheck(span)) {
-            return scanNumber(span);
+        int wordEnd = currentCharNum;
+
+        if (isDigits(firstCharNum, wordEnd)) {
+            // 3.14, 12.25e3: точка сразу после цифр, за ней цифра; остаток слова - дробная часть
+            if (hasChar(wordEnd + 1) && charAt(wordEnd) == '.' && charClass(wordEnd + 1) == DIGIT) {
+                currentCharNum = wordEnd + 1;
+                findWordEnd();
+                // Вторая точка с цифрой (3.14.15) - как и раньше, неверная запись числа
+                if (!isFraction(wordEnd + 1, currentCharNum)
+                        || hasChar(currentCharNum + 1) && charAt(currentCharNum) == '.' && charClass(currentCharNum + 1) == DIGIT) {
+                    throw new LexerException("Invalid real number format at line " + this.lineNum);
+                }
+                scannedReal = Double.parseDouble(text(firstCharNum, currentCharNum));
+                return scanned(TokenCode.REAL_LITERAL, firstCharNum, currentCharNum);
+            }
+            return scanInteger(firstCharNum, wordEnd);
         }
-        String word = this.code.substring(span.posBegin, span.posEnd).toLowerCase();
-        TokenCode token = getKeywordTokenCode(word);
+
+        TokenCode token = keywordCode(firstCharNum, wordEnd);
 
         if (token == TokenCode.IDENTIFIER) {
-            return new Identifier(this.code.substring(span.posBegin, span.posEnd), span);
+            scannedInt = intern(firstCharNum, wordEnd);
+        } else if (token == TokenCode.TRUE || token == TokenCode.FALSE) {
+            scannedInt = token == TokenCode.TRUE ? 1 : 0;
+            token = TokenCode.BOOLEAN_LITERAL;
         }
+        return scanned(token, firstCharNum, wordEnd);
+    }
 
-        if (token == TokenCode.TRUE) {
-            return new BooleanToken(true, span);
+    public Token tokenFind() {
+        TokenCode code = scan();
+        Span span = new Span(lineNum, scannedBegin, scannedEnd);
+        switch (code) {
+            case IDENTIFIER: return new Identifier(scannedInt, span);
+            case INTEGER_LITERAL: return new IntegerToken(scannedInt, span);
+            case REAL_LITERAL: return new RealToken(scannedReal, span);
+            case STRING_LITERAL: return new StringToken(scannedText, span);
+            case BOOLEAN_LITERAL: return new BooleanToken(scannedInt != 0, span);
+            default: return new Token(code, span);
         }
+    }
 
-        if (token == TokenCode.FALSE) {
-            return new BooleanToken(false, span);
+    // Все токены исходника сразу в компактный буфер, без объекта на каждый токен
+    public TokenBuffer tokenizeCompact() {
+        TokenBuffer buffer = new TokenBuffer();
+        while (true) {
+            TokenCode code = scan();
+            int line = lineNum;
+            switch (code) {
+                case REAL_LITERAL: buffer.addReal(scannedReal, scannedBegin, scannedEnd, line); break;
+                case STRING_LITERAL: buffer.addString(scannedText, scannedBegin, scannedEnd, line); break;
+                default: buffer.add(code, scannedInt, scannedBegin, scannedEnd, line);
+            }
+            if (code == TokenCode.EOF) {
+                return buffer;
+            }
         }
+    }
 
-        return new Token(token, span);
+    // Поток токенов для парсера: последний токен всегда EOF
+    @Override
+    public boolean hasNext() {
+        return !finished;
+    }
 
+    @Override
+    public Token next() {
+        if (finished) {
+            throw new NoSuchElementException();
+        }
+        Token token = tokenFind();
+        finished = token.code == TokenCode.EOF;
+        return token;
     }
 
-    public List<Token> start() {
-        tokenList = new ArrayList<>();
+    // Все токены исходника без отладочного вывода
+    public List<Token> tokenize() {
+        List<Token> tokenList = new ArrayList<>();
         while (true) {
             Token token = tokenFind();
             tokenList.add(token);
-            token.print();
             if (token.code == TokenCode.EOF) {
                 return tokenList;
             }
         }
     }
 
-
-    private TokenCode getKeywordTokenCode(String str) {
-        if (str.length() == 1) {
-            if (str.equals("<")){
-                return TokenCode.LESS;
-            }
-            else if (str.equals(">")){
-                return TokenCode.GREATER;
-            }
-            else if (str.equals(":")){
-                return TokenCode.COLON;
-            }
-            else if (str.equals("=")){
-                return TokenCode.EQUAL;
-            }
-            else if (str.equals("*")){
-                return TokenCode.MULTIPLY;
-            }
-            else if (str.equals("/")){
-                return TokenCode.DIVIDE;
-            }
-            else if (str.equals("-")){
-                return TokenCode.MINUS;
-            }
-            else if (str.equals("+")){
-                return TokenCode.PLUS;
-            }
-            else if (str.equals("(")){
-                return TokenCode.LPAREN;
-            }
-            else if (str.equals(")")){
-                return TokenCode.RPAREN;
-            }
-            else if (str.equals("[")){
-                return TokenCode.LBRACKET;
-            }
-            else if (str.equals("]")){
-                return TokenCode.RBRACKET;
-            }
-            else if (str.equals("{")){
-                return TokenCode.LBRACE;
-            }
-            else if (str.equals("}")){
-                return TokenCode.RBRACE;
-            }
-            else if (str.equals(".")){
-                return TokenCode.DOT;
-            }
-            else if (str.equals(",")){
-                return TokenCode.COMMA;
-            }
-            else if (str.equals(";")){
-                return TokenCode.SEMICOLON;
-            }
-            else if (str.equals("'")){
-                return TokenCode.QUOTE;
-            }
-            else if (str.equals("\"")){
-                return TokenCode.DOUBLE_QUOTE;
-            }
-
-        }
-        if (str.length() == 2) {
-            if (str.equals("<=")){
-                return TokenCode.LESS_EQUAL;
-            }
-            else if (str.equals("..")){
-                return TokenCode.TWO_DOT;
-            }
-            else if (str.equals(">=")){
-                return TokenCode.GREATER_EQUAL;
-            }
-            else if (str.equals("=>")){
-                return TokenCode.IMPLICATION;
-            }
-            else if (str.equals(":=")){
-                return TokenCode.ASSIGN;
-            }
-            else if (str.equals("/=")){
-                return TokenCode.NOT_EQUAL;
-            }
-            else if (str.equals("or")){
-                return TokenCode.OR;
-            }
-            else if (str.equals("if")){
-                return TokenCode.IF;
-            }
-            else if (str.equals("in")){
-                return TokenCode.IN;
-            }
-            else if (str.equals("is")){
-                return TokenCode.IS;
-            } else if (str.equals("//")){
-                return TokenCode.COMMENT;
-            }
-        }
-        if (str.length() == 3) {
-            if (str.equals("and")) {
-                return TokenCode.AND;
-            }
-            else if (str.equals("for")) {
-                return TokenCode.FOR;
-            }
-            else if (str.equals("xor")) {
-                return TokenCode.XOR;
-            }
-            else if (str.equals("not")) {
-                return TokenCode.NOT;
-            }
-            else if (str.equals("int")) {
-                return TokenCode.INT;
-            }
-            else if (str.equals("var")) {
-                return TokenCode.VAR;
-            }
-            else if (str.equals("end")) {
-                return TokenCode.END;
-            }
-        }
-        if (str.length() == 4) {
-            if (str.equals("bool")) {
-                return TokenCode.BOOL;
-            }
-            else if (str.equals("real")) {
-                return TokenCode.REAL;
-            }
-            else if (str.equals("true")) {
-                return TokenCode.TRUE;
-            }
-            else if (str.equals("else")) {
-                return TokenCode.ELSE;
-            }
-            else if (str.equals("func")) {
-                return TokenCode.FUNC;
-            }
-            else if (str.equals("loop")) {
-                return TokenCode.LOOP;
-            }
-            else if (str.equals("then")) {
-                return TokenCode.THEN;
-            }
-        }
-        if (str.length() == 5) {
-            if (str.equals("false")) {
-                return TokenCode.FALSE;
-            }
-            else if (str.equals("empty")) {
-                return TokenCode.EMPTY;
-            }
-            else if (str.equals("print")) {
-                return TokenCode.PRINT;
-            }
-            else if (str.equals("while")) {
-                return TokenCode.WHILE;
-            }
-        }
-        if (str.length() == 6) {
-            if (str.equals("string")) {
-                return TokenCode.STRING;
-            }
-            else if (str.equals("return")) {
-                return TokenCode.RETURN;
-            }
-            else if (str.equals("length")) {
-                return TokenCode.LENGTH;
-            }
-        }
-        if (str.length() == 7) {
-            if (str.equals("readint")) {
-                return TokenCode.READ_INT;
-            }
-        }
-        if (str.length() == 8) {
-            if (str.equals("readreal")) {
-                return TokenCode.READ_REAL;
-            }
-        }
-        if (str.length() == 10) {
-            if (str.equals("readstring")) {
-                return TokenCode.READ_STRING;
+    // Токены по строкам исходника - в трассировку лексера
+    public List<Token> start() {
+        List<Token> tokenList = tokenize();
+        if (Trace.on(Trace.Phase.LEXER, Trace.Level.TRACE)) {
+            StringBuilder line = new StringBuilder();
+            long lineNum = 1;
+            for (Token token : tokenList) {
+                if (token.span.lineNum != lineNum) {
+                    Trace.log(Trace.Phase.LEXER, Trace.Level.TRACE, line);
+                    line.setLength(0);
+                    lineNum = token.span.lineNum;
+                }
+                line.append(token.describe()).append(' ');
             }
+            Trace.log(Trace.Phase.LEXER, Trace.Level.TRACE, line);
         }
-        return TokenCode.IDENTIFIER;
+        return tokenList;
     }
 
     public static void printTree(Node node, int depth) {
@@ -5490,21 +8280,26 @@ class Lexer {
             System.out.println();
 
             try {
-                String str = new String(Files.readAllBytes(Paths.get(filePath)));
-
+                // Тот же исходник уже компилировался: байткод из кэша, без лексера, парсера и оптимизатора
+                ProgramCache cache = new ProgramCache(Paths.get(filePath));
+                if (cache.load()) {
+                    System.out.println("bytecode from cache: " + cache.getFile());
+                    System.out.println("");
+                    runBytecode(cache.getScript(), cache.getGlobalNames());
+                    continue;
+                }
 
-                Lexer lexer = new Lexer(str);
-                List<Token> tokenList = lexer.start();
+                Lexer lexer = new Lexer(MappedSource.open(Paths.get(filePath)));
 //                System.out.println();
 //                System.out.println();
 //                System.out.println();
-                Parser parser = new Parser(tokenList);
+                Parser parser = new Parser(lexer);
 //                System.out.println(123);
                 ProgramNode ast = parser.parseProgram();
 
                 SymbolTable symbolTable = parser.getSymbolTable();
                 Optimizer optimizer = new Optimizer(symbolTable);
-                optimizer.optimize(ast);
+                FlatAst flat = optimizer.optimizeToFlat(ast);
 
                 System.out.println(ast);// Метод для парсинга
                 ast.printTree("", true);
@@ -5512,22 +8307,631 @@ class Lexer {
                 System.out.println("");
                 System.out.println("");
                 System.out.println("");
-                System.out.println("interpreter console:");
-                System.out.println("");
-                Environment init = new Environment("global", "global");
-                Interpreter interpreter = new Interpreter(init);
-                interpreter.interpret(ast);
+                BytecodeCompiler compiler = new BytecodeCompiler();
+                FunctionProto script = null;
+                try {
+                    script = compiler.compile(ast);
+                } catch (CompileException e) {
+                    // Конструкции, которых нет в байткоде, выполняет интерпретатор по дереву
+                    System.out.println("bytecode compiler: " + e.getMessage() + ", falling back to interpreter");
+                }
 
-                System.out.println("");
-                System.out.println("");
-                System.out.println("");
-                System.out.println("Environment");
-                System.out.println("");
-                init.printAllVariables();
+                if (script != null) {
+                    cache.store(script, compiler.getGlobalCount(), compiler.getGlobalNames());
+                    runBytecode(script, compiler.getGlobalNames());
+                } else {
+                    System.out.println("interpreter console:");
+                    System.out.println("");
+                    Map<String, FrameLayout> layouts = new Resolver().resolve(flat);
+                    Environment init = new Environment("global", "global", layouts);
+                    Interpreter interpreter = new Interpreter(init);
+                    interpreter.interpret(ast);
+
+                    System.out.println("");
+                    System.out.println("");
+                    System.out.println("");
+                    System.out.println("Environment");
+                    System.out.println("");
+                    init.printAllVariables();
+                }
 
             } catch (IOException e) {
                 System.out.println("Ошибка чтения файла: " + e.getMessage());
             }
         }
     }
-}
\ No newline at end of file
+
+    private static void runBytecode(FunctionProto script, String[] globalNames) {
+        System.out.println("vm console:");
+        System.out.println("");
+        VirtualMachine vm = new VirtualMachine(script, globalNames);
+        vm.run();
+
+        System.out.println("");
+        System.out.println("");
+        System.out.println("");
+        vm.printGlobals();
+    }
+}
+
+// Замеры времени выполнения: java Benchmark [файлы .d]
+// Каждую программу прогоняем несколько раз на интерпретаторе и на VM, вывод программы отбрасываем.
+// java Benchmark --lexer [файлы .d] - пропускная способность лексера в MB/s
+class Benchmark {
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+    private static final int LEXER_SOURCE_SIZE = 8 << 20;
+    private static final int LARGE_SOURCE_SIZE = 256 << 20;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--lexer")) {
+            lexer(args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : new String[]{"bench/fib.d", "bench/loop.d"});
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--source")) {
+            source(args.length > 1 ? Paths.get(args[1]) : null);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--calls")) {
+            calls(args.length > 1 ? args[1] : "bench/calls.d");
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--fields")) {
+            fields(args.length > 1 ? args[1] : "bench/tuple.d");
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--parser")) {
+            parser(args.length > 1 ? Integer.parseInt(args[1]) : 50_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--cache")) {
+            cache(args.length > 1 ? args[1] : "bench/calls.d");
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--ast")) {
+            ast(args.length > 1 ? Integer.parseInt(args[1]) : 50_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--tokens")) {
+            tokens(args.length > 1 ? Integer.parseInt(args[1]) : 50_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--list-memory")) {
+            listMemory(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 2 && args[0].equals("--source-run")) {
+            sourceRun(args[1], Paths.get(args[2]));
+            return;
+        }
+        String[] files = args.length > 0 ? args : new String[]{"bench/fib.d"};
+        for (String file : files) {
+            String source = new String(Files.readAllBytes(Paths.get(file)));
+            Parser parser = new Parser(new Lexer(source));
+            ProgramNode ast = parser.parseProgram();
+            FlatAst flat = new Optimizer(parser.getSymbolTable()).optimizeToFlat(ast);
+            Map<String, FrameLayout> layouts = new Resolver().resolve(flat);
+
+            System.out.println(file);
+            report("interpreter", () -> new Interpreter(new Environment("global", "global", layouts)).interpret(ast));
+
+            BytecodeCompiler compiler = new BytecodeCompiler();
+            FunctionProto script;
+            try {
+                script = compiler.compile(ast);
+            } catch (CompileException e) {
+                System.out.println("  vm: " + e.getMessage());
+                continue;
+            }
+            String[] globalNames = compiler.getGlobalNames();
+            report("vm", () -> new VirtualMachine(script, globalNames).run());
+        }
+    }
+
+    // Сколько раз вызываются функции в выражениях вроде print f(i) + g(i). Функции в файле печатают
+    // свое имя, поэтому строка-идентификатор - это один вызов, остальные строки - результаты print
+    private static void calls(String file) throws IOException {
+        String source = new String(Files.readAllBytes(Paths.get(file)));
+        Parser parser = new Parser(new Lexer(source));
+        ProgramNode ast = parser.parseProgram();
+        FlatAst flat = new Optimizer(parser.getSymbolTable()).optimizeToFlat(ast);
+        Map<String, FrameLayout> layouts = new Resolver().resolve(flat);
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            new Interpreter(new Environment("global", "global", layouts)).interpret(ast);
+        } finally {
+            System.setOut(out);
+        }
+        Map<String, Integer> calls = new TreeMap<>();
+        int prints = 0;
+        for (String line : captured.toString(StandardCharsets.UTF_8).split("\n")) {
+            if (line.matches("[A-Za-z_]\\w*")) {
+                calls.merge(line, 1, Integer::sum);
+            } else if (!line.isEmpty()) {
+                prints++;
+            }
+        }
+        System.out.println(file);
+        System.out.printf("  %d prints, calls %s%n", prints, calls);
+        report("interpreter", () -> new Interpreter(new Environment("global", "global", layouts)).interpret(ast));
+    }
+
+    // Доля обращений к полям кортежей, обслуженных кэшами полей, и время в интерпретаторе и VM
+    private static void fields(String file) throws IOException {
+        String source = new String(Files.readAllBytes(Paths.get(file)));
+        Parser parser = new Parser(new Lexer(source));
+        ProgramNode ast = parser.parseProgram();
+        FlatAst flat = new Optimizer(parser.getSymbolTable()).optimizeToFlat(ast);
+        Map<String, FrameLayout> layouts = new Resolver().resolve(flat);
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        FunctionProto script = compiler.compile(ast);
+        String[] globalNames = compiler.getGlobalNames();
+
+        List<FieldCache> treeCaches = new ArrayList<>();
+        collectFieldCaches(ast, treeCaches);
+        List<FieldCache> vmCaches = new ArrayList<>();
+        collectFieldCaches(script, vmCaches);
+
+        System.out.println(file);
+        reportFields("interpreter", treeCaches, () -> new Interpreter(new Environment("global", "global", layouts)).interpret(ast));
+        reportFields("vm", vmCaches, () -> new VirtualMachine(script, globalNames).run());
+    }
+
+    private static void collectFieldCaches(Node node, List<FieldCache> caches) {
+        if (node instanceof DictionaryEntryCall call && call.getFieldCache() != null) {
+            caches.add(call.getFieldCache());
+        }
+        if (node instanceof VariableDeclarationNode declaration && declaration.dictionaryEntryCall != null) {
+            // Цель присваивания tpl.a := ... не входит в потомков объявления
+            collectFieldCaches(declaration.dictionaryEntryCall, caches);
+        }
+        if (node != null) {
+            for (Node child : node.getChildren()) {
+                collectFieldCaches(child, caches);
+            }
+        }
+    }
+
+    private static void collectFieldCaches(FunctionProto proto, List<FieldCache> caches) {
+        caches.addAll(Arrays.asList(proto.chunk.getFieldCaches()));
+        for (Object constant : proto.chunk.getConstants()) {
+            if (constant instanceof FunctionProto) {
+                collectFieldCaches((FunctionProto) constant, caches);
+            }
+        }
+    }
+
+    // Счетчики кэшей копятся от запуска к запуску, поэтому считаем разницу за один прогон
+    private static void reportFields(String name, List<FieldCache> caches, Runnable program) {
+        long hitsBefore = 0;
+        long missesBefore = 0;
+        for (FieldCache cache : caches) {
+            hitsBefore += cache.getHits();
+            missesBefore += cache.getMisses();
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            program.run();
+        } finally {
+            System.setOut(out);
+        }
+        long hits = -hitsBefore;
+        long misses = -missesBefore;
+        for (FieldCache cache : caches) {
+            hits += cache.getHits();
+            misses += cache.getMisses();
+        }
+        long total = hits + misses;
+        System.out.printf("  %-12s %d field accesses, hits %d, misses %d, hit rate %.2f%%%n", name, total,
+                hits, misses, total == 0 ? 0.0 : 100.0 * hits / total);
+        report(name, program);
+    }
+
+    // Разбор сгенерированной программы из lines строк: функции с параметрами и локальными переменными,
+    // глобальные переменные и вызовы - число символов в таблице растет вместе с программой
+    private static void parser(int lines) {
+        String text = program(lines);
+        System.out.printf("%d lines, %.1f KB%n", lines, text.length() / 1e3);
+        report("parser", () -> new Parser(new Lexer(text)).parseProgram());
+    }
+
+    // Память токенов объектами и в TokenBuffer, разбор из потока токенов и из буфера
+    private static void tokens(int lines) {
+        String text = program(lines);
+        int count = new Lexer(text).tokenizeCompact().size();
+        System.out.printf("%d lines, %d tokens%n", lines, count);
+        reportMemory("objects", count, () -> new Lexer(text).tokenize());
+        reportMemory("buffer", count, () -> new Lexer(text).tokenizeCompact());
+        report("lex objects", () -> new Lexer(text).tokenize());
+        report("lex buffer", () -> new Lexer(text).tokenizeCompact());
+        report("parse stream", () -> new Parser(new Lexer(text)).parseProgram());
+        report("parse buffer", () -> new Parser(new Lexer(text).tokenizeCompact()).parseProgram());
+    }
+
+    // Путь от исходника до байткода: лексер, парсер, оптимизатор и компилятор против чтения из ProgramCache.
+    // Без -Dcache.dir кэш пишется во временный каталог
+    private static void cache(String file) throws IOException {
+        if (System.getProperty("cache.dir", "").isEmpty()) {
+            System.setProperty("cache.dir", Files.createTempDirectory("dcache").toString());
+        }
+        Path path = Paths.get(file);
+        String source = Files.readString(path);
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        FunctionProto script = compiler.compile(frontEnd(source));
+        ProgramCache cache = new ProgramCache(path);
+        cache.store(script, compiler.getGlobalCount(), compiler.getGlobalNames());
+        System.out.println(file + " -> " + cache.getFile());
+        report("compile", () -> new BytecodeCompiler().compile(frontEnd(source)));
+        report("cache load", () -> {
+            try {
+                if (!new ProgramCache(path).load()) {
+                    throw new IllegalStateException("cache miss");
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static ProgramNode frontEnd(String source) {
+        Parser parser = new Parser(new Lexer(source));
+        ProgramNode ast = parser.parseProgram();
+        new Optimizer(parser.getSymbolTable()).optimize(ast);
+        return ast;
+    }
+
+    // Память дерева узлов и FlatAst, построение плоского дерева и проход Resolver по нему
+    private static void ast(int lines) {
+        String text = program(lines);
+        ProgramNode tree = new Parser(new Lexer(text)).parseProgram();
+        FlatAst flat = FlatAst.of(tree);
+        System.out.printf("%d lines, %d nodes%n", lines, flat.size());
+        reportMemory("tree", flat.size(), () -> new Parser(new Lexer(text)).parseProgram());
+        reportMemory("flat", flat.size(), () -> FlatAst.of(tree));
+        report("flatten", () -> FlatAst.of(tree));
+        report("resolve", () -> new Resolver().resolve(flat));
+    }
+
+    // Программа из 10-строчных блоков: функция, ее вызов и печать результата
+    private static String program(int lines) {
+        StringBuilder source = new StringBuilder();
+        int count = 0;
+        for (int k = 0; count < lines; k++) {
+            source.append("func f").append(k).append("(a, b) is\n")
+                    .append("  var x := a + b;\n")
+                    .append("  var y := x * 2;\n")
+                    .append("  if y > 10 then\n")
+                    .append("    return y;\n")
+                    .append("  end\n")
+                    .append("  return x;\n")
+                    .append("end\n")
+                    .append("var g").append(k).append(" := f").append(k).append("(").append(k).append(", 1);\n")
+                    .append("print g").append(k).append(";\n");
+            count += 10;
+        }
+        return source.toString();
+    }
+
+    // Память на элемент списка из count целых: ArrayList упакованных Integer против PersistentVector
+    private static void listMemory(int count) {
+        System.out.printf("%d ints%n", count);
+        reportMemory("ArrayList", count, () -> {
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                list.add(i * 3);
+            }
+            return list;
+        });
+        reportMemory("vector", count, () -> {
+            PersistentVector vector = new PersistentVector();
+            for (int i = 0; i < count; i++) {
+                vector.add(i * 3);
+            }
+            return vector;
+        });
+    }
+
+    private static void reportMemory(String name, int count, Supplier<Object> build) {
+        long before = usedHeap();
+        Object list = build.get();
+        long after = usedHeap();
+        System.out.printf("  %-12s %6.1f bytes per element%n", name, (after - before) / (double) count);
+        Reference.reachabilityFence(list);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Склеиваем файлы до LEXER_SOURCE_SIZE символов и считаем, сколько мегабайт в секунду разбирает лексер
+    private static void lexer(String[] files) throws IOException {
+        StringBuilder unit = new StringBuilder();
+        for (String file : files) {
+            unit.append(new String(Files.readAllBytes(Paths.get(file)))).append('\n');
+        }
+        StringBuilder source = new StringBuilder(LEXER_SOURCE_SIZE + unit.length());
+        while (source.length() < LEXER_SOURCE_SIZE) {
+            source.append(unit);
+        }
+        String text = source.toString();
+        int[] tokens = new int[1];
+        double seconds = report("lexer", () -> tokens[0] = countTokens(new Lexer(text))) / 1e9;
+        System.out.printf("  %.1f MB, %d tokens, %.1f MB/s%n", text.length() / 1e6, tokens[0], text.length() / 1e6 / seconds);
+    }
+
+    // Чтение большого файла целиком в строку против отображения в память.
+    // Каждый способ в отдельной JVM, иначе пиковый RSS одного попадет в замер другого
+    private static void source(Path file) throws IOException, InterruptedException {
+        if (file == null) {
+            file = Files.createTempFile("large", ".d");
+            file.toFile().deleteOnExit();
+            byte[] unit = (new String(Files.readAllBytes(Paths.get("bench/fib.d"))) + "\n"
+                    + new String(Files.readAllBytes(Paths.get("bench/loop.d"))) + "\n").getBytes(StandardCharsets.UTF_8);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                for (long size = 0; size < LARGE_SOURCE_SIZE; size += unit.length) {
+                    out.write(unit);
+                }
+            }
+        }
+        System.out.printf("%s, %.1f MB%n", file, Files.size(file) / 1e6);
+        String java = ProcessHandle.current().info().command().orElse("java");
+        for (String mode : new String[]{"string", "mapped"}) {
+            new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "Benchmark", "--source-run", mode, file.toString())
+                    .inheritIO().start().waitFor();
+        }
+    }
+
+    private static void sourceRun(String mode, Path file) throws IOException {
+        long start = System.nanoTime();
+        Lexer lexer = mode.equals("mapped")
+                ? new Lexer(MappedSource.open(file))
+                : new Lexer(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        lexer.tokenFind();
+        long firstToken = System.nanoTime() - start;
+        int tokens = countTokens(lexer) + 1;
+        long total = System.nanoTime() - start;
+        System.out.printf("  %-8s first token %8.2f ms   all %d tokens %8.2f ms   peak RSS %s%n",
+                mode, firstToken / 1e6, tokens, total / 1e6, peakRss());
+    }
+
+    // VmHWM из /proc - пиковый резидентный размер процесса (только Linux)
+    private static String peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return String.format("%.1f MB", Long.parseLong(line.replaceAll("\\D", "")) / 1024.0);
+                }
+            }
+        } catch (IOException e) {
+            // Нет /proc - пиковый RSS не показываем
+        }
+        return "n/a";
+    }
+
+    // Токены не сохраняем, чтобы мерить сам лексер, а не сборку мусора
+    private static int countTokens(Lexer lexer) {
+        int count = 1;
+        while (lexer.tokenFind().code != TokenCode.EOF) {
+            count++;
+        }
+        return count;
+    }
+
+    // Возвращает медиану времени в наносекундах
+    private static long report(String name, Runnable program) {
+        PrintStream out = System.out;
+        long[] times = new long[RUNS];
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                program.run();
+            }
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                program.run();
+                times[i] = System.nanoTime() - start;
+            }
+        } finally {
+            System.setOut(out);
+        }
+        Arrays.sort(times);
+        System.out.printf("  %-12s min %8.2f ms   median %8.2f ms%n", name, times[0] / 1e6, times[RUNS / 2] / 1e6);
+        return times[RUNS / 2];
+    }
+}
+
+// Проверки лексера: java LexerTest. Код выхода 1, если хоть одна проверка не прошла.
+// Каждый исходник разбирается и потоком токенов, и в компактный буфер - результаты должны совпасть
+class LexerTest {
+    private static int passed = 0;
+    private static int failed = 0;
+
+    public static void main(String[] args) {
+        // Вещественные числа: дробная часть, показатель и суффикс - как у Double.parseDouble
+        expect("3.14", "REAL_LITERAL=3.14");
+        expect("var r := 12.25e3;", "VAR IDENTIFIER=r ASSIGN REAL_LITERAL=12250.0 SEMICOLON");
+        expect("1.5E2", "REAL_LITERAL=150.0");
+        expect("2.5e10", "REAL_LITERAL=2.5E10");
+        expect("1.5d 1.5f", "REAL_LITERAL=1.5 REAL_LITERAL=1.5");
+        // Знак показателя - отдельный токен, как и раньше
+        expectError("1.5e-3");
+        expectError("1.5e");
+        expectError("1.5x");
+        // Несколько точек в числе
+        expectError("3.14.15");
+        expectError("var x := 1.2.3;");
+        // Точка без цифры после нее - не дробная часть
+        expect("1.5..3", "REAL_LITERAL=1.5 TWO_DOT INTEGER_LITERAL=3");
+        expect("1..3", "INTEGER_LITERAL=1 TWO_DOT INTEGER_LITERAL=3");
+        expect("t.1", "IDENTIFIER=t DOT INTEGER_LITERAL=1");
+        expect("t.a.2", "IDENTIFIER=t DOT IDENTIFIER=a DOT INTEGER_LITERAL=2");
+        // Позиции токенов: начало и конец самого токена, считая с 1
+        expectSpan("var x := 5;", 2, 7, 9);
+        expectSpan("var r := 12.25e3;", 3, 10, 17);
+
+        System.out.println(passed + " passed, " + failed + " failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void expect(String source, String expected) {
+        check(source, describe(new Lexer(source).tokenize()), expected);
+        TokenBuffer buffer = new Lexer(source).tokenizeCompact();
+        List<Token> tokens = new ArrayList<>();
+        for (int i = 0; i < buffer.size(); i++) {
+            tokens.add(buffer.token(i));
+        }
+        check(source + " (buffer)", describe(tokens), expected);
+    }
+
+    private static void expectError(String source) {
+        try {
+            String tokens = describe(new Lexer(source).tokenize());
+            fail(source, "LexerException, got " + tokens);
+        } catch (LexerException e) {
+            passed++;
+        }
+    }
+
+    private static void expectSpan(String source, int index, int begin, int end) {
+        Token token = new Lexer(source).tokenize().get(index);
+        check(source + " span of " + token.code, token.span.getPosBegin() + ":" + token.span.getPosEnd(), begin + ":" + end);
+    }
+
+    private static String describe(List<Token> tokens) {
+        StringBuilder text = new StringBuilder();
+        for (Token token : tokens) {
+            if (token.code == TokenCode.EOF) {
+                break;
+            }
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(token.code);
+            if (token instanceof RealToken real) {
+                text.append('=').append(real.value);
+            } else if (token instanceof IntegerToken integer) {
+                text.append('=').append(integer.value);
+            } else if (token instanceof Identifier identifier) {
+                text.append('=').append(identifier.identifier);
+            }
+        }
+        return text.toString();
+    }
+
+    private static void check(String source, String actual, String expected) {
+        if (actual.equals(expected)) {
+            passed++;
+        } else {
+            fail(source, expected + ", got " + actual);
+        }
+    }
+
+    private static void fail(String source, String message) {
+        failed++;
+        System.out.println("FAIL " + source + ": expected " + message);
+    }
+}
+
+// Разностная проверка движков: java EngineTest [файлы .d]; без аргументов - test*.d, test/test*.d и bench/*.d.
+// Каждая программа выполняется интерпретатором и VM с одним и тем же вводом: вывод и текст ошибки должны
+// совпасть. Программа, которую фронтенд не разбирает или VM не поддерживает, пропускается. Код выхода 1 при расхождении
+class EngineTest {
+    private static final String INPUT = "5\nhello\n2.5\n";
+
+    public static void main(String[] args) throws IOException {
+        List<String> files = new ArrayList<>(Arrays.asList(args));
+        if (files.isEmpty()) {
+            collect(Paths.get(""), files);
+            collect(Paths.get("test"), files);
+            collect(Paths.get("bench"), files);
+        }
+        int passed = 0;
+        int skipped = 0;
+        int failed = 0;
+        for (String file : files) {
+            String source = new String(Files.readAllBytes(Paths.get(file)));
+            Runnable interpreterProgram;
+            Runnable vmProgram;
+            try {
+                interpreterProgram = prepare(source, false);
+                vmProgram = prepare(source, true);
+            } catch (RuntimeException e) {
+                skipped++;
+                System.out.println("SKIP " + file + ": " + e);
+                continue;
+            }
+            String interpreter = run(interpreterProgram);
+            String vm = run(vmProgram);
+            if (interpreter.equals(vm)) {
+                passed++;
+            } else {
+                failed++;
+                System.out.println("FAIL " + file + ":");
+                System.out.println("  interpreter: " + interpreter.replace("\n", "\n               "));
+                System.out.println("  vm:          " + vm.replace("\n", "\n               "));
+            }
+        }
+        System.out.println(passed + " passed, " + skipped + " skipped, " + failed + " failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void collect(Path directory, List<String> files) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        String pattern = directory.getFileName().toString().equals("bench") ? "*.d" : "test*.d";
+        List<String> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, pattern)) {
+            for (Path path : stream) {
+                found.add(path.toString());
+            }
+        }
+        Collections.sort(found);
+        files.addAll(found);
+    }
+
+    // Разбор и компиляция для одного движка; каждый получает свое дерево. Ошибки фронтенда и компилятора
+    // байткода уходят наружу: сравнивать тут нечего
+    private static Runnable prepare(String source, boolean vm) {
+        Parser parser = new Parser(new Lexer(source));
+        ProgramNode ast = parser.parseProgram();
+        FlatAst flat = new Optimizer(parser.getSymbolTable()).optimizeToFlat(ast);
+        if (vm) {
+            BytecodeCompiler compiler = new BytecodeCompiler();
+            FunctionProto script = compiler.compile(ast);
+            String[] globalNames = compiler.getGlobalNames();
+            return () -> new VirtualMachine(script, globalNames).run();
+        }
+        Map<String, FrameLayout> layouts = new Resolver().resolve(flat);
+        return () -> new Interpreter(new Environment("global", "global", layouts)).interpret(ast);
+    }
+
+    // Вывод программы и текст ошибки, на которой она остановилась
+    private static String run(Runnable program) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        ProgramInput.use(new ByteArrayInputStream(INPUT.getBytes(StandardCharsets.UTF_8)));
+        String error = "";
+        try {
+            program.run();
+        } catch (RuntimeException | StackOverflowError e) {
+            error = "error: " + e.getMessage();
+        } finally {
+            System.setOut(out);
+        }
+        return buffer.toString(StandardCharsets.UTF_8) + error;
+    }
+}